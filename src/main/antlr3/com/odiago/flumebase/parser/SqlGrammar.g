@@ -61,6 +61,13 @@ stmt_create_stream returns [SQLStatement val]:
           $sel.val.setOutputName($nm.val);
           $val = $sel.val;
         }
+  | CREATE TABLE tid=stream_sel tfields=typed_field_list FROM tlcl=LOCAL? FILE tsrc=src_spec
+        {
+          $val = new CreateStreamStmt($tid.val,
+              StreamSourceType.File, $tsrc.val, tlcl != null, $tfields.val);
+          ((CreateStreamStmt) $val).setIsTable(true);
+        }
+      tfmt=optional_format_spec { ((CreateStreamStmt) $val).setFormatSpec($tfmt.val); }
   ;
 
 stmt_describe returns [DescribeStmt val]:
@@ -73,8 +80,11 @@ stmt_select returns [SelectStmt val]:
   SELECT e=aliased_expr_list FROM s=source_definition w=optional_where_conditions
   g=optional_group_by over=optional_window_over
   h=optional_having
+  ord=optional_order_by_limit
   wins=optional_window_defs
-  { $val = new SelectStmt($e.val, $s.val, $w.val, $g.val, $over.val, $h.val, $wins.val); };
+  { $val = new SelectStmt($e.val, $s.val, $w.val, $g.val, $over.val, $h.val, $wins.val);
+    $val.setOrderByLimit($ord.val);
+  };
 
 stmt_show returns [ShowStmt val]:
     SHOW FLOWS {$val = new ShowStmt(EntityTarget.Flow);}
@@ -84,7 +94,8 @@ stmt_show returns [ShowStmt val]:
 
 stmt_drop returns [DropStmt val]:
     DROP FLOW f=user_sel {$val = new DropStmt(EntityTarget.Flow, $f.val);}
-  | DROP STREAM s=stream_sel {$val = new DropStmt(EntityTarget.Stream, $s.val);};
+  | DROP STREAM s=stream_sel {$val = new DropStmt(EntityTarget.Stream, $s.val);}
+  | DROP TABLE t=stream_sel {$val = new DropStmt(EntityTarget.Table, $t.val);};
 
 // Expressions involve operators of varying precedence.
 // Operator precedence is the same as in Java.
@@ -299,12 +310,16 @@ src_spec returns [String val] :
     q=Q_STRING { $val=unescape($q.text); };
 
 // Source for a SELECT statement (in the FROM clause). This is a named stream
-// or a subquery, optionally joined with one or more sources.
+// or a subquery, optionally joined with one or more sources. The OVER clause
+// is omitted when joining with a table. A named stream may be sampled.
 source_definition returns [RecordSource val]:
     s=stream_sel { $val = new LiteralSource($s.val); }
     ( AS? alias=stream_sel { ((LiteralSource) $val).setAlias($alias.val); } )?
-    ( JOIN j=source_definition ON e=expr OVER w=inline_window_spec
-      { $val = new JoinedSource($val, $j.val, $e.val, $w.val); }
+    ( SAMPLE n=INT PERCENT_KW
+      { ((LiteralSource) $val).setSamplePercent(Integer.valueOf($n.text)); } )?
+    ( JOIN j=source_definition ON e=expr
+      { $val = new JoinedSource($val, $j.val, $e.val, null); }
+      ( (OVER) => OVER w=inline_window_spec { ((JoinedSource) $val).setWindowExpr($w.val); } )?
     )*
   | LPAREN st=stmt_select RPAREN { $val = $st.val; }
     ( AS? alias=stream_sel { ((SelectStmt) $val).setAlias($alias.val); } )?
@@ -333,6 +348,16 @@ optional_having returns [Expr val] :
   | HAVING e=expr { $val=$e.val; }
   ;
 
+// ORDER BY ... LIMIT clause for a SELECT statement. May be omitted.
+// Selects the top 'n' groups of each aggregation window, ranked by a single
+// aggregate alias or grouping field. Returns null if it is omitted.
+optional_order_by_limit returns [OrderByLimit val] :
+    { $val=null; }
+  | ORDER BY f=field_sel { $val = new OrderByLimit($f.val); }
+    ( ASC | DESC { $val.setDescending(true); } )?
+    LIMIT n=INT { $val.setLimit(Integer.valueOf($n.text)); }
+  ;
+
 // GROUP BY clause for a SELECT statement. May be omitted.
 // Returns a group by condition, or null if it is omitted.
 optional_group_by returns [GroupBy val] :
@@ -355,8 +380,12 @@ optional_window_defs returns [List<WindowDef> val] :
         { $val.add(new WindowDef($id2.val, $w2.val)); } )* )?;
 
 // Specifies a window within which join and aggregation operators work.
+// A SESSION window is closed once no event arrives within the gap interval.
 window_spec returns [WindowSpec val]:
-    RANGE r=range_spec { $val = new WindowSpec($r.val); };
+    RANGE r=range_spec { $val = new WindowSpec($r.val); }
+  | SESSION INTERVAL e=expr t=time_width
+    { $val = new WindowSpec(new RangeSpec($e.val, $t.val), true); }
+  ;
 
 // Returns a window specifier itself, or an identifier which encompasses a window.
 // This defines all the forms a window definition may take on, "inline" in a statement.
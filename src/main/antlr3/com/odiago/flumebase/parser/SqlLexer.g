@@ -28,6 +28,7 @@ options {
 
 L_AND : A N D ;
 AS : A S ;
+ASC : A S C ;
 BETWEEN : B E T W E E N ;
 BIGINT : B I G I N T ;
 BINARY : B I N A R Y ;
@@ -35,6 +36,7 @@ BOOLEAN : B O O L E A N ;
 BY : B Y ;
 CREATE : C R E A T E ;
 DAYS : D A Y S ;
+DESC : D E S C ;
 DESCRIBE : D E S C R I B E ;
 DOUBLE : D O U B L E ;
 DROP : D R O P ;
@@ -56,6 +58,7 @@ INTERVAL : I N T E R V A L ;
 INT_KW : I N T ;
 IS : I S ;
 JOIN : J O I N ;
+LIMIT : L I M I T ;
 LIST : L I S T ;
 LOCAL : L O C A L ;
 MINUTES : M I N U T E S ;
@@ -65,18 +68,23 @@ NOT : N O T ;
 NULL : N U L L ;
 ON : O N ;
 L_OR : O R ;
+ORDER : O R D E R ;
 OVER : O V E R ;
+PERCENT_KW : P E R C E N T ;
 PRECEDING: P R E C E D I N G ;
 PRECISE: P R E C I S E ;
 PROPERTIES : P R O P E R T I E S ;
 RANGE : R A N G E ;
+SAMPLE : S A M P L E ;
 SECONDS : S E C O N D S ;
 SELECT : S E L E C T ;
+SESSION : S E S S I O N ;
 SHOW : S H O W ;
 SOURCE : S O U R C E ;
 STREAM : S T R E A M ;
 STREAMS : S T R E A M S ;
 STRING_KW : S T R I N G ;
+TABLE : T A B L E ;
 TIMESTAMP : T I M E S T A M P ;
 TRUE : T R U E ;
 WEEKS : W E E K S ;
@@ -24,6 +24,12 @@ public class Bucket<BUCKETSTATE> {
   // State held by the aggregate function about this bucket.
   private BUCKETSTATE mState;
 
+  // Primitive state slots, used by type-specialized Accumulators in place of
+  // a boxed BUCKETSTATE.
+  private long mLongState;
+  private double mDoubleState;
+  private long mCount;
+
   public BUCKETSTATE getState() {
     return mState;
   }
@@ -31,4 +37,33 @@ public class Bucket<BUCKETSTATE> {
   public void setState(BUCKETSTATE state) {
     mState = state;
   }
+
+  public long getLongState() {
+    return mLongState;
+  }
+
+  public void setLongState(long state) {
+    mLongState = state;
+  }
+
+  public double getDoubleState() {
+    return mDoubleState;
+  }
+
+  public void setDoubleState(double state) {
+    mDoubleState = state;
+  }
+
+  /** @return the number of values added to this bucket by an Accumulator. */
+  public long getCount() {
+    return mCount;
+  }
+
+  public void incrementCount() {
+    mCount++;
+  }
+
+  public void setCount(long count) {
+    mCount = count;
+  }
 }
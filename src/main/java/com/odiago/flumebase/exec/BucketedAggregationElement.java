@@ -17,17 +17,26 @@
 
 package com.odiago.flumebase.exec;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import org.apache.avro.Schema;
 
@@ -40,13 +49,13 @@ import org.slf4j.LoggerFactory;
 
 import com.cloudera.util.Pair;
 
-import com.odiago.flumebase.exec.local.TimerFlowElemContext;
-
+import com.odiago.flumebase.lang.AggregateFunc;
 import com.odiago.flumebase.lang.TimeSpan;
 
 import com.odiago.flumebase.parser.AliasedExpr;
 import com.odiago.flumebase.parser.Expr;
 import com.odiago.flumebase.parser.FnCallExpr;
+import com.odiago.flumebase.parser.OrderByLimit;
 import com.odiago.flumebase.parser.TypedField;
 import com.odiago.flumebase.parser.WindowSpec;
 
@@ -54,16 +63,12 @@ import com.odiago.flumebase.plan.AggregateNode;
 import com.odiago.flumebase.plan.PlanNode;
 
 import com.odiago.flumebase.util.IterableIterator;
-import com.odiago.flumebase.util.PairLeftRightComparator;
 
-import com.odiago.flumebase.util.concurrent.SelectableQueue;
-
-@SuppressWarnings("rawtypes")
 /**
  * Perform aggregation functions over time series data divided into
  * a fixed number of buckets over the aggregation time interval.
  */
-public class BucketedAggregationElement extends AvroOutputElementImpl {
+public class BucketedAggregationElement extends WindowedAggregationElement {
   private static final Logger LOG = LoggerFactory.getLogger(
       BucketedAggregationElement.class.getName());
 
@@ -97,6 +102,19 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
       "flumebase.aggregation.max.prior.interval";
   private static final long DEFAULT_MAX_PRIOR_EMIT_INTERVAL = 5000;
 
+  /**
+   * Configuration key specifying the memory budget of the aggregation state,
+   * as the maximum number of (group, time) bucket sets to hold in memory. If
+   * this is exceeded, the least recently updated groups are spilled to disk.
+   * If zero, all state is held in memory.
+   */
+  public static final String MAX_RESIDENT_BUCKETS_KEY =
+      "flumebase.aggregation.max.resident.buckets";
+  public static final long DEFAULT_MAX_RESIDENT_BUCKETS = 0;
+
+  /** Configuration key specifying the directory that holds spilled aggregation state. */
+  public static final String SPILL_DIR_KEY = "flumebase.aggregation.spill.dir";
+
   /** The number of buckets that subdivide the aggregation time interval. */
   private final int mNumBuckets;
 
@@ -133,22 +151,57 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
    */
   private final List<AliasedExpr> mAggregateExprs;
 
+  /**
+   * Argument values of each aggregate call. The FnCallExprs are shared with
+   * other elements running in other threads, so this element keeps its own.
+   */
+  private final Object[][] mAggregateArgs;
+
   private final List<TypedField> mPropagateFields;
 
+  /** Extracts the grouping and propagated fields of each event into a GroupKey. */
+  private final GroupKeyFactory mKeyFactory;
+
+  /** Position of each of mPropagateFields within the GroupKeys we create. */
+  private final int [] mPropagatePositions;
+
+  /** Factor applied to count and sum results when aggregating a sampled stream. */
+  private final double mSampleScale;
+
+  /**
+   * If non-null, only the top groups of each window (as ranked by the
+   * ORDER BY ... LIMIT clause) are emitted, and this selects them.
+   */
+  private final TopKSelector<Pair<GenericData.Record, GroupKey>> mTopK;
+
+  /** Index of the aggregate expr that ranks groups for mTopK, or -1. */
+  private final int mOrderAggregateIndex;
+
+  /** GroupKey position of the field ranking groups for mTopK, if not an aggregate. */
+  private final int mOrderGroupByPos;
+
   /**
    * Map that returns a set of Bucket objects. Each bucket object
    * contains the state associated with a single aggregation function.
-   * The key is a pair consisting of the timestamp (as a Long) and a HashedEvent:
-   * an object that implements equals() and hashCode() based on a subset of the
-   * fields of an EventWrapper.
+   * The key is a pair consisting of the timestamp (as a Long) and a GroupKey
+   * holding the values of the group-by fields of the event.
    */
-  private Map<Pair<Long, HashedEvent>, List<Bucket>> mBucketMap;
+  private Map<Pair<Long, GroupKey>, List<Bucket<Object>>> mBucketMap;
 
   /**
    * The same set of buckets as mBucketMap, organized as time-ordered lists
    * arranged by the group-by columns.
    */
-  private Map<HashedEvent, List<Pair<Long, List<Bucket>>>> mBucketsByGroup;
+  private Map<GroupKey, List<Pair<Long, List<Bucket<Object>>>>> mBucketsByGroup;
+
+  /**
+   * Index from each bucket timestamp to the groups which hold a bucket for that
+   * time, in the order those buckets were created. Closing a window in
+   * non-continuous mode visits only the groups at its closing time, and
+   * expiring old buckets visits only the groups at the expired times, rather
+   * than scanning every group.
+   */
+  private TreeMap<Long, List<GroupKey>> mGroupsByTime;
 
   /**
    * Timestamp associated with the newest buckets in the pipeline.
@@ -162,16 +215,38 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
    */
   private long mTailBucketTime = 0;
 
-  /** Timestamp of the most recent wakeup call enqueued. */
-  private long mLastEnqueuedWakeup = 0;
+  /** Number of events that arrived after windows including them were emitted. */
+  private long mNumLateEvents;
+
+  /** Number of events dropped because they were older than any open window. */
+  private long mNumDroppedEvents;
+
+  /** Maximum number of bucket sets to hold in memory; 0 for no limit. */
+  private final long mMaxResidentBuckets;
+
+  /** Directory in which spill files are created. */
+  private final File mSpillDir;
+
+  /** Number of (group, time) bucket sets currently held in memory. */
+  private long mResidentBuckets = 0;
 
   /**
-   * SelectableQueue for the downstream timer element, which our eviction thread
-   * enqueues into.
+   * Resident groups, ordered from least to most recently updated. Null if
+   * spilling is disabled.
    */
-  private SelectableQueue<Object> mTimerQueue = null;
+  private LinkedHashMap<GroupKey, Boolean> mGroupRecency;
 
-  private EvictionThread mEvictionThread;
+  /** Holds the buckets of groups which have been evicted from memory. Created on demand. */
+  private GroupSpillStore mSpillStore;
+
+  /** Buckets with timestamps before this have expired. */
+  private long mExpiredBefore = Long.MIN_VALUE;
+
+  /** Timestamp of the most recent wakeup call enqueued. */
+  private long mLastEnqueuedWakeup = 0;
+
+  /** Checkpoints our state to local disk; null if checkpointing is disabled. */
+  private KeyedCheckpointer<GroupKey> mCheckpointer;
 
   public BucketedAggregationElement(FlowElementContext ctxt, AggregateNode aggregateNode) {
     super(ctxt, (Schema) aggregateNode.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR));
@@ -189,6 +264,19 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
       mSlackTime = slackTime;
     }
 
+    mMaxResidentBuckets = conf.getLong(MAX_RESIDENT_BUCKETS_KEY, DEFAULT_MAX_RESIDENT_BUCKETS);
+    mSpillDir = new File(conf.get(SPILL_DIR_KEY, System.getProperty("java.io.tmpdir")));
+    if (mMaxResidentBuckets > 0) {
+      // Iterates in access order, least recent first.
+      mGroupRecency = new LinkedHashMap<GroupKey, Boolean>(16, 0.75f, true);
+    }
+
+    CheckpointStore checkpointStore = CheckpointStore.create(conf,
+        (String) aggregateNode.getAttr(PlanNode.CHECKPOINT_ID_ATTR));
+    if (null != checkpointStore) {
+      mCheckpointer = new GroupCheckpointer(checkpointStore);
+    }
+
     assert mMaxPriorEmitInterval > 0;
     assert mMaxPriorEmitInterval > mSlackTime;
 
@@ -201,53 +289,86 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
 
     mAggregateExprs = aggregateNode.getAggregateExprs();
     assert mAggregateExprs != null;
+
+    mAggregateArgs = FnCallExpr.newArgumentArrays(mAggregateExprs);
     mPropagateFields = aggregateNode.getPropagateFields();
+    mKeyFactory = new GroupKeyFactory(mGroupByFields, mPropagateFields);
+    mPropagatePositions = mKeyFactory.getFieldPositions(mPropagateFields);
+    mSampleScale = aggregateNode.getSampleScale();
+
+    OrderByLimit orderByLimit = aggregateNode.getOrderByLimit();
+    if (null != orderByLimit) {
+      mTopK = new TopKSelector<Pair<GenericData.Record, GroupKey>>(
+          orderByLimit.getLimit(), orderByLimit.isDescending());
+      mOrderAggregateIndex = orderByLimit.getAggregateIndex();
+      if (mOrderAggregateIndex < 0) {
+        mOrderGroupByPos = mKeyFactory.getFieldPos(orderByLimit.getGroupByField());
+      } else {
+        mOrderGroupByPos = -1;
+      }
+    } else {
+      mTopK = null;
+      mOrderAggregateIndex = -1;
+      mOrderGroupByPos = -1;
+    }
+
+    mWindowSpec = getWindowSpec(aggregateNode);
+    mTimeSpan = getTimeSpan(mWindowSpec);
+
+    mBucketMap = new HashMap<Pair<Long, GroupKey>, List<Bucket<Object>>>(mNumBuckets);
+    mBucketsByGroup = new HashMap<GroupKey, List<Pair<Long, List<Bucket<Object>>>>>();
+    mGroupsByTime = new TreeMap<Long, List<GroupKey>>();
+
+    // Calculate the width of each bucket.
+    mTimeModulus = getBucketWidth(aggregateNode);
+    if (mTimeModulus * mNumBuckets != mTimeSpan.getWidth()) {
+      LOG.warn("Aggregation time step does not cleanly divide the time interval; "
+          + "results may be inaccurate. Set " + NUM_BUCKETS_KEY + " to a better divisor.");
+    }
+  }
 
+  /** @return the constant window specification of 'aggregateNode'. */
+  private static WindowSpec getWindowSpec(AggregateNode aggregateNode) {
     Expr windowExpr = aggregateNode.getWindowExpr();
     assert windowExpr.isConstant();
     try {
-      mWindowSpec = (WindowSpec) windowExpr.eval(new EmptyEventWrapper());
-      assert mWindowSpec.getRangeSpec().isConstant();
-      mTimeSpan = (TimeSpan) mWindowSpec.getRangeSpec().eval(new EmptyEventWrapper());
+      return (WindowSpec) windowExpr.eval(new EmptyEventWrapper());
     } catch (IOException ioe) {
       // The only way this can be thrown is if the window expr isn't actually constant.
       // This should not happen due to the assert above..
       LOG.error("Got IOException when calculating window width: " + ioe);
       throw new RuntimeException(ioe);
     }
+  }
 
-    mBucketMap = new HashMap<Pair<Long, HashedEvent>, List<Bucket>>(mNumBuckets);
-    mBucketsByGroup = new HashMap<HashedEvent, List<Pair<Long, List<Bucket>>>>();
-
-    // Calculate the width of each bucket.
-    mTimeModulus = mTimeSpan.getWidth() / mNumBuckets;
-    if (mTimeModulus * mNumBuckets != mTimeSpan.getWidth()) {
-      LOG.warn("Aggregation time step does not cleanly divide the time interval; "
-          + "results may be inaccurate. Set " + NUM_BUCKETS_KEY + " to a better divisor.");
+  /** @return the time interval covered by 'windowSpec'. */
+  private static TimeSpan getTimeSpan(WindowSpec windowSpec) {
+    assert windowSpec.getRangeSpec().isConstant();
+    try {
+      return (TimeSpan) windowSpec.getRangeSpec().eval(new EmptyEventWrapper());
+    } catch (IOException ioe) {
+      LOG.error("Got IOException when calculating window width: " + ioe);
+      throw new RuntimeException(ioe);
     }
   }
 
-  /** {@inheritDoc} */
-  @Override
-  public void open() throws IOException, InterruptedException {
-    TimerFlowElemContext timerContext = (TimerFlowElemContext) getContext();
-    // Start the auto-closing thread. Initialize the reference to the queue it populates
-    // from our timer context.
-    mTimerQueue = timerContext.getTimerQueue();
-    mEvictionThread = new EvictionThread();
-    mEvictionThread.start();
-    super.open();
+  /**
+   * @return the width, in milliseconds, of the buckets into which the
+   * aggregator for 'aggregateNode' divides time.
+   */
+  static long getBucketWidth(AggregateNode aggregateNode) {
+    int numBuckets = aggregateNode.getConf().getInt(NUM_BUCKETS_KEY, DEFAULT_NUM_BUCKETS);
+    return getTimeSpan(getWindowSpec(aggregateNode)).getWidth() / numBuckets;
   }
 
-  /** {@inheritDoc} */
-  @Override
-  public void close() throws IOException, InterruptedException {
-    // We've got no new elements coming in; expire all buckets immediately.
-    LOG.debug("Immediately expiring all buckets to mHeadBucketTime=" + mHeadBucketTime);
-    closeUntil(mHeadBucketTime, mHeadBucketTime, getContext());
-    mEvictionThread.finish();
-    mEvictionThread = null;
-    super.close();
+  /**
+   * @return the timestamp of the bucket holding events at 'eventTime', for
+   * buckets 'timeModulus' milliseconds wide.
+   */
+  static long getBucketTime(long eventTime, long timeModulus) {
+    // If we're on an interval boundary (e.g., t=100) we go into that bucket.
+    // If we're off-boundary (e.g., t=103), we go into the closest "previous" bucket (t=100).
+    return eventTime - eventTime % timeModulus;
   }
 
   /**
@@ -256,24 +377,33 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
    * a value in a new bucket at the head of a new time window.
    * @return the list of initialized Bucket objects for this time subrange.
    */
-  private List<Bucket> initBuckets(Pair<Long, HashedEvent> bucketKey) {
-    List<Bucket> newBuckets = new ArrayList<Bucket>(mAggregateExprs.size());
+  private List<Bucket<Object>> initBuckets(Pair<Long, GroupKey> bucketKey) {
+    List<Bucket<Object>> newBuckets = new ArrayList<Bucket<Object>>(mAggregateExprs.size());
     for (int i = 0; i < mAggregateExprs.size(); i++) {
       // Put in a new bucket instance for each aggregation funtion we're going to run.
-      newBuckets.add(new Bucket());
+      newBuckets.add(new Bucket<Object>());
     }
 
     assert null == mBucketMap.get(bucketKey);
     mBucketMap.put(bucketKey, newBuckets);
+    mResidentBuckets++;
 
     // Put this into the map organized by group, as well.
     // Get the set of (time, bucketlist) pairs for the group.
-    List<Pair<Long, List<Bucket>>> bucketsByTime = mBucketsByGroup.get(bucketKey.getRight());
+    List<Pair<Long, List<Bucket<Object>>>> bucketsByTime = mBucketsByGroup.get(bucketKey.getRight());
     if (null == bucketsByTime) {
-      bucketsByTime = new LinkedList<Pair<Long, List<Bucket>>>();
+      bucketsByTime = new LinkedList<Pair<Long, List<Bucket<Object>>>>();
       mBucketsByGroup.put(bucketKey.getRight(), bucketsByTime);
     }
-    bucketsByTime.add(new Pair<Long, List<Bucket>>(bucketKey.getLeft(), newBuckets));
+    bucketsByTime.add(new Pair<Long, List<Bucket<Object>>>(bucketKey.getLeft(), newBuckets));
+
+    // And mark the group as holding data for this bucket time.
+    List<GroupKey> groupsAtTime = mGroupsByTime.get(bucketKey.getLeft());
+    if (null == groupsAtTime) {
+      groupsAtTime = new ArrayList<GroupKey>();
+      mGroupsByTime.put(bucketKey.getLeft(), groupsAtTime);
+    }
+    groupsAtTime.add(bucketKey.getRight());
 
     // Return the initialized set of Bucket objects back to the caller.
     return newBuckets;
@@ -281,20 +411,25 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
 
   /**
    * @return a key into our group-by map that is composed of the bucket
-   * timestamp for the event, and a HashedEvent that reads the fields
-   * of the event necessary to group by those fields. If we are not grouping
-   * by any fields, this component of the pair is null.
+   * timestamp for the event, and a GroupKey holding the fields
+   * of the event necessary to group by those fields.
    */
-  private Pair<Long, HashedEvent> getEventKey(EventWrapper e) {
-    long eventTime = e.getEvent().getTimestamp();
-    long remainder = eventTime % mTimeModulus;
-    Long bucketTime;
+  private Pair<Long, GroupKey> getEventKey(EventWrapper e) throws IOException {
+    long bucketTime = getBucketTime(e.getEvent().getTimestamp(), mTimeModulus);
+    return new Pair<Long, GroupKey>(Long.valueOf(bucketTime), mKeyFactory.createKey(e));
+  }
 
-    // If we're on an interval boundary (e.g., t=100) we go into that bucket.
-    // If we're off-boundary (e.g., t=103), we go into the closest "previous" bucket (t=100).
-    bucketTime = Long.valueOf(eventTime - remainder);
-    HashedEvent hashedEvent = new HashedEvent(e, mGroupByFields);
-    return new Pair<Long, HashedEvent>(bucketTime, hashedEvent);
+  /**
+   * Add a further set of buckets for an existing (timestamp, group) key,
+   * holding partial aggregates computed elsewhere. Windows are calculated over
+   * every set of buckets with a timestamp in range, so this is equivalent to
+   * merging them into the existing set.
+   */
+  private void addBucketSet(Pair<Long, GroupKey> bucketKey, List<Bucket<Object>> buckets) {
+    assert null != mBucketMap.get(bucketKey);
+    mBucketsByGroup.get(bucketKey.getRight()).add(
+        new Pair<Long, List<Bucket<Object>>>(bucketKey.getLeft(), buckets));
+    mResidentBuckets++;
   }
 
   /**
@@ -319,7 +454,7 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
      * Iterator over the outer list. We require this iterator
      * to return values in order.
      */ 
-    private final Iterator<Pair<Long, List<Bucket>>> mIterator;
+    private final Iterator<Pair<Long, List<Bucket<T>>>> mIterator;
 
     /** The next value we return. */
     private Bucket<T> mNextBucket;
@@ -331,7 +466,7 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
     private int mYieldCount;
 
     public BucketIterator(int functionId, long loTime, long hiTime,
-        List<Pair<Long, List<Bucket>>> inputList) {
+        List<Pair<Long, List<Bucket<T>>>> inputList) {
       mFunctionId = functionId;
       mLoTime = loTime;
       mHiTime = hiTime;
@@ -352,7 +487,7 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
       mNextBucket = null;
 
       while (mIterator.hasNext()) {
-        Pair<Long, List<Bucket>> nextPair = mIterator.next();
+        Pair<Long, List<Bucket<T>>> nextPair = mIterator.next();
         long timestamp = nextPair.getLeft();
         if (timestamp > mLoTime && timestamp <= mHiTime) {
           // We found the next one to return.
@@ -401,85 +536,266 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
   private void closeWindow(long closeTime, FlowElementContext context)
       throws IOException, InterruptedException {
     long loTime = closeTime - mTimeSpan.getWidth();
-    Long closeBucketTimestamp = Long.valueOf(closeTime);
 
     LOG.debug("Closing window for range: " + loTime + " -> " + closeTime);
 
     // For each group, emit an output record containing the aggregate values over
-    // the whole time window.
-    for (Map.Entry<HashedEvent, List<Pair<Long, List<Bucket>>>> entry :
-        mBucketsByGroup.entrySet()) {
-      HashedEvent group = entry.getKey();
-
-      // In non-continuous (demand-only) mode, check whether there's a bucket associated
-      // with this window's closing time for this group.
-      if (!mContinuousOutput &&
-          mBucketMap.get(new Pair<Long, HashedEvent>(closeBucketTimestamp, group)) == null) {
-        continue; // Nothing to do.
+    // the whole time window. In continuous mode, every group with live buckets
+    // gets an output record. Otherwise (demand-only mode), only the groups with
+    // a bucket associated with this window's closing time do.
+    if (mContinuousOutput) {
+      for (Map.Entry<GroupKey, List<Pair<Long, List<Bucket<Object>>>>> entry
+          : mBucketsByGroup.entrySet()) {
+        closeGroup(entry.getKey(), entry.getValue(), loTime, closeTime, context);
+      }
+
+      if (null != mSpillStore) {
+        for (GroupKey group : mSpillStore.getGroups()) {
+          closeGroup(group, mSpillStore.read(group, false), loTime, closeTime, context);
+        }
+      }
+    } else {
+      List<GroupKey> groups = mGroupsByTime.get(Long.valueOf(closeTime));
+      if (null != groups) {
+        for (GroupKey group : groups) {
+          List<Pair<Long, List<Bucket<Object>>>> bucketsByTime = mBucketsByGroup.get(group);
+          if (null == bucketsByTime) {
+            // This group's buckets have been spilled to disk; read them back
+            // without making them resident again.
+            bucketsByTime = mSpillStore.read(group, false);
+          }
+          closeGroup(group, bucketsByTime, loTime, closeTime, context);
+        }
       }
+    }
+
+    if (null != mTopK) {
+      for (Pair<GenericData.Record, GroupKey> winner : mTopK.drain()) {
+        emitAvroRecord(winner.getLeft(), winner.getRight().getEvent(), closeTime, context);
+      }
+    }
+
+    // Remove any buckets that are too old to be useful to any subsequent windows.
+    mExpiredBefore = loTime;
+    SortedMap<Long, List<GroupKey>> expired = mGroupsByTime.headMap(Long.valueOf(loTime));
+    for (Map.Entry<Long, List<GroupKey>> expiredEntry : expired.entrySet()) {
+      Long timestamp = expiredEntry.getKey();
+      for (GroupKey group : expiredEntry.getValue()) {
+        List<Pair<Long, List<Bucket<Object>>>> bucketsByTime = mBucketsByGroup.get(group);
+        if (null == bucketsByTime) {
+          // Spilled groups are filtered when they are restored; just drop those
+          // with no remaining live buckets.
+          if (null != mSpillStore && mSpillStore.contains(group)
+              && mSpillStore.getMaxTime(group) < loTime) {
+            mSpillStore.discard(group);
+            markDirty(group);
+          }
+          continue;
+        }
 
-      GenericData.Record record = new GenericData.Record(getOutputSchema());
-      List<Pair<Long, List<Bucket>>> bucketsByTime = entry.getValue();
-
-      int numBucketsInRangeForGroup = 0;
-      // Execute each aggregation function over the applicable subset of buckets
-      // in bucketsByTime.
-      for (int i = 0; i < mAggregateExprs.size(); i++) {
-        BucketIterator aggIterator = new BucketIterator(i, loTime, closeTime, bucketsByTime);
-        AliasedExpr aliasExpr = mAggregateExprs.get(i);
-        FnCallExpr fnCall = (FnCallExpr) aliasExpr.getExpr();
-        Object result = fnCall.finishWindow(new IterableIterator(aggIterator));
+        mBucketMap.remove(new Pair<Long, GroupKey>(timestamp, group));
+        Iterator<Pair<Long, List<Bucket<Object>>>> bucketsByTimeIter = bucketsByTime.iterator();
+        while (bucketsByTimeIter.hasNext()) {
+          // There may be several sets of buckets at this time, if partial
+          // aggregates were combined upstream.
+          if (bucketsByTimeIter.next().getLeft().equals(timestamp)) {
+            bucketsByTimeIter.remove(); // Remove from bucketsByTime list.
+            mResidentBuckets--;
+          }
+        }
+
+        if (bucketsByTime.size() == 0) {
+          // We've removed the last time bucket for a given group from mBucketsByGroup.
+          // Remove the group from that map.
+          mBucketsByGroup.remove(group);
+          if (null != mGroupRecency) {
+            mGroupRecency.remove(group);
+          }
+          markDirty(group);
+        }
+      }
+    }
+    expired.clear();
+  }
+
+  /**
+   * Compensate the result of an aggregate function for sampling of its
+   * input, if it is a function whose result scales with the sample size.
+   */
+  private Object scaleForSampling(FnCallExpr fnCall, Object result) {
+    if (mSampleScale == 1.0 || !fnCall.scalesWithSampling()) {
+      return result;
+    }
+    return AggregateFunc.scaleResult(result, mSampleScale);
+  }
+
+  /**
+   * Calculate the aggregate values of a group over the window (loTime, closeTime],
+   * and emit them (or offer them to mTopK).
+   */
+  private void closeGroup(GroupKey group, List<Pair<Long, List<Bucket<Object>>>> bucketsByTime,
+      long loTime, long closeTime, FlowElementContext context)
+      throws IOException, InterruptedException {
+    // When selecting the top groups of the window, calculate the value we rank
+    // by first, so that groups which cannot make the cut are skipped cheaply.
+    Object orderKey = null;
+    int numBucketsInRangeForGroup = 0;
+    if (null != mTopK) {
+      if (mOrderAggregateIndex >= 0) {
+        BucketIterator<Object> aggIterator = new BucketIterator<Object>(mOrderAggregateIndex,
+            loTime, closeTime, bucketsByTime);
+        FnCallExpr fnCall = (FnCallExpr) mAggregateExprs.get(mOrderAggregateIndex).getExpr();
+        orderKey = scaleForSampling(fnCall,
+            fnCall.finishWindow(new IterableIterator<Bucket<Object>>(aggIterator)));
         numBucketsInRangeForGroup += aggIterator.getYieldCount();
-        record.put(aliasExpr.getAvroLabel(), result);
+        if (0 == numBucketsInRangeForGroup) {
+          return; // Nothing in range for this group.
+        }
+      } else {
+        orderKey = group.getValue(mOrderGroupByPos);
       }
 
-      // If there are no buckets in bucketsByTime that are in our time range,
-      // we should not emit anything for this group. Just silently continue.
-      if (0 == numBucketsInRangeForGroup) {
-        // Discard this output; we didn't actually calculate anything.
-        continue;
+      if (!mTopK.admits(orderKey)) {
+        return; // Would not be emitted.
       }
+    }
+
+    GenericData.Record record = new GenericData.Record(getOutputSchema());
 
-      // Copy the specified fields to propagate from the record used to define
-      // the group, into the output record.
-      EventWrapper groupWrapper = group.getEventWrapper();
-      for (TypedField propagateField : mPropagateFields) {
-        record.put(propagateField.getAvroName(), groupWrapper.getField(propagateField));
+    // Execute each aggregation function over the applicable subset of buckets
+    // in bucketsByTime.
+    for (int i = 0; i < mAggregateExprs.size(); i++) {
+      AliasedExpr aliasExpr = mAggregateExprs.get(i);
+      if (null != mTopK && i == mOrderAggregateIndex) {
+        record.put(aliasExpr.getAvroLabel(), orderKey); // Already calculated.
+        continue;
       }
+      BucketIterator<Object> aggIterator = new BucketIterator<Object>(i, loTime, closeTime,
+          bucketsByTime);
+      FnCallExpr fnCall = (FnCallExpr) aliasExpr.getExpr();
+      Object result = scaleForSampling(fnCall,
+          fnCall.finishWindow(new IterableIterator<Bucket<Object>>(aggIterator)));
+      numBucketsInRangeForGroup += aggIterator.getYieldCount();
+      record.put(aliasExpr.getAvroLabel(), result);
+    }
+
+    // If there are no buckets in bucketsByTime that are in our time range,
+    // we should not emit anything for this group. Just silently continue.
+    if (0 == numBucketsInRangeForGroup) {
+      // Discard this output; we didn't actually calculate anything.
+      return;
+    }
+
+    // Copy the specified fields to propagate from the record used to define
+    // the group, into the output record.
+    for (int i = 0; i < mPropagateFields.size(); i++) {
+      record.put(mPropagateFields.get(i).getAvroName(), group.getValue(mPropagatePositions[i]));
+    }
 
+    if (null != mTopK) {
+      // Hold this back until we know which groups rank highest.
+      mTopK.offer(orderKey, new Pair<GenericData.Record, GroupKey>(record, group));
+    } else {
       // Emit this as an output event!
-      emitAvroRecord(record, groupWrapper.getEvent(), closeTime, context);
+      emitAvroRecord(record, group.getEvent(), closeTime, context);
     }
+  }
 
-    // Remove any buckets that are too old to be useful to any subsequent windows.
-    // TODO(aaron): This is O(groups * num_buckets). We should actually use a TreeMap
-    // instad of a list internally, so we can quickly cull the herd. That would be
-    // O(groups * log(num_buckets)).
-    Iterator<Map.Entry<HashedEvent, List<Pair<Long, List<Bucket>>>>> bucketsByGrpIter =
-        mBucketsByGroup.entrySet().iterator();
-    while (bucketsByGrpIter.hasNext()) {
-      Map.Entry<HashedEvent, List<Pair<Long, List<Bucket>>>> entry = bucketsByGrpIter.next();
-      HashedEvent group = entry.getKey();
-      List<Pair<Long, List<Bucket>>> bucketsByTime = entry.getValue();
-      Iterator<Pair<Long, List<Bucket>>> bucketsByTimeIter = bucketsByTime.iterator();
-      while (bucketsByTimeIter.hasNext()) {
-        Pair<Long, List<Bucket>> timedBucket = bucketsByTimeIter.next();
-        Long timestamp = timedBucket.getLeft();
-        if (timestamp.longValue() < loTime) {
-          bucketsByTimeIter.remove(); // Remove from bucketsByTime list.
-          Pair<HashedEvent, Long> key = new Pair<HashedEvent, Long>(group, timestamp);
-          mBucketMap.remove(key); // Remove from mBucketMap.
-        }
+  /**
+   * Make the buckets of a spilled group resident in memory again, discarding
+   * any which have expired since the group was spilled.
+   */
+  private void restoreGroup(GroupKey group) throws IOException {
+    List<Pair<Long, List<Bucket<Object>>>> bucketsByTime = mSpillStore.read(group, true);
+    Iterator<Pair<Long, List<Bucket<Object>>>> bucketsByTimeIter = bucketsByTime.iterator();
+    while (bucketsByTimeIter.hasNext()) {
+      Pair<Long, List<Bucket<Object>>> timedBuckets = bucketsByTimeIter.next();
+      if (timedBuckets.getLeft().longValue() < mExpiredBefore) {
+        bucketsByTimeIter.remove();
+      } else {
+        mBucketMap.put(new Pair<Long, GroupKey>(timedBuckets.getLeft(), group),
+            timedBuckets.getRight());
       }
+    }
 
-      if (bucketsByTime.size() == 0) {
-        // We've removed the last time bucket for a given group from mBucketsByGroup.
-        // Remove the group from that map.
-        bucketsByGrpIter.remove();
+    if (bucketsByTime.size() > 0) {
+      mBucketsByGroup.put(group, bucketsByTime);
+      mGroupRecency.put(group, Boolean.TRUE);
+      mResidentBuckets += bucketsByTime.size();
+    }
+  }
+
+  /**
+   * Spill the least recently updated groups to disk until the number of
+   * resident buckets falls well under the memory budget.
+   */
+  private void spillColdGroups() throws IOException {
+    if (null == mSpillStore) {
+      mSpillStore = new GroupSpillStore(mAggregateExprs, mSpillDir);
+    }
+
+    long target = mMaxResidentBuckets - mMaxResidentBuckets / 4;
+    Iterator<GroupKey> coldestIter = mGroupRecency.keySet().iterator();
+    // Never spill the most recently updated group.
+    while (mResidentBuckets > target && mGroupRecency.size() > 1) {
+      GroupKey group = coldestIter.next();
+      coldestIter.remove();
+      List<Pair<Long, List<Bucket<Object>>>> bucketsByTime = mBucketsByGroup.remove(group);
+      for (Pair<Long, List<Bucket<Object>>> timedBuckets : bucketsByTime) {
+        mBucketMap.remove(new Pair<Long, GroupKey>(timedBuckets.getLeft(), group));
+      }
+      mResidentBuckets -= bucketsByTime.size();
+      mSpillStore.write(group, bucketsByTime);
+    }
+
+    LOG.debug("Spilled aggregation groups to disk; " + mSpillStore.size()
+        + " groups are spilled");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void open() throws IOException, InterruptedException {
+    if (null != mCheckpointer) {
+      restoreCheckpoint();
+    }
+    super.open();
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>Records our state once the open windows have been emitted, so that a
+   * restarted flow neither emits them again nor loses the buckets they share
+   * with later windows.</p>
+   */
+  @Override
+  protected void windowsClosed() throws IOException, InterruptedException {
+    if (null != mCheckpointer) {
+      CheckpointStore store = mCheckpointer.getStore();
+      store.awaitIdle();
+      checkpoint(true);
+      if (null != mCheckpointer) {
+        store.close();
+        LOG.info("Aggregation checkpoint statistics: " + store.getNumCheckpoints()
+            + " checkpoints (" + store.getBytesWritten() + " bytes) written");
+        mCheckpointer = null;
       }
     }
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException, InterruptedException {
+    super.close();
+    if (null != mSpillStore) {
+      LOG.info("Aggregation spill statistics: " + mSpillStore.getNumSpills()
+          + " group records (" + mSpillStore.getBytesSpilled() + " bytes) written; "
+          + mSpillStore.getNumReads() + " group records (" + mSpillStore.getBytesRead()
+          + " bytes) read");
+      mSpillStore.close();
+      mSpillStore = null;
+    }
+  }
+
   /**
    * Close all open windows up to and including the window that ends with the bucket
    * for time 'lastWindow'.
@@ -490,15 +806,20 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
     LOG.debug("Close until: cur=" + curBucketTime + ", lastWindow=" + lastWindow
         + ", mTailBucketTime=" + mTailBucketTime + ", mTimeMod=" + mTimeModulus
         + ", mMaxPrior=" + mMaxPriorEmitInterval);
-    if (lastWindow <= mTailBucketTime) {
+
+    // Windows end on bucket boundaries; the slack time and the maximum prior
+    // interval need not be multiples of the bucket width.
+    lastWindow = floorBucketTime(lastWindow);
+    if (lastWindow < mTailBucketTime) {
       return; // We've already closed this window.
     }
 
     // If mHeadBucketTime is too far back from the current time,
     // do a mass expiration and throw out old data. closeTime is bounded by
     // mMaxPriorEmitInterval.
-    for (long closeTime = Math.max(mTailBucketTime, curBucketTime - mMaxPriorEmitInterval);
-        closeTime <= lastWindow; closeTime += mTimeModulus) {
+    long firstWindow = Math.max(mTailBucketTime, curBucketTime - mMaxPriorEmitInterval);
+    firstWindow = floorBucketTime(firstWindow + mTimeModulus - 1);
+    for (long closeTime = firstWindow; closeTime <= lastWindow; closeTime += mTimeModulus) {
       LOG.debug("Close window: closeTime=" + closeTime);
       closeWindow(closeTime, context);
     }
@@ -506,38 +827,36 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
     mTailBucketTime = lastWindow + mTimeModulus;
   }
 
+  /** @return the latest bucket boundary at or before 'time'. */
+  private long floorBucketTime(long time) {
+    long remainder = time % mTimeModulus;
+    if (remainder < 0) {
+      remainder += mTimeModulus;
+    }
+    return time - remainder;
+  }
+
   @Override
   public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
-    Pair<Long, HashedEvent> bucketKey = getEventKey(e);
+    if (e instanceof PartialAggregateEvent) {
+      takePartialAggregate((PartialAggregateEvent) e);
+      return;
+    }
 
-    long curBucketTime = bucketKey.getLeft();
-    LOG.debug("Handling event time=" + curBucketTime);
-    if (curBucketTime > mHeadBucketTime) {
-      // We've just received an event that is newer than any others we've yet
-      // received. This advances the sliding window to match this event's timestamp.
-      // Emit any output groups that are older than this one by at least the
-      // slack time interval.
-      LOG.debug("New bucket: cur=" + curBucketTime + "; mHeadBucketTime=" + mHeadBucketTime);
-      closeUntil(curBucketTime, curBucketTime - mSlackTime - mTimeModulus, getContext());
-      // Since we've already handled these, remove their wake-up calls..
-      mEvictionThread.discardUntil(mHeadBucketTime - mSlackTime);
-      mHeadBucketTime = curBucketTime; // This insert advances our head bucket.
-    } else if (curBucketTime < mHeadBucketTime - mMaxPriorEmitInterval) {
-      // This event is too old -- ignore it.
-      // TODO: Should this be mHeadBucketTiem - mSlackTime?
-      LOG.debug("Dropping late event arriving at aggregator; HeadBucketTime=" + mHeadBucketTime
-          + " and event is for bucket " + curBucketTime);
+    Pair<Long, GroupKey> bucketKey = getEventKey(e);
+    if (!advanceTo(bucketKey.getLeft())) {
       return;
     }
 
     // Get the bucket for the (timestamp, group-by-fields) of this event.
     // Actually returns a list of Bucket objects, one per AggregateFunc to
     // execute.
-    List<Bucket> buckets = mBucketMap.get(bucketKey);
+    List<Bucket<Object>> buckets = getResidentBuckets(bucketKey);
     if (null == buckets) {
       // We're putting the first event into a new bucket.
       buckets = initBuckets(bucketKey);
     }
+    touchGroup(bucketKey.getRight());
 
     // For each aggregation function we're performing, insert this event into
     // the bucket for the aggregate function.
@@ -547,12 +866,113 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
       Expr expr = aliasExpr.getExpr();
       assert expr instanceof FnCallExpr;
       FnCallExpr fnCall = (FnCallExpr) expr;
-      Bucket bucket = buckets.get(i);
-      fnCall.insertAggregate(e, bucket);
+      Bucket<Object> bucket = buckets.get(i);
+      fnCall.insertAggregate(e, bucket, mAggregateArgs[i]);
+    }
+
+    finishInsert(bucketKey);
+  }
+
+  /**
+   * Add the buckets of partial aggregates computed by a CombinerElement for a
+   * single (timestamp, group) to our state.
+   */
+  private void takePartialAggregate(PartialAggregateEvent partial)
+      throws IOException, InterruptedException {
+    Pair<Long, GroupKey> bucketKey = new Pair<Long, GroupKey>(
+        Long.valueOf(partial.getBucketTime()), partial.getGroup());
+    if (!advanceTo(bucketKey.getLeft())) {
+      return;
+    }
+
+    List<Bucket<Object>> buckets = getResidentBuckets(bucketKey);
+    if (null == buckets) {
+      buckets = initBuckets(bucketKey);
+      for (int i = 0; i < buckets.size(); i++) {
+        buckets.set(i, partial.getBuckets().get(i));
+      }
+    } else {
+      addBucketSet(bucketKey, partial.getBuckets());
+    }
+    touchGroup(bucketKey.getRight());
+
+    finishInsert(bucketKey);
+  }
+
+  /**
+   * Advance the sliding window to include data for bucket 'curBucketTime',
+   * closing windows which are complete.
+   * @return false if data for this bucket is too old to count toward any
+   * window, and should be dropped.
+   */
+  private boolean advanceTo(long curBucketTime) throws IOException, InterruptedException {
+    LOG.debug("Handling event time=" + curBucketTime);
+    if (curBucketTime > mHeadBucketTime) {
+      // We've just received an event that is newer than any others we've yet
+      // received. This advances the sliding window to match this event's timestamp.
+      LOG.debug("New bucket: cur=" + curBucketTime + "; mHeadBucketTime=" + mHeadBucketTime);
+      if (!isWatermarkDriven()) {
+        // Emit any output groups that are older than this one by at least the
+        // slack time interval.
+        closeUntil(curBucketTime, curBucketTime - mSlackTime - mTimeModulus, getContext());
+      }
+      // Either we've already handled these, or the wake-up call for the new
+      // head closes them too; remove their wake-up calls. Partial aggregates
+      // may advance the head by many buckets while the watermark lags.
+      discardWakeupsUntil(mHeadBucketTime - mSlackTime);
+      mHeadBucketTime = curBucketTime; // This insert advances our head bucket.
+    } else if (curBucketTime < mHeadBucketTime - mMaxPriorEmitInterval) {
+      // This event is too old -- ignore it.
+      LOG.debug("Dropping late event arriving at aggregator; HeadBucketTime=" + mHeadBucketTime
+          + " and event is for bucket " + curBucketTime);
+      mNumDroppedEvents++;
+      return false;
+    } else if (curBucketTime < mTailBucketTime) {
+      // This event still counts toward open windows, but windows which
+      // included it have already been emitted without it.
+      mNumLateEvents++;
     }
 
+    return true;
+  }
+
+  /**
+   * @return the resident set of buckets for 'bucketKey', restoring its group
+   * from disk if necessary, or null if there is none yet.
+   */
+  private List<Bucket<Object>> getResidentBuckets(Pair<Long, GroupKey> bucketKey) throws IOException {
+    GroupKey group = bucketKey.getRight();
+    if (null != mSpillStore && mSpillStore.contains(group)) {
+      // Bring this group's buckets back from disk before updating them.
+      restoreGroup(group);
+    }
+
+    return mBucketMap.get(bucketKey);
+  }
+
+  /**
+   * Mark 'group' as the most recently updated, spilling colder groups to
+   * disk if we are over our memory budget.
+   */
+  private void touchGroup(GroupKey group) throws IOException {
+    if (null != mGroupRecency) {
+      mGroupRecency.put(group, Boolean.TRUE); // Mark this as the most recently used group.
+      if (mResidentBuckets > mMaxResidentBuckets) {
+        spillColdGroups();
+      }
+    }
+  }
+
+  /** Complete the insertion of data into the buckets for 'bucketKey'. */
+  private void finishInsert(Pair<Long, GroupKey> bucketKey) throws InterruptedException {
+    markDirty(bucketKey.getRight());
+
     // Insert a callback into a queue to allow time to expire these windows.
-    enqueueWakeup(curBucketTime);
+    enqueueWakeup(bucketKey.getLeft());
+
+    if (null != mCheckpointer && mCheckpointer.isDue()) {
+      checkpoint(false);
+    }
   }
 
   /**
@@ -560,7 +980,9 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
    * specified bucket timestamp.
    */
   private void enqueueWakeup(long bucketTime) {
-    if (bucketTime <= mLastEnqueuedWakeup) {
+    if (isWatermarkDriven()) {
+      return; // Watermarks close the windows instead.
+    } else if (bucketTime <= mLastEnqueuedWakeup) {
       // We've already enqueued a wakeup to close this bucket.
       return;
     }
@@ -569,215 +991,206 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
     long offset = mTimeModulus + mSlackTime;
     long closeTime = curTime + offset; // local time to close the bucket.
     LOG.debug("Insert wakeup call: " + bucketTime + " at time offset=" + offset);
-    mEvictionThread.insert(new Pair<Long, Long>(closeTime, bucketTime));
+    insertWakeup(closeTime, bucketTime);
     mLastEnqueuedWakeup = bucketTime;
   }
 
-  /**
-   * Thread that sends notices to our coprocessor FlowElement when it is time to
-   * close old windows based on elapsed local time.
-   */
-  private class EvictionThread extends Thread {
-    private final Logger LOG = LoggerFactory.getLogger(
-        EvictionThread.class.getName());
-
-    /**
-     * Set to true when it's time for the thread to go home. The thread
-     * actually exits after this flag is set to true and the incoming queue
-     * is empty.
-     */
-    private boolean mIsFinished;
-
-    /**
-     * Priority queue (heap) of times when we should insert expiry-times in
-     * the coprocessor FlowElement's input queue.
-     *
-     * <p>The queue holds tuples of two long values. The first is a local
-     * time when this thread should wake up; this is what the queue is
-     * ordered on. The latter is the window time that should be expired.</p>
-     */
-    private PriorityBlockingQueue<Pair<Long, Long>> mQueue;
-
+  /** {@inheritDoc} */
+  @Override
+  protected long getMaxPendingWakeups() {
     // Maximum queue length == number of open windows + the newly-opening window
     //     + the currently-closing window.
-    final long mMaxQueueLen = 2 + (mSlackTime / mTimeModulus);
+    return 2 + (mSlackTime / mTimeModulus);
+  }
 
-    public EvictionThread() {
-      super("AggregatorEvictionThread");
+  /**
+   * {@inheritDoc}
+   * <p>The window ending with bucket C holds events up to C + mTimeModulus; it
+   * is closed once the watermark reaches that time.</p>
+   */
+  @Override
+  protected long advanceWatermark(long watermark, FlowElementContext context)
+      throws IOException, InterruptedException {
+    long lastWindow = floorBucketTime(watermark - mTimeModulus);
 
-      mQueue = new PriorityBlockingQueue<Pair<Long, Long>>((int) mMaxQueueLen,
-          new PairLeftRightComparator<Long, Long>());
+    closeUntil(Math.max(mHeadBucketTime, lastWindow), lastWindow, context);
+    discardWakeupsUntil(mTailBucketTime);
+    if (null != mCheckpointer && mCheckpointer.isDue()) {
+      checkpoint(false);
     }
 
-    /**
-     * Add a wake-up call to the queue.
-     */
-    public void insert(Pair<Long, Long> wakeUpCall) {
-      synchronized (this) {
-        assert mQueue.size() < mMaxQueueLen; // This operation should never block.
-        mQueue.put(wakeUpCall);
-        this.notify();
-      }
+    // Windows are emitted at their closing bucket time; the next to close is the tail.
+    return mTailBucketTime;
+  }
 
-      // Interrupt any wait that's going on, in case we are asleep and should
-      // actually immediately service this wake-up call.
-      this.interrupt();
+  /** {@inheritDoc} */
+  @Override
+  protected void closeAllWindows(FlowElementContext context)
+      throws IOException, InterruptedException {
+    LOG.debug("Immediately expiring all buckets to mHeadBucketTime=" + mHeadBucketTime);
+    if (mNumLateEvents > 0 || mNumDroppedEvents > 0) {
+      LOG.info("Aggregator received " + mNumLateEvents + " late events and dropped "
+          + mNumDroppedEvents + " events older than the maximum window");
     }
+    closeUntil(mHeadBucketTime, mHeadBucketTime, context);
+  }
 
-    /**
-     * Discard all wakeup calls up to time 'minTime'.
-     * minTime is a 'bucket time', not a 'local time'.
-     */
-    public void discardUntil(long minTime) {
-      synchronized (this) {
-        LOG.debug("discardUntil: " + minTime);
-        Iterator<Pair<Long, Long>> iterator = mQueue.iterator();
-        while (iterator.hasNext()) {
-          Pair<Long, Long> wakeUpCall = iterator.next();
-          if (wakeUpCall.getRight() < minTime) {
-            LOG.debug("discard@ " + wakeUpCall); 
-            iterator.remove();
-          }
-        }
-
-        this.notify();
-      }
+  /** {@inheritDoc} */
+  @Override
+  protected void handleTimeout(long windowTime, FlowElementContext context)
+      throws IOException, InterruptedException {
+    if (isWatermarkDriven()) {
+      // Windows close when the watermark passes them, not by the local clock;
+      // this wake-up call was enqueued before the first watermark arrived.
+      return;
     }
-
-    /**
-     * Set the finished flag to true; try to get the thread to stop as
-     * quickly as possible.
-     */
-    public void finish() {
-      synchronized (this) {
-        this.mIsFinished = true;
-        this.notify();
-      }
-      this.interrupt(); // Interrupt any current sleep.
+    closeUntil(windowTime, windowTime, context);
+    if (null != mCheckpointer && mCheckpointer.isDue()) {
+      checkpoint(false);
     }
+  }
 
-    /**
-     * Main loop of the thread.
-     * Continually sleeps until the next timer event is ready to occur.
-     */
-    public void run() {
-      while (true) {
-        Pair<Long, Long> wakeUpCall = null;
-        long curTime;
-        long nextWakeUp;
-
-        synchronized (this) {
-          while (mQueue.size() == 0) {
-            try {
-              if (this.mIsFinished) {
-                // Parent is finished and we have drained our input queue. Go home.
-                return;
-              }
-              this.wait();
-            } catch (InterruptedException ie) {
-              // Interrupted while waiting for another wake-up call to enter our queue.
-              // Try again, if we're not already finished.
-              continue;
-            }
-          }
+  /** Note that the state of 'group' must be included in the next checkpoint. */
+  private void markDirty(GroupKey group) {
+    if (null != mCheckpointer) {
+      mCheckpointer.markDirty(group);
+    }
+  }
 
-          assert mQueue.size() > 0;
-          wakeUpCall = mQueue.peek();
-        }
+  /**
+   * @return the header of our checkpoints: the shape of the window, which
+   * must match when the checkpoint is restored, and the times of the open
+   * windows.
+   */
+  private byte [] getCheckpointHeader() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(mTimeModulus);
+    out.writeLong(mTimeSpan.getWidth());
+    out.writeInt(mAggregateExprs.size());
+    out.writeLong(mHeadBucketTime);
+    out.writeLong(mTailBucketTime);
+    out.writeLong(mExpiredBefore);
+    out.close();
+    return bytes.toByteArray();
+  }
 
-        if (null == wakeUpCall) {
-          continue;
-        }
+  /**
+   * Submit the state of the groups that have changed since the previous
+   * checkpoint (or the next part of a full checkpoint) to the checkpoint
+   * store, which writes it to disk in the background. If our state cannot be
+   * serialized, checkpointing is disabled.
+   * @param finish if true, complete any full checkpoint in progress.
+   */
+  private void checkpoint(boolean finish) throws InterruptedException {
+    try {
+      mCheckpointer.checkpoint(finish);
+    } catch (IOException ioe) {
+      LOG.error("Could not checkpoint aggregation state; disabling checkpoints: " + ioe);
+      mCheckpointer.getStore().close();
+      mCheckpointer = null;
+    }
+  }
 
-        curTime = System.currentTimeMillis();
-        nextWakeUp = wakeUpCall.getLeft();
-        if (nextWakeUp <= curTime) {
-          // TODO(aaron): This section probably bears further deadlock analysis.
-          // The put() into the timer queue can block (it has fixed length
-          // LocalEnvironment.MAX_QUEUE_LEN) until the timer FE services its
-          // existing list.
-          // If we are interrupted doing this, it is because the main thread
-          // has just inserted another wakeup call while we were blocking.
-          // This thread's input queue must not block when being filled from
-          // the main aggregation FE. I believe mMaxQueueLen should be sufficient
-          // to guarantee this is the case, because before we call enqueueWakeup(),
-          // we will have had to call closeUntil() in BucketedAggElem.takeEvent()
-          // on enough windows to free up the slots in this queue.
-          try {
-            LOG.debug("Timer evicting at " + curTime + ": " + wakeUpCall);
-            // Service this by injecting the getRight() into our outbound queue.
-            mTimerQueue.put(new TimeoutEventWrapper(wakeUpCall.getRight()));
-          } catch (InterruptedException ie) {
-            // Not a problem. If we were interrupted doing the put into mTimerQueue,
-            // then we'll service this again on the next go-around of the loop.
-            // Just make sure we don't mark this as 'complete.'
-            continue;
-          }
+  /**
+   * Checkpoints the buckets of each group, resident or spilled, as a
+   * separate entry.
+   */
+  private class GroupCheckpointer extends KeyedCheckpointer<GroupKey> {
+    public GroupCheckpointer(CheckpointStore store) {
+      super(store);
+    }
 
-          synchronized (this) {
-            // Now actually remove this from the input queue.
-            if (mQueue.peek() == wakeUpCall) {
-              // O(1) fast path; no intervening push.
-              mQueue.remove();
-            } else {
-              // intervening push of an earlier wakeup (?). Slow path.
-              mQueue.remove(wakeUpCall);
-            }
-          }
-        } else {
-          // If we're down here, we need to sleep until it is the next wake-up time.
-          long napTime = nextWakeUp - curTime;
-          try {
-            Thread.sleep(napTime);
-          } catch (InterruptedException ie) {
-            // We were awoken early... this is expected (there may have been a
-            // new enqueue, etc).
-          }
-        }
+    @Override
+    protected Collection<GroupKey> getKeys() {
+      Collection<GroupKey> groups = new ArrayList<GroupKey>(mBucketsByGroup.keySet());
+      if (null != mSpillStore) {
+        groups.addAll(mSpillStore.getGroups());
       }
+      return groups;
     }
-  }
-
-  /** EventWrapper used to deliver the expiry time payload to the TimeoutEvictionElement. */
-  private static class TimeoutEventWrapper extends EmptyEventWrapper {
-    /** The time window that should be expired. */
-    private final Long mExpireWindow; 
 
-    public TimeoutEventWrapper(Long expire) {
-      mExpireWindow = expire;
+    @Override
+    protected byte [] getHeader() throws IOException {
+      return getCheckpointHeader();
     }
 
     @Override
-    public Object getField(TypedField field) {
-      return mExpireWindow;
+    protected void writeEntry(GroupKey group, Map<ByteBuffer, byte[]> entries)
+        throws IOException {
+      ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+      DataOutputStream keyOut = new DataOutputStream(keyBytes);
+      group.write(keyOut);
+      keyOut.close();
+
+      List<Pair<Long, List<Bucket<Object>>>> bucketsByTime = mBucketsByGroup.get(group);
+      if (null == bucketsByTime && null != mSpillStore && mSpillStore.contains(group)) {
+        bucketsByTime = mSpillStore.read(group, false);
+      }
+
+      byte [] value = null; // Removed groups have no value.
+      if (null != bucketsByTime) {
+        ByteArrayOutputStream valueBytes = new ByteArrayOutputStream();
+        DataOutputStream valueOut = new DataOutputStream(valueBytes);
+        GroupSpillStore.writeBuckets(mAggregateExprs, bucketsByTime, valueOut);
+        valueOut.close();
+        value = valueBytes.toByteArray();
+      }
+      entries.put(ByteBuffer.wrap(keyBytes.toByteArray()), value);
     }
   }
 
   /**
-   * Separate FlowElement that handles notifications from the EvictionThread; this
-   * operates in the main thread, closing windows that cannot receive new events
-   * because they are past the slack time interval.
+   * Restore the state held in our most recent checkpoint, if any.
    */
-  public class TimeoutEvictionElement extends AvroOutputElementImpl {
-    private final Logger LOG = LoggerFactory.getLogger(
-        TimeoutEvictionElement.class.getName());
+  private void restoreCheckpoint() throws IOException {
+    CheckpointStore store = mCheckpointer.getStore();
+    Map<ByteBuffer, byte[]> entries = store.open();
+    if (null == entries) {
+      return;
+    }
 
-    private TimeoutEvictionElement(FlowElementContext ctxt, Schema outSchema) {
-      super(ctxt, outSchema);
+    DataInputStream header = new DataInputStream(
+        new ByteArrayInputStream(store.getHeader()));
+    if (header.readLong() != mTimeModulus || header.readLong() != mTimeSpan.getWidth()
+        || header.readInt() != mAggregateExprs.size()) {
+      LOG.warn("Aggregation checkpoint does not match the current window; ignoring it");
+      store.invalidate();
+      return;
     }
+    mHeadBucketTime = header.readLong();
+    mTailBucketTime = header.readLong();
+    mExpiredBefore = header.readLong();
+
+    for (Map.Entry<ByteBuffer, byte[]> entry : entries.entrySet()) {
+      GroupKey group = mKeyFactory.readKey(new DataInputStream(
+          new ByteArrayInputStream(entry.getKey().array())));
+      List<Pair<Long, List<Bucket<Object>>>> bucketsByTime = GroupSpillStore.readBuckets(
+          mAggregateExprs, new DataInputStream(new ByteArrayInputStream(entry.getValue())));
+      for (Pair<Long, List<Bucket<Object>>> timedBuckets : bucketsByTime) {
+        Long timestamp = timedBuckets.getLeft();
+        if (timestamp.longValue() < mExpiredBefore) {
+          continue; // Expired since this group was checkpointed.
+        }
 
-    public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
-      assert e instanceof TimeoutEventWrapper;
-      Long expireTime = (Long) e.getField(null); // TimeoutEventWrapper returns a single Long val
-      LOG.debug("Handling in eviction element - timeout to: " + expireTime);
-      closeUntil(expireTime, expireTime, getContext());
+        Pair<Long, GroupKey> bucketKey = new Pair<Long, GroupKey>(timestamp, group);
+        if (null != mBucketMap.get(bucketKey)) {
+          // Another set of partial aggregates at this time.
+          addBucketSet(bucketKey, timedBuckets.getRight());
+          continue;
+        }
+        List<Bucket<Object>> buckets = initBuckets(bucketKey);
+        for (int i = 0; i < buckets.size(); i++) {
+          buckets.set(i, timedBuckets.getRight().get(i));
+        }
+      }
+
+      if (null != mGroupRecency && mBucketsByGroup.containsKey(group)) {
+        mGroupRecency.put(group, Boolean.TRUE);
+      }
     }
-  }
 
-  /**
-   * Create a TimeoutEvictionElement coupled to this BucketedAggregationElement.
-   */
-  public TimeoutEvictionElement getTimeoutElement(FlowElementContext timeoutContext) {
-    return this.new TimeoutEvictionElement(timeoutContext, getOutputSchema());
+    LOG.info("Restored " + mBucketsByGroup.size() + " aggregation groups; head bucket time is "
+        + mHeadBucketTime);
   }
 }
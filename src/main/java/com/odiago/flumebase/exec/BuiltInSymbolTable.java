@@ -43,6 +43,8 @@ public class BuiltInSymbolTable extends SymbolTable {
   static {
     BUILTINS = new TreeMap<String, Symbol>();
     // Add symbols for all built-in objects in the system.
+    loadBuiltinFunction(approx_count_distinct.class);
+    loadBuiltinFunction(approx_percentile.class);
     loadBuiltinFunction(avg.class);
     loadBuiltinFunction(bin2str.class);
     loadBuiltinFunction(concat.class);
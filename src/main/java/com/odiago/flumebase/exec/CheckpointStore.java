@@ -0,0 +1,634 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+import com.odiago.flumebase.util.ValueCodec;
+
+/**
+ * Local-disk checkpoint of the state of a single stateful FlowElement, which
+ * allows the element to resume where it left off when its flow is restarted.
+ *
+ * <p>An element describes its state as a header, holding element-wide values
+ * such as the times of its open windows, and a set of entries, each of which
+ * is a serialized (key, value) pair. Checkpoints are incremental: the element
+ * submits the header and only those entries which have changed since its
+ * previous checkpoint, with a null value for each entry that was removed.
+ * These are appended to a log file as a single batch sealed with a checksum,
+ * so that a batch torn by a crash is ignored on recovery. Once superseded
+ * entries dominate the log, the element is asked for a full checkpoint, which
+ * atomically replaces the log file.</p>
+ *
+ * <p>A full checkpoint of a large state may be submitted in several parts,
+ * each holding a bounded number of entries, so that the element does not
+ * stall while serializing all of it at once. The parts are written to a
+ * temporary file, which replaces the log only once the last part has been
+ * written. No incremental checkpoint may be submitted while a full
+ * checkpoint is in progress.</p>
+ *
+ * <p>Elements serialize their state in their own thread, but all file I/O is
+ * performed by a background thread. A new checkpoint is not due while the
+ * previous one is still being written, so elements never wait on the disk.</p>
+ */
+public class CheckpointStore {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      CheckpointStore.class.getName());
+
+  /**
+   * Configuration key specifying the directory holding operator checkpoints.
+   * If unset, state is not checkpointed.
+   */
+  public static final String CHECKPOINT_DIR_KEY = "flumebase.checkpoint.dir";
+
+  /** Configuration key specifying the interval in milliseconds between checkpoints. */
+  public static final String CHECKPOINT_INTERVAL_KEY = "flumebase.checkpoint.interval";
+  public static final long DEFAULT_CHECKPOINT_INTERVAL = 10000;
+
+  /**
+   * Configuration key specifying the maximum number of entries an element
+   * serializes for each part of a full checkpoint.
+   */
+  public static final String CHECKPOINT_MAX_ENTRIES_KEY = "flumebase.checkpoint.max.entries";
+  public static final int DEFAULT_CHECKPOINT_MAX_ENTRIES = 1000;
+
+  /**
+   * Configuration key specifying the name under which a query's state is
+   * checkpointed. If unset, the name is derived from the query text; two
+   * running queries with the same text must be given distinct names.
+   */
+  public static final String CHECKPOINT_NAME_KEY = "flumebase.checkpoint.name";
+
+  /** Identifies a checkpoint file. */
+  private static final int MAGIC = 0x46424350;
+
+  private static final byte ENTRY_PUT = 1;
+  private static final byte ENTRY_REMOVE = 2;
+
+  /** Don't bother compacting logs smaller than this. */
+  private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+  /** The checkpoint file. */
+  private final File mFile;
+
+  /** Minimum interval between checkpoints, in milliseconds. */
+  private final long mInterval;
+
+  /** Maximum number of entries in each part of a full checkpoint. */
+  private final int mMaxEntriesPerPart;
+
+  /** Local time of the most recent checkpoint. */
+  private long mLastCheckpointTime;
+
+  /** Header of the checkpoint which was restored by open(). */
+  private byte [] mHeader;
+
+  /** Set when the next checkpoint must be a full checkpoint. */
+  private volatile boolean mNeedsFull;
+
+  /** True while the parts of a full checkpoint are being submitted. */
+  private boolean mFullInProgress;
+
+  private WriterThread mWriter;
+
+  // The following are only accessed by the writer thread once it starts.
+
+  /**
+   * Length of the valid prefix of mFile; or of its temporary replacement,
+   * while a full checkpoint is being written in parts.
+   */
+  private long mFileBytes;
+
+  /** Serialized length of each live entry in the checkpoint. */
+  private Map<ByteBuffer, Integer> mLiveSizes;
+
+  /** Sum of the values in mLiveSizes. */
+  private long mLiveBytes;
+
+  // Metrics.
+  private volatile long mNumCheckpoints;
+  private volatile long mBytesWritten;
+
+  public CheckpointStore(File file, long interval) {
+    this(file, interval, DEFAULT_CHECKPOINT_MAX_ENTRIES);
+  }
+
+  public CheckpointStore(File file, long interval, int maxEntriesPerPart) {
+    mFile = file;
+    mInterval = interval;
+    mMaxEntriesPerPart = Math.max(1, maxEntriesPerPart);
+    mNeedsFull = true;
+    mLiveSizes = new HashMap<ByteBuffer, Integer>();
+  }
+
+  /**
+   * @return the identifier for the checkpoint of the ordinal'th stateful
+   * element in the flow executing 'query', or null if checkpointing is
+   * disabled.
+   */
+  public static String getCheckpointId(Configuration conf, String query, int ordinal) {
+    if (null == conf.get(CHECKPOINT_DIR_KEY) || null == query) {
+      return null;
+    }
+
+    String name = conf.get(CHECKPOINT_NAME_KEY);
+    if (null == name) {
+      try {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        byte [] hash = digest.digest(query.trim().getBytes("UTF-8"));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+          sb.append(String.format("%02x", hash[i] & 0xff));
+        }
+        name = sb.toString();
+      } catch (NoSuchAlgorithmException nsae) {
+        name = Integer.toHexString(query.trim().hashCode());
+      } catch (IOException ioe) {
+        name = Integer.toHexString(query.trim().hashCode());
+      }
+    }
+
+    return name + "-" + ordinal;
+  }
+
+  /**
+   * @return a CheckpointStore for the element with the specified checkpoint
+   * id, or null if checkpointing is disabled.
+   */
+  static CheckpointStore create(Configuration conf, String checkpointId) {
+    String dir = conf.get(CHECKPOINT_DIR_KEY);
+    if (null == dir || null == checkpointId) {
+      return null;
+    }
+
+    long interval = conf.getLong(CHECKPOINT_INTERVAL_KEY, DEFAULT_CHECKPOINT_INTERVAL);
+    int maxEntries = conf.getInt(CHECKPOINT_MAX_ENTRIES_KEY, DEFAULT_CHECKPOINT_MAX_ENTRIES);
+    return new CheckpointStore(new File(dir, checkpointId + ".ckpt"), interval, maxEntries);
+  }
+
+  /**
+   * Read back the most recent checkpoint, if any, and begin accepting new
+   * checkpoints.
+   * @return the entries of the restored checkpoint, or null if there is no
+   * checkpoint to restore. The restored header is available from getHeader().
+   */
+  public Map<ByteBuffer, byte[]> open() throws IOException {
+    Map<ByteBuffer, byte[]> entries = null;
+    File dir = mFile.getAbsoluteFile().getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create checkpoint directory " + dir);
+    }
+
+    if (mFile.exists()) {
+      entries = load();
+    }
+
+    mLastCheckpointTime = System.currentTimeMillis();
+    mWriter = new WriterThread();
+    mWriter.start();
+    return entries;
+  }
+
+  /**
+   * Replay the batches of the checkpoint file, stopping at the first which
+   * is incomplete or corrupt.
+   */
+  private Map<ByteBuffer, byte[]> load() throws IOException {
+    Map<ByteBuffer, byte[]> entries = new HashMap<ByteBuffer, byte[]>();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(mFile)));
+    try {
+      if (in.readInt() != MAGIC) {
+        LOG.warn("Ignoring invalid checkpoint file " + mFile);
+        return null;
+      }
+      long validBytes = 4;
+      int numBatches = 0;
+      CRC32 crc = new CRC32();
+      while (true) {
+        byte [] batch;
+        try {
+          int length = in.readInt();
+          if (length < 0 || length > mFile.length()) {
+            break;
+          }
+          batch = new byte[length];
+          in.readFully(batch);
+          crc.reset();
+          crc.update(batch, 0, batch.length);
+          if (in.readLong() != crc.getValue()) {
+            break;
+          }
+        } catch (EOFException eofe) {
+          break;
+        }
+
+        applyBatch(batch, entries);
+        validBytes += 4 + batch.length + 8;
+        numBatches++;
+      }
+
+      if (0 == numBatches) {
+        return null;
+      }
+
+      if (validBytes < mFile.length()) {
+        LOG.warn("Discarding " + (mFile.length() - validBytes)
+            + " bytes of incomplete checkpoint from " + mFile);
+      }
+      mFileBytes = validBytes;
+      mNeedsFull = false;
+      LOG.info("Restoring " + entries.size() + " state entries from checkpoint " + mFile);
+      return entries;
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Apply the header and entries of a serialized batch. */
+  private void applyBatch(byte [] batch, Map<ByteBuffer, byte[]> entries) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+    boolean full = in.readBoolean();
+    if (full) {
+      entries.clear();
+      mLiveSizes.clear();
+      mLiveBytes = 0;
+    }
+    mHeader = readBytes(in);
+    int numEntries = in.readInt();
+    for (int i = 0; i < numEntries; i++) {
+      byte type = in.readByte();
+      ByteBuffer key = ByteBuffer.wrap(readBytes(in));
+      if (ENTRY_PUT == type) {
+        byte [] value = readBytes(in);
+        entries.put(key, value);
+        updateLiveSize(key, key.remaining() + value.length);
+      } else {
+        entries.remove(key);
+        updateLiveSize(key, 0);
+      }
+    }
+  }
+
+  /** Record the serialized size of a live entry; 0 if the entry was removed. */
+  private void updateLiveSize(ByteBuffer key, int size) {
+    Integer prev = 0 == size ? mLiveSizes.remove(key) : mLiveSizes.put(key, size);
+    if (null != prev) {
+      mLiveBytes -= prev;
+    }
+    mLiveBytes += size;
+  }
+
+  private static byte [] readBytes(DataInput in) throws IOException {
+    byte [] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /** @return the header of the checkpoint restored by open(). */
+  public byte [] getHeader() {
+    return mHeader;
+  }
+
+  /**
+   * @return true if it is time to submit a new checkpoint, or the next part
+   * of a full checkpoint. This is never true while the previous checkpoint
+   * is still being written.
+   */
+  public boolean isDue() {
+    return (mFullInProgress || System.currentTimeMillis() - mLastCheckpointTime >= mInterval)
+        && !mWriter.isBusy();
+  }
+
+  /** @return the maximum number of entries to submit in each part of a full checkpoint. */
+  public int getMaxEntriesPerPart() {
+    return mMaxEntriesPerPart;
+  }
+
+  /**
+   * @return true if the next checkpoint submitted must be a full checkpoint,
+   * containing every entry of the element's state.
+   */
+  public boolean needsFullCheckpoint() {
+    return mNeedsFull;
+  }
+
+  /**
+   * Require the next checkpoint to be a full checkpoint; e.g., because the
+   * restored state was not usable.
+   */
+  public void invalidate() {
+    mNeedsFull = true;
+  }
+
+  /**
+   * Hand a checkpoint to the background thread to be written. This must not
+   * be called while a previous checkpoint is being written; see isDue() and
+   * awaitIdle().
+   * @param header the element-wide state.
+   * @param entries the entries which have changed since the previous
+   * checkpoint, mapped to null if they have been removed; or every entry, if
+   * 'full' is true. The store takes ownership of this map.
+   * @param full true if this is a full checkpoint.
+   */
+  public void submit(byte [] header, Map<ByteBuffer, byte[]> entries, boolean full) {
+    if (full) {
+      submitPart(header, entries, true, true);
+    } else {
+      assert !mNeedsFull && !mFullInProgress;
+      mLastCheckpointTime = System.currentTimeMillis();
+      mWriter.submit(new Batch(header, entries, false, false, true));
+    }
+  }
+
+  /**
+   * Hand one part of a full checkpoint to the background thread to be
+   * written. As with submit(), this must not be called while a previous
+   * checkpoint is being written. If needsFullCheckpoint() becomes true
+   * before the last part is submitted, a part could not be written, and the
+   * full checkpoint must be started again.
+   * @param header the element-wide state; that of the last part is kept.
+   * @param entries entries of the element's state. Each entry must be
+   * included in some part, and any entry which changes after its part is
+   * submitted must be included again in a later part.
+   * @param first true if this is the first part of the full checkpoint.
+   * @param last true if this is the last part of the full checkpoint.
+   */
+  public void submitPart(byte [] header, Map<ByteBuffer, byte[]> entries, boolean first,
+      boolean last) {
+    assert first || (mFullInProgress && !mNeedsFull);
+    mNeedsFull = false;
+    mFullInProgress = !last;
+    mLastCheckpointTime = System.currentTimeMillis();
+    mWriter.submit(new Batch(header, entries, true, first, last));
+  }
+
+  /** Wait for any checkpoint being written to reach the disk. */
+  public void awaitIdle() throws InterruptedException {
+    mWriter.awaitIdle();
+  }
+
+  /**
+   * Wait for any checkpoint being written, and stop the background thread.
+   * The checkpoint file is retained for the next run of the flow.
+   */
+  public void close() throws InterruptedException {
+    if (null != mWriter) {
+      mWriter.finish();
+      mWriter.join();
+      mWriter = null;
+    }
+  }
+
+  /** @return the number of checkpoints written to disk. */
+  public long getNumCheckpoints() {
+    return mNumCheckpoints;
+  }
+
+  /** @return the number of bytes written to disk. */
+  public long getBytesWritten() {
+    return mBytesWritten;
+  }
+
+  /** Serialize the header fields (but not the body) of an event. */
+  static void writeEventHeader(DataOutput out, Event event) throws IOException {
+    out.writeByte(event.getPriority().ordinal());
+    out.writeLong(event.getTimestamp());
+    out.writeLong(event.getNanos());
+    ValueCodec.writeValue(out, event.getHost());
+  }
+
+  /**
+   * @return an event with an empty body and the header fields read from
+   * 'in', as written by writeEventHeader().
+   */
+  static Event readEventHeader(DataInput in) throws IOException {
+    Event.Priority priority = Event.Priority.values()[in.readByte()];
+    long timestamp = in.readLong();
+    long nanos = in.readLong();
+    Object host = ValueCodec.readValue(in);
+    return new EventImpl(new byte[0], timestamp, priority, nanos,
+        null == host ? null : host.toString());
+  }
+
+  /**
+   * A checkpoint submitted by the element, waiting to be written: an
+   * incremental checkpoint, or a part of a full checkpoint.
+   */
+  private static class Batch {
+    private final byte [] mHeader;
+    private final Map<ByteBuffer, byte[]> mEntries;
+    private final boolean mIsFull;
+    private final boolean mIsFirst;
+    private final boolean mIsLast;
+
+    public Batch(byte [] header, Map<ByteBuffer, byte[]> entries, boolean full,
+        boolean first, boolean last) {
+      mHeader = header;
+      mEntries = entries;
+      mIsFull = full;
+      mIsFirst = first;
+      mIsLast = last;
+    }
+  }
+
+  /**
+   * Thread that writes checkpoints to disk, so that the element submitting
+   * them never waits on file I/O.
+   */
+  private class WriterThread extends Thread {
+    /** The next checkpoint to write. */
+    private Batch mPending;
+
+    /** True while a checkpoint is pending or being written. */
+    private boolean mIsBusy;
+
+    /** Set to true when the thread should exit once idle. */
+    private boolean mIsFinished;
+
+    public WriterThread() {
+      super("CheckpointWriter-" + mFile.getName());
+      setDaemon(true);
+    }
+
+    public synchronized boolean isBusy() {
+      return mIsBusy;
+    }
+
+    public synchronized void submit(Batch batch) {
+      assert !mIsBusy;
+      mPending = batch;
+      mIsBusy = true;
+      notifyAll();
+    }
+
+    public synchronized void awaitIdle() throws InterruptedException {
+      while (mIsBusy) {
+        wait();
+      }
+    }
+
+    public synchronized void finish() {
+      mIsFinished = true;
+      notifyAll();
+    }
+
+    public void run() {
+      while (true) {
+        Batch batch;
+        synchronized (this) {
+          while (null == mPending && !mIsFinished) {
+            try {
+              wait();
+            } catch (InterruptedException ie) {
+              // Check our state again.
+            }
+          }
+
+          if (null == mPending) {
+            return; // Finished, and nothing left to write.
+          }
+          batch = mPending;
+          mPending = null;
+        }
+
+        try {
+          write(batch);
+        } catch (IOException ioe) {
+          // The next checkpoint must rewrite the file from scratch.
+          LOG.error("Could not write checkpoint " + mFile + ": " + ioe);
+          mNeedsFull = true;
+        }
+
+        synchronized (this) {
+          mIsBusy = false;
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Write a checkpoint to disk: append an incremental checkpoint to the log,
+   * or a part of a full checkpoint to the temporary file which atomically
+   * replaces the log once the last part is written.
+   */
+  private void write(Batch batch) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    // Only the first part of a full checkpoint discards the entries before it.
+    out.writeBoolean(batch.mIsFirst);
+    out.writeInt(batch.mHeader.length);
+    out.write(batch.mHeader);
+    out.writeInt(batch.mEntries.size());
+    if (batch.mIsFirst) {
+      mLiveSizes.clear();
+      mLiveBytes = 0;
+    }
+    for (Map.Entry<ByteBuffer, byte[]> entry : batch.mEntries.entrySet()) {
+      ByteBuffer key = entry.getKey();
+      byte [] value = entry.getValue();
+      out.writeByte(null == value ? ENTRY_REMOVE : ENTRY_PUT);
+      out.writeInt(key.remaining());
+      out.write(key.array(), key.arrayOffset() + key.position(), key.remaining());
+      if (null != value) {
+        out.writeInt(value.length);
+        out.write(value);
+        updateLiveSize(key, key.remaining() + value.length);
+      } else {
+        updateLiveSize(key, 0);
+      }
+    }
+    out.close();
+
+    byte [] record = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(record, 0, record.length);
+
+    File target = batch.mIsFull ? new File(mFile.getPath() + ".tmp") : mFile;
+    RandomAccessFile raf = new RandomAccessFile(target, "rw");
+    try {
+      if (batch.mIsFirst) {
+        raf.setLength(0);
+        raf.writeInt(MAGIC);
+        mFileBytes = 4;
+      } else {
+        // Drop any incomplete batch left at the end of the file.
+        raf.setLength(mFileBytes);
+        raf.seek(mFileBytes);
+      }
+      raf.writeInt(record.length);
+      raf.write(record);
+      raf.writeLong(crc.getValue());
+      raf.getFD().sync();
+    } finally {
+      raf.close();
+    }
+
+    if (batch.mIsFull && batch.mIsLast) {
+      if (!target.renameTo(mFile)) {
+        // Some platforms will not rename over an existing file.
+        if (!mFile.delete() || !target.renameTo(mFile)) {
+          throw new IOException("Could not replace checkpoint " + mFile);
+        }
+      }
+    }
+
+    mFileBytes += 4 + record.length + 8;
+    if (batch.mIsLast) {
+      mNumCheckpoints++;
+    }
+    mBytesWritten += 4 + record.length + 8;
+    LOG.debug("Wrote " + (batch.mIsFull ? "full" : "incremental") + " checkpoint"
+        + (batch.mIsLast ? "" : " part") + " of " + batch.mEntries.size() + " entries to "
+        + mFile);
+
+    if (batch.mIsLast && mFileBytes > MIN_COMPACT_BYTES && mFileBytes > 2 * mLiveBytes) {
+      mNeedsFull = true;
+    }
+  }
+}
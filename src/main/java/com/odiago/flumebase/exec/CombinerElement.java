@@ -0,0 +1,274 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.util.Pair;
+
+import com.odiago.flumebase.parser.AliasedExpr;
+import com.odiago.flumebase.parser.FnCallExpr;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.AggregateNode;
+
+/**
+ * Partially aggregates events into the buckets of a BucketedAggregationElement
+ * before they are queued for it, and emits a PartialAggregateEvent for each
+ * (bucket, group) in place of the events it summarizes.
+ *
+ * <p>Partial aggregates are held until the flush interval passes, the
+ * number of groups held exceeds a limit, or a watermark shows that the
+ * windows including them may close. A background thread flushes them if no
+ * further events arrive. When the upstream elements are complete, the
+ * remaining partial aggregates are emitted by that thread, which then
+ * reports our completion; this keeps the LocalEnvironment's thread from
+ * blocking on the queue it alone drains.</p>
+ */
+public class CombinerElement extends FlowElementImpl {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      CombinerElement.class.getName());
+
+  /** Maximum number of milliseconds a partial aggregate is held. */
+  public static final String FLUSH_INTERVAL_KEY = "flumebase.aggregation.combiner.flush.interval";
+  public static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+  /** Maximum number of (bucket, group) partial aggregates held. */
+  public static final String MAX_GROUPS_KEY = "flumebase.aggregation.combiner.max.groups";
+  public static final int DEFAULT_MAX_GROUPS = 10000;
+
+  private final List<AliasedExpr> mAggregateExprs;
+
+  /**
+   * Argument values of each aggregate call. The FnCallExprs are shared with
+   * other elements running in other threads, so this element keeps its own.
+   */
+  private final Object[][] mAggregateArgs;
+  private final GroupKeyFactory mKeyFactory;
+  private final long mTimeModulus;
+  private final long mFlushInterval;
+  private final int mMaxGroups;
+
+  /** A partial aggregate being built, and the time at which it was begun. */
+  private static class Partial {
+    private final long mBeginTime;
+    private final List<Bucket<Object>> mBuckets;
+
+    public Partial(long beginTime, List<Bucket<Object>> buckets) {
+      mBeginTime = beginTime;
+      mBuckets = buckets;
+    }
+  }
+
+  /** Partial aggregates being built, in the order they were begun. */
+  private Map<Pair<Long, GroupKey>, Partial> mPartials;
+
+  /** Time at which the oldest partial aggregate held was begun. */
+  private long mOldestPartialTime;
+
+  private FlushThread mFlushThread;
+
+  /** Set to true once all upstream elements are complete. */
+  private boolean mUpstreamComplete;
+
+  /** Set to true once close() has been called. */
+  private boolean mCloseRequested;
+
+  /** Set to true when no further partial aggregates should be emitted. */
+  private boolean mIsFinished;
+
+  /** Number of events received, and partial aggregates emitted. */
+  private long mNumEvents;
+  private long mNumPartials;
+
+  public CombinerElement(FlowElementContext ctxt, AggregateNode aggregateNode) {
+    super(ctxt);
+    Configuration conf = aggregateNode.getConf();
+    mFlushInterval = Math.max(1, conf.getLong(FLUSH_INTERVAL_KEY, DEFAULT_FLUSH_INTERVAL));
+    mMaxGroups = Math.max(1, conf.getInt(MAX_GROUPS_KEY, DEFAULT_MAX_GROUPS));
+
+    List<TypedField> groupByFields = aggregateNode.getGroupByFields();
+    if (null == groupByFields) {
+      groupByFields = Collections.emptyList();
+    }
+    mAggregateExprs = aggregateNode.getAggregateExprs();
+    mAggregateArgs = FnCallExpr.newArgumentArrays(mAggregateExprs);
+    mKeyFactory = new GroupKeyFactory(groupByFields, aggregateNode.getPropagateFields());
+    mTimeModulus = BucketedAggregationElement.getBucketWidth(aggregateNode);
+    mPartials = new LinkedHashMap<Pair<Long, GroupKey>, Partial>();
+  }
+
+  @Override
+  public void open() throws IOException, InterruptedException {
+    super.open();
+    mFlushThread = new FlushThread();
+    mFlushThread.start();
+  }
+
+  @Override
+  public synchronized void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    long bucketTime = BucketedAggregationElement.getBucketTime(e.getEvent().getTimestamp(),
+        mTimeModulus);
+    Pair<Long, GroupKey> key = new Pair<Long, GroupKey>(Long.valueOf(bucketTime),
+        mKeyFactory.createKey(e));
+    Partial partial = mPartials.get(key);
+    if (null == partial) {
+      long now = System.currentTimeMillis();
+      if (mPartials.isEmpty()) {
+        mOldestPartialTime = now;
+      }
+      List<Bucket<Object>> newBuckets = new ArrayList<Bucket<Object>>(mAggregateExprs.size());
+      for (int i = 0; i < mAggregateExprs.size(); i++) {
+        newBuckets.add(new Bucket<Object>());
+      }
+      partial = new Partial(now, newBuckets);
+      mPartials.put(key, partial);
+    }
+
+    List<Bucket<Object>> buckets = partial.mBuckets;
+
+    for (int i = 0; i < mAggregateExprs.size(); i++) {
+      FnCallExpr fnCall = (FnCallExpr) mAggregateExprs.get(i).getExpr();
+      fnCall.insertAggregate(e, buckets.get(i), mAggregateArgs[i]);
+    }
+    mNumEvents++;
+
+    if (mPartials.size() > mMaxGroups
+        || System.currentTimeMillis() - mOldestPartialTime >= mFlushInterval) {
+      flushBefore(Long.MAX_VALUE);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>Windows including the buckets before the watermark may now close, so
+   * their partial aggregates are emitted ahead of it.</p>
+   */
+  @Override
+  public synchronized void takeWatermark(Watermark w) throws IOException, InterruptedException {
+    flushBefore(w.getTime() - mTimeModulus);
+    emit(w);
+  }
+
+  /**
+   * Emit the partial aggregates for buckets with timestamps up to and
+   * including 'lastBucketTime'.
+   */
+  private void flushBefore(long lastBucketTime) throws IOException, InterruptedException {
+    Iterator<Map.Entry<Pair<Long, GroupKey>, Partial>> partialIter =
+        mPartials.entrySet().iterator();
+    while (partialIter.hasNext()) {
+      Map.Entry<Pair<Long, GroupKey>, Partial> partial = partialIter.next();
+      Pair<Long, GroupKey> key = partial.getKey();
+      if (key.getLeft().longValue() <= lastBucketTime) {
+        partialIter.remove();
+        emit(new PartialAggregateEvent(key.getLeft(), key.getRight(),
+            partial.getValue().mBuckets, mKeyFactory));
+        mNumPartials++;
+      }
+    }
+
+    // The partials are held in the order they were begun.
+    if (!mPartials.isEmpty()) {
+      mOldestPartialTime = mPartials.values().iterator().next().mBeginTime;
+    }
+  }
+
+  @Override
+  public void closeUpstream() throws IOException, InterruptedException {
+    synchronized (this) {
+      mUpstreamComplete = true;
+    }
+    super.closeUpstream();
+  }
+
+  @Override
+  public void close() throws IOException, InterruptedException {
+    boolean flushRemaining;
+    synchronized (this) {
+      // The first close after our input is complete lets the flush thread
+      // emit what remains. Otherwise, the flow is being canceled.
+      flushRemaining = mUpstreamComplete && !mCloseRequested && null != mFlushThread;
+      mCloseRequested = true;
+      if (!flushRemaining) {
+        mIsFinished = true;
+        mPartials.clear();
+      }
+      notifyAll();
+    }
+
+    if (!flushRemaining) {
+      if (null != mFlushThread) {
+        mFlushThread.interrupt();
+      }
+      super.close();
+    }
+  }
+
+  /** Thread which flushes partial aggregates while events are not arriving. */
+  private class FlushThread extends Thread {
+    public FlushThread() {
+      super("CombinerFlush");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        synchronized (CombinerElement.this) {
+          while (!mIsFinished && !mCloseRequested) {
+            long now = System.currentTimeMillis();
+            if (!mPartials.isEmpty() && now - mOldestPartialTime >= mFlushInterval) {
+              flushBefore(Long.MAX_VALUE);
+            }
+            CombinerElement.this.wait(mFlushInterval);
+          }
+
+          if (mIsFinished) {
+            return; // Canceled.
+          }
+
+          flushBefore(Long.MAX_VALUE);
+          mIsFinished = true;
+        }
+
+        LOG.debug("Combined " + mNumEvents + " events into " + mNumPartials
+            + " partial aggregates");
+        CombinerElement.super.close();
+      } catch (IOException ioe) {
+        LOG.error("IOException flushing partial aggregates: " + ioe);
+      } catch (InterruptedException ie) {
+        if (!mIsFinished) {
+          LOG.error("Interrupted flushing partial aggregates: " + ie);
+        }
+      }
+    }
+  }
+}
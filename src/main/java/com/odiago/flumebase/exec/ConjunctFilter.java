@@ -0,0 +1,219 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.odiago.flumebase.lang.MayThrowVisitor;
+import com.odiago.flumebase.lang.VisitException;
+
+import com.odiago.flumebase.parser.BinExpr;
+import com.odiago.flumebase.parser.BinOp;
+import com.odiago.flumebase.parser.Expr;
+
+/**
+ * Accepts the events for which each of a set of filter expressions
+ * evaluates to true. The top-level AND chains of the filters are split
+ * into their conjuncts, which are evaluated one at a time until one of
+ * them fails.
+ *
+ * <p>The cost and pass rate of each conjunct are measured as events are
+ * filtered; every reorderInterval events, the conjuncts are reordered to
+ * minimize the expected cost of rejecting an event. For independent
+ * conjuncts this order is ascending by cost / (1 - pass rate). As a
+ * NULL conjunct rejects an event just as a FALSE one does, the order of
+ * evaluation does not change which events are accepted.</p>
+ *
+ * <p>A conjunct which may throw (e.g., <tt>a / b &gt; 1</tt>) may be guarded
+ * by the conjuncts before it (<tt>b != 0</tt>). Such a conjunct is
+ * pinned: it is always evaluated in its original position, and no other
+ * conjunct is moved across it.</p>
+ */
+public class ConjunctFilter {
+
+  /** Number of events filtered between reorderings of the conjuncts. */
+  public static final int DEFAULT_REORDER_INTERVAL = 1024;
+
+  /** Only one in this many events has the cost of its conjuncts timed. */
+  private static final int TIMING_SAMPLE_RATE = 16;
+
+  /** Statistics on one conjunct. */
+  private static class Conjunct {
+    private final Expr mExpr;
+
+    /** True if this conjunct may throw, and so must keep its position. */
+    private final boolean mPinned;
+
+    /** Number of events this conjunct was evaluated over, and passed. */
+    private long mEvaluated;
+    private long mPassed;
+
+    /** Number of timed evaluations, and their total time. */
+    private long mTimed;
+    private long mTimedNanos;
+
+    /** Expected cost of rejecting an event by this conjunct; see updateRank(). */
+    private double mRank;
+
+    Conjunct(Expr expr) {
+      mExpr = expr;
+      mPinned = mayThrow(expr);
+    }
+
+    /**
+     * Calculate the rank of this conjunct from its statistics, and then
+     * halve them so that the next ordering favors recent events.
+     */
+    void updateRank() {
+      if (mEvaluated == 0 || mTimed == 0 || mPassed == mEvaluated) {
+        // Nothing is known of this conjunct, or it never rejects an event.
+        mRank = Double.POSITIVE_INFINITY;
+      } else {
+        double cost = (double) mTimedNanos / mTimed;
+        double passRate = (double) mPassed / mEvaluated;
+        mRank = cost / (1.0 - passRate);
+      }
+
+      mEvaluated /= 2;
+      mPassed /= 2;
+      mTimed /= 2;
+      mTimedNanos /= 2;
+    }
+  }
+
+  private static final Comparator<Conjunct> RANK_ORDER = new Comparator<Conjunct>() {
+    public int compare(Conjunct c1, Conjunct c2) {
+      return Double.compare(c1.mRank, c2.mRank);
+    }
+  };
+
+  /** The conjuncts, in the order in which they are evaluated. */
+  private final Conjunct[] mConjuncts;
+
+  private final int mReorderInterval;
+
+  /** Number of events filtered since the conjuncts were last reordered. */
+  private int mEventCount;
+
+  public ConjunctFilter(List<Expr> filters) {
+    this(filters, DEFAULT_REORDER_INTERVAL);
+  }
+
+  public ConjunctFilter(List<Expr> filters, int reorderInterval) {
+    List<Expr> conjuncts = new ArrayList<Expr>();
+    for (Expr filter : filters) {
+      addConjuncts(filter, conjuncts);
+    }
+
+    mConjuncts = new Conjunct[conjuncts.size()];
+    for (int i = 0; i < mConjuncts.length; i++) {
+      mConjuncts[i] = new Conjunct(conjuncts.get(i));
+    }
+    mReorderInterval = reorderInterval;
+  }
+
+  /** @return true if evaluating 'expr' may throw an exception. */
+  private static boolean mayThrow(Expr expr) {
+    MayThrowVisitor visitor = new MayThrowVisitor();
+    try {
+      expr.accept(visitor);
+    } catch (VisitException ve) {
+      return true; // Assume the worst.
+    }
+    return visitor.mayThrow();
+  }
+
+  /** Add the operands of the top-level AND chain of 'expr' to 'out'. */
+  private static void addConjuncts(Expr expr, List<Expr> out) {
+    if (expr instanceof BinExpr && ((BinExpr) expr).getOp() == BinOp.And) {
+      addConjuncts(((BinExpr) expr).getLeftExpr(), out);
+      addConjuncts(((BinExpr) expr).getRightExpr(), out);
+    } else {
+      out.add(expr);
+    }
+  }
+
+  /** @return true if every conjunct evaluates to true over 'e'. */
+  public boolean accept(EventWrapper e) throws IOException {
+    if (mConjuncts.length == 0) {
+      return true;
+    } else if (mConjuncts.length == 1) {
+      // There is nothing to reorder.
+      return Boolean.TRUE.equals(mConjuncts[0].mExpr.eval(e));
+    }
+
+    boolean timed = mEventCount % TIMING_SAMPLE_RATE == 0;
+    boolean accepted = true;
+    for (Conjunct conjunct : mConjuncts) {
+      boolean passed;
+      if (timed) {
+        long start = System.nanoTime();
+        passed = Boolean.TRUE.equals(conjunct.mExpr.eval(e));
+        conjunct.mTimedNanos += System.nanoTime() - start;
+        conjunct.mTimed++;
+      } else {
+        passed = Boolean.TRUE.equals(conjunct.mExpr.eval(e));
+      }
+
+      conjunct.mEvaluated++;
+      if (!passed) {
+        accepted = false;
+        break;
+      }
+      conjunct.mPassed++;
+    }
+
+    if (++mEventCount >= mReorderInterval) {
+      reorder();
+    }
+
+    return accepted;
+  }
+
+  /** Sort the conjuncts by their expected cost of rejecting an event. */
+  private void reorder() {
+    for (Conjunct conjunct : mConjuncts) {
+      conjunct.updateRank();
+    }
+
+    // Sort each run of conjuncts between pinned ones. This sort is stable;
+    // conjuncts with nothing to choose between them keep their order.
+    int start = 0;
+    for (int i = 0; i <= mConjuncts.length; i++) {
+      if (i == mConjuncts.length || mConjuncts[i].mPinned) {
+        Arrays.sort(mConjuncts, start, i, RANK_ORDER);
+        start = i + 1;
+      }
+    }
+    mEventCount = 0;
+  }
+
+  /** @return the conjuncts, in the order in which they are currently evaluated. */
+  public List<Expr> getConjuncts() {
+    List<Expr> out = new ArrayList<Expr>();
+    for (Conjunct conjunct : mConjuncts) {
+      out.add(conjunct.mExpr);
+    }
+    return out;
+  }
+}
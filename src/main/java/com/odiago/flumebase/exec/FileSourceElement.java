@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
@@ -75,6 +76,9 @@ public class FileSourceElement extends FlowElementImpl {
   /** List of all avro names of the fields in the stream, in the same order as mFields. */
   private List<String> mFieldNames;
 
+  /** Columns of the stream read by the flow, passed to its parser; null if all are read. */
+  private BitSet mRequiredColumns;
+
   private StreamSymbol mStream;
 
   /** Private extension of EventImpl that allows us to call setTimestamp(). */
@@ -151,7 +155,7 @@ public class FileSourceElement extends FlowElementImpl {
             FileSourceEvent event = new FileSourceEvent(line.getBytes());
             event.set(STREAM_NAME_ATTR, mStream.getName().getBytes());
             ParsingEventWrapper wrapper = new ParsingEventWrapper(mStream.getEventParser(),
-                mFieldNames);
+                mFieldNames, mRequiredColumns);
             wrapper.reset(event);
 
             if (timestampField == null) {
@@ -170,7 +174,9 @@ public class FileSourceElement extends FlowElementImpl {
           }
         }
       } catch (InterruptedException ie) {
-        LOG.error("Interruption during EventGenThread (suspending): " + ie);
+        if (!mIsFinished) {
+          LOG.error("Interruption during EventGenThread (suspending): " + ie);
+        }
       } catch (IOException ioe) {
         LOG.error("IOException in EventGenThread: " + ioe);
       } finally {
@@ -194,11 +200,12 @@ public class FileSourceElement extends FlowElementImpl {
   }
 
   public FileSourceElement(FlowElementContext context, String fileName, boolean local,
-      List<TypedField> fields, StreamSymbol streamSym) {
+      List<TypedField> fields, StreamSymbol streamSym, BitSet requiredColumns) {
     super(context);
     mFilename = fileName;
     mLocal = local;
     mFields = fields;
+    mRequiredColumns = requiredColumns;
     mFieldNames = new ArrayList<String>();
     mStream = streamSym;
     for (TypedField field : fields) {
@@ -218,6 +225,9 @@ public class FileSourceElement extends FlowElementImpl {
   @Override
   public void close() throws IOException, InterruptedException {
     mIsFinished = true;
+    // The thread may be blocked emitting to a full queue, which only the
+    // thread closing us drains.
+    mEventGenThread.interrupt();
     mEventGenThread.join();
     super.close();
   }
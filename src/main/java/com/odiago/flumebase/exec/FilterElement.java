@@ -19,25 +19,30 @@ package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
+import java.util.Collections;
+
 import com.odiago.flumebase.parser.Expr;
 
 /**
  * FlowElement that advances events whose fields when applied to the embedded
- * match expression, cause the match expr to evaluate to true.
+ * match expression, cause the match expr to evaluate to true. The conjuncts
+ * of the expression are evaluated in the order chosen by a ConjunctFilter.
  * TODO(aaron): Rewrite this to take expr opcodes, not an ast element.
  */
 public class FilterElement extends FlowElementImpl {
   private Expr mFilterExpr;
+  private ConjunctFilter mConjuncts;
 
   public FilterElement(FlowElementContext ctxt, Expr filterExpr) {
     super(ctxt);
     mFilterExpr = filterExpr;
+    mConjuncts = new ConjunctFilter(Collections.singletonList(filterExpr));
   }
 
 
   @Override
   public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
-    if (Boolean.TRUE.equals(mFilterExpr.eval(e))) {
+    if (mConjuncts.accept(e)) {
       emit(e);
     }
   }
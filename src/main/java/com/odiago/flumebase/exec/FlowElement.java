@@ -70,6 +70,26 @@ public abstract class FlowElement {
    */
   public abstract void takeEvent(EventWrapper e) throws IOException, InterruptedException;
 
+  /**
+   * Process a watermark: an assertion from upstream that no further events
+   * of the watermark's stream will be older than its time. Elements which
+   * hold windowed state may close windows in response; all others should
+   * pass the watermark downstream.
+   */
+  public abstract void takeWatermark(Watermark w) throws IOException, InterruptedException;
+
+  /**
+   * Hand an item arriving from upstream to takeWatermark() or takeEvent(),
+   * as appropriate. Contexts deliver all items through this method.
+   */
+  public final void deliver(EventWrapper e) throws IOException, InterruptedException {
+    if (e instanceof Watermark) {
+      takeWatermark((Watermark) e);
+    } else {
+      takeEvent(e);
+    }
+  }
+
   /**
    * @return the FlowElementContext that the element is bound to.
    */
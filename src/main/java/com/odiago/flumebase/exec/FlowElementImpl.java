@@ -78,6 +78,16 @@ public abstract class FlowElementImpl extends FlowElement {
     context.emit(e);
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>The default operation forwards the watermark downstream unchanged;
+   * this is correct for any element that does not delay or re-time events.</p>
+   */
+  @Override
+  public void takeWatermark(Watermark w) throws IOException, InterruptedException {
+    emit(w);
+  }
+
   /** {@inheritDoc} */
   @Override
   public void open() throws IOException, InterruptedException {
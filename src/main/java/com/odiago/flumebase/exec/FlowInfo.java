@@ -33,10 +33,18 @@ public class FlowInfo {
   /** Stream name associated with the output of this flow. */
   public final String streamName;
 
+  /** Number of events dropped by the sources of this flow while it was overloaded. */
+  public final long shedCount;
+
   public FlowInfo(FlowId id, String q, String name) {
+    this(id, q, name, 0);
+  }
+
+  public FlowInfo(FlowId id, String q, String name, long shed) {
     flowId = id;
     query = q;
     streamName = name;
+    shedCount = shed;
   }
 
   @Override
@@ -49,6 +57,8 @@ public class FlowInfo {
       sb.append(streamName);
     }
     sb.append("\t");
+    sb.append(shedCount);
+    sb.append("\t");
     sb.append(query);
 
     return sb.toString();
@@ -59,15 +69,17 @@ public class FlowInfo {
     out.setFlowId(flowId.toThrift());
     out.setQuery(query);
     out.setStreamName(streamName);
+    out.setShedCount(shedCount);
     return out;
   }
 
   public static FlowInfo fromThrift(TFlowInfo other) {
-    return new FlowInfo(FlowId.fromThrift(other.flowId), other.query, other.streamName);
+    return new FlowInfo(FlowId.fromThrift(other.flowId), other.query, other.streamName,
+        other.shedCount);
   }
 
   /** @return the columns associated with our toString() output. */
   public static String getHeader() {
-    return "FlowId\tStream\tQuery";
+    return "FlowId\tStream\tShed\tQuery";
   }
 }
@@ -19,6 +19,7 @@ package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
+import java.util.BitSet;
 import java.util.List;
 
 import org.apache.avro.Schema;
@@ -61,6 +62,9 @@ public class FlumeNodeElement extends FlowElementImpl {
   /** The fields of each record emitted by this node, and their types. */ 
   private List<TypedField> mFieldTypes;
 
+  /** Columns of the stream read by the flow, passed to its parser; null if all are read. */
+  private BitSet mRequiredColumns;
+
   /** Symbol of the stream we are reading from. */
   private StreamSymbol mStreamSym;
 
@@ -71,7 +75,7 @@ public class FlumeNodeElement extends FlowElementImpl {
 
   public FlumeNodeElement(FlowElementContext context, String flowSourceId,
       EmbeddedFlumeConfig flumeConfig, String upstreamSource, Schema outputSchema,
-      List<TypedField> fieldTypes, StreamSymbol streamSym) {
+      List<TypedField> fieldTypes, StreamSymbol streamSym, BitSet requiredColumns) {
     super(context);
 
     mFlowSourceId = flowSourceId;
@@ -80,6 +84,7 @@ public class FlumeNodeElement extends FlowElementImpl {
     mOutputSchema = outputSchema;
     mFieldTypes = fieldTypes;
     mStreamSym = streamSym;
+    mRequiredColumns = requiredColumns;
   }
 
   @Override
@@ -87,7 +92,8 @@ public class FlumeNodeElement extends FlowElementImpl {
     super.open();
     LOG.debug("Opening Flume node element; binding sink context id=" + mFlowSourceId);
     SinkContextBindings.get().bindContext(mFlowSourceId,
-        new SinkContext(getContext(), mOutputSchema, mFieldTypes, mStreamSym));
+        new SinkContext(getContext(), mOutputSchema, mFieldTypes, mStreamSym,
+            mRequiredColumns));
     mFlumeConfig.addFlowToForeignNode(mUpstreamNode, mFlowSourceId);
   }
 
@@ -0,0 +1,212 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.Schema;
+
+import org.apache.avro.generic.GenericData;
+
+import com.odiago.flumebase.parser.AliasedExpr;
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.EvaluateExprsNode;
+import com.odiago.flumebase.plan.FilterNode;
+import com.odiago.flumebase.plan.FusedNode;
+import com.odiago.flumebase.plan.PlanNode;
+import com.odiago.flumebase.plan.ProjectionNode;
+
+/**
+ * FlowElement which runs the filters, expression evaluation and projections
+ * of a FusedNode in a single pass over each event. Each stage which produces
+ * a record reads the fields of the previous stage's record in memory; only
+ * the last record is encoded and emitted.
+ */
+public class FusedElement extends AvroOutputElementImpl {
+
+  /** Filters applied to each input event before any other stage. */
+  private List<Expr> mFilters;
+  private ConjunctFilter mConjuncts;
+
+  /** Stages which produce a record from the input event, or the previous record. */
+  private List<RecordStage> mStages;
+
+  public FusedElement(FlowElementContext ctxt, FusedNode fusedNode) {
+    super(ctxt, (Schema) fusedNode.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR));
+    mFilters = new ArrayList<Expr>();
+    mStages = new ArrayList<RecordStage>();
+
+    for (PlanNode stage : fusedNode.getStages()) {
+      Schema stageSchema = (Schema) stage.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR);
+      if (stage instanceof FilterNode) {
+        mFilters.add(((FilterNode) stage).getFilterExpr());
+      } else if (stage instanceof EvaluateExprsNode) {
+        EvaluateExprsNode evalNode = (EvaluateExprsNode) stage;
+        mStages.add(new EvaluateStage(stageSchema, evalNode.getExprs(),
+            evalNode.getPropagateFields()));
+      } else {
+        ProjectionNode projNode = (ProjectionNode) stage;
+        mStages.add(new ProjectionStage(stageSchema, projNode.getInputFields(),
+            projNode.getOutputFields()));
+      }
+    }
+    mConjuncts = new ConjunctFilter(mFilters);
+  }
+
+  /**
+   * A stage which produces a record. The first such stage reads the input
+   * event; later stages read the record produced by the previous stage.
+   */
+  private abstract class RecordStage {
+    private final Schema mSchema;
+
+    /** Fields of mSchema which may not hold null. */
+    private final List<String> mRequiredFields;
+
+    public RecordStage(Schema schema) {
+      mSchema = schema;
+      mRequiredFields = new ArrayList<String>();
+      for (Schema.Field field : schema.getFields()) {
+        Schema.Type fieldType = field.schema().getType();
+        if (!fieldType.equals(Schema.Type.UNION) && !fieldType.equals(Schema.Type.NULL)) {
+          mRequiredFields.add(field.name());
+        }
+      }
+    }
+
+    public Schema getSchema() {
+      return mSchema;
+    }
+
+    /**
+     * @return true if 'record' holds null in a field that may not be null.
+     * A separate stage could not have encoded such a record, and would
+     * have omitted it.
+     */
+    public boolean hasMissingField(GenericData.Record record) {
+      for (String fieldName : mRequiredFields) {
+        if (null == record.get(fieldName)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @return the record produced from the input event 'e', or from 'prev',
+     * the record produced by the previous stage if it is non-null.
+     */
+    public abstract GenericData.Record apply(EventWrapper e, GenericData.Record prev)
+        throws IOException;
+  }
+
+  /** Computes the fields of a record from expressions over the input event. */
+  private class EvaluateStage extends RecordStage {
+    private final List<AliasedExpr> mExprs;
+    private final List<TypedField> mPropagateFields;
+
+    public EvaluateStage(Schema schema, List<AliasedExpr> exprs,
+        List<TypedField> propagateFields) {
+      super(schema);
+      mExprs = exprs;
+      mPropagateFields = propagateFields;
+    }
+
+    @Override
+    public GenericData.Record apply(EventWrapper e, GenericData.Record prev)
+        throws IOException {
+      assert null == prev; // Evaluation is always the first record stage.
+      GenericData.Record record = new GenericData.Record(getSchema());
+      for (AliasedExpr aliasedExpr : mExprs) {
+        Expr expr = aliasedExpr.getExpr();
+        record.put(aliasedExpr.getAvroLabel(),
+            nativeToAvro(expr.eval(e), expr.getResolvedType()));
+      }
+
+      for (TypedField field : mPropagateFields) {
+        record.put(field.getAvroName(), e.getField(field));
+      }
+
+      return record;
+    }
+  }
+
+  /** Copies the fields of the input into a record with a narrower schema. */
+  private class ProjectionStage extends RecordStage {
+    private final List<TypedField> mInputFields;
+    private final List<TypedField> mOutputFields;
+
+    public ProjectionStage(Schema schema, List<TypedField> inputFields,
+        List<TypedField> outputFields) {
+      super(schema);
+      mInputFields = new ArrayList<TypedField>(inputFields);
+      mOutputFields = new ArrayList<TypedField>(outputFields);
+
+      assert(mInputFields.size() == mOutputFields.size());
+    }
+
+    @Override
+    public GenericData.Record apply(EventWrapper e, GenericData.Record prev)
+        throws IOException {
+      GenericData.Record record = new GenericData.Record(getSchema());
+      for (int i = 0; i < mInputFields.size(); i++) {
+        TypedField inField = mInputFields.get(i);
+        TypedField outField = mOutputFields.get(i);
+
+        Object val;
+        if (null == prev) {
+          val = e.getField(inField);
+        } else {
+          val = prev.get(inField.getAvroName());
+        }
+        record.put(outField.getAvroName(), nativeToAvro(val, outField.getType()));
+      }
+
+      return record;
+    }
+  }
+
+  @Override
+  public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    if (!mConjuncts.accept(e)) {
+      return;
+    }
+
+    GenericData.Record record = null;
+    int lastStage = mStages.size() - 1;
+    for (int i = 0; i <= lastStage; i++) {
+      RecordStage stage = mStages.get(i);
+      record = stage.apply(e, record);
+      if (i < lastStage && stage.hasMissingField(record)) {
+        return;
+      }
+    }
+
+    emitAvroRecord(record, e.getEvent());
+  }
+
+  @Override
+  public String toString() {
+    return "Fused[filters=" + mFilters.size() + ", stages=" + mStages.size() + "]";
+  }
+}
@@ -0,0 +1,201 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.util.Arrays;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+import com.odiago.flumebase.util.ValueCodec;
+
+/**
+ * Compact, immutable key identifying a group of events in an aggregation.
+ * The values of the grouping fields are extracted from an event once, and
+ * hashCode() and equals() are defined on these values alone.
+ *
+ * <p>A GroupKey also carries the values of any additional fields that must
+ * be propagated into the group's output records, and the header fields of
+ * the event it was created from; it does not retain the event itself. Keys
+ * are created by a GroupKeyFactory, which assigns positions to fields.</p>
+ */
+abstract class GroupKey {
+  private static final byte [] EMPTY_BODY = new byte[0];
+
+  /** Values of propagated fields that are not also grouping fields. */
+  private final Object [] mCarriedValues;
+
+  // Header fields of the event the key was created from.
+  private final Event.Priority mPriority;
+  private final long mNanos;
+  private final String mHost;
+
+  protected GroupKey(Object [] carriedValues, Event event) {
+    mCarriedValues = carriedValues;
+    mPriority = event.getPriority();
+    mNanos = event.getNanos();
+    mHost = event.getHost();
+  }
+
+  /** @return the number of grouping fields in this key. */
+  protected abstract int getNumKeyValues();
+
+  /** @return the value of the i'th grouping field. */
+  protected abstract Object getKeyValue(int i);
+
+  /**
+   * @return the value of the field at the specified position, as assigned
+   * by the GroupKeyFactory that created this key.
+   */
+  public Object getValue(int pos) {
+    int numKeyValues = getNumKeyValues();
+    if (pos < numKeyValues) {
+      return getKeyValue(pos);
+    } else {
+      return mCarriedValues[pos - numKeyValues];
+    }
+  }
+
+  /**
+   * @return an event with an empty body, bearing the header fields of the
+   * event this key was created from.
+   */
+  public Event getEvent() {
+    return new EventImpl(EMPTY_BODY, 0, mPriority, mNanos, mHost);
+  }
+
+  /**
+   * Serialize the values and event header fields of this key; it is read
+   * back by GroupKeyFactory.readKey().
+   */
+  public void write(DataOutput out) throws IOException {
+    for (int i = 0; i < getNumKeyValues(); i++) {
+      ValueCodec.writeValue(out, getKeyValue(i));
+    }
+
+    for (Object carried : mCarriedValues) {
+      ValueCodec.writeValue(out, carried);
+    }
+
+    CheckpointStore.writeEventHeader(out, getEvent());
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("(");
+    for (int i = 0; i < getNumKeyValues(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(getKeyValue(i));
+    }
+    sb.append(")");
+    return sb.toString();
+  }
+
+  /** GroupKey over an arbitrary set of grouping field values. */
+  static class ObjectGroupKey extends GroupKey {
+    private final Object [] mKeyValues;
+    private final int mHash;
+
+    public ObjectGroupKey(Object [] keyValues, Object [] carriedValues, Event event) {
+      super(carriedValues, event);
+      mKeyValues = keyValues;
+      mHash = Arrays.hashCode(keyValues);
+    }
+
+    @Override
+    protected int getNumKeyValues() {
+      return mKeyValues.length;
+    }
+
+    @Override
+    protected Object getKeyValue(int i) {
+      return mKeyValues[i];
+    }
+
+    @Override
+    public int hashCode() {
+      return mHash;
+    }
+
+    @Override
+    public boolean equals(Object otherObj) {
+      if (otherObj == this) {
+        return true;
+      } else if (!(otherObj instanceof ObjectGroupKey)) {
+        return false;
+      }
+
+      ObjectGroupKey other = (ObjectGroupKey) otherObj;
+      return mHash == other.mHash && Arrays.equals(mKeyValues, other.mKeyValues);
+    }
+  }
+
+  /**
+   * GroupKey over a single non-null INT or BIGINT grouping field, held as a
+   * primitive long.
+   */
+  static class LongGroupKey extends GroupKey {
+    private final long mKey;
+
+    /** True if the grouping field is an INT, rather than a BIGINT. */
+    private final boolean mIsInt;
+
+    public LongGroupKey(long key, boolean isInt, Object [] carriedValues, Event event) {
+      super(carriedValues, event);
+      mKey = key;
+      mIsInt = isInt;
+    }
+
+    @Override
+    protected int getNumKeyValues() {
+      return 1;
+    }
+
+    @Override
+    protected Object getKeyValue(int i) {
+      assert i == 0;
+      if (mIsInt) {
+        return Integer.valueOf((int) mKey);
+      } else {
+        return Long.valueOf(mKey);
+      }
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (mKey ^ (mKey >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object otherObj) {
+      if (otherObj == this) {
+        return true;
+      } else if (!(otherObj instanceof LongGroupKey)) {
+        return false;
+      }
+
+      return mKey == ((LongGroupKey) otherObj).mKey;
+    }
+  }
+}
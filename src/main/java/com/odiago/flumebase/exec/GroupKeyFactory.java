@@ -0,0 +1,157 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.util.ValueCodec;
+
+/**
+ * Creates GroupKey instances from events for a fixed set of grouping fields
+ * and propagated fields. Each field is assigned a position that may be
+ * passed to GroupKey.getValue(); grouping fields come first, followed by
+ * the propagated fields that are not also grouping fields.
+ */
+class GroupKeyFactory {
+  /** The fields identifying a group. */
+  private final List<TypedField> mKeyFields;
+
+  /** Propagated fields which are not also in mKeyFields. */
+  private final List<TypedField> mCarriedFields;
+
+  /** True if we group on a single INT or BIGINT field. */
+  private final boolean mIsLongKey;
+
+  /** True if mIsLongKey and the field is an INT. */
+  private final boolean mIsIntKey;
+
+  public GroupKeyFactory(List<TypedField> keyFields, List<TypedField> propagateFields) {
+    mKeyFields = keyFields;
+    mCarriedFields = new ArrayList<TypedField>();
+    for (TypedField field : propagateFields) {
+      if (getFieldPos(field) == -1) {
+        mCarriedFields.add(field);
+      }
+    }
+
+    if (keyFields.size() == 1) {
+      Type.TypeName keyType = keyFields.get(0).getType().getPrimitiveTypeName();
+      mIsIntKey = Type.TypeName.INT.equals(keyType);
+      mIsLongKey = mIsIntKey || Type.TypeName.BIGINT.equals(keyType);
+    } else {
+      mIsIntKey = false;
+      mIsLongKey = false;
+    }
+  }
+
+  /**
+   * @return the position of the specified field in the keys we create, or
+   * -1 if it is neither a grouping field nor a propagated field. Fields are
+   * matched by their avro names.
+   */
+  public int getFieldPos(TypedField field) {
+    String avroName = field.getAvroName();
+    for (int i = 0; i < mKeyFields.size(); i++) {
+      if (mKeyFields.get(i).getAvroName().equals(avroName)) {
+        return i;
+      }
+    }
+
+    for (int i = 0; i < mCarriedFields.size(); i++) {
+      if (mCarriedFields.get(i).getAvroName().equals(avroName)) {
+        return mKeyFields.size() + i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * @return the positions of each of the specified fields, as would be
+   * returned by getFieldPos().
+   */
+  public int [] getFieldPositions(List<TypedField> fields) {
+    int [] positions = new int[fields.size()];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = getFieldPos(fields.get(i));
+      assert positions[i] >= 0;
+    }
+    return positions;
+  }
+
+  /**
+   * @return a GroupKey holding the values of the grouping and propagated
+   * fields of the specified event.
+   */
+  public GroupKey createKey(EventWrapper e) throws IOException {
+    Object [] carriedValues = new Object[mCarriedFields.size()];
+    for (int i = 0; i < carriedValues.length; i++) {
+      carriedValues[i] = e.getField(mCarriedFields.get(i));
+    }
+
+    if (mIsLongKey) {
+      Object keyVal = e.getField(mKeyFields.get(0));
+      if (null != keyVal) {
+        return new GroupKey.LongGroupKey(((Number) keyVal).longValue(), mIsIntKey,
+            carriedValues, e.getEvent());
+      }
+      // Null keys use the general-purpose key type.
+    }
+
+    Object [] keyValues = new Object[mKeyFields.size()];
+    for (int i = 0; i < keyValues.length; i++) {
+      keyValues[i] = e.getField(mKeyFields.get(i));
+    }
+
+    return new GroupKey.ObjectGroupKey(keyValues, carriedValues, e.getEvent());
+  }
+
+  /**
+   * @return a GroupKey read from 'in', as written by GroupKey.write() for a
+   * key created by a factory over the same fields.
+   */
+  public GroupKey readKey(DataInput in) throws IOException {
+    Object [] keyValues = new Object[mKeyFields.size()];
+    for (int i = 0; i < keyValues.length; i++) {
+      keyValues[i] = ValueCodec.readValue(in);
+    }
+
+    Object [] carriedValues = new Object[mCarriedFields.size()];
+    for (int i = 0; i < carriedValues.length; i++) {
+      carriedValues[i] = ValueCodec.readValue(in);
+    }
+
+    Event event = CheckpointStore.readEventHeader(in);
+    if (mIsLongKey && null != keyValues[0]) {
+      return new GroupKey.LongGroupKey(((Number) keyValues[0]).longValue(), mIsIntKey,
+          carriedValues, event);
+    } else {
+      return new GroupKey.ObjectGroupKey(keyValues, carriedValues, event);
+    }
+  }
+}
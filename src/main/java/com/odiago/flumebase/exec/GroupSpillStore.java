@@ -0,0 +1,298 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.util.Pair;
+
+import com.odiago.flumebase.parser.AliasedExpr;
+import com.odiago.flumebase.parser.FnCallExpr;
+
+/**
+ * Local-disk store for the time-ordered bucket lists of aggregation groups
+ * that have been evicted from memory.
+ *
+ * <p>Each group's buckets are serialized (through the aggregate functions
+ * which own their state) into a single record appended to a temporary file.
+ * An in-memory index maps each spilled GroupKey to the location of its most
+ * recent record. Records that are superseded or removed become garbage; the
+ * file is rewritten to hold only the live records once garbage dominates.</p>
+ */
+class GroupSpillStore {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      GroupSpillStore.class.getName());
+
+  /** Don't bother compacting files smaller than this. */
+  private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+  /** Location and extent of a spilled group's record. */
+  private static class Entry {
+    private final long mOffset;
+    private final int mLength;
+
+    /** Timestamp of the newest bucket in the record. */
+    private final long mMaxTime;
+
+    public Entry(long offset, int length, long maxTime) {
+      mOffset = offset;
+      mLength = length;
+      mMaxTime = maxTime;
+    }
+  }
+
+  /** The aggregate functions whose buckets we hold, in bucket-list order. */
+  private final List<AliasedExpr> mAggregateExprs;
+
+  /** Directory in which spill files are created. */
+  private final File mDir;
+
+  private File mFile;
+  private RandomAccessFile mRaf;
+
+  private final Map<GroupKey, Entry> mIndex;
+
+  /** Number of bytes in mFile belonging to records in mIndex. */
+  private long mLiveBytes;
+
+  // Metrics.
+  private long mNumSpills;
+  private long mBytesSpilled;
+  private long mNumReads;
+  private long mBytesRead;
+
+  public GroupSpillStore(List<AliasedExpr> aggregateExprs, File dir) throws IOException {
+    mAggregateExprs = aggregateExprs;
+    mDir = dir;
+    mIndex = new HashMap<GroupKey, Entry>();
+    mFile = createFile();
+    mRaf = new RandomAccessFile(mFile, "rw");
+  }
+
+  private File createFile() throws IOException {
+    File file = File.createTempFile("flumebase-agg-", ".spill", mDir);
+    file.deleteOnExit();
+    return file;
+  }
+
+  /** @return true if the buckets of 'group' are held in this store. */
+  public boolean contains(GroupKey group) {
+    return mIndex.containsKey(group);
+  }
+
+  /** @return the groups held in this store. */
+  public Set<GroupKey> getGroups() {
+    return mIndex.keySet();
+  }
+
+  /** @return the number of groups held in this store. */
+  public int size() {
+    return mIndex.size();
+  }
+
+  /**
+   * @return the timestamp of the newest bucket held for 'group', which must
+   * be in this store.
+   */
+  public long getMaxTime(GroupKey group) {
+    return mIndex.get(group).mMaxTime;
+  }
+
+  /**
+   * Write the buckets of 'group' to disk, replacing any previously held.
+   * @param bucketsByTime the group's time-ordered list of (timestamp, buckets)
+   * pairs; must not be empty.
+   */
+  public void write(GroupKey group, List<Pair<Long, List<Bucket<Object>>>> bucketsByTime)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    writeBuckets(mAggregateExprs, bucketsByTime, out);
+    out.close();
+
+    long maxTime = Long.MIN_VALUE;
+    for (Pair<Long, List<Bucket<Object>>> timedBuckets : bucketsByTime) {
+      maxTime = Math.max(maxTime, timedBuckets.getLeft());
+    }
+
+    byte [] record = bytes.toByteArray();
+    discard(group); // Drop any prior record first, as this may compact the file.
+    long offset = mRaf.length();
+    mRaf.seek(offset);
+    mRaf.write(record);
+
+    mIndex.put(group, new Entry(offset, record.length, maxTime));
+    mLiveBytes += record.length;
+    mNumSpills++;
+    mBytesSpilled += record.length;
+  }
+
+  /**
+   * Read the buckets of 'group', which must be in this store.
+   * @param remove if true, the group is removed from the store.
+   * @return the group's time-ordered list of (timestamp, buckets) pairs.
+   */
+  public List<Pair<Long, List<Bucket<Object>>>> read(GroupKey group, boolean remove)
+      throws IOException {
+    Entry entry = mIndex.get(group);
+    assert null != entry;
+    byte [] record = new byte[entry.mLength];
+    mRaf.seek(entry.mOffset);
+    mRaf.readFully(record);
+    mNumReads++;
+    mBytesRead += record.length;
+    if (remove) {
+      discard(group);
+    }
+
+    return readBuckets(mAggregateExprs,
+        new DataInputStream(new ByteArrayInputStream(record)));
+  }
+
+  /**
+   * Serialize a group's time-ordered list of (timestamp, buckets) pairs
+   * through the aggregate functions which own the bucket state.
+   */
+  static void writeBuckets(List<AliasedExpr> aggregateExprs,
+      List<Pair<Long, List<Bucket<Object>>>> bucketsByTime, DataOutput out) throws IOException {
+    out.writeInt(bucketsByTime.size());
+    for (Pair<Long, List<Bucket<Object>>> timedBuckets : bucketsByTime) {
+      out.writeLong(timedBuckets.getLeft());
+      List<Bucket<Object>> buckets = timedBuckets.getRight();
+      for (int i = 0; i < aggregateExprs.size(); i++) {
+        FnCallExpr fnCall = (FnCallExpr) aggregateExprs.get(i).getExpr();
+        fnCall.writeBucket(buckets.get(i), out);
+      }
+    }
+  }
+
+  /**
+   * @return a time-ordered list of (timestamp, buckets) pairs read from 'in',
+   * as written by writeBuckets().
+   */
+  static List<Pair<Long, List<Bucket<Object>>>> readBuckets(List<AliasedExpr> aggregateExprs,
+      DataInput in) throws IOException {
+    int numTimes = in.readInt();
+    List<Pair<Long, List<Bucket<Object>>>> bucketsByTime =
+        new ArrayList<Pair<Long, List<Bucket<Object>>>>(numTimes);
+    for (int t = 0; t < numTimes; t++) {
+      Long timestamp = Long.valueOf(in.readLong());
+      List<Bucket<Object>> buckets = new ArrayList<Bucket<Object>>(aggregateExprs.size());
+      for (int i = 0; i < aggregateExprs.size(); i++) {
+        FnCallExpr fnCall = (FnCallExpr) aggregateExprs.get(i).getExpr();
+        buckets.add(fnCall.readBucket(in));
+      }
+      bucketsByTime.add(new Pair<Long, List<Bucket<Object>>>(timestamp, buckets));
+    }
+    return bucketsByTime;
+  }
+
+  /**
+   * Remove 'group' from the store, if present.
+   */
+  public void discard(GroupKey group) throws IOException {
+    Entry entry = mIndex.remove(group);
+    if (null != entry) {
+      mLiveBytes -= entry.mLength;
+      if (mRaf.length() > MIN_COMPACT_BYTES && mRaf.length() > 2 * mLiveBytes) {
+        compact();
+      }
+    }
+  }
+
+  /**
+   * Rewrite the spill file to contain only the records in mIndex.
+   */
+  private void compact() throws IOException {
+    LOG.debug("Compacting spill file " + mFile + " of " + mRaf.length() + " bytes; "
+        + mLiveBytes + " bytes are live");
+    File newFile = createFile();
+    RandomAccessFile newRaf = new RandomAccessFile(newFile, "rw");
+    try {
+      byte [] record = new byte[0];
+      for (Map.Entry<GroupKey, Entry> indexEntry : mIndex.entrySet()) {
+        Entry entry = indexEntry.getValue();
+        if (record.length < entry.mLength) {
+          record = new byte[entry.mLength];
+        }
+        mRaf.seek(entry.mOffset);
+        mRaf.readFully(record, 0, entry.mLength);
+        long offset = newRaf.getFilePointer();
+        newRaf.write(record, 0, entry.mLength);
+        indexEntry.setValue(new Entry(offset, entry.mLength, entry.mMaxTime));
+      }
+    } catch (IOException ioe) {
+      newRaf.close();
+      newFile.delete();
+      throw ioe;
+    }
+
+    mRaf.close();
+    mFile.delete();
+    mFile = newFile;
+    mRaf = newRaf;
+  }
+
+  /** @return the number of group records written to disk. */
+  public long getNumSpills() {
+    return mNumSpills;
+  }
+
+  /** @return the number of bytes written to disk. */
+  public long getBytesSpilled() {
+    return mBytesSpilled;
+  }
+
+  /** @return the number of group records read back from disk. */
+  public long getNumReads() {
+    return mNumReads;
+  }
+
+  /** @return the number of bytes read back from disk. */
+  public long getBytesRead() {
+    return mBytesRead;
+  }
+
+  /**
+   * Release the store's resources and delete its file.
+   */
+  public void close() throws IOException {
+    mIndex.clear();
+    mRaf.close();
+    if (!mFile.delete()) {
+      LOG.warn("Could not delete spill file " + mFile);
+    }
+  }
+}
@@ -19,6 +19,8 @@ package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -33,12 +35,14 @@ import com.cloudera.flume.core.Event;
 
 import com.odiago.flumebase.lang.TimeSpan;
 
+import com.odiago.flumebase.parser.Expr;
 import com.odiago.flumebase.parser.TypedField;
 import com.odiago.flumebase.parser.WindowSpec;
 
 import com.odiago.flumebase.plan.HashJoinNode;
+import com.odiago.flumebase.plan.PlanNode;
 
-import com.odiago.flumebase.util.WindowedHashMap;
+import com.odiago.flumebase.util.RotatingBloomFilter;
 
 /**
  * FlowElement that performs a hash join between two input streams
@@ -48,17 +52,53 @@ public class HashJoinElement extends FlowElementImpl {
   private static final Logger LOG = LoggerFactory.getLogger(
       HashJoinElement.class.getName());
 
+  /** Set to true to hold the join windows' events outside the Java heap. */
+  public static final String OFF_HEAP_STATE_KEY = "flumebase.join.state.offheap";
+  public static final boolean DEFAULT_OFF_HEAP_STATE = false;
+
   /**
-   * HashMap containing enqueued elements of the left stream within the
+   * Set to true to keep a Bloom filter of the keys each stream has delivered
+   * within the window, so that events whose keys the other stream has not
+   * delivered skip the lookup in its window.
+   */
+  public static final String BLOOM_FILTER_KEY = "flumebase.join.bloom.enabled";
+  public static final boolean DEFAULT_BLOOM_FILTER = true;
+
+  /** Number of bits in each time interval of the Bloom filters. */
+  public static final String BLOOM_FILTER_BITS_KEY = "flumebase.join.bloom.bits";
+
+  /** Number of time intervals each Bloom filter divides the window into. */
+  private static final int BLOOM_FILTER_INTERVALS = 4;
+
+  /**
+   * Store containing enqueued elements of the left stream within the
    * current window.
    */
-  private WindowedHashMap<Object, EventWrapper, Long> mLeftMap;
+  private JoinWindowStore mLeftMap;
 
   /**
-   * HashMap containing enqueued elements of the right stream within the
+   * Store containing enqueued elements of the right stream within the
    * current window.
    */
-  private WindowedHashMap<Object, EventWrapper, Long> mRightMap;
+  private JoinWindowStore mRightMap;
+
+  /**
+   * Keys delivered by the left stream within the window; null if Bloom
+   * filters are disabled.
+   */
+  private RotatingBloomFilter mLeftFilter;
+
+  /**
+   * Keys delivered by the right stream within the window; null if Bloom
+   * filters are disabled.
+   */
+  private RotatingBloomFilter mRightFilter;
+
+  /** Number of events whose lookup in the other window was skipped. */
+  private long mNumSkippedProbes;
+
+  /** Number of events not held, as no future event of the other stream could match them. */
+  private long mNumUnheldEvents;
 
   /** Name of the left-side stream. */
   private String mLeftName; 
@@ -72,6 +112,12 @@ public class HashJoinElement extends FlowElementImpl {
   /** Name of the key field from the right stream. */
   private TypedField mRightKey;
 
+  /** Fields of the left stream which may appear in the output. */
+  private List<TypedField> mLeftFields;
+
+  /** Fields of the right stream which may appear in the output. */
+  private List<TypedField> mRightFields;
+
   /** Window specification in which we are joining. */
   private WindowSpec mWindowWidth;
 
@@ -85,16 +131,69 @@ public class HashJoinElement extends FlowElementImpl {
   private String mOutName;
 
   /**
-   * Mapping from field names to indices in CompositeEventWrapper arrays
-   * describing the output events from this join operation. 
+   * Mapping from field names to JoinedEventWrapper.LEFT or RIGHT,
+   * describing the output events from this join operation.
    */
   private Map<String, Integer> mFieldMap;
 
+  /** Reused view over each candidate pair of joined events. */
+  private JoinedEventWrapper mPairView;
+
+  /**
+   * Predicate which joined pairs must satisfy to be emitted; null if every
+   * pair is emitted.
+   */
+  private Expr mPostJoinFilter;
+
   /**
    * The amount of slack time we provide before we evict old elements.
    */
   private int mSlackTime;
 
+  /**
+   * If an input delivers neither events nor watermarks for this many
+   * milliseconds of local time, it is treated as idle, and no longer holds
+   * back eviction or the output watermark. 0 disables idle detection.
+   */
+  public static final String IDLE_TIMEOUT_KEY = "flumebase.join.idle.timeout";
+  public static final long DEFAULT_IDLE_TIMEOUT = 10000;
+
+  /** Idle timeout for each input, in milliseconds. */
+  private long mIdleTimeout;
+
+  /** Latest watermark received from the left stream. */
+  private long mLeftWatermark = Long.MIN_VALUE;
+
+  /** Latest watermark received from the right stream. */
+  private long mRightWatermark = Long.MIN_VALUE;
+
+  /** Local time at which the left stream last delivered anything. */
+  private long mLeftArrivalTime;
+
+  /** Local time at which the right stream last delivered anything. */
+  private long mRightArrivalTime;
+
+  /** Time of the last watermark we passed downstream. */
+  private long mOutputWatermark = Long.MIN_VALUE;
+
+  /**
+   * Set to true once a watermark arrives. From then on, window state is
+   * evicted according to watermarks rather than the slack time.
+   */
+  private boolean mIsWatermarkDriven;
+
+  /** Number of events that arrived behind their stream's watermark. */
+  private long mNumLateEvents;
+
+  /** Checkpoints our state to local disk; null if checkpointing is disabled. */
+  private JoinCheckpointer mCheckpointer;
+
+  /** Keys of mLeftMap whose entries have changed; null if checkpointing is disabled. */
+  private Collection<Object> mDirtyLeftKeys;
+
+  /** Keys of mRightMap whose entries have changed; null if checkpointing is disabled. */
+  private Collection<Object> mDirtyRightKeys;
+
   public HashJoinElement(FlowElementContext ctxt, String leftName, String rightName,
       TypedField leftKey, TypedField rightKey, WindowSpec windowWidth, String outName,
       List<TypedField> leftFieldNames, List<TypedField> rightFieldNames, Configuration conf) {
@@ -105,9 +204,15 @@ public class HashJoinElement extends FlowElementImpl {
     if (mSlackTime < 0) {
       mSlackTime = BucketedAggregationElement.DEFAULT_SLACK_INTERVAL;
     }
+    mIdleTimeout = conf.getLong(IDLE_TIMEOUT_KEY, DEFAULT_IDLE_TIMEOUT);
 
-    mLeftMap = new WindowedHashMap<Object, EventWrapper, Long>();
-    mRightMap = new WindowedHashMap<Object, EventWrapper, Long>();
+    if (conf.getBoolean(OFF_HEAP_STATE_KEY, DEFAULT_OFF_HEAP_STATE)) {
+      mLeftMap = new OffHeapJoinWindowStore(leftFieldNames, conf);
+      mRightMap = new OffHeapJoinWindowStore(rightFieldNames, conf);
+    } else {
+      mLeftMap = new HeapJoinWindowStore();
+      mRightMap = new HeapJoinWindowStore();
+    }
 
     mLeftName = leftName;
     mRightName = rightName;
@@ -122,6 +227,18 @@ public class HashJoinElement extends FlowElementImpl {
       LOG.error("Unexpected IOE during timespan eval() in HashJoin: " + ioe);
     }
     mOutName = outName;
+    mLeftFields = leftFieldNames;
+    mRightFields = rightFieldNames;
+
+    if (null != mTimeSpan && conf.getBoolean(BLOOM_FILTER_KEY, DEFAULT_BLOOM_FILTER)) {
+      int numBits = conf.getInt(BLOOM_FILTER_BITS_KEY, RotatingBloomFilter.DEFAULT_NUM_BITS);
+      long intervalWidth = Math.max(1,
+          (mTimeSpan.hi - mTimeSpan.lo) / BLOOM_FILTER_INTERVALS);
+      mLeftFilter = new RotatingBloomFilter(intervalWidth, numBits,
+          RotatingBloomFilter.DEFAULT_NUM_HASHES);
+      mRightFilter = new RotatingBloomFilter(intervalWidth, numBits,
+          RotatingBloomFilter.DEFAULT_NUM_HASHES);
+    }
 
     initFieldMap(leftFieldNames, rightFieldNames);
   }
@@ -130,30 +247,57 @@ public class HashJoinElement extends FlowElementImpl {
     this(ctxt, joinNode.getLeftName(), joinNode.getRightName(), joinNode.getLeftKey(),
         joinNode.getRightKey(), joinNode.getWindowWidth(), joinNode.getOutputName(),
         joinNode.getLeftFields(), joinNode.getRightFields(), joinNode.getConf());
+
+    mPostJoinFilter = joinNode.getPostJoinFilter();
+
+    CheckpointStore checkpointStore = CheckpointStore.create(joinNode.getConf(),
+        (String) joinNode.getAttr(PlanNode.CHECKPOINT_ID_ATTR));
+    if (null != checkpointStore) {
+      List<List<TypedField>> fields = new ArrayList<List<TypedField>>();
+      fields.add(mLeftFields);
+      fields.add(mRightFields);
+      try {
+        mCheckpointer = new JoinCheckpointer(checkpointStore,
+            new JoinWindowStore[] { mLeftMap, mRightMap }, fields,
+            new TimeSpan[] { null, mTimeSpan }) {
+          @Override
+          protected void restoreEvent(int input, Object key, EventWrapper e, long timestamp)
+              throws IOException {
+            super.restoreEvent(input, key, e, timestamp);
+            RotatingBloomFilter filter = 0 == input ? mLeftFilter : mRightFilter;
+            if (null != filter) {
+              filter.add(key, timestamp);
+            }
+          }
+        };
+        mDirtyLeftKeys = mCheckpointer.getDirtyKeys(0);
+        mDirtyRightKeys = mCheckpointer.getDirtyKeys(1);
+      } catch (IOException ioe) {
+        LOG.error("Could not initialize join checkpoints; disabling checkpoints: " + ioe);
+      }
+    }
   }
 
 
   /**
-   * Initialize the map we install in every output CompositeEventWrapper.
+   * Initialize the map we install in every output JoinedEventWrapper.
    * This describes which of the nested EventWrappers contains each field of
    * the joined record. We compute this once and then reuse it in each output
-   * event; we always use the ordered list [leftStream, rightStream] in the wrapped
-   * list.
+   * event.
    */
   private void initFieldMap(List<TypedField> leftFields, List<TypedField> rightFields) {
     mFieldMap = new HashMap<String, Integer>();
 
-    // Left EventWrapper has index 0...
     for (TypedField f : leftFields) {
-      mFieldMap.put(f.getAvroName(), 0);
+      mFieldMap.put(f.getAvroName(), JoinedEventWrapper.LEFT);
     }
 
-    // Right EventWrapper has index 1.
     for (TypedField f : rightFields) {
-      mFieldMap.put(f.getAvroName(), 1);
+      mFieldMap.put(f.getAvroName(), JoinedEventWrapper.RIGHT);
     }
 
     mFieldMap = Collections.unmodifiableMap(mFieldMap);
+    mPairView = new JoinedEventWrapper(mFieldMap, mOutName);
   }
 
   @Override
@@ -169,19 +313,39 @@ public class HashJoinElement extends FlowElementImpl {
       return;
     }
 
-    WindowedHashMap<Object, EventWrapper, Long> insertMap; // Map where we insert this event.
-    WindowedHashMap<Object, EventWrapper, Long> joinMap; // Map we pull join candidates from.
+    JoinWindowStore insertMap; // Map where we insert this event.
+    JoinWindowStore joinMap; // Map we pull join candidates from.
+    RotatingBloomFilter insertFilter; // Keys seen by this event's stream.
+    RotatingBloomFilter joinFilter; // Keys seen by the other stream.
+    Collection<Object> insertDirtyKeys; // Keys of insertMap changed since the last checkpoint.
+    Collection<Object> joinDirtyKeys; // Keys of joinMap changed since the last checkpoint.
     TypedField keyField; // The field to grab from the event wrapper.
     boolean isLeft;
 
+    long watermark;
+    long joinWatermark; // Watermark of the other stream.
     if (streamName.equals(mLeftName)) {
+      mLeftArrivalTime = System.currentTimeMillis();
+      watermark = mLeftWatermark;
+      joinWatermark = mRightWatermark;
       insertMap = mLeftMap;
       joinMap = mRightMap;
+      insertFilter = mLeftFilter;
+      joinFilter = mRightFilter;
+      insertDirtyKeys = mDirtyLeftKeys;
+      joinDirtyKeys = mDirtyRightKeys;
       keyField = mLeftKey;
       isLeft = true;
     } else if (streamName.equals(mRightName)) {
+      mRightArrivalTime = System.currentTimeMillis();
+      watermark = mRightWatermark;
+      joinWatermark = mLeftWatermark;
       insertMap = mRightMap;
       joinMap = mLeftMap;
+      insertFilter = mRightFilter;
+      joinFilter = mLeftFilter;
+      insertDirtyKeys = mDirtyRightKeys;
+      joinDirtyKeys = mDirtyLeftKeys;
       keyField = mRightKey;
       isLeft = false;
     } else {
@@ -199,6 +363,10 @@ public class HashJoinElement extends FlowElementImpl {
 
     assert mTimeSpan.isRelative;
     long curTime = event.getTimestamp();
+    if (curTime < watermark) {
+      // Matches for this event on the other side may already have been evicted.
+      mNumLateEvents++;
+    }
     Long lo;
     Long hi;
 
@@ -217,50 +385,201 @@ public class HashJoinElement extends FlowElementImpl {
     LOG.debug("Working on key: " + key + ", isLeft=" + isLeft);
     LOG.debug("Timestamp=" + curTime + ", interval=" + lo + ", " + hi);
 
-    // Join with all the events in the window.
-    List<EventWrapper> joinEvents = joinMap.getRange(key, lo, hi, isLeft, !isLeft);
+    // Join with all the events in the window, unless the other stream has
+    // definitely not delivered this key within it.
+    boolean mayMatch = null == joinFilter || joinFilter.mightContain(key, lo, hi);
+    List<EventWrapper> joinEvents;
+    if (mayMatch) {
+      joinEvents = joinMap.getRange(key, lo, hi, isLeft, !isLeft);
+    } else {
+      joinEvents = Collections.emptyList();
+      mNumSkippedProbes++;
+    }
     for (EventWrapper joinWrapper : joinEvents) {
-      CompositeEvent outEvent = new CompositeEvent(mFieldMap,
-          event.getPriority(), event.getTimestamp(), event.getNanos(), event.getHost());
-      CompositeEventWrapper outWrapper = new CompositeEventWrapper();
+      // Order matters due to the fixed mFieldMap; the left event comes first.
       if (isLeft) {
-        outEvent.add(e);
-        outEvent.add(joinWrapper);
+        mPairView.reset(e, joinWrapper, event);
       } else {
-        // Add the left event to the composite first.
-        // Order matters due to the fixed mFieldMap.
-        outEvent.add(joinWrapper);
-        outEvent.add(e);
+        mPairView.reset(joinWrapper, e, event);
       }
-      outEvent.setAttr(STREAM_NAME_ATTR, mOutName); // set the output stream name.
-      outWrapper.reset(outEvent);
-      emit(outWrapper);
+
+      if (null != mPostJoinFilter && !Boolean.TRUE.equals(mPostJoinFilter.eval(mPairView))) {
+        continue; // Rejected before the pair is materialized.
+      }
+      emit(mPairView.copy());
     }
 
     // Save the event for joining with other events that arrive in the future.
-    insertMap.put(key, e, curTime);
-
-    // Remove entries from the join target map that are behind the current
-    // window, to keep the window maps from overfilling.
-    // Anything behind the 'lo' value can be removed.
-    joinMap.removeOlderThan(lo - mSlackTime);
-
-    // If we get lots of records on one side of the join but no records
-    // on the other side for an extended period of time, we won't be culling the
-    // correct map. Given 'lo' calculated from the perspective of oldest entry in
-    // the other map, remove obsolete values from insertMap. Calculating based
-    // on the oldest entry in the other map ensures that we are not discarding
-    // values that we cannot process yet because one stream is delayed.
-    Long oldestInOtherMap = joinMap.oldestTimestamp();
-    if (null != oldestInOtherMap) {
-      Long otherMapLo;
-      if (isLeft) {
-        otherMapLo = oldestInOtherMap - mTimeSpan.hi;
-      } else {
-        otherMapLo = oldestInOtherMap + mTimeSpan.lo;
+    // Future events of the other stream are not behind its watermark; if the
+    // window for this event is entirely behind it, takeWatermark() would
+    // evict this event at once, so it is not held at all.
+    if (mIsWatermarkDriven && hi < joinWatermark) {
+      mNumUnheldEvents++;
+    } else {
+      if (null != insertFilter) {
+        insertFilter.add(key, curTime);
+      }
+      insertMap.put(key, e, curTime);
+      if (null != insertDirtyKeys) {
+        insertDirtyKeys.add(key);
       }
-      LOG.debug("otherMapLo=" + otherMapLo);
-      insertMap.removeOlderThan(otherMapLo - mSlackTime);
+    }
+
+    if (!mIsWatermarkDriven) {
+      // Remove entries from the join target map that are behind the current
+      // window, to keep the window maps from overfilling.
+      // Anything behind the 'lo' value can be removed.
+      evict(joinMap, joinFilter, lo - mSlackTime, joinDirtyKeys);
+
+      // If we get lots of records on one side of the join but no records
+      // on the other side for an extended period of time, we won't be culling the
+      // correct map. Given 'lo' calculated from the perspective of oldest entry in
+      // the other map, remove obsolete values from insertMap. Calculating based
+      // on the oldest entry in the other map ensures that we are not discarding
+      // values that we cannot process yet because one stream is delayed.
+      Long oldestInOtherMap = joinMap.oldestTimestamp();
+      if (null != oldestInOtherMap) {
+        Long otherMapLo;
+        if (isLeft) {
+          otherMapLo = oldestInOtherMap - mTimeSpan.hi;
+        } else {
+          otherMapLo = oldestInOtherMap + mTimeSpan.lo;
+        }
+        LOG.debug("otherMapLo=" + otherMapLo);
+        evict(insertMap, insertFilter, otherMapLo - mSlackTime, insertDirtyKeys);
+      }
+    }
+
+    if (null != mCheckpointer && mCheckpointer.isDue()) {
+      checkpoint(false);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>Evicts exactly the window entries that no future event of the other
+   * stream can join with, then passes on the least of the two inputs'
+   * watermarks. An input that has been idle for longer than the idle timeout
+   * is assumed to be no further behind than the other input.</p>
+   */
+  @Override
+  public void takeWatermark(Watermark w) throws IOException, InterruptedException {
+    String streamName = w.getStreamName();
+    long now = System.currentTimeMillis();
+    if (mLeftName.equals(streamName)) {
+      mLeftWatermark = Math.max(mLeftWatermark, w.getTime());
+      mLeftArrivalTime = now;
+    } else if (mRightName.equals(streamName)) {
+      mRightWatermark = Math.max(mRightWatermark, w.getTime());
+      mRightArrivalTime = now;
+    } else {
+      LOG.warn("Got watermark for unexpected stream " + streamName);
+      return;
+    }
+
+    mIsWatermarkDriven = true;
+    long leftBound = mLeftWatermark;
+    long rightBound = mRightWatermark;
+    if (isIdle(mIdleTimeout, mLeftArrivalTime, now)) {
+      leftBound = Math.max(leftBound, rightBound);
+    } else if (isIdle(mIdleTimeout, mRightArrivalTime, now)) {
+      rightBound = Math.max(rightBound, leftBound);
+    }
+
+    // A right-side entry at time r can join future left events at t >= leftBound
+    // only if r > t + lo; symmetrically, a left-side entry at l needs l >= u - hi
+    // for future right events at u >= rightBound.
+    if (leftBound != Long.MIN_VALUE) {
+      evict(mRightMap, mRightFilter, leftBound + mTimeSpan.lo, mDirtyRightKeys);
+    }
+    if (rightBound != Long.MIN_VALUE) {
+      evict(mLeftMap, mLeftFilter, rightBound - mTimeSpan.hi, mDirtyLeftKeys);
+    }
+
+    // Output events carry the timestamp of the input event that produced them.
+    long outputWatermark = Math.min(leftBound, rightBound);
+    if (outputWatermark > mOutputWatermark) {
+      mOutputWatermark = outputWatermark;
+      emit(new Watermark(outputWatermark, mOutName));
+    }
+
+    if (null != mCheckpointer && mCheckpointer.isDue()) {
+      checkpoint(false);
+    }
+  }
+
+  /**
+   * Remove the entries of 'map' with timestamps before 'bound', and forget
+   * the keys 'filter' holds for that time (if it is not null).
+   */
+  private void evict(JoinWindowStore map, RotatingBloomFilter filter, long bound,
+      Collection<Object> dirtyKeys) throws IOException {
+    map.removeOlderThan(bound, dirtyKeys);
+    if (null != filter) {
+      filter.removeOlderThan(bound);
+    }
+  }
+
+  /**
+   * @return true if an input which last delivered anything at local time
+   * 'arrivalTime' should be treated as idle at local time 'now', given an
+   * idle timeout of 'idleTimeout' milliseconds.
+   */
+  static boolean isIdle(long idleTimeout, long arrivalTime, long now) {
+    return idleTimeout > 0 && now - arrivalTime > idleTimeout;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void open() throws IOException, InterruptedException {
+    if (null != mCheckpointer) {
+      mCheckpointer.restore();
+    }
+
+    // Inputs are not considered idle until they have had a chance to start.
+    mLeftArrivalTime = System.currentTimeMillis();
+    mRightArrivalTime = mLeftArrivalTime;
+    super.open();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException, InterruptedException {
+    if (mNumLateEvents > 0) {
+      LOG.info("Join received " + mNumLateEvents + " events behind their stream's watermark");
+    }
+    LOG.debug("Join skipped " + mNumSkippedProbes + " window lookups by Bloom filter, and held "
+        + "no state for " + mNumUnheldEvents + " events behind the other stream's watermark");
+
+    if (null != mCheckpointer) {
+      mCheckpointer.getStore().awaitIdle();
+      checkpoint(true);
+      if (null != mCheckpointer) {
+        mCheckpointer.getStore().close();
+        mCheckpointer = null;
+      }
+    }
+
+    mLeftMap.close();
+    mRightMap.close();
+    super.close();
+  }
+
+  /**
+   * Submit the entries of the join maps that have changed since the previous
+   * checkpoint (or the next part of a full checkpoint) to the checkpoint
+   * store. If our state cannot be serialized, checkpointing is disabled.
+   * @param finish if true, complete any full checkpoint in progress.
+   */
+  private void checkpoint(boolean finish) throws InterruptedException {
+    try {
+      mCheckpointer.checkpoint(finish);
+    } catch (IOException ioe) {
+      LOG.error("Could not checkpoint join state; disabling checkpoints: " + ioe);
+      mCheckpointer.getStore().close();
+      mCheckpointer = null;
+      mDirtyLeftKeys = null;
+      mDirtyRightKeys = null;
     }
   }
 }
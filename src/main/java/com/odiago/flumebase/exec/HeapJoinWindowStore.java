@@ -0,0 +1,78 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.cloudera.util.Pair;
+
+import com.odiago.flumebase.util.WindowedHashMap;
+
+/**
+ * JoinWindowStore that holds the events themselves on the heap, in a
+ * WindowedHashMap.
+ */
+class HeapJoinWindowStore implements JoinWindowStore {
+  private WindowedHashMap<Object, EventWrapper, Long> mMap;
+
+  public HeapJoinWindowStore() {
+    mMap = new WindowedHashMap<Object, EventWrapper, Long>();
+  }
+
+  @Override
+  public void put(Object key, EventWrapper e, long timestamp) {
+    mMap.put(key, e, Long.valueOf(timestamp));
+  }
+
+  @Override
+  public List<EventWrapper> getRange(Object key, long lo, long hi,
+      boolean openLo, boolean openHi) {
+    return mMap.getRange(key, Long.valueOf(lo), Long.valueOf(hi), openLo, openHi);
+  }
+
+  @Override
+  public List<Pair<Long, EventWrapper>> get(Object key) {
+    return mMap.get(key);
+  }
+
+  @Override
+  public Collection<Object> keys() {
+    return mMap.keySet();
+  }
+
+  @Override
+  public int size() {
+    return mMap.size();
+  }
+
+  @Override
+  public void removeOlderThan(long time, Collection<Object> removedKeys) {
+    mMap.removeOlderThan(Long.valueOf(time), removedKeys);
+  }
+
+  @Override
+  public Long oldestTimestamp() {
+    return mMap.oldestTimestamp();
+  }
+
+  @Override
+  public void close() {
+    mMap.clear();
+  }
+}
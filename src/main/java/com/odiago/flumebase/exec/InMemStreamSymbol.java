@@ -113,7 +113,8 @@ public class InMemStreamSymbol extends StreamSymbol {
         long totalInterval = nextEvent.getTimestamp() - mPrevTimestamp;
         long curTime = System.currentTimeMillis();
         long consumedInterval = curTime - mPrevReturnTime;
-        long napTime = totalInterval - consumedInterval;
+        // An event older than its predecessor is returned immediately.
+        long napTime = Math.max(0, totalInterval - consumedInterval);
         LOG.info("NAP TIME: " + napTime);
         return napTime;
       } else {
@@ -0,0 +1,247 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.flume.core.Event;
+
+import com.cloudera.util.Pair;
+
+import com.odiago.flumebase.lang.TimeSpan;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.util.PairLeftComparator;
+import com.odiago.flumebase.util.ValueCodec;
+
+/**
+ * Checkpoints the window stores of a join, one entry per (input, join key).
+ * Each entry holds the timestamp, header and output field values of every
+ * event the input's store holds for the key.
+ */
+class JoinCheckpointer extends KeyedCheckpointer<Pair<Integer, Object>> {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      JoinCheckpointer.class.getName());
+
+  /** The window store of each input. */
+  private final JoinWindowStore [] mStores;
+
+  /** Fields of each input which are held in its store. */
+  private final List<List<TypedField>> mFields;
+
+  /** The windows of the join, which a restored checkpoint must match. */
+  private final byte [] mHeader;
+
+  /** For each input, a collection which marks the keys added to it as dirty. */
+  private final List<Collection<Object>> mDirtyKeyViews;
+
+  /**
+   * @param spans the window of each input; null for any input whose events
+   * are not joined over a window of their own.
+   */
+  public JoinCheckpointer(CheckpointStore store, JoinWindowStore [] stores,
+      List<List<TypedField>> fields, TimeSpan [] spans) throws IOException {
+    super(store);
+    mStores = stores;
+    mFields = fields;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(stores.length);
+    for (TimeSpan span : spans) {
+      if (null != span) {
+        out.writeLong(span.lo);
+        out.writeLong(span.hi);
+      }
+    }
+    out.close();
+    mHeader = bytes.toByteArray();
+
+    mDirtyKeyViews = new ArrayList<Collection<Object>>();
+    for (int i = 0; i < stores.length; i++) {
+      final Integer input = Integer.valueOf(i);
+      mDirtyKeyViews.add(new AbstractCollection<Object>() {
+        @Override
+        public boolean add(Object key) {
+          markDirty(new Pair<Integer, Object>(input, key));
+          return true;
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+          return Collections.emptyList().iterator();
+        }
+
+        @Override
+        public int size() {
+          return 0;
+        }
+      });
+    }
+  }
+
+  /**
+   * @return a collection which marks each key added to it as changed in the
+   * store of 'input'; e.g., to pass to JoinWindowStore.removeOlderThan().
+   */
+  public Collection<Object> getDirtyKeys(int input) {
+    return mDirtyKeyViews.get(input);
+  }
+
+  /** Note that the events held for 'key' by 'input' have changed. */
+  public void markDirty(int input, Object key) {
+    markDirty(new Pair<Integer, Object>(Integer.valueOf(input), key));
+  }
+
+  @Override
+  protected Collection<Pair<Integer, Object>> getKeys() throws IOException {
+    List<Pair<Integer, Object>> keys = new ArrayList<Pair<Integer, Object>>();
+    for (int i = 0; i < mStores.length; i++) {
+      Integer input = Integer.valueOf(i);
+      for (Object key : mStores[i].keys()) {
+        keys.add(new Pair<Integer, Object>(input, key));
+      }
+    }
+    return keys;
+  }
+
+  @Override
+  protected byte [] getHeader() {
+    return mHeader;
+  }
+
+  @Override
+  protected void writeEntry(Pair<Integer, Object> inputKey, Map<ByteBuffer, byte[]> entries)
+      throws IOException {
+    int input = inputKey.getLeft().intValue();
+    Object key = inputKey.getRight();
+    ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+    DataOutputStream keyOut = new DataOutputStream(keyBytes);
+    keyOut.writeInt(input);
+    ValueCodec.writeValue(keyOut, key);
+    keyOut.close();
+
+    byte [] value = null;
+    List<Pair<Long, EventWrapper>> timesAndVals = mStores[input].get(key);
+    if (null != timesAndVals) {
+      ByteArrayOutputStream valueBytes = new ByteArrayOutputStream();
+      DataOutputStream valueOut = new DataOutputStream(valueBytes);
+      valueOut.writeInt(timesAndVals.size());
+      for (Pair<Long, EventWrapper> timeAndVal : timesAndVals) {
+        EventWrapper wrapper = timeAndVal.getRight();
+        valueOut.writeLong(timeAndVal.getLeft());
+        CheckpointStore.writeEventHeader(valueOut, wrapper.getEvent());
+        for (TypedField field : mFields.get(input)) {
+          ValueCodec.writeValue(valueOut, wrapper.getField(field));
+        }
+      }
+      valueOut.close();
+      value = valueBytes.toByteArray();
+    }
+    entries.put(ByteBuffer.wrap(keyBytes.toByteArray()), value);
+  }
+
+  /**
+   * Open the checkpoint store, and insert the events held in its most
+   * recent checkpoint (if any) into the window stores, oldest first.
+   */
+  public void restore() throws IOException {
+    CheckpointStore store = getStore();
+    Map<ByteBuffer, byte[]> entries = store.open();
+    if (null == entries) {
+      return;
+    }
+
+    if (!Arrays.equals(store.getHeader(), mHeader)) {
+      LOG.warn("Join checkpoint does not match the current windows; ignoring it");
+      store.invalidate();
+      return;
+    }
+
+    // Gather the restored events of each input, so that they can be
+    // inserted into the window stores in timestamp order.
+    List<List<Pair<Long, Pair<Object, EventWrapper>>>> inputEvents =
+        new ArrayList<List<Pair<Long, Pair<Object, EventWrapper>>>>();
+    for (int i = 0; i < mStores.length; i++) {
+      inputEvents.add(new ArrayList<Pair<Long, Pair<Object, EventWrapper>>>());
+    }
+
+    for (Map.Entry<ByteBuffer, byte[]> entry : entries.entrySet()) {
+      DataInputStream keyIn = new DataInputStream(
+          new ByteArrayInputStream(entry.getKey().array()));
+      int input = keyIn.readInt();
+      Object key = ValueCodec.readValue(keyIn);
+      List<Pair<Long, Pair<Object, EventWrapper>>> events = inputEvents.get(input);
+
+      DataInputStream valueIn = new DataInputStream(
+          new ByteArrayInputStream(entry.getValue()));
+      int numEvents = valueIn.readInt();
+      for (int i = 0; i < numEvents; i++) {
+        Long timestamp = Long.valueOf(valueIn.readLong());
+        Event event = CheckpointStore.readEventHeader(valueIn);
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (TypedField field : mFields.get(input)) {
+          values.put(field.getAvroName(), ValueCodec.readValue(valueIn));
+        }
+        events.add(new Pair<Long, Pair<Object, EventWrapper>>(timestamp,
+            new Pair<Object, EventWrapper>(key, new RestoredEventWrapper(event, values))));
+      }
+    }
+
+    for (int i = 0; i < mStores.length; i++) {
+      List<Pair<Long, Pair<Object, EventWrapper>>> events = inputEvents.get(i);
+      Collections.sort(events, new PairLeftComparator<Long, Pair<Object, EventWrapper>>());
+      for (Pair<Long, Pair<Object, EventWrapper>> event : events) {
+        restoreEvent(i, event.getRight().getLeft(), event.getRight().getRight(),
+            event.getLeft().longValue());
+      }
+      LOG.info("Restored " + mStores[i].size() + " join keys of input " + i
+          + " from checkpoint");
+    }
+  }
+
+  /**
+   * Insert a restored event for 'key' at 'timestamp' into the window store
+   * of 'input'. Elements which index their events elsewhere as well extend
+   * this.
+   */
+  protected void restoreEvent(int input, Object key, EventWrapper e, long timestamp)
+      throws IOException {
+    mStores[input].put(key, e, timestamp);
+  }
+}
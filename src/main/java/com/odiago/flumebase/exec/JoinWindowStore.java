@@ -0,0 +1,70 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.cloudera.util.Pair;
+
+/**
+ * Holds the events of one input of a join element that are within the
+ * join window, indexed by join key and timestamp.
+ */
+interface JoinWindowStore {
+
+  /** Add an event for 'key' at 'timestamp'. */
+  void put(Object key, EventWrapper e, long timestamp) throws IOException;
+
+  /**
+   * @return the events held for 'key' whose timestamps are in the interval
+   * between lo and hi. Arguments specify whether each end of the interval
+   * is open or closed.
+   */
+  List<EventWrapper> getRange(Object key, long lo, long hi, boolean openLo, boolean openHi)
+      throws IOException;
+
+  /**
+   * @return the (timestamp, event) pairs held for 'key', or null if there
+   * are none.
+   */
+  List<Pair<Long, EventWrapper>> get(Object key) throws IOException;
+
+  /** @return the keys for which events are held. */
+  Collection<Object> keys() throws IOException;
+
+  /** @return the number of keys for which events are held. */
+  int size();
+
+  /**
+   * Remove all events whose timestamp is less than 'time'. If 'removedKeys'
+   * is non-null, each key which has had an event removed is added to it.
+   */
+  void removeOlderThan(long time, Collection<Object> removedKeys) throws IOException;
+
+  /**
+   * @return the timestamp of the oldest event held, or null if there are
+   * none. This may be an underestimate.
+   */
+  Long oldestTimestamp();
+
+  /** Release all resources held by the store. */
+  void close();
+}
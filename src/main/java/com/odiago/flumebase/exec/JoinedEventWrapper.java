@@ -0,0 +1,138 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.Map;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * EventWrapper over a combination of events matched by a join. Each field is
+ * read from whichever of the input events it belongs to.
+ *
+ * <p>A join element reuses a single instance of this class as a view over
+ * each candidate combination, so that predicates on the joined record can be
+ * evaluated without allocating anything; only a combination that is emitted
+ * is copied into an instance of its own.</p>
+ */
+public class JoinedEventWrapper extends EventWrapper {
+  /** Index of the left event of a two-way join in field bindings. */
+  static final int LEFT = 0;
+
+  /** Index of the right event of a two-way join in field bindings. */
+  static final int RIGHT = 1;
+
+  /** Maps the avro name of each field to the index of the input holding it. */
+  private final Map<String, Integer> mFieldBindings;
+
+  /** Name of the joined stream. */
+  private final String mStreamName;
+
+  /** The events being joined, indexed as in mFieldBindings. */
+  private final EventWrapper [] mInputs;
+
+  /** The event whose arrival produced this combination. */
+  private Event mEvent;
+
+  public JoinedEventWrapper(Map<String, Integer> fieldBindings, String streamName) {
+    this(fieldBindings, streamName, 2);
+  }
+
+  public JoinedEventWrapper(Map<String, Integer> fieldBindings, String streamName,
+      int numInputs) {
+    mFieldBindings = fieldBindings;
+    mStreamName = streamName;
+    mInputs = new EventWrapper[numInputs];
+  }
+
+  /**
+   * Set the pair of events viewed by this wrapper; 'event' is the newly
+   * arrived event which supplies the timestamp and other event metadata.
+   */
+  public void reset(EventWrapper left, EventWrapper right, Event event) {
+    mInputs[LEFT] = left;
+    mInputs[RIGHT] = right;
+    mEvent = event;
+  }
+
+  /** Set the event viewed for the input at 'index'. */
+  public void setInput(int index, EventWrapper input) {
+    mInputs[index] = input;
+  }
+
+  /** @return a new JoinedEventWrapper over the same events. */
+  public JoinedEventWrapper copy() {
+    JoinedEventWrapper out = new JoinedEventWrapper(mFieldBindings, mStreamName,
+        mInputs.length);
+    System.arraycopy(mInputs, 0, out.mInputs, 0, mInputs.length);
+    out.mEvent = mEvent;
+    return out;
+  }
+
+  @Override
+  public void reset(Event e) {
+    mEvent = e;
+  }
+
+  @Override
+  public Object getField(TypedField field) throws IOException {
+    Integer index = mFieldBindings.get(field.getAvroName());
+    assert null != index;
+    return mInputs[index.intValue()].getField(field);
+  }
+
+  @Override
+  public Event getEvent() {
+    return mEvent;
+  }
+
+  @Override
+  public String getAttr(String attrName) {
+    if (FlowElement.STREAM_NAME_ATTR.equals(attrName)) {
+      return mStreamName;
+    }
+
+    for (EventWrapper input : mInputs) {
+      String val = input.getAttr(attrName);
+      if (null != val) {
+        return val;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String getEventText() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("[");
+    for (int i = 0; i < mInputs.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append("{");
+      sb.append(mInputs[i].getEventText());
+      sb.append("}");
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+}
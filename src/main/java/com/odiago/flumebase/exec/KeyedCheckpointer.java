@@ -0,0 +1,124 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Submits the checkpoints of a FlowElement whose state is a set of entries,
+ * each identified by a key, to a CheckpointStore.
+ *
+ * <p>Tracks the keys whose entries have changed since the previous
+ * checkpoint, so that incremental checkpoints serialize only those. A full
+ * checkpoint is spread over as many calls to checkpoint() as it takes to
+ * serialize every entry, getMaxEntriesPerPart() at a time; keys that change
+ * in the meantime are serialized again in its last part. This bounds the
+ * work done by any one call in the element's thread.</p>
+ */
+abstract class KeyedCheckpointer<K> {
+  private final CheckpointStore mStore;
+
+  /** Keys whose entries have changed since they were last checkpointed. */
+  private final Set<K> mDirtyKeys;
+
+  /** Keys not yet serialized by the full checkpoint in progress; null if there is none. */
+  private Iterator<K> mFullRemaining;
+
+  public KeyedCheckpointer(CheckpointStore store) {
+    mStore = store;
+    mDirtyKeys = new HashSet<K>();
+  }
+
+  /** @return the store which checkpoints are submitted to. */
+  public CheckpointStore getStore() {
+    return mStore;
+  }
+
+  /** @return the key of each entry currently in the element's state. */
+  protected abstract Collection<K> getKeys() throws IOException;
+
+  /** @return the element-wide state to record with each checkpoint. */
+  protected abstract byte [] getHeader() throws IOException;
+
+  /**
+   * Serialize the entry for 'key' into 'entries', mapping its serialized key
+   * to null if the entry no longer exists.
+   */
+  protected abstract void writeEntry(K key, Map<ByteBuffer, byte[]> entries)
+      throws IOException;
+
+  /** Note that the entry for 'key' must be included in the next checkpoint. */
+  public void markDirty(K key) {
+    mDirtyKeys.add(key);
+  }
+
+  /** @return true if the next checkpoint, or part of one, should be submitted. */
+  public boolean isDue() {
+    return mStore.isDue();
+  }
+
+  /**
+   * Submit an incremental checkpoint, or the next part of a full checkpoint,
+   * to the store.
+   * @param finish if true, serialize all that remains of a full checkpoint
+   * in this call; e.g., because the element is closing.
+   */
+  public void checkpoint(boolean finish) throws IOException {
+    Map<ByteBuffer, byte[]> entries = new HashMap<ByteBuffer, byte[]>();
+    boolean first = mStore.needsFullCheckpoint();
+    if (first) {
+      // Start (or restart) a full checkpoint. Every key is serialized by
+      // one of its parts, so no earlier change need be tracked.
+      mFullRemaining = new ArrayList<K>(getKeys()).iterator();
+      mDirtyKeys.clear();
+    } else if (null == mFullRemaining) {
+      for (K key : mDirtyKeys) {
+        writeEntry(key, entries);
+      }
+      mStore.submit(getHeader(), entries, false);
+      mDirtyKeys.clear();
+      return;
+    }
+
+    int maxEntries = mStore.getMaxEntriesPerPart();
+    while (mFullRemaining.hasNext() && (finish || entries.size() < maxEntries)) {
+      writeEntry(mFullRemaining.next(), entries);
+    }
+
+    boolean last = !mFullRemaining.hasNext();
+    if (last) {
+      // Catch up with the entries that changed while the parts were submitted.
+      for (K key : mDirtyKeys) {
+        writeEntry(key, entries);
+      }
+      mDirtyKeys.clear();
+      mFullRemaining = null;
+    }
+    mStore.submitPart(getHeader(), entries, first, last);
+  }
+}
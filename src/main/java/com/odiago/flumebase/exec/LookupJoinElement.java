@@ -0,0 +1,126 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.LookupJoinNode;
+
+/**
+ * FlowElement that joins each event of its input stream with the rows of a
+ * reference table that share its key. The table is held in a hash index, so
+ * each event is joined with a single lookup, and no events are retained.
+ */
+public class LookupJoinElement extends FlowElementImpl {
+
+  /**
+   * Time in milliseconds between background checks of a table's file for
+   * changes; the table is read again when it has changed. If negative, the
+   * table is read only when the flow starts.
+   */
+  public static final String REFRESH_INTERVAL_KEY = "flumebase.table.refresh.interval";
+  public static final long DEFAULT_REFRESH_INTERVAL = 1000;
+
+  /** Index over the rows of the table. */
+  private final ReferenceTable mTable;
+
+  /** The key field of the input stream. */
+  private final TypedField mStreamKey;
+
+  /** Name of the output stream. */
+  private final String mOutName;
+
+  /** Reused view over each candidate pair of an event and a table row. */
+  private final JoinedEventWrapper mPairView;
+
+  /**
+   * Predicate which joined pairs must satisfy to be emitted; null if every
+   * pair is emitted.
+   */
+  private final Expr mPostJoinFilter;
+
+  public LookupJoinElement(FlowElementContext ctxt, LookupJoinNode joinNode,
+      TableSymbol table) {
+    super(ctxt);
+
+    mTable = new ReferenceTable(table, joinNode.getTableFields(), joinNode.getTableKey(),
+        joinNode.getConf(),
+        joinNode.getConf().getLong(REFRESH_INTERVAL_KEY, DEFAULT_REFRESH_INTERVAL));
+    mStreamKey = joinNode.getStreamKey();
+    mOutName = joinNode.getOutputName();
+    mPostJoinFilter = joinNode.getPostJoinFilter();
+
+    Map<String, Integer> fieldMap = new HashMap<String, Integer>();
+    for (TypedField f : joinNode.getStreamFields()) {
+      fieldMap.put(f.getAvroName(), JoinedEventWrapper.LEFT);
+    }
+    for (TypedField f : joinNode.getTableFields()) {
+      fieldMap.put(f.getAvroName(), JoinedEventWrapper.RIGHT);
+    }
+    mPairView = new JoinedEventWrapper(Collections.unmodifiableMap(fieldMap), mOutName);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void open() throws IOException, InterruptedException {
+    mTable.load();
+    mTable.startRefresh();
+    super.open();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException, InterruptedException {
+    mTable.stopRefresh();
+    super.close();
+  }
+
+  @Override
+  public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    Object key = e.getField(mStreamKey);
+    if (null == key) {
+      // The key field is null; this will not match to anything in an inner join.
+      return;
+    }
+
+    for (EventWrapper row : mTable.lookup(key)) {
+      mPairView.reset(e, row, e.getEvent());
+      if (null != mPostJoinFilter && !Boolean.TRUE.equals(mPostJoinFilter.eval(mPairView))) {
+        continue; // Rejected before the pair is materialized.
+      }
+      emit(mPairView.copy());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>Output events carry the timestamps of input events, so the input's
+   * watermark is passed on as that of the output stream.</p>
+   */
+  @Override
+  public void takeWatermark(Watermark w) throws IOException, InterruptedException {
+    emit(new Watermark(w.getTime(), mOutName));
+  }
+}
@@ -0,0 +1,502 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.flume.core.Event;
+
+import com.cloudera.util.Pair;
+
+import com.odiago.flumebase.lang.TimeSpan;
+
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.TypedField;
+import com.odiago.flumebase.parser.WindowSpec;
+
+import com.odiago.flumebase.plan.MultiWayJoinNode;
+import com.odiago.flumebase.plan.PlanNode;
+
+/**
+ * FlowElement that joins three or more input streams on equality of a
+ * single shared key.
+ *
+ * <p>The events of each input within the join window are held in a window
+ * store of their own. An arriving event is joined directly with the
+ * cross-product of the matching events of every other input, so no
+ * intermediate joined records are buffered.</p>
+ *
+ * <p>Windows have the meaning they have in the equivalent nested two-way
+ * joins: each input after the first joins with the combination of events
+ * of the inputs before it, over its own time interval relative to that
+ * combination's timestamp. A nested join gives its output the timestamp of
+ * the event that completed it; here, this is taken to be the latest of the
+ * combination's events. The two agree unless events arrive out of
+ * timestamp order.</p>
+ */
+public class MultiWayJoinElement extends FlowElementImpl {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      MultiWayJoinElement.class.getName());
+
+  /** Stores containing the enqueued events of each input within the window. */
+  private final JoinWindowStore [] mStores;
+
+  /** Names of the input streams. */
+  private final String [] mInputNames;
+
+  /** Key field of each input stream. */
+  private final TypedField [] mKeys;
+
+  /** Fields of each input stream which may appear in the output. */
+  private final List<List<TypedField>> mInputFields;
+
+  /**
+   * For each input, the time interval relative to the combination of events
+   * of the inputs before it over which its events join; null for the first
+   * input.
+   */
+  private final TimeSpan [] mTimeSpans;
+
+  /**
+   * For each input i, the most by which the latest event of a combination of
+   * inputs 0..i-1 may be raised by the events of inputs i onward.
+   */
+  private final long [] mMaxRaise;
+
+  /** The greatest difference between the timestamps of the events of a joined combination. */
+  private final long mMaxSpread;
+
+  /** Name of the output stream. */
+  private final String mOutName;
+
+  /** Reused view over each candidate combination of joined events. */
+  private JoinedEventWrapper mView;
+
+  /**
+   * For each input other than the one an event arrived on, the (timestamp,
+   * event) pairs held for the arriving event's key.
+   */
+  private final List<List<Pair<Long, EventWrapper>>> mCandidates;
+
+  /**
+   * Predicate which joined combinations must satisfy to be emitted; null if
+   * every combination is emitted.
+   */
+  private Expr mPostJoinFilter;
+
+  /** The amount of slack time we provide before we evict old elements. */
+  private int mSlackTime;
+
+  /** Idle timeout for each input, in milliseconds. */
+  private long mIdleTimeout;
+
+  /** Latest event timestamp received from each input. */
+  private final long [] mLatestTimes;
+
+  /** Latest watermark received from each input. */
+  private final long [] mWatermarks;
+
+  /** Local time at which each input last delivered anything. */
+  private final long [] mArrivalTimes;
+
+  /** Time of the last watermark we passed downstream. */
+  private long mOutputWatermark = Long.MIN_VALUE;
+
+  /**
+   * Set to true once a watermark arrives. From then on, window state is
+   * evicted according to watermarks rather than the slack time.
+   */
+  private boolean mIsWatermarkDriven;
+
+  /** Number of events that arrived behind their stream's watermark. */
+  private long mNumLateEvents;
+
+  /** Checkpoints our state to local disk; null if checkpointing is disabled. */
+  private JoinCheckpointer mCheckpointer;
+
+  public MultiWayJoinElement(FlowElementContext ctxt, MultiWayJoinNode joinNode) {
+    super(ctxt);
+
+    Configuration conf = joinNode.getConf();
+    mSlackTime = conf.getInt(BucketedAggregationElement.SLACK_INTERVAL_KEY,
+        BucketedAggregationElement.DEFAULT_SLACK_INTERVAL);
+    if (mSlackTime < 0) {
+      mSlackTime = BucketedAggregationElement.DEFAULT_SLACK_INTERVAL;
+    }
+    mIdleTimeout = conf.getLong(HashJoinElement.IDLE_TIMEOUT_KEY,
+        HashJoinElement.DEFAULT_IDLE_TIMEOUT);
+
+    mInputFields = joinNode.getInputFields();
+    int numInputs = mInputFields.size();
+    boolean offHeap = conf.getBoolean(HashJoinElement.OFF_HEAP_STATE_KEY,
+        HashJoinElement.DEFAULT_OFF_HEAP_STATE);
+
+    mStores = new JoinWindowStore[numInputs];
+    mInputNames = new String[numInputs];
+    mKeys = new TypedField[numInputs];
+    mTimeSpans = new TimeSpan[numInputs];
+    mCandidates = new ArrayList<List<Pair<Long, EventWrapper>>>();
+    mLatestTimes = new long[numInputs];
+    mWatermarks = new long[numInputs];
+    mArrivalTimes = new long[numInputs];
+    Map<String, Integer> fieldMap = new HashMap<String, Integer>();
+    for (int i = 0; i < numInputs; i++) {
+      if (offHeap) {
+        mStores[i] = new OffHeapJoinWindowStore(mInputFields.get(i), conf);
+      } else {
+        mStores[i] = new HeapJoinWindowStore();
+      }
+      mInputNames[i] = joinNode.getInputNames().get(i);
+      mKeys[i] = joinNode.getKeys().get(i);
+      if (i > 0) {
+        mTimeSpans[i] = evalTimeSpan(joinNode.getWindows().get(i));
+      }
+      mCandidates.add(null);
+      mLatestTimes[i] = Long.MIN_VALUE;
+      mWatermarks[i] = Long.MIN_VALUE;
+
+      for (TypedField f : mInputFields.get(i)) {
+        fieldMap.put(f.getAvroName(), Integer.valueOf(i));
+      }
+    }
+
+    // Each input's event may raise the latest timestamp of a combination by
+    // up to its interval's upper bound, or fall below the earliest by up to
+    // its lower bound.
+    mMaxRaise = new long[numInputs + 1];
+    long maxSpread = 0;
+    for (int i = numInputs - 1; i > 0; i--) {
+      mMaxRaise[i] = mMaxRaise[i + 1] + Math.max(0, mTimeSpans[i].hi);
+      maxSpread += Math.max(0, mTimeSpans[i].hi) + Math.max(0, -mTimeSpans[i].lo);
+    }
+    mMaxRaise[0] = mMaxRaise[1];
+    mMaxSpread = maxSpread;
+
+    mOutName = joinNode.getOutputName();
+    mView = new JoinedEventWrapper(Collections.unmodifiableMap(fieldMap), mOutName,
+        numInputs);
+    mPostJoinFilter = joinNode.getPostJoinFilter();
+
+    CheckpointStore checkpointStore = CheckpointStore.create(conf,
+        (String) joinNode.getAttr(PlanNode.CHECKPOINT_ID_ATTR));
+    if (null != checkpointStore) {
+      try {
+        mCheckpointer = new JoinCheckpointer(checkpointStore, mStores, mInputFields,
+            mTimeSpans);
+      } catch (IOException ioe) {
+        LOG.error("Could not initialize join checkpoints; disabling checkpoints: " + ioe);
+      }
+    }
+  }
+
+  private static TimeSpan evalTimeSpan(WindowSpec window) {
+    try {
+      assert window.getRangeSpec().isConstant();
+      TimeSpan span = (TimeSpan) window.getRangeSpec().eval(new EmptyEventWrapper());
+      assert span.isRelative;
+      return span;
+    } catch (IOException ioe) {
+      // This should be a constant expression, so this would be quite surprising.
+      LOG.error("Unexpected IOE during timespan eval() in MultiWayJoin: " + ioe);
+      return null;
+    }
+  }
+
+  /** @return the index of the input named 'streamName', or -1 if none is. */
+  private int getInputIndex(String streamName) {
+    for (int i = 0; i < mInputNames.length; i++) {
+      if (mInputNames[i].equals(streamName)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    Event event = e.getEvent();
+
+    String streamName = e.getAttr(STREAM_NAME_ATTR);
+    if (null == streamName) {
+      // We don't know which stream this came from. Don't process it.
+      LOG.warn("Got event with no " + STREAM_NAME_ATTR + " attribute!");
+      return;
+    }
+
+    int input = getInputIndex(streamName);
+    if (input < 0) {
+      LOG.warn("Got event with unexpected " + STREAM_NAME_ATTR + "=" + streamName);
+      return; // Don't know what to do with this.
+    }
+    mArrivalTimes[input] = System.currentTimeMillis();
+
+    Object key = e.getField(mKeys[input]);
+    if (null == key) {
+      // The key field is null; this will not match to anything in an inner join.
+      return;
+    }
+
+    long curTime = event.getTimestamp();
+    if (curTime < mWatermarks[input]) {
+      // Matches for this event on other inputs may already have been evicted.
+      mNumLateEvents++;
+    }
+    mLatestTimes[input] = Math.max(mLatestTimes[input], curTime);
+
+    mView.reset(event);
+    mView.setInput(input, e);
+    if (gatherCandidates(key, input)) {
+      emitCombinations(0, input, curTime, Long.MIN_VALUE);
+    }
+    for (int i = 0; i < mCandidates.size(); i++) {
+      mCandidates.set(i, null);
+    }
+
+    // Save the event for joining with other events that arrive in the future.
+    mStores[input].put(key, e, curTime);
+    if (null != mCheckpointer) {
+      mCheckpointer.markDirty(input, key);
+    }
+
+    if (!mIsWatermarkDriven) {
+      long [] bounds = new long[mStores.length];
+      for (int i = 0; i < bounds.length; i++) {
+        bounds[i] = mLatestTimes[i] == Long.MIN_VALUE
+            ? Long.MIN_VALUE : mLatestTimes[i] - mSlackTime;
+      }
+      evict(bounds);
+    }
+
+    if (null != mCheckpointer && mCheckpointer.isDue()) {
+      checkpoint(false);
+    }
+  }
+
+  /**
+   * Fill mCandidates with the events held for 'key' by every input other
+   * than 'arrived'.
+   * @return false if some input holds none, so no combination is complete.
+   */
+  private boolean gatherCandidates(Object key, int arrived) throws IOException {
+    for (int i = 0; i < mStores.length; i++) {
+      if (i == arrived) {
+        continue;
+      }
+
+      List<Pair<Long, EventWrapper>> held = mStores[i].get(key);
+      if (null == held) {
+        return false;
+      }
+      mCandidates.set(i, held);
+    }
+    return true;
+  }
+
+  /**
+   * @return true if an event of 'input' at 'time' joins with a combination
+   * of events of the inputs before it whose latest is at 'prefixTime'.
+   */
+  private boolean isInWindow(int input, long prefixTime, long time) {
+    TimeSpan span = mTimeSpans[input];
+    return time > prefixTime + span.lo && time <= prefixTime + span.hi;
+  }
+
+  /**
+   * Emit every combination of the events in mCandidates for inputs 'input'
+   * onward with those already set in mView, and the event of input
+   * 'arrived' at 'arrivedTime', in which each event is within the window of
+   * the events of the inputs before it.
+   * @param prefixTime the latest timestamp of the events set for the inputs
+   * before 'input'.
+   */
+  private void emitCombinations(int input, int arrived, long arrivedTime, long prefixTime)
+      throws IOException, InterruptedException {
+    if (input == mStores.length) {
+      if (null != mPostJoinFilter && !Boolean.TRUE.equals(mPostJoinFilter.eval(mView))) {
+        return; // Rejected before the combination is materialized.
+      }
+      emit(mView.copy());
+    } else if (input == arrived) {
+      if (input == 0 || isInWindow(input, prefixTime, arrivedTime)) {
+        emitCombinations(input + 1, arrived, arrivedTime, Math.max(prefixTime, arrivedTime));
+      }
+    } else {
+      for (Pair<Long, EventWrapper> candidate : mCandidates.get(input)) {
+        long time = candidate.getLeft().longValue();
+        if (input > 0 && !isInWindow(input, prefixTime, time)) {
+          continue;
+        }
+
+        long nextPrefixTime = Math.max(prefixTime, time);
+        if (input < arrived && !mayReachWindow(arrived, arrivedTime, input + 1,
+            nextPrefixTime)) {
+          continue;
+        }
+        mView.setInput(input, candidate.getRight());
+        emitCombinations(input + 1, arrived, arrivedTime, nextPrefixTime);
+      }
+    }
+  }
+
+  /**
+   * @return false if the event of 'arrived' at 'arrivedTime' cannot be within
+   * the window of any combination whose events of the inputs before 'input'
+   * have the latest timestamp 'prefixTime'.
+   */
+  private boolean mayReachWindow(int arrived, long arrivedTime, int input, long prefixTime) {
+    TimeSpan span = mTimeSpans[arrived];
+    // The inputs from 'input' to 'arrived' may only raise the latest timestamp.
+    long maxPrefixTime = prefixTime + (mMaxRaise[input] - mMaxRaise[arrived]);
+    return arrivedTime > prefixTime + span.lo && arrivedTime <= maxPrefixTime + span.hi;
+  }
+
+  /**
+   * Evict the window entries which cannot join with future events, given
+   * that no input 'i' will deliver events older than bounds[i].
+   */
+  private void evict(long [] bounds) throws IOException {
+    // The events of a joined combination are no more than mMaxSpread apart,
+    // so an event older than that before the earliest bound joins with no
+    // event yet to arrive.
+    long minBound = Long.MAX_VALUE;
+    for (long bound : bounds) {
+      minBound = Math.min(minBound, bound);
+    }
+    if (minBound == Long.MIN_VALUE) {
+      return;
+    }
+
+    for (int i = 0; i < mStores.length; i++) {
+      mStores[i].removeOlderThan(minBound - mMaxSpread,
+          null == mCheckpointer ? null : mCheckpointer.getDirtyKeys(i));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>Evicts the window entries that no future event can join with, then
+   * passes on the least of the inputs' watermarks. An input that has been
+   * idle for longer than the idle timeout is assumed to be no further
+   * behind than the most advanced active input.</p>
+   */
+  @Override
+  public void takeWatermark(Watermark w) throws IOException, InterruptedException {
+    int input = getInputIndex(w.getStreamName());
+    if (input < 0) {
+      LOG.warn("Got watermark for unexpected stream " + w.getStreamName());
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    mWatermarks[input] = Math.max(mWatermarks[input], w.getTime());
+    mArrivalTimes[input] = now;
+    mIsWatermarkDriven = true;
+
+    long [] bounds = mWatermarks.clone();
+    long activeBound = Long.MIN_VALUE;
+    for (int i = 0; i < bounds.length; i++) {
+      if (!HashJoinElement.isIdle(mIdleTimeout, mArrivalTimes[i], now)) {
+        activeBound = Math.max(activeBound, bounds[i]);
+      }
+    }
+    long outputWatermark = Long.MAX_VALUE;
+    for (int i = 0; i < bounds.length; i++) {
+      if (HashJoinElement.isIdle(mIdleTimeout, mArrivalTimes[i], now)) {
+        bounds[i] = Math.max(bounds[i], activeBound);
+      }
+      outputWatermark = Math.min(outputWatermark, bounds[i]);
+    }
+
+    evict(bounds);
+
+    // Output events carry the timestamp of the input event that produced them.
+    if (outputWatermark > mOutputWatermark) {
+      mOutputWatermark = outputWatermark;
+      emit(new Watermark(outputWatermark, mOutName));
+    }
+
+    if (null != mCheckpointer && mCheckpointer.isDue()) {
+      checkpoint(false);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void open() throws IOException, InterruptedException {
+    if (null != mCheckpointer) {
+      mCheckpointer.restore();
+    }
+
+    // Inputs are not considered idle until they have had a chance to start.
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < mArrivalTimes.length; i++) {
+      mArrivalTimes[i] = now;
+    }
+    super.open();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException, InterruptedException {
+    if (mNumLateEvents > 0) {
+      LOG.info("Join received " + mNumLateEvents + " events behind their stream's watermark");
+    }
+
+    if (null != mCheckpointer) {
+      mCheckpointer.getStore().awaitIdle();
+      checkpoint(true);
+      if (null != mCheckpointer) {
+        mCheckpointer.getStore().close();
+        mCheckpointer = null;
+      }
+    }
+
+    for (JoinWindowStore store : mStores) {
+      store.close();
+    }
+    super.close();
+  }
+
+  /**
+   * Submit the entries of the window stores that have changed since the
+   * previous checkpoint (or the next part of a full checkpoint) to the
+   * checkpoint store. If our state cannot be serialized, checkpointing is
+   * disabled.
+   * @param finish if true, complete any full checkpoint in progress.
+   */
+  private void checkpoint(boolean finish) throws InterruptedException {
+    try {
+      mCheckpointer.checkpoint(finish);
+    } catch (IOException ioe) {
+      LOG.error("Could not checkpoint join state; disabling checkpoints: " + ioe);
+      mCheckpointer.getStore().close();
+      mCheckpointer = null;
+    }
+  }
+}
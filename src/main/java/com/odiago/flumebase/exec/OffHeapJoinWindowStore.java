@@ -0,0 +1,558 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.cloudera.flume.core.Event;
+
+import com.cloudera.util.Pair;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.util.ValueCodec;
+
+/**
+ * JoinWindowStore that holds serialized events outside the Java heap.
+ *
+ * <p>Each event is serialized, with its join key, into a record appended
+ * to an arena of direct ByteBuffer segments. The records for each key form
+ * a chain, linked in arrival order, whose head and tail are held in an
+ * open-addressing hash table that is itself a direct ByteBuffer. A probe
+ * walks the chain for its key, reading only the timestamp of each record;
+ * an event is deserialized only when its timestamp falls in the probed
+ * range. Only the fields of the event that may appear in the join's output
+ * are stored.</p>
+ *
+ * <p>Records are evicted from the arena in arrival order, which is the
+ * order of each key's chain, so an evicted record is always the head of its
+ * chain. Eviction stops at the first record that is too new; a record which
+ * arrived out of order may therefore outlive its eviction time until the
+ * records before it are evicted, but it is no longer visible. A segment is
+ * recycled once every record in it has been evicted.</p>
+ */
+class OffHeapJoinWindowStore implements JoinWindowStore {
+
+  /** Size of each arena segment, in bytes. */
+  public static final String SEGMENT_SIZE_KEY = "flumebase.join.offheap.segment.size";
+  public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+  /** Number of empty segments kept for reuse rather than released. */
+  private static final int MAX_FREE_SEGMENTS = 4;
+
+  /** Initial number of slots in the key index; always a power of two. */
+  private static final int INITIAL_INDEX_SLOTS = 1024;
+
+  // Record layout: timestamp, address of the next record for the key,
+  // key hash, length of the serialized key, length of the serialized
+  // key and event; then the serialized key and event.
+  private static final int REC_TIMESTAMP = 0;
+  private static final int REC_NEXT = 8;
+  private static final int REC_HASH = 16;
+  private static final int REC_KEY_LEN = 20;
+  private static final int REC_LEN = 24;
+  private static final int REC_HEADER_LEN = 28;
+
+  // Index slot layout: key hash, number of records, addresses of the
+  // chain's head and tail records.
+  private static final int SLOT_HASH = 0;
+  private static final int SLOT_COUNT = 4;
+  private static final int SLOT_HEAD = 8;
+  private static final int SLOT_TAIL = 16;
+  private static final int SLOT_LEN = 24;
+
+  /** Address marking the end of a chain, or an empty index slot. */
+  private static final long NONE = -1L;
+
+  /** Head address of an index slot whose key has been removed. */
+  private static final long DELETED = -2L;
+
+  /** A segment of the arena. */
+  private static class Segment {
+    private final long mId;
+    private final ByteBuffer mBuf;
+
+    /** Number of bytes of mBuf holding records. */
+    private int mUsed;
+
+    public Segment(long id, ByteBuffer buf) {
+      mId = id;
+      mBuf = buf;
+    }
+  }
+
+  /** Fields of each event to store. */
+  private final List<TypedField> mFields;
+
+  private final int mSegmentSize;
+
+  /** Segments holding live records, oldest first. */
+  private List<Segment> mSegments;
+
+  /** Id to assign to the next segment allocated. */
+  private long mNextSegmentId;
+
+  /** Empty segment buffers available for reuse. */
+  private ArrayDeque<ByteBuffer> mFreeBuffers;
+
+  /** Offset in the first segment of the oldest record not yet evicted. */
+  private int mEvictOffset;
+
+  /** Records older than this have been removed, even if not yet evicted. */
+  private long mLowerBound = Long.MIN_VALUE;
+
+  /** Open-addressing hash table from key to its chain of records. */
+  private ByteBuffer mIndex;
+
+  /** Number of slots in mIndex; a power of two. */
+  private int mIndexSlots;
+
+  /** Number of slots in use by a key. */
+  private int mNumKeys;
+
+  /** Number of slots whose key has been removed. */
+  private int mNumDeleted;
+
+  /** Buffer into which keys and events are serialized. */
+  private ByteArrayOutputStream mBytes;
+  private DataOutputStream mOut;
+
+  public OffHeapJoinWindowStore(List<TypedField> fields, Configuration conf) {
+    mFields = fields;
+    mSegmentSize = Math.max(REC_HEADER_LEN,
+        conf.getInt(SEGMENT_SIZE_KEY, DEFAULT_SEGMENT_SIZE));
+    mSegments = new ArrayList<Segment>();
+    mFreeBuffers = new ArrayDeque<ByteBuffer>();
+    mIndexSlots = INITIAL_INDEX_SLOTS;
+    mIndex = newIndex(mIndexSlots);
+    mBytes = new ByteArrayOutputStream();
+    mOut = new DataOutputStream(mBytes);
+  }
+
+  private static ByteBuffer newIndex(int slots) {
+    ByteBuffer index = ByteBuffer.allocateDirect(slots * SLOT_LEN);
+    for (int i = 0; i < slots; i++) {
+      index.putLong(i * SLOT_LEN + SLOT_HEAD, NONE);
+    }
+    return index;
+  }
+
+  /** @return the segment holding the record at 'addr'. */
+  private Segment segmentFor(long addr) {
+    return mSegments.get((int) ((addr >>> 32) - mSegments.get(0).mId));
+  }
+
+  private static int offsetOf(long addr) {
+    return (int) addr;
+  }
+
+  private static long addressOf(Segment segment, int offset) {
+    return (segment.mId << 32) | offset;
+  }
+
+  /**
+   * Serialize 'key' into mBytes, leaving it in place.
+   * @return the hash of its serialized form.
+   */
+  private int serializeKey(Object key) throws IOException {
+    mBytes.reset();
+    ValueCodec.writeValue(mOut, key);
+    mOut.flush();
+    return hashBytes(mBytes.toByteArray(), mBytes.size());
+  }
+
+  private static int hashBytes(byte [] bytes, int len) {
+    int hash = 1;
+    for (int i = 0; i < len; i++) {
+      hash = 31 * hash + bytes[i];
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * @return true if the record at 'addr' has the serialized key 'keyBytes'.
+   */
+  private boolean keyEquals(long addr, byte [] keyBytes, int keyLen) {
+    Segment segment = segmentFor(addr);
+    int offset = offsetOf(addr);
+    if (segment.mBuf.getInt(offset + REC_KEY_LEN) != keyLen) {
+      return false;
+    }
+
+    int keyStart = offset + REC_HEADER_LEN;
+    for (int i = 0; i < keyLen; i++) {
+      if (segment.mBuf.get(keyStart + i) != keyBytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the index slot holding the key serialized as 'keyBytes', or -1
+   * if the key is not present.
+   */
+  private int findSlot(int hash, byte [] keyBytes, int keyLen) {
+    int mask = mIndexSlots - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      long head = mIndex.getLong(slot * SLOT_LEN + SLOT_HEAD);
+      if (head == NONE) {
+        return -1;
+      } else if (head != DELETED && mIndex.getInt(slot * SLOT_LEN + SLOT_HASH) == hash
+          && keyEquals(head, keyBytes, keyLen)) {
+        return slot;
+      }
+    }
+  }
+
+  /** @return the index slot whose chain begins with the record at 'addr'. */
+  private int findSlotByHead(int hash, long addr) {
+    int mask = mIndexSlots - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      long head = mIndex.getLong(slot * SLOT_LEN + SLOT_HEAD);
+      assert head != NONE;
+      if (head == addr) {
+        return slot;
+      }
+    }
+  }
+
+  /**
+   * Place a new chain in the index, in the first free slot for 'hash'.
+   */
+  private void insertSlot(ByteBuffer index, int slots, int hash, int count,
+      long head, long tail) {
+    int mask = slots - 1;
+    int slot = hash & mask;
+    while (index.getLong(slot * SLOT_LEN + SLOT_HEAD) >= 0) {
+      slot = (slot + 1) & mask;
+    }
+
+    if (index.getLong(slot * SLOT_LEN + SLOT_HEAD) == DELETED) {
+      mNumDeleted--;
+    }
+    index.putInt(slot * SLOT_LEN + SLOT_HASH, hash);
+    index.putInt(slot * SLOT_LEN + SLOT_COUNT, count);
+    index.putLong(slot * SLOT_LEN + SLOT_HEAD, head);
+    index.putLong(slot * SLOT_LEN + SLOT_TAIL, tail);
+  }
+
+  /**
+   * Rebuild the index without its deleted slots, doubling its size if it
+   * would otherwise remain more than a quarter full.
+   */
+  private void rehash() {
+    int slots = mIndexSlots;
+    if (mNumKeys * 4 >= slots) {
+      slots *= 2;
+    }
+
+    ByteBuffer index = newIndex(slots);
+    for (int i = 0; i < mIndexSlots; i++) {
+      long head = mIndex.getLong(i * SLOT_LEN + SLOT_HEAD);
+      if (head >= 0) {
+        insertSlot(index, slots, mIndex.getInt(i * SLOT_LEN + SLOT_HASH),
+            mIndex.getInt(i * SLOT_LEN + SLOT_COUNT), head,
+            mIndex.getLong(i * SLOT_LEN + SLOT_TAIL));
+      }
+    }
+
+    mIndex = index;
+    mIndexSlots = slots;
+    mNumDeleted = 0;
+  }
+
+  /**
+   * Append a record to the arena.
+   * @return its address.
+   */
+  private long append(long timestamp, int hash, int keyLen, byte [] data, int len) {
+    int recordLen = REC_HEADER_LEN + len;
+    Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+    if (null == segment || segment.mUsed + recordLen > segment.mBuf.capacity()) {
+      segment = newSegment(recordLen);
+    }
+
+    int offset = segment.mUsed;
+    ByteBuffer buf = segment.mBuf;
+    buf.putLong(offset + REC_TIMESTAMP, timestamp);
+    buf.putLong(offset + REC_NEXT, NONE);
+    buf.putInt(offset + REC_HASH, hash);
+    buf.putInt(offset + REC_KEY_LEN, keyLen);
+    buf.putInt(offset + REC_LEN, len);
+    ByteBuffer dup = buf.duplicate();
+    dup.position(offset + REC_HEADER_LEN);
+    dup.put(data, 0, len);
+    segment.mUsed += recordLen;
+    return addressOf(segment, offset);
+  }
+
+  /** Add a new segment with room for at least 'minLen' bytes to the arena. */
+  private Segment newSegment(int minLen) {
+    ByteBuffer buf;
+    if (minLen <= mSegmentSize && !mFreeBuffers.isEmpty()) {
+      buf = mFreeBuffers.pop();
+    } else {
+      buf = ByteBuffer.allocateDirect(Math.max(mSegmentSize, minLen));
+    }
+
+    Segment segment = new Segment(mNextSegmentId++, buf);
+    if (mSegments.isEmpty()) {
+      mEvictOffset = 0;
+    }
+    mSegments.add(segment);
+    return segment;
+  }
+
+  @Override
+  public void put(Object key, EventWrapper e, long timestamp) throws IOException {
+    int hash = serializeKey(key);
+    int keyLen = mBytes.size();
+    CheckpointStore.writeEventHeader(mOut, e.getEvent());
+    for (TypedField field : mFields) {
+      ValueCodec.writeValue(mOut, e.getField(field));
+    }
+    mOut.flush();
+    byte [] data = mBytes.toByteArray();
+
+    int slot = findSlot(hash, data, keyLen);
+    long addr = append(timestamp, hash, keyLen, data, data.length);
+    if (slot >= 0) {
+      // Link the record onto the tail of the key's chain.
+      long tail = mIndex.getLong(slot * SLOT_LEN + SLOT_TAIL);
+      segmentFor(tail).mBuf.putLong(offsetOf(tail) + REC_NEXT, addr);
+      mIndex.putLong(slot * SLOT_LEN + SLOT_TAIL, addr);
+      mIndex.putInt(slot * SLOT_LEN + SLOT_COUNT,
+          mIndex.getInt(slot * SLOT_LEN + SLOT_COUNT) + 1);
+    } else {
+      if ((mNumKeys + mNumDeleted + 1) * 2 > mIndexSlots) {
+        rehash();
+      }
+      insertSlot(mIndex, mIndexSlots, hash, 1, addr, addr);
+      mNumKeys++;
+    }
+  }
+
+  /** @return the timestamp of the record at 'addr'. */
+  private long timestampOf(long addr) {
+    return segmentFor(addr).mBuf.getLong(offsetOf(addr) + REC_TIMESTAMP);
+  }
+
+  /** @return the address of the record after 'addr' in its chain. */
+  private long nextOf(long addr) {
+    return segmentFor(addr).mBuf.getLong(offsetOf(addr) + REC_NEXT);
+  }
+
+  /** @return a DataInputStream over the serialized key and event of a record. */
+  private DataInputStream openRecord(long addr) {
+    ByteBuffer buf = segmentFor(addr).mBuf.duplicate();
+    int offset = offsetOf(addr);
+    byte [] data = new byte[buf.getInt(offset + REC_LEN)];
+    buf.position(offset + REC_HEADER_LEN);
+    buf.get(data);
+    return new DataInputStream(new ByteArrayInputStream(data));
+  }
+
+  /** Deserialize the event held in the record at 'addr'. */
+  private EventWrapper readEvent(long addr) throws IOException {
+    DataInputStream in = openRecord(addr);
+    ValueCodec.readValue(in); // Skip the key.
+    Event event = CheckpointStore.readEventHeader(in);
+    Map<String, Object> values = new HashMap<String, Object>();
+    for (TypedField field : mFields) {
+      values.put(field.getAvroName(), ValueCodec.readValue(in));
+    }
+    return new RestoredEventWrapper(event, values);
+  }
+
+  /** Deserialize the key held in the record at 'addr'. */
+  private Object readKey(long addr) throws IOException {
+    return ValueCodec.readValue(openRecord(addr));
+  }
+
+  /** @return the head of the chain for 'key', or NONE if there is none. */
+  private long chainFor(Object key) throws IOException {
+    int hash = serializeKey(key);
+    int slot = findSlot(hash, mBytes.toByteArray(), mBytes.size());
+    if (slot < 0) {
+      return NONE;
+    }
+    return mIndex.getLong(slot * SLOT_LEN + SLOT_HEAD);
+  }
+
+  @Override
+  public List<EventWrapper> getRange(Object key, long lo, long hi,
+      boolean openLo, boolean openHi) throws IOException {
+    List<EventWrapper> out = null;
+    for (long addr = chainFor(key); addr != NONE; addr = nextOf(addr)) {
+      long timestamp = timestampOf(addr);
+      if (timestamp < mLowerBound
+          || (openLo ? timestamp <= lo : timestamp < lo)
+          || (openHi ? timestamp >= hi : timestamp > hi)) {
+        continue;
+      }
+
+      if (null == out) {
+        out = new ArrayList<EventWrapper>();
+      }
+      out.add(readEvent(addr));
+    }
+
+    if (null == out) {
+      return Collections.emptyList();
+    }
+    return out;
+  }
+
+  @Override
+  public List<Pair<Long, EventWrapper>> get(Object key) throws IOException {
+    List<Pair<Long, EventWrapper>> out = null;
+    for (long addr = chainFor(key); addr != NONE; addr = nextOf(addr)) {
+      long timestamp = timestampOf(addr);
+      if (timestamp >= mLowerBound) {
+        if (null == out) {
+          out = new ArrayList<Pair<Long, EventWrapper>>();
+        }
+        out.add(new Pair<Long, EventWrapper>(timestamp, readEvent(addr)));
+      }
+    }
+    return out;
+  }
+
+  @Override
+  public Collection<Object> keys() throws IOException {
+    List<Object> out = new ArrayList<Object>(mNumKeys);
+    for (int i = 0; i < mIndexSlots; i++) {
+      long head = mIndex.getLong(i * SLOT_LEN + SLOT_HEAD);
+      if (head >= 0) {
+        out.add(readKey(head));
+      }
+    }
+    return out;
+  }
+
+  @Override
+  public int size() {
+    return mNumKeys;
+  }
+
+  /**
+   * Release segments at the head of the arena whose records have all been
+   * evicted.
+   * @return the address of the oldest record not yet evicted, or NONE.
+   */
+  private long firstRecord() {
+    while (!mSegments.isEmpty()) {
+      Segment segment = mSegments.get(0);
+      if (mEvictOffset < segment.mUsed) {
+        return addressOf(segment, mEvictOffset);
+      } else if (mSegments.size() == 1) {
+        // Every record has been evicted; reuse the segment from its start.
+        segment.mUsed = 0;
+        mEvictOffset = 0;
+        return NONE;
+      }
+
+      mSegments.remove(0);
+      mEvictOffset = 0;
+      if (segment.mBuf.capacity() == mSegmentSize && mFreeBuffers.size() < MAX_FREE_SEGMENTS) {
+        mFreeBuffers.push(segment.mBuf);
+      }
+    }
+    return NONE;
+  }
+
+  @Override
+  public void removeOlderThan(long time, Collection<Object> removedKeys) throws IOException {
+    mLowerBound = Math.max(mLowerBound, time);
+    for (long addr = firstRecord(); addr != NONE && timestampOf(addr) < mLowerBound;
+        addr = firstRecord()) {
+      // This is the oldest record in the arena, and so the head of its chain.
+      ByteBuffer buf = segmentFor(addr).mBuf;
+      int offset = offsetOf(addr);
+      int slot = findSlotByHead(buf.getInt(offset + REC_HASH), addr);
+      int count = mIndex.getInt(slot * SLOT_LEN + SLOT_COUNT) - 1;
+      if (null != removedKeys) {
+        removedKeys.add(readKey(addr));
+      }
+
+      if (count == 0) {
+        mIndex.putLong(slot * SLOT_LEN + SLOT_HEAD, DELETED);
+        mNumKeys--;
+        mNumDeleted++;
+      } else {
+        mIndex.putInt(slot * SLOT_LEN + SLOT_COUNT, count);
+        mIndex.putLong(slot * SLOT_LEN + SLOT_HEAD, buf.getLong(offset + REC_NEXT));
+      }
+
+      mEvictOffset += REC_HEADER_LEN + buf.getInt(offset + REC_LEN);
+    }
+  }
+
+  @Override
+  public Long oldestTimestamp() {
+    long addr = firstRecord();
+    if (addr == NONE) {
+      return null;
+    }
+
+    // Records are in arrival order; the oldest may have been removed but
+    // not yet evicted, in which case the lower bound is a safe estimate.
+    return Math.max(timestampOf(addr), mLowerBound);
+  }
+
+  @Override
+  public void close() {
+    // Drop our references to the direct buffers; their memory is released
+    // when they are collected.
+    mSegments.clear();
+    mFreeBuffers.clear();
+    mIndex = newIndex(INITIAL_INDEX_SLOTS);
+    mIndexSlots = INITIAL_INDEX_SLOTS;
+    mNumKeys = 0;
+    mNumDeleted = 0;
+  }
+
+  /** @return the number of bytes of direct memory held by the store. */
+  long getAllocatedBytes() {
+    long bytes = mIndex.capacity();
+    for (Segment segment : mSegments) {
+      bytes += segment.mBuf.capacity();
+    }
+    for (ByteBuffer buf : mFreeBuffers) {
+      bytes += buf.capacity();
+    }
+    return bytes;
+  }
+}
@@ -304,6 +304,10 @@ public class OutputElement extends FlowElementImpl {
 
   @Override
   public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    if (isClosed()) {
+      return; // The flow failed; see LocalEnvironment.
+    }
+
     LocalContext context = (LocalContext) getContext();
     List<UserSession> subscribers = new LinkedList<UserSession>(
         context.getFlowData().getSubscribers());
@@ -20,6 +20,7 @@ package com.odiago.flumebase.exec;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -54,6 +55,18 @@ public class ParsingEventWrapper extends EventWrapperImpl {
     mFieldNames = new ArrayList<String>(fieldNames);
   }
 
+  /**
+   * Create a wrapper whose parser may skip all but 'requiredColumns' of
+   * each event; see EventParser.setRequiredColumns().
+   */
+  public ParsingEventWrapper(EventParser parser, List<String> fieldNames,
+      BitSet requiredColumns) {
+    this(parser, fieldNames);
+    if (null != requiredColumns) {
+      mParser.setRequiredColumns(requiredColumns);
+    }
+  }
+
   @Override
   public void reset(Event e) {
     mEvent = e;
@@ -0,0 +1,80 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.cloudera.util.Pair;
+
+import com.odiago.flumebase.parser.AliasedExpr;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.AggregateNode;
+
+/**
+ * Serializes the PartialAggregateEvents computed for an aggregation, so that
+ * they may be completed in another process. The reader and writer must be
+ * created for aggregations planned from the same query.
+ */
+public class PartialAggregateCodec {
+  private final List<AliasedExpr> mAggregateExprs;
+  private final GroupKeyFactory mKeyFactory;
+
+  public PartialAggregateCodec(AggregateNode aggregateNode) {
+    List<TypedField> groupByFields = aggregateNode.getGroupByFields();
+    if (null == groupByFields) {
+      groupByFields = Collections.emptyList();
+    }
+    mAggregateExprs = aggregateNode.getAggregateExprs();
+    mKeyFactory = new GroupKeyFactory(groupByFields, aggregateNode.getPropagateFields());
+  }
+
+  /**
+   * Write 'e', which must be a PartialAggregateEvent; it is read back by
+   * read().
+   */
+  public void write(EventWrapper e, DataOutput out) throws IOException {
+    if (!(e instanceof PartialAggregateEvent)) {
+      throw new IOException("Expected a partial aggregate, not: " + e.getEventText());
+    }
+
+    PartialAggregateEvent partial = (PartialAggregateEvent) e;
+    partial.getGroup().write(out);
+    GroupSpillStore.writeBuckets(mAggregateExprs, Collections.singletonList(
+        new Pair<Long, List<Bucket<Object>>>(Long.valueOf(partial.getBucketTime()),
+        partial.getBuckets())), out);
+  }
+
+  /** @return a partial aggregate written by write(). */
+  public PartialAggregateEvent read(DataInput in) throws IOException {
+    GroupKey group = mKeyFactory.readKey(in);
+    List<Pair<Long, List<Bucket<Object>>>> bucketsByTime =
+        GroupSpillStore.readBuckets(mAggregateExprs, in);
+    if (bucketsByTime.size() != 1) {
+      throw new IOException("Expected a single bucket time in partial aggregate");
+    }
+    Pair<Long, List<Bucket<Object>>> timedBuckets = bucketsByTime.get(0);
+    return new PartialAggregateEvent(timedBuckets.getLeft().longValue(), group,
+        timedBuckets.getRight(), mKeyFactory);
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.List;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * Carries the partial aggregates of one group over one bucket of time,
+ * computed by a CombinerElement, to the aggregator which completes them.
+ *
+ * <p>The grouping and propagated fields of the group may be read with
+ * getField(), so that the event can be routed like those it summarizes.</p>
+ */
+public class PartialAggregateEvent extends EmptyEventWrapper {
+  /** Timestamp of the bucket the aggregates cover. */
+  private final long mBucketTime;
+
+  private final GroupKey mGroup;
+
+  /** One bucket of partial state per aggregate function. */
+  private final List<Bucket<Object>> mBuckets;
+
+  /** Positions of the fields held by mGroup. */
+  private final GroupKeyFactory mKeyFactory;
+
+  PartialAggregateEvent(long bucketTime, GroupKey group, List<Bucket<Object>> buckets,
+      GroupKeyFactory keyFactory) {
+    mBucketTime = bucketTime;
+    mGroup = group;
+    mBuckets = buckets;
+    mKeyFactory = keyFactory;
+    reset(group.getEvent());
+  }
+
+  long getBucketTime() {
+    return mBucketTime;
+  }
+
+  GroupKey getGroup() {
+    return mGroup;
+  }
+
+  List<Bucket<Object>> getBuckets() {
+    return mBuckets;
+  }
+
+  @Override
+  public Object getField(TypedField field) throws IOException {
+    int pos = mKeyFactory.getFieldPos(field);
+    if (pos < 0) {
+      throw new IOException("Partial aggregate does not hold field: " + field);
+    }
+    return mGroup.getValue(pos);
+  }
+
+  @Override
+  public String getEventText() {
+    return "(partial aggregate of " + mGroup + " at " + mBucketTime + ")";
+  }
+}
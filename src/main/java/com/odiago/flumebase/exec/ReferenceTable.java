@@ -0,0 +1,256 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * In-memory hash index over the rows of a reference table's file, keyed by
+ * one of its columns. Once started, a background thread checks the file at
+ * a given interval, and reads it again when its modification time or length
+ * changes; lookups never wait on the file system.
+ */
+class ReferenceTable {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      ReferenceTable.class.getName());
+
+  /** The table whose rows are indexed. */
+  private final TableSymbol mTable;
+
+  /** Columns of the table, in file order, with their avro names. */
+  private final List<TypedField> mFields;
+
+  /** Avro names of the columns, in the same order as mFields. */
+  private final List<String> mFieldNames;
+
+  /** The column the rows are indexed on. */
+  private final TypedField mKeyField;
+
+  /** Configuration of the flow reading the table. */
+  private final Configuration mConf;
+
+  /**
+   * Time between checks of the file for changes, in milliseconds; if
+   * negative, the file is never checked.
+   */
+  private final long mRefreshInterval;
+
+  /** Rows of the table, keyed by the value of mKeyField. */
+  private volatile Map<Object, List<EventWrapper>> mRows =
+      Collections.<Object, List<EventWrapper>>emptyMap();
+
+  /** Modification time of the file when it was last read. */
+  private long mModificationTime;
+
+  /** Length of the file when it was last read. */
+  private long mLength;
+
+  /** Thread checking the file for changes; null if not started. */
+  private RefreshThread mRefreshThread;
+
+  public ReferenceTable(TableSymbol table, List<TypedField> fields, TypedField keyField,
+      Configuration conf, long refreshInterval) {
+    mTable = table;
+    mFields = fields;
+    mFieldNames = new ArrayList<String>();
+    for (TypedField field : fields) {
+      mFieldNames.add(field.getAvroName());
+    }
+    mKeyField = keyField;
+    mConf = conf;
+    mRefreshInterval = refreshInterval;
+  }
+
+  private FileSystem getFileSystem() throws IOException {
+    if (mTable.isLocal()) {
+      return FileSystem.getLocal(mConf);
+    } else {
+      return FileSystem.get(mConf);
+    }
+  }
+
+  /**
+   * String values may be parsed as any CharSequence; index and hold them as
+   * Strings, so that they compare equal to each other.
+   */
+  static Object normalize(Object value) {
+    if (value instanceof CharSequence) {
+      return value.toString();
+    }
+    return value;
+  }
+
+  /**
+   * Read the file and replace the indexed rows with its contents. Rows
+   * whose key is null can never be matched, and are not indexed.
+   */
+  public void load() throws IOException {
+    FileSystem fs = getFileSystem();
+    Path path = new Path(mTable.getSource());
+    FileStatus status = fs.getFileStatus(path);
+
+    Map<Object, List<EventWrapper>> rows = new HashMap<Object, List<EventWrapper>>();
+    ParsingEventWrapper parsedRow = new ParsingEventWrapper(mTable.getEventParser(),
+        mFieldNames);
+    int numRows = 0;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path)));
+    try {
+      String line = reader.readLine();
+      while (null != line) {
+        Event event = new EventImpl(line.getBytes(), 0, Event.Priority.INFO, 0, "localhost");
+        parsedRow.reset(event);
+        Object key = normalize(parsedRow.getField(mKeyField));
+        if (null != key) {
+          Map<String, Object> values = new HashMap<String, Object>();
+          for (TypedField field : mFields) {
+            values.put(field.getAvroName(), normalize(parsedRow.getField(field)));
+          }
+
+          List<EventWrapper> keyRows = rows.get(key);
+          if (null == keyRows) {
+            keyRows = new ArrayList<EventWrapper>(1);
+            rows.put(key, keyRows);
+          }
+          keyRows.add(new RestoredEventWrapper(event, values));
+          numRows++;
+        }
+        line = reader.readLine();
+      }
+    } finally {
+      reader.close();
+    }
+
+    mRows = rows;
+    mModificationTime = status.getModificationTime();
+    mLength = status.getLen();
+    LOG.info("Loaded " + numRows + " rows of table " + mTable.getName());
+  }
+
+  /**
+   * Start checking the file for changes in the background, if the refresh
+   * interval allows it. Called after load().
+   */
+  public void startRefresh() {
+    if (mRefreshInterval < 0 || null != mRefreshThread) {
+      return;
+    }
+
+    mRefreshThread = new RefreshThread();
+    mRefreshThread.start();
+  }
+
+  /** Stop checking the file for changes, and wait for the check in progress. */
+  public void stopRefresh() throws InterruptedException {
+    if (null == mRefreshThread) {
+      return;
+    }
+
+    mRefreshThread.finish();
+    mRefreshThread.join();
+    mRefreshThread = null;
+  }
+
+  /**
+   * Read the file again if it has changed since it was read. If it cannot
+   * be read, the rows read previously are kept.
+   */
+  private void refreshIfChanged() {
+    try {
+      FileStatus status = getFileSystem().getFileStatus(new Path(mTable.getSource()));
+      if (status.getModificationTime() != mModificationTime || status.getLen() != mLength) {
+        load();
+      }
+    } catch (IOException ioe) {
+      LOG.warn("Could not refresh table " + mTable.getName() + ": " + ioe);
+    }
+  }
+
+  /**
+   * @return the rows whose key column is equal to 'key'; the empty list if
+   * there are none.
+   */
+  public List<EventWrapper> lookup(Object key) {
+    List<EventWrapper> rows = mRows.get(normalize(key));
+    if (null == rows) {
+      return Collections.emptyList();
+    }
+    return rows;
+  }
+
+  /** @return the number of distinct keys indexed. */
+  public int size() {
+    return mRows.size();
+  }
+
+  /** Thread which checks the file for changes at the refresh interval. */
+  private class RefreshThread extends Thread {
+    private boolean mIsFinished;
+
+    public RefreshThread() {
+      super("TableRefresh-" + mTable.getName());
+      setDaemon(true);
+    }
+
+    public synchronized void finish() {
+      mIsFinished = true;
+      notifyAll();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          synchronized (this) {
+            if (!mIsFinished) {
+              wait(Math.max(1, mRefreshInterval));
+            }
+            if (mIsFinished) {
+              return;
+            }
+          }
+
+          refreshIfChanged();
+        }
+      } catch (InterruptedException ie) {
+        LOG.warn("Refresh of table " + mTable.getName() + " interrupted");
+      }
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.util.Map;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * EventWrapper over an event restored from a checkpoint or from off-heap
+ * join window storage, or over a row of a reference table. Rather than an
+ * encoded event body, this holds the values of the fields that may be
+ * accessed, keyed by their avro names.
+ */
+class RestoredEventWrapper extends EventWrapperImpl {
+  private Event mEvent;
+  private final Map<String, Object> mValues;
+
+  public RestoredEventWrapper(Event event, Map<String, Object> values) {
+    mEvent = event;
+    mValues = values;
+  }
+
+  @Override
+  public void reset(Event e) {
+    mEvent = e;
+  }
+
+  @Override
+  public Object getField(TypedField field) {
+    return mValues.get(field.getAvroName());
+  }
+
+  @Override
+  public Event getEvent() {
+    return mEvent;
+  }
+
+  @Override
+  public String getEventText() {
+    return mValues.toString();
+  }
+}
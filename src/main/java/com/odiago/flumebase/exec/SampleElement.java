@@ -0,0 +1,51 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.Random;
+
+/**
+ * FlowElement that advances each event with a fixed probability, so that
+ * a uniform random sample of its input is passed downstream.
+ */
+public class SampleElement extends FlowElementImpl {
+  /** Percentage of events to advance. */
+  private int mPercent;
+
+  private Random mRandom;
+
+  public SampleElement(FlowElementContext ctxt, int percent) {
+    super(ctxt);
+    mPercent = percent;
+    mRandom = new Random();
+  }
+
+  @Override
+  public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    if (mRandom.nextInt(100) < mPercent) {
+      emit(e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Sample[percent=" + mPercent + "]";
+  }
+}
@@ -0,0 +1,661 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.avro.Schema;
+
+import org.apache.avro.generic.GenericData;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.util.Pair;
+
+import com.odiago.flumebase.lang.AggregateFunc;
+import com.odiago.flumebase.lang.TimeSpan;
+
+import com.odiago.flumebase.parser.AliasedExpr;
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.FnCallExpr;
+import com.odiago.flumebase.parser.TypedField;
+import com.odiago.flumebase.parser.WindowSpec;
+
+import com.odiago.flumebase.plan.AggregateNode;
+import com.odiago.flumebase.plan.PlanNode;
+
+/**
+ * Perform aggregation functions over SESSION windows: per-group windows
+ * that stay open for as long as events keep arriving within the gap
+ * interval of one another.
+ *
+ * <p>Each group holds its open sessions in a TreeMap keyed by start time,
+ * so the sessions an event may extend are found with a floor/higher probe
+ * in O(log n). An event that falls within the gap of two sessions merges
+ * them. A session is closed and emitted once the low-water mark (the newest
+ * event time seen, less the slack interval) passes its end by more than the
+ * gap; the eviction thread advances the low-water mark on an idle stream.</p>
+ *
+ * <p>If checkpointing is enabled, the open sessions of each group are
+ * checkpointed as a separate entry.</p>
+ */
+public class SessionAggregationElement extends WindowedAggregationElement {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      SessionAggregationElement.class.getName());
+
+  /**
+   * Configuration key for the number of steps into which the session gap is
+   * divided when scheduling timeout wake-up calls. This reuses the bucket count
+   * setting of range windows.
+   */
+  private static final String NUM_BUCKETS_KEY = "flumebase.aggregation.buckets";
+  private static final int DEFAULT_NUM_BUCKETS = 100;
+
+  /** The inactivity interval, in milliseconds, after which a session closes. */
+  private final long mGap;
+
+  /** Granularity (in ms of event time) with which we enqueue timeout wake-up calls. */
+  private final long mWakeupQuantum;
+
+  /** The maximum lateness (specified in milliseconds) we will tolerate for an event. */
+  private final long mSlackTime;
+
+  private final List<TypedField> mGroupByFields;
+
+  /**
+   * The set of aliased expressions describing the aggregation functions to run
+   * over records we receive, and what alias to assign to their outputs.
+   */
+  private final List<AliasedExpr> mAggregateExprs;
+
+  /**
+   * Argument values of each aggregate call. The FnCallExprs are shared with
+   * other elements running in other threads, so this element keeps its own.
+   */
+  private final Object[][] mAggregateArgs;
+
+  private final List<TypedField> mPropagateFields;
+
+  /** Extracts the grouping and propagated fields of each event into a GroupKey. */
+  private final GroupKeyFactory mKeyFactory;
+
+  /** Position of each of mPropagateFields within the GroupKeys we create. */
+  private final int [] mPropagatePositions;
+
+  /** Factor applied to count and sum results when aggregating a sampled stream. */
+  private final double mSampleScale;
+
+  /** Open sessions for each group, keyed by session start time. */
+  private Map<GroupKey, TreeMap<Long, Session>> mSessionsByGroup;
+
+  /** All open sessions, ordered by their end time. */
+  private TreeSet<Session> mSessionsByEnd;
+
+  /** Id to assign to the next session created; breaks ties in mSessionsByEnd. */
+  private long mNextSessionId = 0;
+
+  /** Timestamp of the newest event received. */
+  private long mHeadTime = Long.MIN_VALUE;
+
+  /**
+   * Low-water mark: we do not expect (and will drop) any events older than this.
+   * Sessions whose end is more than mGap before this time are complete.
+   */
+  private long mWatermark = Long.MIN_VALUE;
+
+  /** Number of events dropped because they arrived behind the watermark. */
+  private long mNumLateEvents;
+
+  /** Event-time quantum of the most recent wakeup call enqueued. */
+  private long mLastEnqueuedWakeup = Long.MIN_VALUE;
+
+  /** Checkpoints our state to local disk; null if checkpointing is disabled. */
+  private KeyedCheckpointer<GroupKey> mCheckpointer;
+
+  /**
+   * A single open session for a group. Holds one list of Bucket objects (one
+   * per aggregate function) for each of the sessions that were merged to
+   * form this one.
+   */
+  private static class Session {
+    private final long mId;
+    private final GroupKey mGroup;
+    private long mStart;
+    private long mEnd;
+    private final List<List<Bucket<Object>>> mBucketSets;
+
+    public Session(long id, GroupKey group, long time, int numAggregates) {
+      mId = id;
+      mGroup = group;
+      mStart = time;
+      mEnd = time;
+      mBucketSets = new ArrayList<List<Bucket<Object>>>();
+      List<Bucket<Object>> buckets = new ArrayList<Bucket<Object>>(numAggregates);
+      for (int i = 0; i < numAggregates; i++) {
+        buckets.add(new Bucket<Object>());
+      }
+      mBucketSets.add(buckets);
+    }
+
+    /** @return the buckets that new events are inserted into. */
+    public List<Bucket<Object>> getInsertBuckets() {
+      return mBucketSets.get(0);
+    }
+
+    /** @return all the buckets holding state for the specified aggregate function. */
+    public List<Bucket<Object>> getBucketsForFunction(int functionId) {
+      List<Bucket<Object>> out = new ArrayList<Bucket<Object>>(mBucketSets.size());
+      for (List<Bucket<Object>> buckets : mBucketSets) {
+        out.add(buckets.get(functionId));
+      }
+      return out;
+    }
+  }
+
+  /** Orders sessions by end time, then by id. */
+  private static class SessionEndComparator implements Comparator<Session> {
+    public int compare(Session s1, Session s2) {
+      if (s1.mEnd < s2.mEnd) {
+        return -1;
+      } else if (s1.mEnd > s2.mEnd) {
+        return 1;
+      } else if (s1.mId < s2.mId) {
+        return -1;
+      } else if (s1.mId > s2.mId) {
+        return 1;
+      } else {
+        return 0;
+      }
+    }
+  }
+
+  public SessionAggregationElement(FlowElementContext ctxt, AggregateNode aggregateNode) {
+    super(ctxt, (Schema) aggregateNode.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR));
+
+    Configuration conf = aggregateNode.getConf();
+    assert null != conf;
+    int numBuckets = conf.getInt(NUM_BUCKETS_KEY, DEFAULT_NUM_BUCKETS);
+    int slackTime = conf.getInt(BucketedAggregationElement.SLACK_INTERVAL_KEY,
+        BucketedAggregationElement.DEFAULT_SLACK_INTERVAL);
+    if (slackTime < 0) {
+      mSlackTime = BucketedAggregationElement.DEFAULT_SLACK_INTERVAL;
+    } else {
+      mSlackTime = slackTime;
+    }
+
+    List<TypedField> groupByFields = aggregateNode.getGroupByFields();
+    if (null == groupByFields) {
+      mGroupByFields = Collections.emptyList();
+    } else {
+      mGroupByFields = groupByFields;
+    }
+
+    mAggregateExprs = aggregateNode.getAggregateExprs();
+    assert mAggregateExprs != null;
+
+    mAggregateArgs = FnCallExpr.newArgumentArrays(mAggregateExprs);
+    mPropagateFields = aggregateNode.getPropagateFields();
+    mKeyFactory = new GroupKeyFactory(mGroupByFields, mPropagateFields);
+    mPropagatePositions = mKeyFactory.getFieldPositions(mPropagateFields);
+    mSampleScale = aggregateNode.getSampleScale();
+
+    Expr windowExpr = aggregateNode.getWindowExpr();
+    assert windowExpr.isConstant();
+    try {
+      WindowSpec windowSpec = (WindowSpec) windowExpr.eval(new EmptyEventWrapper());
+      assert windowSpec.isSessionWindow();
+      assert windowSpec.getRangeSpec().isConstant();
+      TimeSpan gapSpan = (TimeSpan) windowSpec.getRangeSpec().eval(new EmptyEventWrapper());
+      mGap = gapSpan.getWidth();
+    } catch (IOException ioe) {
+      // The only way this can be thrown is if the window expr isn't actually constant.
+      LOG.error("Got IOException when calculating session gap: " + ioe);
+      throw new RuntimeException(ioe);
+    }
+
+    mWakeupQuantum = Math.max(1, mGap / Math.max(1, numBuckets));
+    mSessionsByGroup = new HashMap<GroupKey, TreeMap<Long, Session>>();
+    mSessionsByEnd = new TreeSet<Session>(new SessionEndComparator());
+
+    CheckpointStore checkpointStore = CheckpointStore.create(conf,
+        (String) aggregateNode.getAttr(PlanNode.CHECKPOINT_ID_ATTR));
+    if (null != checkpointStore) {
+      mCheckpointer = new SessionCheckpointer(checkpointStore);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void open() throws IOException, InterruptedException {
+    if (null != mCheckpointer) {
+      restoreCheckpoint();
+    }
+    super.open();
+
+    // Close the restored sessions if no event arrives to do so.
+    for (Session session : mSessionsByEnd) {
+      enqueueWakeup(session.mEnd);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>Records our state once the open sessions have been emitted, so that a
+   * restarted flow does not emit them again.</p>
+   */
+  @Override
+  protected void windowsClosed() throws IOException, InterruptedException {
+    if (null != mCheckpointer) {
+      CheckpointStore store = mCheckpointer.getStore();
+      store.awaitIdle();
+      checkpoint(true);
+      if (null != mCheckpointer) {
+        store.close();
+        mCheckpointer = null;
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected long getMaxPendingWakeups() {
+    // Pending wake-ups are for quanta within (mWatermark - mGap, head]; plus the
+    // newly-opening quantum and the currently-closing one.
+    return 4 + ((mSlackTime + mGap) / mWakeupQuantum);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void closeAllWindows(FlowElementContext context)
+      throws IOException, InterruptedException {
+    LOG.debug("Immediately closing all " + mSessionsByEnd.size() + " sessions");
+    if (mNumLateEvents > 0) {
+      LOG.info("Session aggregator dropped " + mNumLateEvents + " late events");
+    }
+    while (!mSessionsByEnd.isEmpty()) {
+      closeSession(mSessionsByEnd.first(), context);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void handleTimeout(long windowTime, FlowElementContext context)
+      throws IOException, InterruptedException {
+    if (isWatermarkDriven()) {
+      // Sessions close when the watermark passes them, not by the local clock;
+      // this wake-up call was enqueued before the first watermark arrived.
+      return;
+    }
+    advanceWatermark(windowTime, context);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>Raises the low-water mark to 'watermark' and closes any session that can
+   * no longer be extended by an event at or after that time.</p>
+   */
+  @Override
+  protected long advanceWatermark(long watermark, FlowElementContext context)
+      throws IOException, InterruptedException {
+    if (watermark > mWatermark) {
+      mWatermark = watermark;
+      while (!mSessionsByEnd.isEmpty()) {
+        Session session = mSessionsByEnd.first();
+        if (mWatermark - session.mEnd <= mGap) {
+          break; // This, and every later-ending session, remains open.
+        }
+
+        closeSession(session, context);
+      }
+
+      // We've already handled these; remove their wake-up calls.
+      discardWakeupsUntil(mWatermark + 1);
+    }
+
+    if (null != mCheckpointer && mCheckpointer.isDue()) {
+      checkpoint(false);
+    }
+
+    // Sessions are emitted at their end time; nothing earlier than the
+    // oldest open session's end can still be emitted.
+    if (mSessionsByEnd.isEmpty()) {
+      return mWatermark;
+    }
+    return Math.min(mWatermark, mSessionsByEnd.first().mEnd);
+  }
+
+  /** Remove a session from our open state. */
+  private void removeSession(Session session) {
+    markDirty(session.mGroup);
+    mSessionsByEnd.remove(session);
+    TreeMap<Long, Session> sessions = mSessionsByGroup.get(session.mGroup);
+    sessions.remove(session.mStart);
+    if (sessions.isEmpty()) {
+      mSessionsByGroup.remove(session.mGroup);
+    }
+  }
+
+  /**
+   * Compensate the result of an aggregate function for sampling of its
+   * input, if it is a function whose result scales with the sample size.
+   */
+  private Object scaleForSampling(FnCallExpr fnCall, Object result) {
+    if (mSampleScale == 1.0 || !fnCall.scalesWithSampling()) {
+      return result;
+    }
+    return AggregateFunc.scaleResult(result, mSampleScale);
+  }
+
+  /** Emit the aggregate values over a session, and discard its state. */
+  private void closeSession(Session session, FlowElementContext context)
+      throws IOException, InterruptedException {
+    LOG.debug("Closing session for range: " + session.mStart + " -> " + session.mEnd);
+    removeSession(session);
+
+    GenericData.Record record = new GenericData.Record(getOutputSchema());
+    for (int i = 0; i < mAggregateExprs.size(); i++) {
+      AliasedExpr aliasExpr = mAggregateExprs.get(i);
+      FnCallExpr fnCall = (FnCallExpr) aliasExpr.getExpr();
+      List<Bucket<Object>> buckets = session.getBucketsForFunction(i);
+      Object result = scaleForSampling(fnCall, fnCall.finishWindow(buckets));
+      record.put(aliasExpr.getAvroLabel(), result);
+    }
+
+    // Copy the specified fields to propagate from the record used to define
+    // the group, into the output record.
+    for (int i = 0; i < mPropagateFields.size(); i++) {
+      record.put(mPropagateFields.get(i).getAvroName(),
+          session.mGroup.getValue(mPropagatePositions[i]));
+    }
+
+    emitAvroRecord(record, session.mGroup.getEvent(), session.mEnd, context);
+  }
+
+  /**
+   * @return the open session that an event at 'eventTime' belongs to, extending or
+   * merging existing sessions as needed; a new session if none is within the gap.
+   */
+  private Session getSession(GroupKey group, long eventTime) {
+    TreeMap<Long, Session> sessions = mSessionsByGroup.get(group);
+    if (null == sessions) {
+      sessions = new TreeMap<Long, Session>();
+      mSessionsByGroup.put(group, sessions);
+    }
+
+    Map.Entry<Long, Session> lowerEntry = sessions.floorEntry(eventTime);
+    Map.Entry<Long, Session> higherEntry = sessions.higherEntry(eventTime);
+    Session lower = null;
+    Session higher = null;
+    if (null != lowerEntry && eventTime - lowerEntry.getValue().mEnd <= mGap) {
+      lower = lowerEntry.getValue();
+    }
+    if (null != higherEntry && higherEntry.getKey() - eventTime <= mGap) {
+      higher = higherEntry.getValue();
+    }
+
+    Session session;
+    if (null != lower && null != higher) {
+      // This event bridges two sessions; fold the later one into the earlier.
+      LOG.debug("Merging sessions " + lower.mStart + " and " + higher.mStart
+          + " at " + eventTime);
+      removeSession(higher);
+      mSessionsByEnd.remove(lower);
+      lower.mEnd = higher.mEnd;
+      lower.mBucketSets.addAll(higher.mBucketSets);
+      session = lower;
+    } else if (null != lower) {
+      mSessionsByEnd.remove(lower);
+      lower.mEnd = Math.max(lower.mEnd, eventTime);
+      session = lower;
+    } else if (null != higher) {
+      // Extend the session backward to this event; re-key it by its new start.
+      mSessionsByEnd.remove(higher);
+      sessions.remove(higher.mStart);
+      higher.mStart = eventTime;
+      sessions.put(eventTime, higher);
+      session = higher;
+    } else {
+      session = new Session(mNextSessionId++, group, eventTime, mAggregateExprs.size());
+      sessions.put(eventTime, session);
+    }
+
+    mSessionsByEnd.add(session);
+    markDirty(group);
+    return session;
+  }
+
+  @Override
+  public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    long eventTime = e.getEvent().getTimestamp();
+    LOG.debug("Handling event time=" + eventTime);
+
+    if (eventTime > mHeadTime) {
+      mHeadTime = eventTime;
+      if (!isWatermarkDriven()) {
+        // This event advances the stream; close any sessions that are now more
+        // than the slack interval behind it.
+        advanceWatermark(mHeadTime - mSlackTime, getContext());
+      }
+    }
+
+    if (eventTime < mWatermark) {
+      LOG.debug("Dropping late event arriving at session aggregator; watermark="
+          + mWatermark + " and event time is " + eventTime);
+      mNumLateEvents++;
+      return;
+    }
+
+    Session session = getSession(mKeyFactory.createKey(e), eventTime);
+    List<Bucket<Object>> buckets = session.getInsertBuckets();
+    assert buckets.size() == mAggregateExprs.size();
+    for (int i = 0; i < mAggregateExprs.size(); i++) {
+      FnCallExpr fnCall = (FnCallExpr) mAggregateExprs.get(i).getExpr();
+      fnCall.insertAggregate(e, buckets.get(i), mAggregateArgs[i]);
+    }
+
+    enqueueWakeup(eventTime);
+
+    if (null != mCheckpointer && mCheckpointer.isDue()) {
+      checkpoint(false);
+    }
+  }
+
+  /**
+   * Enqueue a wakeup in the EvictionThread that closes any session ending at
+   * or before 'eventTime' (rounded up to the wake-up quantum), if no newer
+   * event does so first.
+   */
+  private void enqueueWakeup(long eventTime) {
+    if (isWatermarkDriven()) {
+      return; // Watermarks close the sessions instead.
+    }
+
+    long remainder = eventTime % mWakeupQuantum;
+    if (remainder < 0) {
+      remainder += mWakeupQuantum;
+    }
+    long quantumTime = remainder == 0 ? eventTime : eventTime - remainder + mWakeupQuantum;
+    if (quantumTime <= mLastEnqueuedWakeup) {
+      // We've already enqueued a wakeup covering this time.
+      return;
+    }
+
+    long offset = (quantumTime - eventTime) + mGap + mSlackTime + 1;
+    long closeTime = System.currentTimeMillis() + offset; // local time to close the session.
+    LOG.debug("Insert session wakeup call: " + quantumTime + " at time offset=" + offset);
+    insertWakeup(closeTime, quantumTime + mGap + 1);
+    mLastEnqueuedWakeup = quantumTime;
+  }
+
+  /** Note that the sessions of 'group' must be included in the next checkpoint. */
+  private void markDirty(GroupKey group) {
+    if (null != mCheckpointer) {
+      mCheckpointer.markDirty(group);
+    }
+  }
+
+  /**
+   * Submit the sessions of the groups that have changed since the previous
+   * checkpoint (or the next part of a full checkpoint) to the checkpoint
+   * store. If our state cannot be serialized, checkpointing is disabled.
+   * @param finish if true, complete any full checkpoint in progress.
+   */
+  private void checkpoint(boolean finish) throws InterruptedException {
+    try {
+      mCheckpointer.checkpoint(finish);
+    } catch (IOException ioe) {
+      LOG.error("Could not checkpoint session state; disabling checkpoints: " + ioe);
+      mCheckpointer.getStore().close();
+      mCheckpointer = null;
+    }
+  }
+
+  /**
+   * @return the header of our checkpoints: the session gap and number of
+   * aggregates, which must match when the checkpoint is restored, and the
+   * newest event time and watermark.
+   */
+  private byte [] getCheckpointHeader() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(mGap);
+    out.writeInt(mAggregateExprs.size());
+    out.writeLong(mHeadTime);
+    out.writeLong(mWatermark);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Checkpoints the open sessions of each group as a separate entry: the
+   * start and end of each session, and the buckets of each of the sessions
+   * merged to form it.
+   */
+  private class SessionCheckpointer extends KeyedCheckpointer<GroupKey> {
+    public SessionCheckpointer(CheckpointStore store) {
+      super(store);
+    }
+
+    @Override
+    protected Collection<GroupKey> getKeys() {
+      return mSessionsByGroup.keySet();
+    }
+
+    @Override
+    protected byte [] getHeader() throws IOException {
+      return getCheckpointHeader();
+    }
+
+    @Override
+    protected void writeEntry(GroupKey group, Map<ByteBuffer, byte[]> entries)
+        throws IOException {
+      ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+      DataOutputStream keyOut = new DataOutputStream(keyBytes);
+      group.write(keyOut);
+      keyOut.close();
+
+      TreeMap<Long, Session> sessions = mSessionsByGroup.get(group);
+      byte [] value = null; // Groups with no open sessions have no value.
+      if (null != sessions) {
+        ByteArrayOutputStream valueBytes = new ByteArrayOutputStream();
+        DataOutputStream valueOut = new DataOutputStream(valueBytes);
+        valueOut.writeInt(sessions.size());
+        for (Session session : sessions.values()) {
+          valueOut.writeLong(session.mStart);
+          valueOut.writeLong(session.mEnd);
+          List<Pair<Long, List<Bucket<Object>>>> bucketSets =
+              new ArrayList<Pair<Long, List<Bucket<Object>>>>(session.mBucketSets.size());
+          for (List<Bucket<Object>> buckets : session.mBucketSets) {
+            bucketSets.add(new Pair<Long, List<Bucket<Object>>>(
+                Long.valueOf(session.mStart), buckets));
+          }
+          GroupSpillStore.writeBuckets(mAggregateExprs, bucketSets, valueOut);
+        }
+        valueOut.close();
+        value = valueBytes.toByteArray();
+      }
+      entries.put(ByteBuffer.wrap(keyBytes.toByteArray()), value);
+    }
+  }
+
+  /**
+   * Restore the sessions held in our most recent checkpoint, if any.
+   */
+  private void restoreCheckpoint() throws IOException {
+    CheckpointStore store = mCheckpointer.getStore();
+    Map<ByteBuffer, byte[]> entries = store.open();
+    if (null == entries) {
+      return;
+    }
+
+    DataInputStream header = new DataInputStream(new ByteArrayInputStream(store.getHeader()));
+    if (header.readLong() != mGap || header.readInt() != mAggregateExprs.size()) {
+      LOG.warn("Session checkpoint does not match the current window; ignoring it");
+      store.invalidate();
+      return;
+    }
+    mHeadTime = header.readLong();
+    mWatermark = header.readLong();
+
+    for (Map.Entry<ByteBuffer, byte[]> entry : entries.entrySet()) {
+      GroupKey group = mKeyFactory.readKey(new DataInputStream(
+          new ByteArrayInputStream(entry.getKey().array())));
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.getValue()));
+      TreeMap<Long, Session> sessions = new TreeMap<Long, Session>();
+      int numSessions = in.readInt();
+      for (int i = 0; i < numSessions; i++) {
+        long start = in.readLong();
+        long end = in.readLong();
+        Session session = new Session(mNextSessionId++, group, start, 0);
+        session.mEnd = end;
+        session.mBucketSets.clear();
+        for (Pair<Long, List<Bucket<Object>>> bucketSet
+            : GroupSpillStore.readBuckets(mAggregateExprs, in)) {
+          session.mBucketSets.add(bucketSet.getRight());
+        }
+        sessions.put(start, session);
+        mSessionsByEnd.add(session);
+      }
+      if (!sessions.isEmpty()) {
+        mSessionsByGroup.put(group, sessions);
+      }
+    }
+
+    LOG.info("Restored " + mSessionsByEnd.size() + " sessions of " + mSessionsByGroup.size()
+        + " groups; watermark is " + mWatermark);
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.util.List;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.FormatSpec;
+import com.odiago.flumebase.parser.StreamSourceType;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.CreateStreamNode;
+
+/**
+ * A symbol representing a reference table: a relation read from a file,
+ * whose rows are looked up by key when streams are joined with it, rather
+ * than being delivered as a stream of events.
+ */
+public class TableSymbol extends StreamSymbol {
+
+  public TableSymbol(String name, Type tableType, String source, boolean isLocal,
+      List<TypedField> fieldTypes, FormatSpec fmt) {
+    super(name, StreamSourceType.File, tableType, source, isLocal, fieldTypes, fmt);
+  }
+
+  /** Initialize a table symbol from the logical plan node for a CREATE TABLE operation. */
+  public TableSymbol(CreateStreamNode createNode) {
+    super(createNode);
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + "  table\n";
+  }
+
+  @Override
+  public Symbol withName(String name) {
+    return new TableSymbol(name, getType(), getSource(), isLocal(), getFields(),
+        getFormatSpec());
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Retains the 'limit' best values offered to it, ranked by an associated
+ * key, using a bounded heap whose head is the worst retained value. This
+ * lets a caller test whether a candidate could be retained (admits())
+ * before doing the work of constructing it.
+ *
+ * <p>Keys are compared by their natural ordering; null keys rank below
+ * every non-null key in either direction. Among equal keys, the value
+ * offered first is preferred.</p>
+ */
+class TopKSelector<T> {
+
+  /** A retained value and the key it is ranked by. */
+  private static class Entry<T> {
+    private final Object mKey;
+    private final T mValue;
+    private final long mSeq;
+
+    public Entry(Object key, T value, long seq) {
+      mKey = key;
+      mValue = value;
+      mSeq = seq;
+    }
+  }
+
+  private final int mLimit;
+  private final boolean mDescending;
+
+  /** Heap of retained entries, with the worst entry at its head. */
+  private final PriorityQueue<Entry<T>> mHeap;
+
+  /** Sequence number assigned to the next entry offered. */
+  private long mNextSeq;
+
+  public TopKSelector(int limit, boolean descending) {
+    assert limit > 0;
+    mLimit = limit;
+    mDescending = descending;
+    mHeap = new PriorityQueue<Entry<T>>(limit, new Comparator<Entry<T>>() {
+      @Override
+      public int compare(Entry<T> e1, Entry<T> e2) {
+        return rank(e1, e2);
+      }
+    });
+  }
+
+  /**
+   * @return a positive value if 'a' should be preferred over 'b', negative if
+   * 'b' should be preferred over 'a'.
+   */
+  @SuppressWarnings("unchecked")
+  private int compareKeys(Object a, Object b) {
+    if (null == a && null == b) {
+      return 0;
+    } else if (null == a) {
+      return -1;
+    } else if (null == b) {
+      return 1;
+    }
+
+    int cmp = ((Comparable<Object>) a).compareTo(b);
+    return mDescending ? cmp : -cmp;
+  }
+
+  private int rank(Entry<T> e1, Entry<T> e2) {
+    int cmp = compareKeys(e1.mKey, e2.mKey);
+    if (cmp != 0) {
+      return cmp;
+    } else if (e1.mSeq < e2.mSeq) {
+      return 1;
+    } else if (e1.mSeq > e2.mSeq) {
+      return -1;
+    } else {
+      return 0;
+    }
+  }
+
+  /**
+   * @return true if a value with the specified key would be retained if
+   * offered now.
+   */
+  public boolean admits(Object key) {
+    return mHeap.size() < mLimit || compareKeys(key, mHeap.peek().mKey) > 0;
+  }
+
+  /**
+   * Offer a value to the selector; it is retained if it ranks among the best
+   * 'limit' values seen since the last call to drain().
+   */
+  public void offer(Object key, T value) {
+    if (!admits(key)) {
+      return;
+    }
+
+    mHeap.add(new Entry<T>(key, value, mNextSeq++));
+    if (mHeap.size() > mLimit) {
+      mHeap.remove(); // Evict the worst entry.
+    }
+  }
+
+  /**
+   * @return the retained values, best first, and reset the selector.
+   */
+  public List<T> drain() {
+    List<T> out = new ArrayList<T>(mHeap.size());
+    while (!mHeap.isEmpty()) {
+      out.add(mHeap.remove().mValue);
+    }
+    Collections.reverse(out);
+    mNextSeq = 0;
+    return out;
+  }
+}
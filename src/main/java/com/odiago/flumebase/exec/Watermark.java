@@ -0,0 +1,76 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+/**
+ * A marker that flows through the pipeline alongside ordinary events,
+ * asserting that no further events of the named stream will carry a
+ * timestamp earlier than getTime().
+ *
+ * <p>Watermarks are generated after the source of each stream by a
+ * WatermarkGenerator and delivered to FlowElement.takeWatermark(). Operators
+ * which hold windowed state use them to close windows and discard state
+ * exactly when it can no longer change, rather than guessing at this from
+ * a fixed slack interval.</p>
+ */
+public class Watermark extends EmptyEventWrapper {
+  /** Event time below which no further events are expected. */
+  private final long mTime;
+
+  /** The stream whose progress this watermark reports. */
+  private final String mStreamName;
+
+  public Watermark(long time, String streamName) {
+    mTime = time;
+    mStreamName = streamName;
+  }
+
+  /**
+   * @return the event time before which no further events of this stream
+   * are expected.
+   */
+  public long getTime() {
+    return mTime;
+  }
+
+  /**
+   * @return the name of the stream whose progress this watermark reports.
+   */
+  public String getStreamName() {
+    return mStreamName;
+  }
+
+  @Override
+  public String getAttr(String attrName) {
+    if (FlowElement.STREAM_NAME_ATTR.equals(attrName)) {
+      return mStreamName;
+    }
+
+    return null;
+  }
+
+  @Override
+  public String getEventText() {
+    return "(watermark " + mStreamName + "@" + mTime + ")";
+  }
+
+  @Override
+  public String toString() {
+    return getEventText();
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Generates watermarks for a single stream, assuming its events arrive
+ * at most a bounded interval out of timestamp order.
+ *
+ * <p>The watermark trails the greatest timestamp observed so far by the
+ * configured out-of-order bound. A new Watermark is produced only once the
+ * watermark has advanced by at least the configured interval, so that
+ * watermarks do not outnumber events downstream.</p>
+ */
+public class WatermarkGenerator {
+
+  /** Set to false to disable watermarks and use slack-time heuristics alone. */
+  public static final String WATERMARK_ENABLED_KEY = "flumebase.watermark.enabled";
+  public static final boolean DEFAULT_WATERMARK_ENABLED = true;
+
+  /**
+   * Maximum number of milliseconds by which an event may trail the newest
+   * event of its stream. If unset, the slack time is used.
+   */
+  public static final String MAX_OUT_OF_ORDER_KEY = "flumebase.watermark.max.out.of.order";
+
+  /** Minimum advance, in milliseconds of event time, between two watermarks. */
+  public static final String WATERMARK_INTERVAL_KEY = "flumebase.watermark.interval";
+  public static final long DEFAULT_WATERMARK_INTERVAL = 10;
+
+  /** Out-of-order bound for the stream, in milliseconds. */
+  private final long mMaxOutOfOrder;
+
+  /** Minimum advance between emitted watermarks. */
+  private final long mInterval;
+
+  /** Greatest event timestamp observed so far. */
+  private long mMaxTimestamp;
+
+  /** Time of the last watermark we generated. */
+  private long mLastWatermark;
+
+  public WatermarkGenerator(long maxOutOfOrder, long interval) {
+    mMaxOutOfOrder = maxOutOfOrder;
+    mInterval = Math.max(1, interval);
+    mMaxTimestamp = Long.MIN_VALUE;
+    mLastWatermark = Long.MIN_VALUE;
+  }
+
+  /**
+   * @return a WatermarkGenerator configured by 'conf', or null if watermarks
+   * are disabled.
+   */
+  public static WatermarkGenerator create(Configuration conf) {
+    if (!conf.getBoolean(WATERMARK_ENABLED_KEY, DEFAULT_WATERMARK_ENABLED)) {
+      return null;
+    }
+
+    long slackTime = conf.getInt(BucketedAggregationElement.SLACK_INTERVAL_KEY,
+        BucketedAggregationElement.DEFAULT_SLACK_INTERVAL);
+    long maxOutOfOrder = conf.getLong(MAX_OUT_OF_ORDER_KEY, slackTime);
+    if (maxOutOfOrder < 0) {
+      maxOutOfOrder = slackTime;
+    }
+
+    return new WatermarkGenerator(maxOutOfOrder,
+        conf.getLong(WATERMARK_INTERVAL_KEY, DEFAULT_WATERMARK_INTERVAL));
+  }
+
+  /**
+   * Record the timestamp of an event about to be emitted by the stream.
+   * @return a new Watermark to emit after the event, or null if the
+   * watermark has not advanced far enough since the last one.
+   */
+  public synchronized Watermark observe(EventWrapper e) {
+    long timestamp = e.getEvent().getTimestamp();
+    if (timestamp > mMaxTimestamp) {
+      mMaxTimestamp = timestamp;
+    }
+
+    long watermark = mMaxTimestamp - mMaxOutOfOrder;
+    if (mLastWatermark != Long.MIN_VALUE && watermark < mLastWatermark + mInterval) {
+      return null;
+    }
+
+    mLastWatermark = watermark;
+    return new Watermark(watermark, e.getAttr(FlowElement.STREAM_NAME_ATTR));
+  }
+
+  /** @return the time of the last watermark generated. */
+  public synchronized long getLastWatermark() {
+    return mLastWatermark;
+  }
+}
@@ -0,0 +1,376 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.Iterator;
+
+import java.util.concurrent.PriorityBlockingQueue;
+
+import org.apache.avro.Schema;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.util.Pair;
+
+import com.odiago.flumebase.exec.local.TimerFlowElemContext;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.util.PairLeftRightComparator;
+
+import com.odiago.flumebase.util.concurrent.SelectableQueue;
+
+/**
+ * Base class for aggregation operators whose open windows are closed by the
+ * passage of local time, as well as by the arrival of newer events.
+ *
+ * <p>Subclasses enqueue wake-up calls through insertWakeup(); an EvictionThread
+ * delivers each of these at the requested local time to a coupled
+ * TimeoutEvictionElement, which calls handleTimeout() in the main thread.</p>
+ */
+public abstract class WindowedAggregationElement extends AvroOutputElementImpl {
+  /**
+   * SelectableQueue for the downstream timer element, which our eviction thread
+   * enqueues into.
+   */
+  private SelectableQueue<Object> mTimerQueue = null;
+
+  private EvictionThread mEvictionThread;
+
+  /**
+   * Set to true once the first watermark arrives. From then on, windows are
+   * closed when the watermark passes them, rather than by the arrival of
+   * events a slack interval newer.
+   */
+  private boolean mIsWatermarkDriven;
+
+  /** Time of the last watermark we passed downstream. */
+  private long mOutputWatermark = Long.MIN_VALUE;
+
+  public WindowedAggregationElement(FlowElementContext ctxt, Schema outputSchema) {
+    super(ctxt, outputSchema);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void open() throws IOException, InterruptedException {
+    TimerFlowElemContext timerContext = (TimerFlowElemContext) getContext();
+    // Start the auto-closing thread. Initialize the reference to the queue it populates
+    // from our timer context.
+    mTimerQueue = timerContext.getTimerQueue();
+    mEvictionThread = new EvictionThread(getMaxPendingWakeups());
+    mEvictionThread.start();
+    super.open();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException, InterruptedException {
+    // We've got no new elements coming in; expire all windows immediately.
+    closeAllWindows(getContext());
+    windowsClosed();
+    mEvictionThread.finish();
+    mEvictionThread = null;
+    super.close();
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>Closes every window the watermark has passed, then passes on a
+   * watermark for the output stream, which may trail the input's.</p>
+   */
+  @Override
+  public void takeWatermark(Watermark w) throws IOException, InterruptedException {
+    mIsWatermarkDriven = true;
+    long outputWatermark = advanceWatermark(w.getTime(), getContext());
+    if (outputWatermark > mOutputWatermark) {
+      mOutputWatermark = outputWatermark;
+      emit(new Watermark(outputWatermark, w.getStreamName()));
+    }
+  }
+
+  /**
+   * @return true if windows are closed by watermarks; false if they are
+   * closed according to the slack time after newer events.
+   */
+  protected boolean isWatermarkDriven() {
+    return mIsWatermarkDriven;
+  }
+
+  /**
+   * Called when the input watermark advances to 'watermark'; close and emit
+   * every window that can no longer receive events.
+   * @return the event time before which no further output will be emitted.
+   */
+  protected abstract long advanceWatermark(long watermark, FlowElementContext context)
+      throws IOException, InterruptedException;
+
+  /**
+   * @return the maximum number of wake-up calls that may be pending in the
+   * eviction thread at any one time.
+   */
+  protected abstract long getMaxPendingWakeups();
+
+  /**
+   * Called when the flow is closing; emit the results of every open window.
+   */
+  protected abstract void closeAllWindows(FlowElementContext context)
+      throws IOException, InterruptedException;
+
+  /**
+   * Called when the flow is closing, after closeAllWindows() has emitted
+   * every open window and before the close is passed downstream.
+   */
+  protected void windowsClosed() throws IOException, InterruptedException {
+  }
+
+  /**
+   * Called in the main thread when a wake-up call enqueued with insertWakeup()
+   * is delivered.
+   * @param windowTime the window time specified when the wake-up call was inserted.
+   * @param context the context to emit any closed windows to.
+   */
+  protected abstract void handleTimeout(long windowTime, FlowElementContext context)
+      throws IOException, InterruptedException;
+
+  /**
+   * Enqueue a wake-up call that delivers 'windowTime' to handleTimeout()
+   * once the local clock reaches 'localTime'.
+   */
+  protected void insertWakeup(long localTime, long windowTime) {
+    mEvictionThread.insert(new Pair<Long, Long>(localTime, windowTime));
+  }
+
+  /**
+   * Discard all pending wake-up calls for window times prior to 'minTime'.
+   */
+  protected void discardWakeupsUntil(long minTime) {
+    mEvictionThread.discardUntil(minTime);
+  }
+
+  /**
+   * Thread that sends notices to our coprocessor FlowElement when it is time to
+   * close old windows based on elapsed local time.
+   */
+  private class EvictionThread extends Thread {
+    private final Logger LOG = LoggerFactory.getLogger(
+        EvictionThread.class.getName());
+
+    /**
+     * Set to true when it's time for the thread to go home. The thread
+     * actually exits after this flag is set to true and the incoming queue
+     * is empty.
+     */
+    private boolean mIsFinished;
+
+    /**
+     * Priority queue (heap) of times when we should insert expiry-times in
+     * the coprocessor FlowElement's input queue.
+     *
+     * <p>The queue holds tuples of two long values. The first is a local
+     * time when this thread should wake up; this is what the queue is
+     * ordered on. The latter is the window time that should be expired.</p>
+     */
+    private PriorityBlockingQueue<Pair<Long, Long>> mQueue;
+
+    /** Maximum number of wake-up calls we expect to hold at once. */
+    private final long mMaxQueueLen;
+
+    public EvictionThread(long maxQueueLen) {
+      super("AggregatorEvictionThread");
+
+      mMaxQueueLen = maxQueueLen;
+      mQueue = new PriorityBlockingQueue<Pair<Long, Long>>((int) mMaxQueueLen,
+          new PairLeftRightComparator<Long, Long>());
+    }
+
+    /**
+     * Add a wake-up call to the queue.
+     */
+    public void insert(Pair<Long, Long> wakeUpCall) {
+      synchronized (this) {
+        assert mQueue.size() < mMaxQueueLen; // This operation should never block.
+        mQueue.put(wakeUpCall);
+        this.notify();
+      }
+
+      // Interrupt any wait that's going on, in case we are asleep and should
+      // actually immediately service this wake-up call.
+      this.interrupt();
+    }
+
+    /**
+     * Discard all wakeup calls up to time 'minTime'.
+     * minTime is a 'bucket time', not a 'local time'.
+     */
+    public void discardUntil(long minTime) {
+      synchronized (this) {
+        LOG.debug("discardUntil: " + minTime);
+        Iterator<Pair<Long, Long>> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+          Pair<Long, Long> wakeUpCall = iterator.next();
+          if (wakeUpCall.getRight() < minTime) {
+            LOG.debug("discard@ " + wakeUpCall);
+            iterator.remove();
+          }
+        }
+
+        this.notify();
+      }
+    }
+
+    /**
+     * Set the finished flag to true; try to get the thread to stop as
+     * quickly as possible.
+     */
+    public void finish() {
+      synchronized (this) {
+        this.mIsFinished = true;
+        this.notify();
+      }
+      this.interrupt(); // Interrupt any current sleep.
+    }
+
+    /**
+     * Main loop of the thread.
+     * Continually sleeps until the next timer event is ready to occur.
+     */
+    public void run() {
+      while (true) {
+        Pair<Long, Long> wakeUpCall = null;
+        long curTime;
+        long nextWakeUp;
+
+        synchronized (this) {
+          while (mQueue.size() == 0) {
+            try {
+              if (this.mIsFinished) {
+                // Parent is finished and we have drained our input queue. Go home.
+                return;
+              }
+              this.wait();
+            } catch (InterruptedException ie) {
+              // Interrupted while waiting for another wake-up call to enter our queue.
+              // Try again, if we're not already finished.
+              continue;
+            }
+          }
+
+          assert mQueue.size() > 0;
+          wakeUpCall = mQueue.peek();
+        }
+
+        if (null == wakeUpCall) {
+          continue;
+        }
+
+        curTime = System.currentTimeMillis();
+        nextWakeUp = wakeUpCall.getLeft();
+        if (nextWakeUp <= curTime) {
+          // TODO(aaron): This section probably bears further deadlock analysis.
+          // The put() into the timer queue can block (it has fixed length
+          // LocalEnvironment.MAX_QUEUE_LEN) until the timer FE services its
+          // existing list.
+          // If we are interrupted doing this, it is because the main thread
+          // has just inserted another wakeup call while we were blocking.
+          // This thread's input queue must not block when being filled from
+          // the main aggregation FE. I believe mMaxQueueLen should be sufficient
+          // to guarantee this is the case, because before we call insertWakeup(),
+          // the aggregation FE will have had to close enough windows in its
+          // takeEvent() to free up the slots in this queue.
+          try {
+            LOG.debug("Timer evicting at " + curTime + ": " + wakeUpCall);
+            // Service this by injecting the getRight() into our outbound queue.
+            mTimerQueue.put(new TimeoutEventWrapper(wakeUpCall.getRight()));
+          } catch (InterruptedException ie) {
+            // Not a problem. If we were interrupted doing the put into mTimerQueue,
+            // then we'll service this again on the next go-around of the loop.
+            // Just make sure we don't mark this as 'complete.'
+            continue;
+          }
+
+          synchronized (this) {
+            // Now actually remove this from the input queue.
+            if (mQueue.peek() == wakeUpCall) {
+              // O(1) fast path; no intervening push.
+              mQueue.remove();
+            } else {
+              // intervening push of an earlier wakeup (?). Slow path.
+              mQueue.remove(wakeUpCall);
+            }
+          }
+        } else {
+          // If we're down here, we need to sleep until it is the next wake-up time.
+          long napTime = nextWakeUp - curTime;
+          try {
+            Thread.sleep(napTime);
+          } catch (InterruptedException ie) {
+            // We were awoken early... this is expected (there may have been a
+            // new enqueue, etc).
+          }
+        }
+      }
+    }
+  }
+
+  /** EventWrapper used to deliver the expiry time payload to the TimeoutEvictionElement. */
+  private static class TimeoutEventWrapper extends EmptyEventWrapper {
+    /** The time window that should be expired. */
+    private final Long mExpireWindow;
+
+    public TimeoutEventWrapper(Long expire) {
+      mExpireWindow = expire;
+    }
+
+    @Override
+    public Object getField(TypedField field) {
+      return mExpireWindow;
+    }
+  }
+
+  /**
+   * Separate FlowElement that handles notifications from the EvictionThread; this
+   * operates in the main thread, closing windows that cannot receive new events
+   * because they are past the slack time interval.
+   */
+  public class TimeoutEvictionElement extends AvroOutputElementImpl {
+    private final Logger LOG = LoggerFactory.getLogger(
+        TimeoutEvictionElement.class.getName());
+
+    private TimeoutEvictionElement(FlowElementContext ctxt, Schema outSchema) {
+      super(ctxt, outSchema);
+    }
+
+    public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+      assert e instanceof TimeoutEventWrapper;
+      Long expireTime = (Long) e.getField(null); // TimeoutEventWrapper returns a single Long val
+      LOG.debug("Handling in eviction element - timeout to: " + expireTime);
+      handleTimeout(expireTime, getContext());
+    }
+  }
+
+  /**
+   * Create a TimeoutEvictionElement coupled to this WindowedAggregationElement.
+   */
+  public TimeoutEvictionElement getTimeoutElement(FlowElementContext timeoutContext) {
+    return this.new TimeoutEvictionElement(timeoutContext, getOutputSchema());
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.builtins;
+
+import com.odiago.flumebase.exec.Bucket;
+
+import com.odiago.flumebase.lang.Accumulator;
+import com.odiago.flumebase.lang.Type;
+
+/**
+ * Accumulator shared by min and max over numeric types. Holds the current
+ * extreme value of each bucket in its long (INT, BIGINT) or double (FLOAT,
+ * DOUBLE) slot; a non-zero count marks the slot as holding a value.
+ */
+class ExtremumAccumulator extends Accumulator {
+  private final Type.TypeName mTypeName;
+
+  /** If true, keep the maximum value; otherwise the minimum. */
+  private final boolean mIsMax;
+
+  private ExtremumAccumulator(Type.TypeName typeName, boolean isMax) {
+    mTypeName = typeName;
+    mIsMax = isMax;
+  }
+
+  /**
+   * @return an ExtremumAccumulator for values of the specified type, or null if
+   * the type is not held in a primitive slot.
+   */
+  static Accumulator forType(Type type, boolean isMax) {
+    Type.TypeName typeName = type.getPrimitiveTypeName();
+    if (null == typeName) {
+      return null;
+    }
+
+    switch (typeName) {
+    case INT:
+    case BIGINT:
+    case FLOAT:
+    case DOUBLE:
+      return new ExtremumAccumulator(typeName, isMax);
+    default:
+      return null;
+    }
+  }
+
+  private boolean isLongType() {
+    return mTypeName == Type.TypeName.INT || mTypeName == Type.TypeName.BIGINT;
+  }
+
+  /** @return true if 'val' should replace 'cur' as the extreme value. */
+  private boolean replaces(long val, long cur) {
+    return mIsMax ? val > cur : val < cur;
+  }
+
+  /** @return true if 'val' should replace 'cur' as the extreme value. */
+  private boolean replaces(double val, double cur) {
+    // Use Double.compare() to order NaN and -0.0 as Comparable does.
+    int cmp = Double.compare(val, cur);
+    return mIsMax ? cmp > 0 : cmp < 0;
+  }
+
+  @Override
+  public void add(Object arg, Bucket<?> bucket) {
+    if (null == arg) {
+      return;
+    }
+
+    Number num = (Number) arg;
+    boolean first = bucket.getCount() == 0;
+    if (isLongType()) {
+      long val = num.longValue();
+      if (first || replaces(val, bucket.getLongState())) {
+        bucket.setLongState(val);
+      }
+    } else {
+      double val = num.doubleValue();
+      if (first || replaces(val, bucket.getDoubleState())) {
+        bucket.setDoubleState(val);
+      }
+    }
+    bucket.incrementCount();
+  }
+
+  @Override
+  public Object finishWindow(Iterable<? extends Bucket<?>> buckets) {
+    boolean nonNull = false;
+    long longVal = 0;
+    double doubleVal = 0;
+    for (Bucket<?> bucket : buckets) {
+      if (bucket.getCount() == 0) {
+        continue;
+      }
+
+      if (isLongType()) {
+        if (!nonNull || replaces(bucket.getLongState(), longVal)) {
+          longVal = bucket.getLongState();
+        }
+      } else {
+        if (!nonNull || replaces(bucket.getDoubleState(), doubleVal)) {
+          doubleVal = bucket.getDoubleState();
+        }
+      }
+      nonNull = true;
+    }
+
+    if (!nonNull) {
+      return null;
+    }
+
+    switch (mTypeName) {
+    case INT:
+      return Integer.valueOf((int) longVal);
+    case BIGINT:
+      return Long.valueOf(longVal);
+    case FLOAT:
+      return Float.valueOf((float) doubleVal);
+    default:
+      return Double.valueOf(doubleVal);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.builtins;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.odiago.flumebase.exec.Bucket;
+
+import com.odiago.flumebase.lang.AggregateFunc;
+import com.odiago.flumebase.lang.Type;
+import com.odiago.flumebase.lang.UniversalType;
+
+import com.odiago.flumebase.util.HyperLogLog;
+
+/**
+ * Return an estimate of the number of distinct non-null values in a column.
+ *
+ * Each bucket holds a HyperLogLog sketch of its values; the completion step
+ * merges the sketches of the window's buckets. Memory use per bucket is
+ * fixed, regardless of the number of values.
+ */
+public class approx_count_distinct extends AggregateFunc<HyperLogLog> {
+  private UniversalType mArgType;
+
+  public approx_count_distinct() {
+    // Argument may have any input type.
+    mArgType = new UniversalType("'a");
+    mArgType.addConstraint(Type.getNullable(Type.TypeName.TYPECLASS_ANY));
+  }
+
+  @Override
+  public void addToBucket(Object arg, Bucket<HyperLogLog> bucket, Type type) {
+    if (null != arg) {
+      HyperLogLog state = bucket.getState();
+      if (null == state) {
+        state = new HyperLogLog();
+        bucket.setState(state);
+      }
+      state.add(arg);
+    }
+  }
+
+  @Override
+  public Object finishWindow(Iterable<Bucket<HyperLogLog>> buckets, Type type) {
+    HyperLogLog merged = null;
+    for (Bucket<HyperLogLog> bucket : buckets) {
+      HyperLogLog state = bucket.getState();
+      if (null != state) {
+        if (null == merged) {
+          merged = new HyperLogLog(state.getPrecision());
+        }
+        merged.merge(state);
+      }
+    }
+
+    if (null == merged) {
+      return Long.valueOf(0);
+    }
+    return Long.valueOf(merged.estimate());
+  }
+
+  @Override
+  public void writeState(HyperLogLog state, DataOutput out) throws IOException {
+    out.writeBoolean(null != state);
+    if (null != state) {
+      state.write(out);
+    }
+  }
+
+  @Override
+  public HyperLogLog readState(DataInput in) throws IOException {
+    if (in.readBoolean()) {
+      return HyperLogLog.read(in);
+    }
+    return null;
+  }
+
+  @Override
+  public Type getReturnType() {
+    return Type.getPrimitive(Type.TypeName.BIGINT);
+  }
+
+  @Override
+  public List<Type> getArgumentTypes() {
+    return Collections.singletonList((Type) mArgType);
+  }
+}
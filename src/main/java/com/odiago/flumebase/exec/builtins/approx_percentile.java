@@ -0,0 +1,144 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.builtins;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.odiago.flumebase.exec.Bucket;
+
+import com.odiago.flumebase.lang.Accumulator;
+import com.odiago.flumebase.lang.AggregateFunc;
+import com.odiago.flumebase.lang.EvalException;
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.util.KllSketch;
+
+/**
+ * Return an estimate of the value at a given percentile of the non-null values
+ * in a column: approx_percentile(x, 99) estimates the 99th percentile of x.
+ * The percentile must be a constant between 0 and 100. If all values are null,
+ * return null.
+ *
+ * Each bucket holds a KLL quantile sketch of its values; the completion step
+ * merges the sketches of the window's buckets. Memory use per bucket grows only
+ * logarithmically with the number of values.
+ */
+public class approx_percentile extends AggregateFunc<KllSketch> {
+
+  /** Reads the configured percentile from the merged sketches of a window. */
+  private static class PercentileAccumulator extends Accumulator {
+    /** The rank to read, as a fraction in [0, 1]. */
+    private final double mFraction;
+
+    public PercentileAccumulator(double fraction) {
+      mFraction = fraction;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void add(Object arg, Bucket<?> bucket) {
+      addValue(arg, (Bucket<KllSketch>) bucket);
+    }
+
+    @Override
+    public Object finishWindow(Iterable<? extends Bucket<?>> buckets) {
+      KllSketch merged = new KllSketch();
+      for (Bucket<?> bucket : buckets) {
+        KllSketch state = (KllSketch) bucket.getState();
+        if (null != state) {
+          merged.merge(state);
+        }
+      }
+
+      if (merged.isEmpty()) {
+        return null; // Only null values in buckets.
+      }
+      return Double.valueOf(merged.getQuantile(mFraction));
+    }
+  }
+
+  private static void addValue(Object arg, Bucket<KllSketch> bucket) {
+    if (null != arg) {
+      KllSketch state = bucket.getState();
+      if (null == state) {
+        state = new KllSketch();
+        bucket.setState(state);
+      }
+      state.add(((Number) arg).doubleValue());
+    }
+  }
+
+  @Override
+  public void addToBucket(Object arg, Bucket<KllSketch> bucket, Type type) {
+    addValue(arg, bucket);
+  }
+
+  @Override
+  public Object finishWindow(Iterable<Bucket<KllSketch>> buckets, Type type)
+      throws EvalException {
+    // The percentile is only known to the Accumulator for the call site.
+    throw new EvalException("approx_percentile requires a constant percentile argument");
+  }
+
+  @Override
+  public Accumulator getAccumulator(Type type, List<Object> constArgs)
+      throws EvalException {
+    assert constArgs.size() == 1;
+    Number percentile = (Number) constArgs.get(0);
+    if (null == percentile || percentile.doubleValue() < 0.0
+        || percentile.doubleValue() > 100.0) {
+      throw new EvalException("Percentile must be between 0 and 100, not " + percentile);
+    }
+
+    return new PercentileAccumulator(percentile.doubleValue() / 100.0);
+  }
+
+  @Override
+  public void writeState(KllSketch state, DataOutput out) throws IOException {
+    out.writeBoolean(null != state);
+    if (null != state) {
+      state.write(out);
+    }
+  }
+
+  @Override
+  public KllSketch readState(DataInput in) throws IOException {
+    if (in.readBoolean()) {
+      return KllSketch.read(in);
+    }
+    return null;
+  }
+
+  @Override
+  public Type getReturnType() {
+    return Type.getNullable(Type.TypeName.DOUBLE);
+  }
+
+  @Override
+  public List<Type> getArgumentTypes() {
+    List<Type> args = new ArrayList<Type>();
+    args.add(Type.getNullable(Type.TypeName.DOUBLE));
+    args.add(Type.getPrimitive(Type.TypeName.DOUBLE));
+    return args;
+  }
+}
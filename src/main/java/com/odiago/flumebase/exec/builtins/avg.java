@@ -17,6 +17,10 @@
 
 package com.odiago.flumebase.exec.builtins;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import java.math.BigDecimal;
 
 import java.util.Collections;
@@ -24,12 +28,15 @@ import java.util.List;
 
 import com.odiago.flumebase.exec.Bucket;
 
+import com.odiago.flumebase.lang.Accumulator;
 import com.odiago.flumebase.lang.AggregateFunc;
 import com.odiago.flumebase.lang.EvalException;
 import com.odiago.flumebase.lang.PreciseType;
 import com.odiago.flumebase.lang.Type;
 import com.odiago.flumebase.lang.UniversalType;
 
+import com.odiago.flumebase.util.ValueCodec;
+
 /**
  * Return the arithmetic mean of values in a column. If all values are null, return null.
  *
@@ -39,6 +46,71 @@ import com.odiago.flumebase.lang.UniversalType;
 public class avg extends AggregateFunc<AvgState> {
   private UniversalType mArgType;
 
+  /**
+   * Keeps the sum of each bucket in its long (INT, BIGINT) or double (FLOAT, DOUBLE)
+   * slot, and the number of values in its count slot.
+   */
+  private static class AvgAccumulator extends Accumulator {
+    private final Type.TypeName mTypeName;
+
+    public AvgAccumulator(Type.TypeName typeName) {
+      mTypeName = typeName;
+    }
+
+    @Override
+    public void add(Object arg, Bucket<?> bucket) {
+      if (null == arg) {
+        return; // Don't add anything to the sum.
+      }
+
+      Number num = (Number) arg;
+      switch (mTypeName) {
+      case INT:
+      case BIGINT:
+        bucket.setLongState(bucket.getLongState() + num.longValue());
+        break;
+      case FLOAT:
+        bucket.setDoubleState((float) bucket.getDoubleState() + num.floatValue());
+        break;
+      default:
+        bucket.setDoubleState(bucket.getDoubleState() + num.doubleValue());
+        break;
+      }
+      bucket.incrementCount();
+    }
+
+    @Override
+    public Object finishWindow(Iterable<? extends Bucket<?>> buckets) {
+      long totalCount = 0;
+      long longWeight = 0;
+      float floatWeight = 0;
+      double doubleWeight = 0;
+      for (Bucket<?> bucket : buckets) {
+        if (bucket.getCount() > 0) {
+          totalCount += bucket.getCount();
+          longWeight += bucket.getLongState();
+          floatWeight += (float) bucket.getDoubleState();
+          doubleWeight += bucket.getDoubleState();
+        }
+      }
+
+      if (0 == totalCount) {
+        return null; // Only null values in buckets.
+      }
+
+      switch (mTypeName) {
+      case INT:
+        return Integer.valueOf((int) longWeight / (int) totalCount);
+      case BIGINT:
+        return Long.valueOf(longWeight / totalCount);
+      case FLOAT:
+        return Float.valueOf(floatWeight / (float) totalCount);
+      default:
+        return Double.valueOf(doubleWeight / (double) totalCount);
+      }
+    }
+  }
+
   public avg() {
     mArgType = new UniversalType("'a");
     mArgType.addConstraint(Type.getNullable(Type.TypeName.TYPECLASS_NUMERIC));
@@ -179,6 +251,42 @@ public class avg extends AggregateFunc<AvgState> {
     }
   }
 
+  @Override
+  public Accumulator getAccumulator(Type type) {
+    Type.TypeName typeName = type.getPrimitiveTypeName();
+    if (null == typeName) {
+      return null;
+    }
+
+    switch (typeName) {
+    case INT:
+    case BIGINT:
+    case FLOAT:
+    case DOUBLE:
+      return new AvgAccumulator(typeName);
+    default:
+      return null; // PRECISE values are averaged as BigDecimal objects.
+    }
+  }
+
+  @Override
+  public void writeState(AvgState state, DataOutput out) throws IOException {
+    out.writeBoolean(null != state);
+    if (null != state) {
+      out.writeInt(state.mCount);
+      ValueCodec.writeValue(out, state.mSum);
+    }
+  }
+
+  @Override
+  public AvgState readState(DataInput in) throws IOException {
+    if (in.readBoolean()) {
+      int count = in.readInt();
+      return new AvgState(count, (Number) ValueCodec.readValue(in));
+    }
+    return null;
+  }
+
   @Override
   public Type getReturnType() {
     // Return type is same as the input argument.
@@ -22,6 +22,7 @@ import java.util.List;
 
 import com.odiago.flumebase.exec.Bucket;
 
+import com.odiago.flumebase.lang.Accumulator;
 import com.odiago.flumebase.lang.AggregateFunc;
 import com.odiago.flumebase.lang.Type;
 import com.odiago.flumebase.lang.UniversalType;
@@ -32,6 +33,28 @@ import com.odiago.flumebase.lang.UniversalType;
 public class count extends AggregateFunc<Integer> {
   private UniversalType mArgType;
 
+  /** Counts non-null values in each bucket's primitive count slot. */
+  private static class CountAccumulator extends Accumulator {
+    @Override
+    public void add(Object arg, Bucket<?> bucket) {
+      if (null != arg) {
+        bucket.incrementCount();
+      }
+    }
+
+    @Override
+    public Object finishWindow(Iterable<? extends Bucket<?>> buckets) {
+      long total = 0;
+      for (Bucket<?> bucket : buckets) {
+        total += bucket.getCount();
+      }
+
+      return Integer.valueOf((int) total);
+    }
+  }
+
+  private static final Accumulator COUNT_ACCUMULATOR = new CountAccumulator();
+
   public count() {
     // Argument may have any input type.
     mArgType = new UniversalType("'a");
@@ -76,6 +99,11 @@ public class count extends AggregateFunc<Integer> {
     return Integer.valueOf(total);
   }
 
+  @Override
+  public Accumulator getAccumulator(Type type) {
+    return COUNT_ACCUMULATOR;
+  }
+
   @Override
   public Type getReturnType() {
     return Type.getPrimitive(Type.TypeName.INT);
@@ -85,4 +113,9 @@ public class count extends AggregateFunc<Integer> {
   public List<Type> getArgumentTypes() {
     return Collections.singletonList((Type) mArgType);
   }
+
+  @Override
+  public boolean scalesWithSampling() {
+    return true;
+  }
 }
@@ -22,6 +22,7 @@ import java.util.List;
 
 import com.odiago.flumebase.exec.Bucket;
 
+import com.odiago.flumebase.lang.Accumulator;
 import com.odiago.flumebase.lang.AggregateFunc;
 import com.odiago.flumebase.lang.Type;
 import com.odiago.flumebase.lang.UniversalType;
@@ -67,6 +68,11 @@ public class min extends AggregateFunc<Comparable> {
     return curMin;
   }
 
+  @Override
+  public Accumulator getAccumulator(Type type) {
+    return ExtremumAccumulator.forType(type, false);
+  }
+
   @Override
   public Type getReturnType() {
     return mArgType; // Return type is the same as our argument.
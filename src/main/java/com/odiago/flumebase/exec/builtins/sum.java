@@ -24,6 +24,7 @@ import java.util.List;
 
 import com.odiago.flumebase.exec.Bucket;
 
+import com.odiago.flumebase.lang.Accumulator;
 import com.odiago.flumebase.lang.AggregateFunc;
 import com.odiago.flumebase.lang.EvalException;
 import com.odiago.flumebase.lang.PreciseType;
@@ -36,6 +37,94 @@ import com.odiago.flumebase.lang.UniversalType;
 public class sum extends AggregateFunc<Number> {
   private UniversalType mArgType;
 
+  /**
+   * Sums INT or BIGINT values in each bucket's long slot. INT sums wrap around
+   * exactly as they would if accumulated as ints.
+   */
+  private static class LongSumAccumulator extends Accumulator {
+    private final boolean mIsInt;
+
+    public LongSumAccumulator(boolean isInt) {
+      mIsInt = isInt;
+    }
+
+    @Override
+    public void add(Object arg, Bucket<?> bucket) {
+      if (null != arg) {
+        bucket.setLongState(bucket.getLongState() + ((Number) arg).longValue());
+        bucket.incrementCount();
+      }
+    }
+
+    @Override
+    public Object finishWindow(Iterable<? extends Bucket<?>> buckets) {
+      boolean nonNull = false;
+      long total = 0;
+      for (Bucket<?> bucket : buckets) {
+        if (bucket.getCount() > 0) {
+          total += bucket.getLongState();
+          nonNull = true;
+        }
+      }
+
+      if (!nonNull) {
+        return null; // Only null values in buckets.
+      } else if (mIsInt) {
+        return Integer.valueOf((int) total);
+      } else {
+        return Long.valueOf(total);
+      }
+    }
+  }
+
+  /**
+   * Sums FLOAT or DOUBLE values in each bucket's double slot. FLOAT sums are
+   * rounded to float precision at each step.
+   */
+  private static class DoubleSumAccumulator extends Accumulator {
+    private final boolean mIsFloat;
+
+    public DoubleSumAccumulator(boolean isFloat) {
+      mIsFloat = isFloat;
+    }
+
+    @Override
+    public void add(Object arg, Bucket<?> bucket) {
+      if (null != arg) {
+        if (mIsFloat) {
+          bucket.setDoubleState((float) bucket.getDoubleState() + ((Number) arg).floatValue());
+        } else {
+          bucket.setDoubleState(bucket.getDoubleState() + ((Number) arg).doubleValue());
+        }
+        bucket.incrementCount();
+      }
+    }
+
+    @Override
+    public Object finishWindow(Iterable<? extends Bucket<?>> buckets) {
+      boolean nonNull = false;
+      if (mIsFloat) {
+        float total = 0;
+        for (Bucket<?> bucket : buckets) {
+          if (bucket.getCount() > 0) {
+            total += (float) bucket.getDoubleState();
+            nonNull = true;
+          }
+        }
+        return nonNull ? Float.valueOf(total) : null;
+      } else {
+        double total = 0;
+        for (Bucket<?> bucket : buckets) {
+          if (bucket.getCount() > 0) {
+            total += bucket.getDoubleState();
+            nonNull = true;
+          }
+        }
+        return nonNull ? Double.valueOf(total) : null;
+      }
+    }
+  }
+
   public sum() {
     mArgType = new UniversalType("'a");
     mArgType.addConstraint(Type.getNullable(Type.TypeName.TYPECLASS_NUMERIC));
@@ -162,6 +251,27 @@ public class sum extends AggregateFunc<Number> {
     }
   }
 
+  @Override
+  public Accumulator getAccumulator(Type type) {
+    Type.TypeName typeName = type.getPrimitiveTypeName();
+    if (null == typeName) {
+      return null;
+    }
+
+    switch (typeName) {
+    case INT:
+      return new LongSumAccumulator(true);
+    case BIGINT:
+      return new LongSumAccumulator(false);
+    case FLOAT:
+      return new DoubleSumAccumulator(true);
+    case DOUBLE:
+      return new DoubleSumAccumulator(false);
+    default:
+      return null; // PRECISE values are summed as BigDecimal objects.
+    }
+  }
+
   @Override
   public Type getReturnType() {
     // Return type is same as the input argument.
@@ -177,4 +287,9 @@ public class sum extends AggregateFunc<Number> {
   public boolean autoPromoteArguments() {
     return false;
   }
+
+  @Override
+  public boolean scalesWithSampling() {
+    return true;
+  }
 }
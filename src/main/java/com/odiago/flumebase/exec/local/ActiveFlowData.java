@@ -55,11 +55,15 @@ public class ActiveFlowData implements CloseHandler<UserSession> {
   /** Stream name associated with the output of this flow. */
   private String mStreamName;
 
+  /** Running chains of FlowElements which feed this flow, and maybe others. */
+  private final List<SharedSubplan> mSharedSubplans;
+
   public ActiveFlowData(LocalFlow flow) {
     mLocalFlow = flow;
     mJoinTargets = new ArrayList<Ref<Boolean>>();
     mWatchingSessions = new ArrayList<UserSession>();
     mStreamName = null;
+    mSharedSubplans = new ArrayList<SharedSubplan>();
   }
 
   public LocalFlow getFlow() {
@@ -78,6 +82,16 @@ public class ActiveFlowData implements CloseHandler<UserSession> {
     return mStreamName;
   }
 
+  /** This flow is fed by the running chain of FlowElements 'subplan'. */
+  public void addSharedSubplan(SharedSubplan subplan) {
+    mSharedSubplans.add(subplan);
+  }
+
+  /** @return the running chains of FlowElements which feed this flow. */
+  public List<SharedSubplan> getSharedSubplans() {
+    return mSharedSubplans;
+  }
+
   /** Notifies everyone waiting on this flow that it is canceled. */
   public void cancel() {
     for (Ref<Boolean> joinTarget : mJoinTargets) {
@@ -24,6 +24,8 @@ import java.util.List;
 
 import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.Watermark;
+import com.odiago.flumebase.exec.WatermarkGenerator;
 
 /**
  * Context for a FlowElement which has a single downstream FE on the
@@ -35,8 +37,19 @@ public class DirectCoupledFlowElemContext extends LocalContext {
   /** The downstream element where we sent events. */
   private FlowElement mDownstream;
 
+  /**
+   * Generates watermarks for the events pushed through this context;
+   * null if watermarks are disabled, or generated elsewhere.
+   */
+  private WatermarkGenerator mWatermarks;
+
   public DirectCoupledFlowElemContext(FlowElement downstream) {
+    this(downstream, null);
+  }
+
+  public DirectCoupledFlowElemContext(FlowElement downstream, WatermarkGenerator watermarks) {
     mDownstream = downstream;
+    mWatermarks = watermarks;
   }
 
   /**
@@ -44,7 +57,16 @@ public class DirectCoupledFlowElemContext extends LocalContext {
    */
   @Override
   public void emit(EventWrapper e) throws IOException, InterruptedException {
-    mDownstream.takeEvent(e);
+    Watermark watermark = null;
+    if (null != mWatermarks && !(e instanceof Watermark)) {
+      // Observe the event before handing it off; the consumer may reuse it.
+      watermark = mWatermarks.observe(e);
+    }
+
+    mDownstream.deliver(e);
+    if (null != watermark) {
+      mDownstream.deliver(watermark);
+    }
   }
 
   /**
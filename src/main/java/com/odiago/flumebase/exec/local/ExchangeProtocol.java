@@ -0,0 +1,151 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+import com.cloudera.util.Pair;
+
+import com.odiago.flumebase.util.ValueCodec;
+
+/**
+ * Binary protocol between the coordinator and the workers running the
+ * source fragments of a flow.
+ *
+ * <p>The coordinator asks a worker to run a fragment by connecting to its
+ * FragmentServer and sending a fragment request: the query, and the
+ * options to plan it with. The worker replies with a message and the id of
+ * the fragment's flow, or -1 if it could not be started. The connection
+ * stays open while the fragment runs; the worker cancels the fragment when
+ * the coordinator closes it.</p>
+ *
+ * <p>The fragment's ExchangeSinkElement connects to the coordinator's
+ * ExchangeSourceElement and sends it a sequence of frames, each a type byte
+ * followed by its contents: DATA (an event) or PARTIAL (a partial aggregate,
+ * as written by PartialAggregateCodec), WATERMARK (a time) and finally END.
+ * A fragment which fails or is canceled closes the connection without
+ * sending END. The coordinator sends CREDIT frames back, each allowing a
+ * number of further DATA or PARTIAL frames to be sent; the worker stops when
+ * its credit runs out, so the coordinator's input buffer bounds the events
+ * in flight.</p>
+ */
+public final class ExchangeProtocol {
+  /** Number of events a worker may send before it receives further credit. */
+  public static final String CREDITS_KEY = "flumebase.exchange.credits";
+  public static final int DEFAULT_CREDITS = 1000;
+
+  static final byte DATA = 1;
+  static final byte WATERMARK = 2;
+  static final byte CREDIT = 3;
+  static final byte END = 4;
+  static final byte PARTIAL = 5;
+
+  private ExchangeProtocol() { }
+
+  /** Write a request to run the fragment of 'query' planned with 'options'. */
+  public static void writeFragmentRequest(DataOutput out, String query,
+      Map<String, String> options) throws IOException {
+    ValueCodec.writeValue(out, query);
+    out.writeInt(options.size());
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      ValueCodec.writeValue(out, option.getKey());
+      ValueCodec.writeValue(out, option.getValue());
+    }
+  }
+
+  /** @return the query and options of a request written by writeFragmentRequest(). */
+  public static Pair<String, Map<String, String>> readFragmentRequest(DataInput in)
+      throws IOException {
+    String query = readString(in);
+    int numOptions = in.readInt();
+    Map<String, String> options = new HashMap<String, String>();
+    for (int i = 0; i < numOptions; i++) {
+      String key = readString(in);
+      options.put(key, readString(in));
+    }
+    return new Pair<String, Map<String, String>>(query, options);
+  }
+
+  /** Reply to a fragment request. 'flowId' is -1 if no flow was started. */
+  public static void writeFragmentResponse(DataOutput out, String msg, long flowId)
+      throws IOException {
+    ValueCodec.writeValue(out, msg);
+    out.writeLong(flowId);
+  }
+
+  /** @return the message and flow id of a reply written by writeFragmentResponse(). */
+  public static Pair<String, Long> readFragmentResponse(DataInput in) throws IOException {
+    String msg = readString(in);
+    return new Pair<String, Long>(msg, Long.valueOf(in.readLong()));
+  }
+
+  /** Write a DATA frame holding 'event'. */
+  static void writeEvent(DataOutput out, Event event) throws IOException {
+    out.writeByte(DATA);
+    out.writeByte(event.getPriority().ordinal());
+    out.writeLong(event.getTimestamp());
+    out.writeLong(event.getNanos());
+    ValueCodec.writeValue(out, event.getHost());
+    Map<String, byte[]> attrs = event.getAttrs();
+    out.writeInt(attrs.size());
+    for (Map.Entry<String, byte[]> attr : attrs.entrySet()) {
+      ValueCodec.writeValue(out, attr.getKey());
+      writeBytes(out, attr.getValue());
+    }
+    writeBytes(out, event.getBody());
+  }
+
+  /** @return the event of a DATA frame whose type byte has been read. */
+  static Event readEvent(DataInput in) throws IOException {
+    Event.Priority priority = Event.Priority.values()[in.readByte()];
+    long timestamp = in.readLong();
+    long nanos = in.readLong();
+    String host = readString(in);
+    int numAttrs = in.readInt();
+    Map<String, byte[]> attrs = new HashMap<String, byte[]>();
+    for (int i = 0; i < numAttrs; i++) {
+      String key = readString(in);
+      attrs.put(key, readBytes(in));
+    }
+    return new EventImpl(readBytes(in), timestamp, priority, nanos, host, attrs);
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    Object val = ValueCodec.readValue(in);
+    return null == val ? null : val.toString();
+  }
+
+  private static void writeBytes(DataOutput out, byte [] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte [] readBytes(DataInput in) throws IOException {
+    byte [] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
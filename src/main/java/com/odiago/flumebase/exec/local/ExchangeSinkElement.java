@@ -0,0 +1,227 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.net.Socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.FlowElementImpl;
+import com.odiago.flumebase.exec.PartialAggregateCodec;
+import com.odiago.flumebase.exec.Watermark;
+
+import com.odiago.flumebase.plan.AggregateNode;
+
+/**
+ * Sends the events and watermarks of a source fragment running on a worker
+ * to the ExchangeSourceElement of the coordinator, using ExchangeProtocol.
+ * Each event is sent only once the coordinator has granted credit for it;
+ * until then, the flow is blocked here. The end of the stream is sent only
+ * if the fragment completes; if it is canceled, the connection is closed
+ * without it, so that the coordinator does not take what it received for
+ * the whole stream.
+ */
+public class ExchangeSinkElement extends FlowElementImpl {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      ExchangeSinkElement.class.getName());
+
+  /** host:port address of the coordinator. */
+  private final String mTarget;
+
+  /** Writes the partial aggregates we send; null if we send events. */
+  private final PartialAggregateCodec mPartialCodec;
+
+  private Socket mSocket;
+  private DataOutputStream mOut;
+  private CreditThread mCreditThread;
+
+  /** Number of events we may send before we receive further credit. */
+  private long mCredits;
+
+  /** Set to true if the connection to the coordinator has failed. */
+  private boolean mIsBroken;
+
+  /** Number of events discarded because the connection failed. */
+  private long mNumDropped;
+
+  /** Set to true once all upstream elements are complete. */
+  private boolean mUpstreamComplete;
+
+  public ExchangeSinkElement(FlowElementContext ctxt, String target,
+      AggregateNode aggregateNode) {
+    super(ctxt);
+    mTarget = target;
+    mPartialCodec = null == aggregateNode ? null : new PartialAggregateCodec(aggregateNode);
+  }
+
+  @Override
+  public void open() throws IOException, InterruptedException {
+    int colon = mTarget.lastIndexOf(':');
+    if (colon < 0) {
+      throw new IOException("Exchange target is not host:port: " + mTarget);
+    }
+    mSocket = new Socket(mTarget.substring(0, colon),
+        Integer.parseInt(mTarget.substring(colon + 1)));
+    mOut = new DataOutputStream(new BufferedOutputStream(mSocket.getOutputStream()));
+    mCreditThread = new CreditThread(new DataInputStream(
+        new BufferedInputStream(mSocket.getInputStream())));
+    mCreditThread.start();
+    super.open();
+  }
+
+  @Override
+  public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    if (!acquireCredit()) {
+      mNumDropped++;
+      return;
+    }
+
+    try {
+      if (null == mPartialCodec) {
+        ExchangeProtocol.writeEvent(mOut, e.getEvent());
+      } else {
+        mOut.writeByte(ExchangeProtocol.PARTIAL);
+        mPartialCodec.write(e, mOut);
+      }
+      mOut.flush();
+    } catch (IOException ioe) {
+      LOG.error("Lost connection to coordinator " + mTarget + ": " + ioe);
+      setBroken();
+      mNumDropped++;
+    }
+  }
+
+  @Override
+  public void takeWatermark(Watermark w) throws IOException, InterruptedException {
+    if (isBroken()) {
+      return;
+    }
+
+    try {
+      mOut.writeByte(ExchangeProtocol.WATERMARK);
+      mOut.writeLong(w.getTime());
+      mOut.flush();
+    } catch (IOException ioe) {
+      LOG.error("Lost connection to coordinator " + mTarget + ": " + ioe);
+      setBroken();
+    }
+  }
+
+  @Override
+  public void closeUpstream() throws IOException, InterruptedException {
+    mUpstreamComplete = true;
+    super.closeUpstream();
+  }
+
+  @Override
+  public void close() throws IOException, InterruptedException {
+    if (null == mSocket) {
+      // Never connected.
+      super.close();
+      return;
+    }
+
+    try {
+      if (mUpstreamComplete && !isBroken()) {
+        mOut.writeByte(ExchangeProtocol.END);
+        mOut.flush();
+      }
+    } catch (IOException ioe) {
+      LOG.error("Lost connection to coordinator " + mTarget + ": " + ioe);
+    } finally {
+      // Closing the socket ends our credit thread.
+      mSocket.close();
+      mCreditThread.join();
+      if (mNumDropped > 0) {
+        LOG.warn("Discarded " + mNumDropped + " events for coordinator " + mTarget);
+      }
+      super.close();
+    }
+  }
+
+  /**
+   * Wait until we may send an event, and consume the credit for it.
+   * @return false if the connection has failed.
+   */
+  private synchronized boolean acquireCredit() throws InterruptedException {
+    if (mCredits == 0 && !mIsBroken) {
+      LOG.debug("Waiting for credit from coordinator");
+    }
+    while (mCredits == 0 && !mIsBroken) {
+      wait();
+    }
+
+    if (mIsBroken) {
+      return false;
+    }
+    mCredits--;
+    return true;
+  }
+
+  private synchronized void addCredit(int credits) {
+    mCredits += credits;
+    notifyAll();
+  }
+
+  private synchronized void setBroken() {
+    mIsBroken = true;
+    notifyAll();
+  }
+
+  private synchronized boolean isBroken() {
+    return mIsBroken;
+  }
+
+  /** Thread which receives the coordinator's CREDIT frames. */
+  private class CreditThread extends Thread {
+    private final DataInputStream mIn;
+
+    public CreditThread(DataInputStream in) {
+      super("ExchangeCredit-" + mTarget);
+      mIn = in;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          byte type = mIn.readByte();
+          if (type != ExchangeProtocol.CREDIT) {
+            throw new IOException("Unexpected frame type from coordinator: " + type);
+          }
+          addCredit(mIn.readInt());
+        }
+      } catch (IOException ioe) {
+        // The coordinator closed the connection, or we did.
+        LOG.debug("Credit connection closed: " + ioe);
+      } finally {
+        setBroken();
+      }
+    }
+  }
+}
@@ -0,0 +1,450 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.flume.core.Event;
+
+import com.cloudera.util.Pair;
+
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.FlowElementImpl;
+import com.odiago.flumebase.exec.PartialAggregateCodec;
+import com.odiago.flumebase.exec.ParsingEventWrapper;
+import com.odiago.flumebase.exec.StreamSymbol;
+import com.odiago.flumebase.exec.Watermark;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.ExchangeSourceNode;
+import com.odiago.flumebase.plan.PlanFragmenter;
+
+import com.odiago.flumebase.util.NetUtils;
+
+/**
+ * Source of a flow running on the coordinator, which receives the events of
+ * a stream from the source fragments running on each worker.
+ *
+ * <p>When opened, this listens for connections from the workers' fragments,
+ * and asks each worker to run the fragment. Each connection is served by its
+ * own thread, which grants the worker credit as the events it sent are
+ * accepted downstream. The watermark passed downstream is the least of the
+ * watermarks of the workers whose fragments are still running. The source
+ * is complete when every fragment is.</p>
+ *
+ * <p>If a worker cannot run its fragment, or its connection is lost before
+ * the fragment completes, the flow fails: the events received cannot be
+ * taken for the whole stream.</p>
+ */
+public class ExchangeSourceElement extends FlowElementImpl {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      ExchangeSourceElement.class.getName());
+
+  /**
+   * Host name by which workers reach this process. If unset, the canonical
+   * name of the local host is used.
+   */
+  public static final String EXCHANGE_HOST_KEY = "flumebase.exchange.host";
+
+  private final ExchangeSourceNode mNode;
+  private final StreamSymbol mStream;
+  private final List<String> mFieldNames;
+  private final String mQuery;
+  private final Configuration mConf;
+
+  /** Reads the partial aggregates we receive; null if we receive events. */
+  private final PartialAggregateCodec mPartialCodec;
+
+  /** Credit granted to each worker at once. */
+  private final int mCredits;
+
+  private ServerSocket mServerSocket;
+  private DispatchThread mDispatchThread;
+
+  /** Connections over which the workers' fragments were requested. */
+  private final List<Socket> mControlSockets;
+
+  private final List<ReceiverThread> mReceivers;
+
+  /** Latest watermark of each worker; Long.MAX_VALUE once its fragment completes. */
+  private long[] mWatermarks;
+
+  /** Time of the last watermark we passed downstream. */
+  private long mOutputWatermark = Long.MIN_VALUE;
+
+  /** Number of fragments which have not yet completed. */
+  private int mNumOpen;
+
+  private volatile boolean mIsFinished;
+
+  /** Set to true once we have failed the flow. */
+  private boolean mIsFailed;
+
+  public ExchangeSourceElement(FlowElementContext ctxt, ExchangeSourceNode node,
+      StreamSymbol stream, String query, Configuration conf) {
+    super(ctxt);
+    mNode = node;
+    mStream = stream;
+    mQuery = query;
+    mConf = conf;
+    mCredits = Math.max(1, conf.getInt(ExchangeProtocol.CREDITS_KEY,
+        ExchangeProtocol.DEFAULT_CREDITS));
+    mFieldNames = new ArrayList<String>();
+    for (TypedField field : node.getFields()) {
+      mFieldNames.add(field.getAvroName());
+    }
+    mControlSockets = new ArrayList<Socket>();
+    mReceivers = new ArrayList<ReceiverThread>();
+    mPartialCodec = null == node.getAggregateNode()
+        ? null : new PartialAggregateCodec(node.getAggregateNode());
+  }
+
+  @Override
+  public void takeEvent(EventWrapper e) {
+    throw new RuntimeException("ExchangeSourceElement does not expect takeEvent()");
+  }
+
+  @Override
+  public void open() throws IOException, InterruptedException {
+    super.open();
+    if (null != mServerSocket) {
+      throw new IOException("ExchangeSourceElement.open() called multiple times");
+    }
+    mServerSocket = new ServerSocket(0);
+    mServerSocket.setSoTimeout(1000);
+    mDispatchThread = new DispatchThread();
+    mDispatchThread.start();
+  }
+
+  @Override
+  public void close() throws IOException, InterruptedException {
+    mIsFinished = true;
+    if (null != mServerSocket) {
+      mServerSocket.close();
+      mDispatchThread.join();
+    }
+
+    // Closing the control connections cancels any fragments still running.
+    synchronized (this) {
+      for (Socket socket : mControlSockets) {
+        closeQuietly(socket);
+      }
+      for (ReceiverThread receiver : mReceivers) {
+        receiver.finish();
+      }
+    }
+
+    super.close();
+  }
+
+  /**
+   * @return the options with which workers plan the query: those of this
+   * flow, except that they run the fragment and send its events here.
+   */
+  private Map<String, String> getFragmentOptions(String target) {
+    Map<String, String> options = new HashMap<String, String>();
+    for (Map.Entry<String, String> entry : mConf) {
+      if (entry.getKey().startsWith("flumebase.")) {
+        options.put(entry.getKey(), entry.getValue());
+      }
+    }
+    options.remove(PlanFragmenter.WORKERS_KEY);
+    options.remove(LocalEnvironment.SUBMITTER_SESSION_ID_KEY);
+    options.put(PlanFragmenter.FRAGMENT_SOURCE_KEY, Integer.toString(mNode.getSourceId()));
+    options.put(PlanFragmenter.FRAGMENT_TARGET_KEY, target);
+    return options;
+  }
+
+  /**
+   * Ask 'worker' to run our fragment.
+   * @return the connection to the worker.
+   * @throws IOException if the worker is not running the fragment.
+   */
+  private Socket requestFragment(String worker, Map<String, String> options)
+      throws IOException {
+    Socket socket = null;
+    try {
+      int colon = worker.lastIndexOf(':');
+      if (colon < 0) {
+        throw new IOException("Worker address is not host:port: " + worker);
+      }
+      socket = new Socket(worker.substring(0, colon),
+          Integer.parseInt(worker.substring(colon + 1)));
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(socket.getOutputStream()));
+      ExchangeProtocol.writeFragmentRequest(out, mQuery, options);
+      out.flush();
+
+      Pair<String, Long> response = ExchangeProtocol.readFragmentResponse(
+          new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+      if (response.getRight().longValue() < 0) {
+        throw new IOException("Worker " + worker + " could not run fragment: "
+            + response.getLeft());
+      }
+      LOG.info("Worker " + worker + " is running fragment " + mNode.getSourceId()
+          + " as flow " + response.getRight());
+      return socket;
+    } catch (NumberFormatException nfe) {
+      throw new IOException("Invalid worker address " + worker + ": " + nfe);
+    } catch (IOException ioe) {
+      closeQuietly(socket);
+      throw ioe;
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    if (null != socket) {
+      try {
+        socket.close();
+      } catch (IOException ioe) {
+        LOG.debug("Exception closing socket: " + ioe);
+      }
+    }
+  }
+
+  /**
+   * Record that worker 'workerId' will send no further events before
+   * 'time', and pass on the least watermark of all workers if it has advanced.
+   */
+  private synchronized void mergeWatermark(int workerId, long time)
+      throws IOException, InterruptedException {
+    mWatermarks[workerId] = Math.max(mWatermarks[workerId], time);
+    long outputWatermark = Long.MAX_VALUE;
+    for (long watermark : mWatermarks) {
+      outputWatermark = Math.min(outputWatermark, watermark);
+    }
+
+    if (outputWatermark > mOutputWatermark && outputWatermark < Long.MAX_VALUE) {
+      mOutputWatermark = outputWatermark;
+      emit(new Watermark(outputWatermark, mStream.getName()));
+    }
+  }
+
+  /**
+   * Fail the flow, since the events of some worker's fragment cannot all be
+   * received. Only the first failure is reported.
+   */
+  private void failFlow(String reason) throws InterruptedException {
+    synchronized (this) {
+      if (mIsFailed || mIsFinished) {
+        return;
+      }
+      mIsFailed = true;
+    }
+
+    LOG.error(reason);
+    ((LocalContext) getContext()).failFlow(reason);
+  }
+
+  /** Called by each receiver when its fragment is complete. */
+  private void fragmentComplete(int workerId) throws IOException, InterruptedException {
+    mergeWatermark(workerId, Long.MAX_VALUE);
+    boolean isComplete;
+    synchronized (this) {
+      isComplete = --mNumOpen == 0;
+    }
+    if (isComplete) {
+      getContext().notifyCompletion();
+    }
+  }
+
+  /**
+   * Thread which requests the fragment from each worker, then accepts the
+   * connection of each fragment which was started.
+   */
+  private class DispatchThread extends Thread {
+    public DispatchThread() {
+      super("ExchangeDispatch-" + mStream.getName());
+    }
+
+    @Override
+    public void run() {
+      String target = mConf.get(EXCHANGE_HOST_KEY, NetUtils.getHostName()) + ":"
+          + mServerSocket.getLocalPort();
+      Map<String, String> options = getFragmentOptions(target);
+      int numStarted = mNode.getWorkers().size();
+      synchronized (ExchangeSourceElement.this) {
+        mWatermarks = new long[numStarted];
+        for (int i = 0; i < numStarted; i++) {
+          mWatermarks[i] = Long.MIN_VALUE;
+        }
+        mNumOpen = numStarted;
+      }
+
+      try {
+        for (String worker : mNode.getWorkers()) {
+          if (mIsFinished) {
+            return;
+          }
+          Socket control;
+          try {
+            control = requestFragment(worker, options);
+          } catch (IOException ioe) {
+            failFlow("Could not run source fragment of stream " + mStream.getName()
+                + ": " + ioe.getMessage());
+            return;
+          }
+          synchronized (ExchangeSourceElement.this) {
+            mControlSockets.add(control);
+          }
+        }
+
+        int numConnected = 0;
+        while (numConnected < numStarted && !mIsFinished) {
+          Socket socket;
+          try {
+            socket = mServerSocket.accept();
+          } catch (SocketTimeoutException ste) {
+            continue; // Check whether we have been closed.
+          }
+
+          synchronized (ExchangeSourceElement.this) {
+            if (mIsFinished) {
+              closeQuietly(socket);
+              break;
+            }
+            ReceiverThread receiver = new ReceiverThread(numConnected++, socket);
+            mReceivers.add(receiver);
+            receiver.start();
+          }
+        }
+      } catch (IOException ioe) {
+        try {
+          failFlow("IOException accepting fragment connections: " + ioe);
+        } catch (InterruptedException ie) {
+          LOG.error("Interrupted failing flow: " + ie);
+        }
+      } catch (InterruptedException ie) {
+        LOG.error("Interrupted in exchange dispatch: " + ie);
+      }
+    }
+  }
+
+  /** Thread which receives the events of one worker's fragment. */
+  private class ReceiverThread extends Thread {
+    private final int mWorkerId;
+    private final Socket mSocket;
+
+    public ReceiverThread(int workerId, Socket socket) {
+      super("ExchangeReceiver-" + mStream.getName() + "-" + workerId);
+      mWorkerId = workerId;
+      mSocket = socket;
+      setDaemon(true);
+    }
+
+    /** Stop receiving events, even if blocked emitting one. */
+    public void finish() {
+      closeQuietly(mSocket);
+      interrupt();
+    }
+
+    @Override
+    public void run() {
+      boolean isComplete = false;
+      String failure = null;
+      try {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(mSocket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(mSocket.getOutputStream()));
+        grantCredit(out, mCredits);
+
+        int numReceived = 0;
+        while (!isComplete) {
+          byte type = in.readByte();
+          switch (type) {
+          case ExchangeProtocol.DATA:
+          case ExchangeProtocol.PARTIAL:
+            if ((type == ExchangeProtocol.PARTIAL) != (null != mPartialCodec)) {
+              throw new IOException("Unexpected frame type from worker: " + type);
+            } else if (null != mPartialCodec) {
+              emit(mPartialCodec.read(in));
+            } else {
+              Event event = ExchangeProtocol.readEvent(in);
+              ParsingEventWrapper wrapper = new ParsingEventWrapper(mStream.getEventParser(),
+                  mFieldNames);
+              wrapper.reset(event);
+              emit(wrapper);
+            }
+
+            // Grant credit for the events accepted downstream, in batches.
+            if (++numReceived >= (mCredits + 1) / 2) {
+              grantCredit(out, numReceived);
+              numReceived = 0;
+            }
+            break;
+          case ExchangeProtocol.WATERMARK:
+            mergeWatermark(mWorkerId, in.readLong());
+            break;
+          case ExchangeProtocol.END:
+            isComplete = true;
+            break;
+          default:
+            throw new IOException("Unexpected frame type from worker: " + type);
+          }
+        }
+      } catch (IOException ioe) {
+        failure = "Lost connection to worker fragment " + mWorkerId + " of stream "
+            + mStream.getName() + ": " + ioe;
+      } catch (InterruptedException ie) {
+        failure = "Interrupted receiving from worker fragment " + mWorkerId + " of stream "
+            + mStream.getName() + ": " + ie;
+      } finally {
+        closeQuietly(mSocket);
+      }
+
+      try {
+        if (isComplete) {
+          fragmentComplete(mWorkerId);
+        } else {
+          failFlow(failure);
+        }
+      } catch (IOException ioe) {
+        LOG.warn("IOException sending completion notice: " + ioe);
+      } catch (InterruptedException ie) {
+        LOG.warn("InterruptedException sending completion notice: " + ie);
+      }
+    }
+
+    private void grantCredit(DataOutputStream out, int credits) throws IOException {
+      out.writeByte(ExchangeProtocol.CREDIT);
+      out.writeInt(credits);
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.util.Random;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.Watermark;
+
+import com.odiago.flumebase.util.concurrent.ArrayBoundedSelectableQueue;
+
+/**
+ * Decides what to do with events arriving at a source faster than the flow
+ * can process them, when the queue into the rest of the flow is full.
+ *
+ * <p>By default a source blocks until there is room in the queue, which
+ * holds up the Flume node delivering events to it. A flow may instead drop
+ * the newest event (the one arriving), drop the oldest event in the queue,
+ * or sample the arriving events once the queue is filled beyond a threshold;
+ * the fraction kept falls from all of them at the threshold to none when
+ * the queue is full. Watermarks are never dropped, nor waited for: a
+ * watermark which does not fit in the queue is held by the source's context
+ * until it does. The number of events dropped is reported with the flow.</p>
+ */
+public class LoadShedder {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      LoadShedder.class.getName());
+
+  /** One of "block", "drop-newest", "drop-oldest" or "sample". */
+  public static final String OVERLOAD_POLICY_KEY = "flumebase.flow.overload.policy";
+  public static final String DEFAULT_OVERLOAD_POLICY = "block";
+
+  /** Fraction of the queue which must be full before the "sample" policy drops events. */
+  public static final String SAMPLE_THRESHOLD_KEY = "flumebase.flow.overload.sample.threshold";
+  public static final float DEFAULT_SAMPLE_THRESHOLD = 0.8f;
+
+  /** What to do with an event that arrives when the flow is overloaded. */
+  public static enum Policy {
+    BLOCK,
+    DROP_NEWEST,
+    DROP_OLDEST,
+    SAMPLE
+  }
+
+  /** Allows any event but a watermark to be evicted from a queue. */
+  private static final ArrayBoundedSelectableQueue.EvictionFilter<Object> EVENTS =
+      new ArrayBoundedSelectableQueue.EvictionFilter<Object>() {
+        public boolean canEvict(Object item) {
+          return item instanceof EventWrapper && !(item instanceof Watermark);
+        }
+      };
+
+  private final Policy mPolicy;
+
+  private final double mThreshold;
+
+  private final Random mRandom;
+
+  /** Number of events dropped. */
+  private final AtomicLong mShedCount;
+
+  public LoadShedder(Policy policy, double threshold) {
+    mPolicy = policy;
+    mThreshold = Math.min(1.0, Math.max(0.0, threshold));
+    mRandom = new Random();
+    mShedCount = new AtomicLong();
+  }
+
+  /**
+   * @return a LoadShedder configured by 'conf', or null if sources should
+   * block when their flows are overloaded.
+   */
+  public static LoadShedder create(Configuration conf) {
+    String policyName = conf.get(OVERLOAD_POLICY_KEY, DEFAULT_OVERLOAD_POLICY);
+    Policy policy;
+    try {
+      policy = Policy.valueOf(policyName.trim().toUpperCase().replace('-', '_'));
+    } catch (IllegalArgumentException iae) {
+      LOG.warn("Unknown " + OVERLOAD_POLICY_KEY + " \"" + policyName
+          + "\"; sources will block when overloaded.");
+      return null;
+    }
+
+    if (Policy.BLOCK.equals(policy)) {
+      return null;
+    }
+
+    return new LoadShedder(policy,
+        conf.getFloat(SAMPLE_THRESHOLD_KEY, DEFAULT_SAMPLE_THRESHOLD));
+  }
+
+  public Policy getPolicy() {
+    return mPolicy;
+  }
+
+  /**
+   * Enqueue 'e' in 'queue', unless this policy drops it.
+   * @return true if 'e' was enqueued.
+   */
+  public boolean enqueue(ArrayBoundedSelectableQueue<Object> queue, EventWrapper e)
+      throws InterruptedException {
+    switch (mPolicy) {
+    case DROP_NEWEST:
+      if (!queue.offer(e)) {
+        mShedCount.incrementAndGet();
+        return false;
+      }
+      return true;
+    case DROP_OLDEST:
+      Object evicted = queue.offerEvicting(e, EVENTS);
+      if (null != evicted) {
+        mShedCount.incrementAndGet();
+      }
+      return evicted != e;
+    case SAMPLE:
+      if (!isSampled(queue) || !queue.offer(e)) {
+        mShedCount.incrementAndGet();
+        return false;
+      }
+      return true;
+    default:
+      queue.put(e);
+      return true;
+    }
+  }
+
+  /**
+   * Enqueue 'watermark' in 'queue' without blocking. Under the drop-oldest
+   * policy, the oldest queued event is dropped to make room for it.
+   * @return true if 'watermark' was enqueued; false if there was no room.
+   */
+  public boolean offerWatermark(ArrayBoundedSelectableQueue<Object> queue,
+      Watermark watermark) {
+    if (Policy.DROP_OLDEST.equals(mPolicy)) {
+      Object evicted = queue.offerEvicting(watermark, EVENTS);
+      if (evicted == watermark) {
+        return false;
+      } else if (null != evicted) {
+        mShedCount.incrementAndGet();
+      }
+      return true;
+    }
+
+    return queue.offer(watermark);
+  }
+
+  /** @return true if an event should be kept, given the occupancy of 'queue'. */
+  private boolean isSampled(ArrayBoundedSelectableQueue<Object> queue) {
+    double occupancy = (double) queue.size() / queue.getCapacity();
+    if (occupancy < mThreshold) {
+      return true;
+    } else if (mThreshold >= 1.0) {
+      return false; // The queue is full.
+    }
+
+    double keepRate = (1.0 - occupancy) / (1.0 - mThreshold);
+    return mRandom.nextDouble() < keepRate;
+  }
+
+  /** @return the number of events dropped. */
+  public long getShedCount() {
+    return mShedCount.get();
+  }
+}
@@ -22,8 +22,11 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
+import com.cloudera.util.Pair;
+
 import com.odiago.flumebase.exec.FlowElement;
 import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.FlowId;
 
 import com.odiago.flumebase.util.concurrent.SelectableQueue;
 
@@ -70,6 +73,17 @@ public abstract class LocalContext extends FlowElementContext {
     mNotifiedCompletion = true;
   }
 
+  /**
+   * Specify to the LocalEnvironment that the flow cannot complete correctly,
+   * and should be canceled without emitting further output; 'reason' is
+   * reported to the sessions watching it.
+   */
+  public void failFlow(String reason) throws InterruptedException {
+    mControlQueue.put(new LocalEnvironment.ControlOp(
+        LocalEnvironment.ControlOp.Code.FailFlow,
+        new Pair<FlowId, String>(mFlowData.getFlowId(), reason)));
+  }
+
   void setFlowData(ActiveFlowData flowData) {
     mFlowData = flowData;
   }
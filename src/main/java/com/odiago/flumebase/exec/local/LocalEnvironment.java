@@ -67,8 +67,13 @@ import com.odiago.flumebase.parser.ASTGenerator;
 import com.odiago.flumebase.parser.SQLStatement;
 
 import com.odiago.flumebase.plan.FlowSpecification;
+import com.odiago.flumebase.plan.FuseOperators;
+import com.odiago.flumebase.plan.InsertCombiners;
+import com.odiago.flumebase.plan.MarkSharedPrefixes;
 import com.odiago.flumebase.plan.PlanContext;
+import com.odiago.flumebase.plan.PlanFragmenter;
 import com.odiago.flumebase.plan.PropagateSchemas;
+import com.odiago.flumebase.plan.PruneFields;
 
 import com.odiago.flumebase.server.SessionId;
 import com.odiago.flumebase.server.UserSession;
@@ -103,6 +108,7 @@ public class LocalEnvironment extends ExecEnvironment {
     enum Code {
       AddFlow,         // A new flow shold be deployed.
       CancelFlow,      // An entire flow should be canceled.
+      FailFlow,        // An entire flow should be canceled, as it cannot complete correctly.
       CancelAll,       // All flows should be canceled.
       ShutdownThread,  // Stop processing anything else, immediately.
       Noop,            // Do no control action; just service data events.
@@ -175,12 +181,16 @@ public class LocalEnvironment extends ExecEnvironment {
      */
     private Set<SelectableQueue<Object>> mCloseQueues;
 
+    /** Running chains of FlowElements which new flows may share, by key. */
+    private Map<String, SharedSubplan> mSharedSubplans;
+
     public LocalEnvThread() {
       mActiveFlows = new HashMap<FlowId, ActiveFlowData>();
       mSelect = new Select<Object>();
       mCompletionEventQueue = new SyncSelectableQueue<Object>();
       mInputQueues = new HashMap<SelectableQueue<Object>, FlowElement>();
       mCloseQueues = new HashSet<SelectableQueue<Object>>();
+      mSharedSubplans = new HashMap<String, SharedSubplan>();
 
       setName("LocalEnvWorker");
     }
@@ -215,32 +225,8 @@ public class LocalEnvironment extends ExecEnvironment {
       try {
         newFlow.reverseBfs(new DAG.Operator<FlowElementNode>() {
           public void process(FlowElementNode elemNode) throws DAGOperatorException {
-            FlowElement flowElem = elemNode.getFlowElement();
-
-            // All FlowElements that we see will have LocalContext subclass contexts.
-            // Get the output queue from this.
-            LocalContext elemContext = (LocalContext) flowElem.getContext();
-            elemContext.initControlQueue(mCompletionEventQueue);
-            elemContext.setFlowData(activeFlowData);
-
-            elemContext.createDownstreamQueues();
-            List<SelectableQueue<Object>> elemBuffers = elemContext.getDownstreamQueues();
-            if (null != elemBuffers) {
-              List<FlowElement> downstreams = elemContext.getDownstream();
-              // Bind each queue to its downstream element.
-              for (int i = 0; i < elemBuffers.size(); i++) {
-                SelectableQueue<Object> elemBuffer = elemBuffers.get(i);
-                if (null != elemBuffer) {
-                  FlowElement downstream = downstreams.get(i);
-                  mInputQueues.put(elemBuffer, downstream);
-                  mSelect.add(elemBuffer); // And watch this queue for updates.
-                }
-              }
-            }
-
             try {
-              LOG.debug("Opening flow element of class: " + flowElem.getClass().getName());
-              flowElem.open();
+              openElement(elemNode.getFlowElement(), activeFlowData);
             } catch (IOException ioe) {
               throw new DAGOperatorException(ioe);
             } catch (InterruptedException ie) {
@@ -263,40 +249,87 @@ public class LocalEnvironment extends ExecEnvironment {
         }
       }
 
+      // Feed the flow from running copies of its shareable chains of
+      // elements, or start its own copies for later flows to share.
+      for (SharedSubplan prefix : newFlow.getSharedPrefixes()) {
+        SharedSubplan running = mSharedSubplans.get(prefix.getKey());
+        if (null != running && running.isLive()) {
+          LOG.info("Flow " + newFlow.getId() + " shares running subplan: " + prefix.getKey());
+          running.attach(newFlow.getId(), prefix.getDownstream());
+        } else {
+          running = prefix;
+          running.attach(newFlow.getId(), prefix.getDownstream());
+          List<FlowElementNode> elements = running.getElements();
+          for (int i = elements.size() - 1; i >= 0; i--) {
+            openElement(elements.get(i).getFlowElement(), activeFlowData);
+          }
+          mSharedSubplans.put(running.getKey(), running);
+        }
+        activeFlowData.addSharedSubplan(running);
+      }
+
       mActiveFlows.put(newFlow.getId(), activeFlowData);
     }
 
+    /**
+     * Open a FlowElement of the flow described by 'flowData'. Add its output
+     * queue(s) to the set of queues we monitor for further event processing.
+     */
+    private void openElement(FlowElement flowElem, ActiveFlowData flowData)
+        throws IOException, InterruptedException {
+      // All FlowElements that we see will have LocalContext subclass contexts.
+      // Get the output queue from this.
+      LocalContext elemContext = (LocalContext) flowElem.getContext();
+      elemContext.initControlQueue(mCompletionEventQueue);
+      elemContext.setFlowData(flowData);
+
+      elemContext.createDownstreamQueues();
+      List<SelectableQueue<Object>> elemBuffers = elemContext.getDownstreamQueues();
+      if (null != elemBuffers) {
+        List<FlowElement> downstreams = elemContext.getDownstream();
+        // Bind each queue to its downstream element.
+        for (int i = 0; i < elemBuffers.size(); i++) {
+          SelectableQueue<Object> elemBuffer = elemBuffers.get(i);
+          if (null != elemBuffer) {
+            FlowElement downstream = downstreams.get(i);
+            mInputQueues.put(elemBuffer, downstream);
+            mSelect.add(elemBuffer); // And watch this queue for updates.
+          }
+        }
+      }
+
+      LOG.debug("Opening flow element of class: " + flowElem.getClass().getName());
+      flowElem.open();
+    }
+
     private void cancelFlowInner(ActiveFlowData flowData) {
       // Close all FlowElements in the flow, and remove their output queues
       // from the set of queues we track.
       LocalFlow flow = flowData.getFlow();
+
+      // Stop feeding this flow from shared chains of elements; close those
+      // which no longer feed any flow.
+      for (SharedSubplan subplan : flowData.getSharedSubplans()) {
+        if (!subplan.detach(flow.getId())) {
+          LOG.info("Closing shared subplan: " + subplan.getKey());
+          if (mSharedSubplans.get(subplan.getKey()) == subplan) {
+            mSharedSubplans.remove(subplan.getKey());
+          }
+          for (FlowElementNode elemNode : subplan.getElements()) {
+            closeElement(elemNode.getFlowElement());
+          }
+        } else {
+          // The chain may have been started by this flow; rebind it to a
+          // flow which it still feeds.
+          FlowId survivor = subplan.getAttachedFlowIds().iterator().next();
+          subplan.setFlowData(mActiveFlows.get(survivor));
+        }
+      }
+
       try {
         flow.rankTraversal(new DAG.Operator<FlowElementNode>() {
           public void process(FlowElementNode elemNode) {
-            FlowElement flowElem = elemNode.getFlowElement();
-            if (!flowElem.isClosed()) {
-              try {
-                flowElem.close();
-              } catch (IOException ioe) {
-                LOG.error("IOException when closing flow element: " + ioe);
-              } catch (InterruptedException ie) {
-                LOG.error("InterruptedException when closing flow element: " + ie);
-              }
-            }
-
-            // All FlowElements that we see will have LocalContext subclass contexts.
-            // Get the output queue from this, and remove it from the tracking set.
-            LocalContext elemContext = (LocalContext) flowElem.getContext();
-            List<SelectableQueue<Object>> outQueues = elemContext.getDownstreamQueues();
-            if (null != outQueues) {
-              for (SelectableQueue<Object> outQueue : outQueues) {
-                if (null != outQueue) {
-                  mSelect.remove(outQueue);
-                  mInputQueues.remove(outQueue);
-                  mCloseQueues.remove(outQueue);
-                }
-              }
-            }
+            closeElement(elemNode.getFlowElement());
           }
         });
       } catch (DAGOperatorException doe) {
@@ -308,6 +341,36 @@ public class LocalEnvironment extends ExecEnvironment {
       flowData.cancel();
     }
 
+    /**
+     * Close a FlowElement if it is still open, and remove its output queues
+     * from the set of queues we track.
+     */
+    private void closeElement(FlowElement flowElem) {
+      if (!flowElem.isClosed()) {
+        try {
+          flowElem.close();
+        } catch (IOException ioe) {
+          LOG.error("IOException when closing flow element: " + ioe);
+        } catch (InterruptedException ie) {
+          LOG.error("InterruptedException when closing flow element: " + ie);
+        }
+      }
+
+      // All FlowElements that we see will have LocalContext subclass contexts.
+      // Get the output queue from this, and remove it from the tracking set.
+      LocalContext elemContext = (LocalContext) flowElem.getContext();
+      List<SelectableQueue<Object>> outQueues = elemContext.getDownstreamQueues();
+      if (null != outQueues) {
+        for (SelectableQueue<Object> outQueue : outQueues) {
+          if (null != outQueue) {
+            mSelect.remove(outQueue);
+            mInputQueues.remove(outQueue);
+            mCloseQueues.remove(outQueue);
+          }
+        }
+      }
+    }
+
     private void cancelFlow(FlowId id) {
       LOG.info("Closing flow: " + id);
       ActiveFlowData flowData = mActiveFlows.get(id);
@@ -319,6 +382,38 @@ public class LocalEnvironment extends ExecEnvironment {
       mActiveFlows.remove(id);
     }
 
+    /**
+     * Cancel flow 'id', which cannot complete correctly, and report 'reason'
+     * to the sessions watching it. Its outputs are closed first, so that the
+     * results of windows closed by canceling the flow are discarded.
+     */
+    private void failFlow(FlowId id, String reason) {
+      ActiveFlowData flowData = mActiveFlows.get(id);
+      if (null == flowData) {
+        return; // Already canceled.
+      }
+
+      LOG.error("Flow " + id + " failed: " + reason);
+      for (UserSession session : flowData.getSubscribers()) {
+        session.sendErr("Flow " + id + " failed: " + reason);
+      }
+
+      try {
+        flowData.getFlow().rankTraversal(new DAG.Operator<FlowElementNode>() {
+          public void process(FlowElementNode elemNode) {
+            FlowElement flowElem = elemNode.getFlowElement();
+            if (flowElem.getContext() instanceof SinkFlowElemContext) {
+              closeElement(flowElem);
+            }
+          }
+        });
+      } catch (DAGOperatorException doe) {
+        // Shouldn't get here with this operator.
+        LOG.error("Unexpected dag op exn: " + doe);
+      }
+      cancelFlow(id);
+    }
+
     /** @return true if 'id' refers to an active flow. */
     private boolean isActive(FlowId id) {
       return mActiveFlows.get(id) != null;
@@ -352,8 +447,12 @@ public class LocalEnvironment extends ExecEnvironment {
         for (Map.Entry<FlowId, ActiveFlowData> entry : mActiveFlows.entrySet()) {
           FlowId id = entry.getKey();
           ActiveFlowData activeData = entry.getValue();
+          long shedCount = activeData.getFlow().getShedCount();
+          for (SharedSubplan subplan : activeData.getSharedSubplans()) {
+            shedCount += subplan.getShedCount();
+          }
           outMap.put(id, new FlowInfo(id, activeData.getFlow().getQuery(),
-              activeData.getStreamName()));
+              activeData.getStreamName(), shedCount));
         }
 
         // Notify the calling thread when we're done.
@@ -511,6 +610,10 @@ public class LocalEnvironment extends ExecEnvironment {
               FlowId cancelId = (FlowId) nextOp.getDatum();
               cancelFlow(cancelId);
               break;
+            case FailFlow:
+              Pair<FlowId, String> failure = (Pair<FlowId, String>) nextOp.getDatum();
+              failFlow(failure.getLeft(), failure.getRight());
+              break;
             case CancelAll:
               cancelAllFlows();
               break;
@@ -546,7 +649,7 @@ public class LocalEnvironment extends ExecEnvironment {
                 List<SelectableQueue<Object>> downstreamQueues =
                     context.getDownstreamQueues();
                 List<FlowElement> downstreamElements = context.getDownstream();
-                if (null == downstreamElements || downstreamElements.size() == 0) {
+                if (context instanceof SinkFlowElemContext) {
                   // We have received close() notification from the last element in a flow.
                   // Remove the entire flow from service.
                   // TODO(aaron): Are multiple SinkFlowElemContexts possible per flow?
@@ -560,7 +663,8 @@ public class LocalEnvironment extends ExecEnvironment {
                     cancelFlow(id);
                   }
                 } else if (null == downstreamQueues || downstreamQueues.size() == 0) {
-                  // Has elements, but no queues. Notify the downstream
+                  // Has elements, but no queues. (A shared chain which no longer
+                  // feeds any flow has neither.) Notify the downstream
                   // FlowElement(s) to close too.
                   for (FlowElement downstream : downstreamElements) {
                     downstream.closeUpstream();
@@ -626,7 +730,7 @@ public class LocalEnvironment extends ExecEnvironment {
               LOG.error("No FlowElement for input queue " + nextQueue);
             } else {
               try {
-                processor.takeEvent((EventWrapper) nextAction);
+                processor.deliver((EventWrapper) nextAction);
               } catch (IOException ioe) {
                 // TODO(aaron): Encountering an exception mid-flow should cancel the flow.
                 LOG.error("Flow element encountered IOException: " + ioe);
@@ -817,7 +921,12 @@ public class LocalEnvironment extends ExecEnvironment {
         spec.setConf(planConf);
         // Given a flow specification from the AST, run it through
         // necessary post-processing and optimization phases.
+        new PruneFields().prune(spec);
         spec.bfs(new PropagateSchemas());
+        new PlanFragmenter().fragment(spec);
+        new InsertCombiners().insert(spec);
+        new MarkSharedPrefixes().mark(spec, mRootSymbolTable);
+        new FuseOperators().fuse(spec);
         if (retContext.isExplain()) {
           // We just should explain this flow, but not actually add it.
           msgBuilder.append("Execution plan:\n");
@@ -844,8 +953,8 @@ public class LocalEnvironment extends ExecEnvironment {
       // Turn the specification into a physical plan and run it.
       FlowId flowId = new FlowId(mNextFlowId++);
       UserSession userSession = getSessionForConf(spec.getConf());
-      LocalFlowBuilder flowBuilder = new LocalFlowBuilder(flowId, mRootSymbolTable,
-          mFlumeConfig, mMemoryOutputMap, userSession);
+      LocalFlowBuilder flowBuilder = new LocalFlowBuilder(flowId, spec.getQuery(),
+          spec.getConf(), mRootSymbolTable, mFlumeConfig, mMemoryOutputMap, userSession);
       try {
         spec.reverseBfs(flowBuilder);
       } catch (DAGOperatorException doe) {
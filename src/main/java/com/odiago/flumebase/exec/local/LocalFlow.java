@@ -17,6 +17,9 @@
 
 package com.odiago.flumebase.exec.local;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.hadoop.conf.Configuration;
 
 import com.odiago.flumebase.exec.FlowId;
@@ -33,12 +36,20 @@ public class LocalFlow extends DAG<FlowElementNode> {
   private Configuration mConf;
   private boolean mIsDeployed;
 
+  /** Chains of FlowElements feeding this flow which other flows may share. */
+  private List<SharedSubplan> mSharedPrefixes;
+
+  /** Policies dropping events at the sources of this flow when it is overloaded. */
+  private List<LoadShedder> mLoadShedders;
+
   public LocalFlow(FlowId id) {
     mFlowId = id;
     mRequiresFlume = false;
     mQuery = null;
     mConf = null;
     mIsDeployed = false;
+    mSharedPrefixes = new ArrayList<SharedSubplan>();
+    mLoadShedders = new ArrayList<LoadShedder>();
   }
 
   public FlowId getId() {
@@ -89,6 +100,36 @@ public class LocalFlow extends DAG<FlowElementNode> {
     return mConf;
   }
 
+  /**
+   * Called by the LocalFlowBuilder to add a chain of FlowElements feeding
+   * this flow, which is held apart from the flow's own FlowElements.
+   */
+  void addSharedPrefix(SharedSubplan prefix) {
+    mSharedPrefixes.add(prefix);
+  }
+
+  /**
+   * @return the chains of FlowElements feeding this flow which may be
+   * shared with other flows.
+   */
+  public List<SharedSubplan> getSharedPrefixes() {
+    return mSharedPrefixes;
+  }
+
+  /** Called by the LocalFlowBuilder for each source of this flow which may drop events. */
+  void addLoadShedder(LoadShedder shedder) {
+    mLoadShedders.add(shedder);
+  }
+
+  /** @return the number of events dropped by the sources of this flow. */
+  public long getShedCount() {
+    long count = 0;
+    for (LoadShedder shedder : mLoadShedders) {
+      count += shedder.getShedCount();
+    }
+    return count;
+  }
+
   @Override
   public String toString() {
     return "flow(id=" + mFlowId + ")\n" + super.toString();
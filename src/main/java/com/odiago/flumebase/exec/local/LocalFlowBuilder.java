@@ -18,48 +18,70 @@
 package com.odiago.flumebase.exec.local;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.avro.Schema;
 
+import org.apache.hadoop.conf.Configuration;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.odiago.flumebase.exec.BucketedAggregationElement;
+import com.odiago.flumebase.exec.CheckpointStore;
+import com.odiago.flumebase.exec.CombinerElement;
 import com.odiago.flumebase.exec.EvaluationElement;
 import com.odiago.flumebase.exec.FileSourceElement;
 import com.odiago.flumebase.exec.FlowElement;
 import com.odiago.flumebase.exec.FlowElementContext;
 import com.odiago.flumebase.exec.FlowId;
 import com.odiago.flumebase.exec.FlumeNodeElement;
+import com.odiago.flumebase.exec.FusedElement;
 import com.odiago.flumebase.exec.HashJoinElement;
 import com.odiago.flumebase.exec.InMemStreamSymbol;
+import com.odiago.flumebase.exec.LookupJoinElement;
+import com.odiago.flumebase.exec.MultiWayJoinElement;
 import com.odiago.flumebase.exec.OutputElement;
 import com.odiago.flumebase.exec.ProjectionElement;
 import com.odiago.flumebase.exec.FilterElement;
+import com.odiago.flumebase.exec.SampleElement;
+import com.odiago.flumebase.exec.SessionAggregationElement;
 import com.odiago.flumebase.exec.StreamSymbol;
 import com.odiago.flumebase.exec.Symbol;
 import com.odiago.flumebase.exec.SymbolTable;
+import com.odiago.flumebase.exec.TableSymbol;
+import com.odiago.flumebase.exec.WatermarkGenerator;
+import com.odiago.flumebase.exec.WindowedAggregationElement;
 
 import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
 
 import com.odiago.flumebase.parser.EntityTarget;
 import com.odiago.flumebase.parser.Expr;
 import com.odiago.flumebase.parser.StreamSourceType;
+import com.odiago.flumebase.parser.TypedField;
 
 import com.odiago.flumebase.plan.AggregateNode;
+import com.odiago.flumebase.plan.CombinerNode;
 import com.odiago.flumebase.plan.OutputNode;
 import com.odiago.flumebase.plan.CreateStreamNode;
 import com.odiago.flumebase.plan.DescribeNode;
 import com.odiago.flumebase.plan.DropNode;
 import com.odiago.flumebase.plan.EvaluateExprsNode;
+import com.odiago.flumebase.plan.ExchangeSinkNode;
+import com.odiago.flumebase.plan.ExchangeSourceNode;
+import com.odiago.flumebase.plan.FusedNode;
 import com.odiago.flumebase.plan.HashJoinNode;
+import com.odiago.flumebase.plan.InsertCombiners;
+import com.odiago.flumebase.plan.LookupJoinNode;
 import com.odiago.flumebase.plan.MemoryOutputNode;
+import com.odiago.flumebase.plan.MultiWayJoinNode;
 import com.odiago.flumebase.plan.NamedSourceNode;
 import com.odiago.flumebase.plan.PlanNode;
 import com.odiago.flumebase.plan.ProjectionNode;
 import com.odiago.flumebase.plan.FilterNode;
+import com.odiago.flumebase.plan.SampleNode;
 
 import com.odiago.flumebase.server.UserSession;
 
@@ -88,10 +110,21 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
   private Map<String, MemoryOutputElement> mMemOutputMap;
   private UserSession mSubmitterSession;
 
-  public LocalFlowBuilder(FlowId flowId, SymbolTable rootSymTable,
-      EmbeddedFlumeConfig flumeConfig, Map<String, MemoryOutputElement> memOutputMap,
-      UserSession submitterSession) {
+  /** The query text of the flow; identifies its checkpointed state. */
+  private String mQuery;
+
+  /** Configuration the flow was submitted with. */
+  private Configuration mConf;
+
+  /** Number of stateful FlowElements created so far. */
+  private int mNumStatefulElems;
+
+  public LocalFlowBuilder(FlowId flowId, String query, Configuration conf,
+      SymbolTable rootSymTable, EmbeddedFlumeConfig flumeConfig,
+      Map<String, MemoryOutputElement> memOutputMap, UserSession submitterSession) {
     mFlowId = flowId;
+    mQuery = query;
+    mConf = conf;
     mMemOutputMap = memOutputMap;
     mLocalFlow = new LocalFlow(flowId);
     mRootSymbolTable = rootSymTable;
@@ -119,14 +152,31 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
    * FlowElement.
    */
   private boolean isMultiThreaded(PlanNode node, SymbolTable rootTable) {
-    if (node instanceof NamedSourceNode) {
+    if (node instanceof NamedSourceNode || node instanceof ExchangeSourceNode
+        || node instanceof CombinerNode) {
       return true;
+    } else if (node instanceof AggregateNode) {
+      // Partitioned operators emit from their partitions' threads.
+      return ((AggregateNode) node).getParallelism() > 1;
+    } else if (node instanceof HashJoinNode) {
+      return ((HashJoinNode) node).getParallelism() > 1;
+    } else if (node instanceof EvaluateExprsNode) {
+      return ((EvaluateExprsNode) node).getParallelism() > 1;
     } else {
-      // To date, all non-source nodes are all single-threaded.
+      // To date, all other non-source nodes are all single-threaded.
       return false;
     }
   }
 
+  /**
+   * @return true if the filters and projections following 'source' lead to
+   * a CombinerNode.
+   */
+  private static boolean feedsCombiner(PlanNode source) {
+    List<PlanNode> children = InsertCombiners.getSourceChainTail(source).getChildren();
+    return children.size() == 1 && children.get(0) instanceof CombinerNode;
+  }
+
   /**
    * Given a PlanNode, produce the FlowElementContext that is appropriate
    * for connecting to all of its downstream components.
@@ -137,6 +187,13 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
     boolean isMultiThreaded = isMultiThreaded(node, rootTable);
     if (childElements.size() == 0) {
       return new SinkFlowElemContext(mFlowId);
+    } else if (null != node.getAttr(PlanNode.SHARED_PREFIX_ATTR)) {
+      // The last node of a chain which other flows may share. Its downstream
+      // elements are attached to the running chain when the flow is deployed.
+      for (FlowElementNode childElement : childElements) {
+        childElement.getFlowElement().registerUpstream();
+      }
+      return new SharedFlowElemContext();
     } else if (childElements.size() == 1 &&
         (Boolean) node.getAttr(PlanNode.USES_TIMER_ATTR, Boolean.FALSE) == true) {
       // This node has only one 'official' output, but will instantiate a separate
@@ -155,10 +212,49 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
       // We should put a buffer between ourselves and the child node.
       FlowElement childElem = childElements.get(0).getFlowElement();
       childElem.registerUpstream();
+      if (node instanceof NamedSourceNode) {
+        // Events enter the flow here; generate watermarks that track their progress.
+        if (feedsCombiner(node)) {
+          // Run the stages up to the combiner in the source's thread, so
+          // that only partial aggregates are queued.
+          return new DirectCoupledFlowElemContext(childElem, WatermarkGenerator.create(mConf));
+        }
+        LoadShedder shedder = LoadShedder.create(mConf);
+        if (null != shedder && null == InsertCombiners.getSourceChainTail(node)
+            .getAttr(PlanNode.SHARED_PREFIX_ATTR)) {
+          // A shared chain counts the events dropped by its own source; see SharedSubplan.
+          mLocalFlow.addLoadShedder(shedder);
+        }
+        return new MTGeneratorElemContext(childElem, WatermarkGenerator.create(mConf), shedder);
+      }
       return new MTGeneratorElemContext(childElem);
+    } else if (!isMultiThreaded
+        && (Boolean) node.getAttr(PlanNode.USES_TIMER_ATTR, Boolean.FALSE) == false) {
+      // Fan-out: deliver each event to every child in turn.
+      List<FlowElement> childElems = new ArrayList<FlowElement>();
+      for (FlowElementNode childElement : childElements) {
+        FlowElement childElem = childElement.getFlowElement();
+        childElem.registerUpstream();
+        childElems.add(childElem);
+      }
+      return new BroadcastFlowElemContext(childElems);
+    } else if (isMultiThreaded
+        && (Boolean) node.getAttr(PlanNode.USES_TIMER_ATTR, Boolean.FALSE) == false) {
+      // Fan-out into another thread: buffer events for each child separately.
+      List<FlowElement> childElems = new ArrayList<FlowElement>();
+      for (FlowElementNode childElement : childElements) {
+        FlowElement childElem = childElement.getFlowElement();
+        childElem.registerUpstream();
+        childElems.add(childElem);
+      }
+      WatermarkGenerator watermarks = null;
+      if (node instanceof NamedSourceNode) {
+        watermarks = WatermarkGenerator.create(mConf);
+      }
+      return new MTBroadcastElemContext(childElems, watermarks);
     } else {
-      // TODO(aaron): Create a multi-output context and use here.
-      LOG.error("No local context available for fan-out");
+      // A timer drives a single downstream element; see TimerFlowElemContext.
+      LOG.error("No local context available for fan-out from a node with a timer");
       return null;
     }
   }
@@ -176,6 +272,19 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
     }
   }
 
+  /**
+   * Assign a checkpoint id to a node whose FlowElement holds state, if
+   * checkpointing is enabled. Stateful elements are numbered in the order
+   * they are built, which is the same each time a query is planned.
+   */
+  private void setCheckpointId(PlanNode node, Configuration conf) {
+    String checkpointId = CheckpointStore.getCheckpointId(conf, mQuery,
+        mNumStatefulElems++);
+    if (null != checkpointId) {
+      node.setAttr(PlanNode.CHECKPOINT_ID_ATTR, checkpointId);
+    }
+  }
+
   public void process(PlanNode node) throws DAGOperatorException {
     FlowElement newElem = null; // The newly-constructed FlowElement.
     FlowElementContext newContext = makeContextForNode(node, mRootSymbolTable);
@@ -206,7 +315,12 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
       // layer. (This results in an empty flow being generated, which is discarded.)
       CreateStreamNode createStream = (CreateStreamNode) node;
       String streamName = createStream.getName();
-      StreamSymbol streamSym = new StreamSymbol(createStream);
+      StreamSymbol streamSym;
+      if (createStream.isTable()) {
+        streamSym = new TableSymbol(createStream);
+      } else {
+        streamSym = new StreamSymbol(createStream);
+      }
       if (!streamSym.getEventParser().validate(streamSym)) {
         // Fails final check of parameters
         // TODO: The EventParser is giving better info in its LOG; but this
@@ -218,10 +332,10 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
         throw new DAGOperatorException("Object already exists at top level: " + streamName);
       } else {
         mRootSymbolTable.addSymbol(streamSym);
-        mSubmitterSession.sendInfo("CREATE STREAM");
+        mSubmitterSession.sendInfo(createStream.isTable() ? "CREATE TABLE" : "CREATE STREAM");
       }
 
-      if (createStream.getType().equals(StreamSourceType.File)
+      if (createStream.getType().equals(StreamSourceType.File) && !createStream.isTable()
           && streamSym.getFormatSpec().getParam(FileSourceElement.TIMESTAMP_COL_KEY) == null) {
         // We're reading from a file, and making up timestamps based on read time.
         // Warn the user that timestamps will change between queries.
@@ -253,24 +367,13 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
       mSubmitterSession.sendInfo("DROP " + targetType.toString().toUpperCase());
     } else if (node instanceof NamedSourceNode) {
       NamedSourceNode namedInput = (NamedSourceNode) node;
-      String streamName = namedInput.getStreamName();
-      Symbol symbol = mRootSymbolTable.resolve(streamName).resolveAliases();
-      if (null == symbol) {
-        throw new DAGOperatorException("No symbol for stream: " + streamName);
-      }
-
-      if (!(symbol instanceof StreamSymbol)) {
-        throw new DAGOperatorException("Identifier " + streamName + " has type: "
-            + symbol.getType() + ", not STREAM.");
-      }
-
-      StreamSymbol streamSymbol = (StreamSymbol) symbol;
+      StreamSymbol streamSymbol = resolveStream(namedInput.getStreamName());
 
       switch (streamSymbol.getSourceType()) {
       case File:
         String fileName = streamSymbol.getSource();
         newElem = new FileSourceElement(newContext, fileName, streamSymbol.isLocal(),
-            namedInput.getFields(), streamSymbol);
+            namedInput.getFields(), streamSymbol, getRequiredColumns(namedInput));
         break;
       case Source:
         if (!streamSymbol.isLocal()) {
@@ -281,7 +384,7 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
         String flowSourceId = "flumebase-flow-" + flowIdNum + "-" + streamSymbol.getName();
         newElem = new LocalFlumeSourceElement(newContext, flowSourceId,
             mFlumeConfig, flumeSource, (Schema) namedInput.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR),
-            namedInput.getFields(), streamSymbol);
+            namedInput.getFields(), streamSymbol, getRequiredColumns(namedInput));
         if (!streamSymbol.isLocal()) {
           LOG.info("Created local Flume logical node: " + flowSourceId);
           LOG.info("You may need to connect upstream Flume elements to this source.");
@@ -292,14 +395,15 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
         break;
       case Memory:
         newElem = new LocalInMemSourceElement(newContext,
-            namedInput.getFields(), (InMemStreamSymbol) streamSymbol);
+            namedInput.getFields(), (InMemStreamSymbol) streamSymbol,
+            getRequiredColumns(namedInput));
         break;
       case Node:
         String nodeSourceId = "flumebase-flow-" + mFlowId.getId() + "-" + streamSymbol.getName();
         newElem = new FlumeNodeElement(newContext, nodeSourceId,
             mFlumeConfig, streamSymbol.getSource(),
             (Schema) namedInput.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR),
-            namedInput.getFields(), streamSymbol);
+            namedInput.getFields(), streamSymbol, getRequiredColumns(namedInput));
 
         LOG.info("Created local Flume receiver context: " + nodeSourceId);
         LOG.info("This will be connected to upstream Flume node: " + streamSymbol.getSource());
@@ -311,10 +415,24 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
         throw new DAGOperatorException("Unhandled stream source type: "
             + streamSymbol.getSourceType());
       }
+    } else if (node instanceof CombinerNode) {
+      newElem = new CombinerElement(newContext, ((CombinerNode) node).getAggregateNode());
+    } else if (node instanceof ExchangeSourceNode) {
+      ExchangeSourceNode exchangeNode = (ExchangeSourceNode) node;
+      newElem = new ExchangeSourceElement(newContext, exchangeNode,
+          resolveStream(exchangeNode.getStreamName()), mQuery, mConf);
+    } else if (node instanceof ExchangeSinkNode) {
+      ExchangeSinkNode exchangeNode = (ExchangeSinkNode) node;
+      newElem = new ExchangeSinkElement(newContext, exchangeNode.getTarget(),
+          exchangeNode.getAggregateNode());
+    } else if (node instanceof FusedNode) {
+      newElem = new FusedElement(newContext, (FusedNode) node);
     } else if (node instanceof FilterNode) {
       FilterNode filterNode = (FilterNode) node;
       Expr filterExpr = filterNode.getFilterExpr();
       newElem = new FilterElement(newContext, filterExpr);
+    } else if (node instanceof SampleNode) {
+      newElem = new SampleElement(newContext, ((SampleNode) node).getPercent());
     } else if (node instanceof ProjectionNode) {
       ProjectionNode projNode = (ProjectionNode) node;
       Schema outSchema = (Schema) projNode.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR);
@@ -322,15 +440,43 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
           projNode.getOutputFields());
     } else if (node instanceof AggregateNode) {
       AggregateNode aggNode = (AggregateNode) node;
-      newElem = new BucketedAggregationElement(newContext, aggNode);
+      setCheckpointId(aggNode, aggNode.getConf());
+      if (aggNode.getParallelism() > 1) {
+        newElem = new PartitionedAggregationElement(newContext, aggNode);
+      } else if (aggNode.isSessionWindow()) {
+        newElem = new SessionAggregationElement(newContext, aggNode);
+      } else {
+        newElem = new BucketedAggregationElement(newContext, aggNode);
+      }
     } else if (node instanceof EvaluateExprsNode) {
       EvaluateExprsNode evalNode = (EvaluateExprsNode) node;
-      Schema outSchema = (Schema) evalNode.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR);
-      newElem = new EvaluationElement(newContext, evalNode.getExprs(),
-          evalNode.getPropagateFields(), outSchema);
+      if (evalNode.getParallelism() > 1) {
+        newElem = new ParallelStageElement(newContext, evalNode);
+      } else {
+        Schema outSchema = (Schema) evalNode.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR);
+        newElem = new EvaluationElement(newContext, evalNode.getExprs(),
+            evalNode.getPropagateFields(), outSchema);
+      }
     } else if (node instanceof HashJoinNode) {
       HashJoinNode joinNode = (HashJoinNode) node;
-      newElem = new HashJoinElement(newContext, joinNode);
+      setCheckpointId(joinNode, joinNode.getConf());
+      if (joinNode.getParallelism() > 1) {
+        newElem = new PartitionedJoinElement(newContext, joinNode);
+      } else {
+        newElem = new HashJoinElement(newContext, joinNode);
+      }
+    } else if (node instanceof LookupJoinNode) {
+      LookupJoinNode joinNode = (LookupJoinNode) node;
+      Symbol tableSym = mRootSymbolTable.resolve(joinNode.getTableName());
+      if (null == tableSym || !(tableSym.resolveAliases() instanceof TableSymbol)) {
+        throw new DAGOperatorException("No table named " + joinNode.getTableName());
+      }
+      newElem = new LookupJoinElement(newContext, joinNode,
+          (TableSymbol) tableSym.resolveAliases());
+    } else if (node instanceof MultiWayJoinNode) {
+      MultiWayJoinNode joinNode = (MultiWayJoinNode) node;
+      setCheckpointId(joinNode, joinNode.getConf());
+      newElem = new MultiWayJoinElement(newContext, joinNode);
     } else {
       throw new DAGOperatorException("Cannot create FlowElement for PlanNode of type: "
           + node.getClass().getName());
@@ -344,26 +490,30 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
 
       // Bind the FlowElementNode to the PlanNode.
       node.setAttr(LOCAL_FLOW_ELEM_KEY, elemHolder);
-      if (node.isRoot()) {
+      if (node instanceof NamedSourceNode && null != InsertCombiners.getSourceChainTail(node)
+          .getAttr(PlanNode.SHARED_PREFIX_ATTR)) {
+        // Hold the chain starting at this source apart from the flow's own elements.
+        addSharedPrefix(node, elemHolder);
+      } else if (node.isRoot()) {
         // Roots of the plan node => this is a root node in the flow.
         mLocalFlow.addRoot(elemHolder);
       }
 
-      // If we created a BucketedAggregationElement, create its timeout coprocessor.
-      if (newElem instanceof BucketedAggregationElement) {
-        BucketedAggregationElement bucketElem = (BucketedAggregationElement) newElem;
+      // If we created a windowed aggregation element, create its timeout coprocessor.
+      if (newElem instanceof WindowedAggregationElement) {
+        WindowedAggregationElement bucketElem = (WindowedAggregationElement) newElem;
 
         FlowElement downstream = getNodeElements(node.getChildren()).get(0).getFlowElement();
 
         FlowElementContext timeoutContext = new DirectCoupledFlowElemContext(downstream);
-        BucketedAggregationElement.TimeoutEvictionElement timeoutElem =
+        WindowedAggregationElement.TimeoutEvictionElement timeoutElem =
             bucketElem.getTimeoutElement(timeoutContext);
         // The timeout element is now upstream to the primary downstream element of the
-        // BucketedAggregationElement.
+        // aggregation element.
         downstream.registerUpstream();
         timeoutElem.registerUpstream(); // BucketedAggEl't is upstream of the timeout elem.
 
-        // Add the timeout element to the BucketedAggregationElement's output list.
+        // Add the timeout element to the aggregation element's output list.
         // Specify it as the timerElement, since this is a special designation in the
         // TimerFlowElemContext.
         ((TimerFlowElemContext) newContext).setTimerElement(timeoutElem);
@@ -382,6 +532,73 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
     }
   }
 
+  /**
+   * Remove the chain of FlowElements built for the named source 'source'
+   * and its filters and projections from the flow, and add it to the flow's
+   * shared prefixes. The elements fed by the chain become roots of the flow.
+   */
+  private void addSharedPrefix(PlanNode source, FlowElementNode sourceElem) {
+    PlanNode tail = InsertCombiners.getSourceChainTail(source);
+    List<FlowElementNode> elements = new ArrayList<FlowElementNode>();
+    FlowElementNode tailElem = sourceElem;
+    elements.add(tailElem);
+    for (PlanNode node = source; node != tail; node = node.getChildren().get(0)) {
+      tailElem = tailElem.getChildren().get(0);
+      elements.add(tailElem);
+    }
+
+    List<FlowElement> downstream = new ArrayList<FlowElement>();
+    for (FlowElementNode child : new ArrayList<FlowElementNode>(tailElem.getChildren())) {
+      tailElem.removeChild(child);
+      downstream.add(child.getFlowElement());
+      if (child.isRoot()) {
+        mLocalFlow.addRoot(child);
+      }
+    }
+
+    mLocalFlow.addSharedPrefix(new SharedSubplan(
+        (String) tail.getAttr(PlanNode.SHARED_PREFIX_ATTR), elements,
+        (SharedFlowElemContext) tailElem.getFlowElement().getContext(), downstream));
+  }
+
+  /**
+   * @return the positions, among the fields of 'source', of those the flow
+   * reads; null if it may read all of them.
+   */
+  @SuppressWarnings("unchecked")
+  private static BitSet getRequiredColumns(NamedSourceNode source) {
+    List<String> required = (List<String>) source.getAttr(PlanNode.REQUIRED_FIELDS_ATTR);
+    if (null == required) {
+      return null;
+    }
+
+    BitSet columns = new BitSet();
+    List<TypedField> fields = source.getFields();
+    for (int i = 0; i < fields.size(); i++) {
+      if (required.contains(fields.get(i).getAvroName())) {
+        columns.set(i);
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * @return the StreamSymbol defining the stream named 'streamName'.
+   */
+  private StreamSymbol resolveStream(String streamName) throws DAGOperatorException {
+    Symbol symbol = mRootSymbolTable.resolve(streamName).resolveAliases();
+    if (null == symbol) {
+      throw new DAGOperatorException("No symbol for stream: " + streamName);
+    }
+
+    if (!(symbol instanceof StreamSymbol)) {
+      throw new DAGOperatorException("Identifier " + streamName + " has type: "
+          + symbol.getType() + ", not STREAM.");
+    }
+
+    return (StreamSymbol) symbol;
+  }
+
   /**
    * @return the LocalFlow containing the graph of FlowElements constructed in
    * the processing phase.
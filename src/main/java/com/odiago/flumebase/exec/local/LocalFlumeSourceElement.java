@@ -19,6 +19,7 @@ package com.odiago.flumebase.exec.local;
 
 import java.io.IOException;
 
+import java.util.BitSet;
 import java.util.List;
 
 import org.apache.avro.Schema;
@@ -61,6 +62,9 @@ public class LocalFlumeSourceElement extends FlowElementImpl {
   /** The fields of each record emitted by this node, and their types. */ 
   private List<TypedField> mFieldTypes;
 
+  /** Columns of the stream read by the flow, passed to its parser; null if all are read. */
+  private BitSet mRequiredColumns;
+
   /** Symbol for the stream we are reading from. */
   private StreamSymbol mStreamSym;
 
@@ -72,7 +76,7 @@ public class LocalFlumeSourceElement extends FlowElementImpl {
 
   public LocalFlumeSourceElement(FlowElementContext context, String flowSourceId,
       EmbeddedFlumeConfig flumeConfig, String dataSource, Schema outputSchema,
-      List<TypedField> fieldTypes, StreamSymbol streamSym) {
+      List<TypedField> fieldTypes, StreamSymbol streamSym, BitSet requiredColumns) {
     super(context);
 
     mFlowSourceId = flowSourceId;
@@ -81,13 +85,14 @@ public class LocalFlumeSourceElement extends FlowElementImpl {
     mOutputSchema = outputSchema;
     mFieldTypes = fieldTypes;
     mStreamSym = streamSym;
+    mRequiredColumns = requiredColumns;
   }
 
   @Override
   public void open() throws IOException, InterruptedException {
     super.open();
     mEmbeddedFlumeNode = new EmbeddedNode(mFlowSourceId, getContext(), mFlumeConfig,
-        mDataSource, mOutputSchema, mFieldTypes, mStreamSym);
+        mDataSource, mOutputSchema, mFieldTypes, mStreamSym, mRequiredColumns);
     mEmbeddedFlumeNode.open();
   }
 
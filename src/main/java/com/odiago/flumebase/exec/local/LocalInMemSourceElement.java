@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.lang.InterruptedException;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 
@@ -52,6 +53,9 @@ public class LocalInMemSourceElement extends FlowElementImpl {
   /** Fields of the input event. */ 
   private List<String> mFieldNames;
 
+  /** Columns of the stream read by the flow, passed to its parser; null if all are read. */
+  private BitSet mRequiredColumns;
+
   /** Additional thread that actually drives event generation. */
   private class EventGenThread extends Thread {
     public void run() {
@@ -64,7 +68,7 @@ public class LocalInMemSourceElement extends FlowElementImpl {
           Event rawEvent = iter.next();
           rawEvent.set(STREAM_NAME_ATTR, mStreamSymbol.getName().getBytes());
           EventWrapper wrapper = new ParsingEventWrapper(mStreamSymbol.getEventParser(),
-              mFieldNames);
+              mFieldNames, mRequiredColumns);
           wrapper.reset(rawEvent);
           context.emit(wrapper);
         }
@@ -87,10 +91,11 @@ public class LocalInMemSourceElement extends FlowElementImpl {
   private EventGenThread mEventGenThread;
 
   public LocalInMemSourceElement(FlowElementContext context,
-      List<TypedField> fields, InMemStreamSymbol streamSymbol) {
+      List<TypedField> fields, InMemStreamSymbol streamSymbol, BitSet requiredColumns) {
 
     super(context);
     mStreamSymbol = streamSymbol;
+    mRequiredColumns = requiredColumns;
     mFieldNames = new ArrayList<String>();
     for (TypedField field : fields) {
       mFieldNames.add(field.getAvroName());
@@ -0,0 +1,101 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.Watermark;
+import com.odiago.flumebase.exec.WatermarkGenerator;
+
+import com.odiago.flumebase.util.concurrent.ArrayBoundedSelectableQueue;
+import com.odiago.flumebase.util.concurrent.SelectableQueue;
+
+/**
+ * Context for a FlowElement which has several downstream FEs on the same
+ * physical host, but in a different thread. Each event emitted by the
+ * upstream FE is pushed into a bounded buffer specific to each downstream FE.
+ */
+public class MTBroadcastElemContext extends LocalContext {
+
+  /** The downstream elements where we send events. */
+  private List<FlowElement> mDownstream;
+
+  /** One queue per element of mDownstream, in the same order. */
+  private List<SelectableQueue<Object>> mDownstreamQueues;
+
+  /**
+   * Generates watermarks for the events pushed through this context;
+   * null if watermarks are disabled.
+   */
+  private WatermarkGenerator mWatermarks;
+
+  public MTBroadcastElemContext(List<FlowElement> downstream, WatermarkGenerator watermarks) {
+    mDownstream = Collections.unmodifiableList(new ArrayList<FlowElement>(downstream));
+    mWatermarks = watermarks;
+  }
+
+  /**
+   * Create the downstream queues to communicate with our downstream FlowElements.
+   */
+  @Override
+  public void createDownstreamQueues() {
+    List<SelectableQueue<Object>> queues = new ArrayList<SelectableQueue<Object>>();
+    for (int i = 0; i < mDownstream.size(); i++) {
+      queues.add(new ArrayBoundedSelectableQueue<Object>(LocalEnvironment.MAX_QUEUE_LEN));
+    }
+    mDownstreamQueues = Collections.unmodifiableList(queues);
+  }
+
+  @Override
+  public List<SelectableQueue<Object>> getDownstreamQueues() {
+    return mDownstreamQueues;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void emit(EventWrapper e) throws IOException, InterruptedException {
+    Watermark watermark = null;
+    if (null != mWatermarks && !(e instanceof Watermark)) {
+      // Observe the event before handing it off; the consumers may reuse it.
+      watermark = mWatermarks.observe(e);
+    }
+
+    for (SelectableQueue<Object> queue : mDownstreamQueues) {
+      queue.put(e);
+      if (null != watermark) {
+        queue.put(watermark);
+      }
+    }
+  }
+
+  /**
+   * Return the downstream FlowElements. Used by the LocalEnvironment.
+   */
+  @Override
+  List<FlowElement> getDownstream() {
+    return mDownstream;
+  }
+}
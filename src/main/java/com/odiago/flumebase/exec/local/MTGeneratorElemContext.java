@@ -24,6 +24,8 @@ import java.util.List;
 
 import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.Watermark;
+import com.odiago.flumebase.exec.WatermarkGenerator;
 
 import com.odiago.flumebase.util.concurrent.ArrayBoundedSelectableQueue;
 import com.odiago.flumebase.util.concurrent.SelectableQueue;
@@ -39,10 +41,44 @@ public class MTGeneratorElemContext extends LocalContext {
   /** The downstream element where we sent events. */
   private FlowElement mDownstream;
 
-  private SelectableQueue<Object> mDownstreamQueue;
+  private ArrayBoundedSelectableQueue<Object> mDownstreamQueue;
+
+  /**
+   * Generates watermarks for the events pushed through this context;
+   * null if watermarks are disabled.
+   */
+  private WatermarkGenerator mWatermarks;
+
+  /**
+   * Decides which events to drop when the downstream queue is full; null if
+   * we should wait for room in the queue.
+   */
+  private LoadShedder mShedder;
+
+  /**
+   * Newest watermark which did not fit in the downstream queue, when we are
+   * shedding load rather than waiting for room; null if there is none.
+   */
+  private Watermark mPendingWatermark;
 
   public MTGeneratorElemContext(FlowElement downstream) {
+    this(downstream, null);
+  }
+
+  public MTGeneratorElemContext(FlowElement downstream, WatermarkGenerator watermarks) {
+    this(downstream, watermarks, null);
+  }
+
+  public MTGeneratorElemContext(FlowElement downstream, WatermarkGenerator watermarks,
+      LoadShedder shedder) {
     mDownstream = downstream;
+    mWatermarks = watermarks;
+    mShedder = shedder;
+  }
+
+  /** @return the policy dropping events when the downstream queue is full, or null. */
+  LoadShedder getLoadShedder() {
+    return mShedder;
   }
 
   /**
@@ -56,7 +92,7 @@ public class MTGeneratorElemContext extends LocalContext {
 
   @Override
   public List<SelectableQueue<Object>> getDownstreamQueues() {
-    return Collections.singletonList(mDownstreamQueue);
+    return Collections.<SelectableQueue<Object>>singletonList(mDownstreamQueue);
   }
 
   /**
@@ -64,7 +100,69 @@ public class MTGeneratorElemContext extends LocalContext {
    */
   @Override
   public void emit(EventWrapper e) throws IOException, InterruptedException {
-    mDownstreamQueue.put(e);
+    Watermark watermark = null;
+    if (null != mWatermarks && !(e instanceof Watermark)) {
+      // Observe the event before handing it off; the consumer may reuse it.
+      watermark = mWatermarks.observe(e);
+    }
+
+    if (null == mShedder) {
+      mDownstreamQueue.put(e);
+      if (null != watermark) {
+        mDownstreamQueue.put(watermark);
+      }
+      return;
+    }
+
+    // Never block the source: an older watermark still waiting for room is
+    // superseded by a newer one.
+    flushWatermark();
+    if (e instanceof Watermark) {
+      offerWatermark((Watermark) e);
+    } else {
+      mShedder.enqueue(mDownstreamQueue, e);
+    }
+
+    if (null != watermark) {
+      offerWatermark(watermark);
+    }
+  }
+
+  /**
+   * Enqueue 'watermark' if there is room for it. Otherwise hold it until
+   * there is, in place of any older watermark already held.
+   */
+  private synchronized void offerWatermark(Watermark watermark) {
+    if (null == mPendingWatermark || watermark.getTime() >= mPendingWatermark.getTime()) {
+      mPendingWatermark = watermark;
+    }
+    flushWatermark();
+  }
+
+  /** Enqueue the held watermark, if any, if there is room for it. */
+  private synchronized void flushWatermark() {
+    if (null != mPendingWatermark
+        && mShedder.offerWatermark(mDownstreamQueue, mPendingWatermark)) {
+      mPendingWatermark = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void notifyCompletion() throws IOException, InterruptedException {
+    Watermark pending;
+    synchronized (this) {
+      pending = mPendingWatermark;
+      mPendingWatermark = null;
+    }
+
+    if (null != pending) {
+      // The source is done; the last watermark may wait for room.
+      mDownstreamQueue.put(pending);
+    }
+    super.notifyCompletion();
   }
 
   /**
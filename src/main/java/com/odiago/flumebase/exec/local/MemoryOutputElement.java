@@ -76,6 +76,10 @@ public class MemoryOutputElement extends FlowElementImpl {
 
   @Override
   public void takeEvent(EventWrapper wrapper) throws IOException {
+    if (isClosed()) {
+      return; // The flow failed; see LocalEnvironment.
+    }
+
     // Parse out all the fields into the new Avro record.
     GenericData.Record outRecord = new GenericData.Record(mOutputSchema);
     for (TypedField field : mFields) {
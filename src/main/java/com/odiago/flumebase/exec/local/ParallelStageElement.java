@@ -0,0 +1,60 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.IOException;
+
+import org.apache.avro.Schema;
+
+import com.odiago.flumebase.exec.EvaluationElement;
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.FlowElementContext;
+
+import com.odiago.flumebase.plan.EvaluateExprsNode;
+import com.odiago.flumebase.plan.PlanNode;
+
+/**
+ * Pipeline stage which evaluates expressions in several worker threads,
+ * each running its own EvaluationElement. Evaluation holds no state, so
+ * events are spread between the workers round-robin; this lets expensive
+ * function calls proceed in parallel with each other, and with the rest of
+ * the flow.
+ */
+public class ParallelStageElement extends PartitionedFlowElement {
+  private final EvaluateExprsNode mEvalNode;
+
+  public ParallelStageElement(FlowElementContext ctxt, EvaluateExprsNode evalNode) {
+    super(ctxt);
+    mEvalNode = evalNode;
+    initPartitions(evalNode, evalNode.getParallelism());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected FlowElement createPartition(TimerFlowElemContext context) {
+    Schema outSchema = (Schema) mEvalNode.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR);
+    return new EvaluationElement(context, mEvalNode.getExprs(),
+        mEvalNode.getPropagateFields(), outSchema);
+  }
+
+  @Override
+  public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    deliverRoundRobin(e);
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.IOException;
+
+import java.util.List;
+
+import com.odiago.flumebase.exec.BucketedAggregationElement;
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.SessionAggregationElement;
+import com.odiago.flumebase.exec.WindowedAggregationElement;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.AggregateNode;
+
+/**
+ * Aggregation whose groups are divided between partitions, each aggregated
+ * in its own thread. Events are partitioned on their group-by fields.
+ */
+public class PartitionedAggregationElement extends PartitionedFlowElement {
+
+  private final AggregateNode mAggregateNode;
+
+  /** Fields whose values determine the partition of each event. */
+  private final List<TypedField> mGroupByFields;
+
+  public PartitionedAggregationElement(FlowElementContext ctxt, AggregateNode aggregateNode) {
+    super(ctxt);
+    mAggregateNode = aggregateNode;
+    mGroupByFields = aggregateNode.getGroupByFields();
+    initPartitions(aggregateNode, aggregateNode.getParallelism());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected FlowElement createPartition(TimerFlowElemContext context) {
+    WindowedAggregationElement aggregator;
+    if (mAggregateNode.isSessionWindow()) {
+      aggregator = new SessionAggregationElement(context, mAggregateNode);
+    } else {
+      aggregator = new BucketedAggregationElement(context, mAggregateNode);
+    }
+
+    // Windows are closed by the timer in the partition's own thread.
+    context.setTimerElement(aggregator.getTimeoutElement(context));
+    return aggregator;
+  }
+
+  @Override
+  public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    long hash = 0;
+    for (TypedField field : mGroupByFields) {
+      hash = hash * 31 + hashKey(e.getField(field));
+    }
+    deliverToPartition(e, hash);
+  }
+}
@@ -0,0 +1,333 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.FlowElementImpl;
+import com.odiago.flumebase.exec.Watermark;
+
+import com.odiago.flumebase.plan.PlanNode;
+
+import com.odiago.flumebase.util.HyperLogLog;
+import com.odiago.flumebase.util.StringUtils;
+
+import com.odiago.flumebase.util.concurrent.ArrayBoundedSelectableQueue;
+import com.odiago.flumebase.util.concurrent.EmptyException;
+import com.odiago.flumebase.util.concurrent.Select;
+import com.odiago.flumebase.util.concurrent.Selectable;
+import com.odiago.flumebase.util.concurrent.SelectableQueue;
+
+/**
+ * FlowElement that runs a stateful operator as several independent
+ * partitions, each in its own thread.
+ *
+ * <p>Subclasses route each event to a partition in one of three ways. A
+ * stateful operator hashes the event's key with hashKey(), so each partition
+ * owns the state of a disjoint set of keys, and processes and emits the
+ * events of each key in order. A stateless operator may instead spread its
+ * events round-robin, and events may also be broadcast to every partition.
+ * Watermarks are always delivered to every partition; the watermark passed
+ * downstream is the least of the partitions' output watermarks, so events
+ * of different partitions may be interleaved in any order, but never
+ * behind a watermark.</p>
+ *
+ * <p>The partitions emit into this element's context, which must buffer
+ * events for the LocalEnvironment's thread (an MTGeneratorElemContext).
+ * When a partition's input is full, that thread delivers our buffered
+ * output itself while it waits, so that a partition blocked on a full output
+ * buffer cannot stall it.</p>
+ */
+public abstract class PartitionedFlowElement extends FlowElementImpl {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      PartitionedFlowElement.class.getName());
+
+  /** Enqueued after the last input of each partition. */
+  private static final Object CLOSE_PARTITION = new Object();
+
+  private Partition[] mPartitions;
+
+  /** Latest output watermark of each partition. */
+  private long[] mPartitionWatermarks;
+
+  /** Time of the last watermark we passed downstream. */
+  private long mOutputWatermark = Long.MIN_VALUE;
+
+  /** Partition which receives the next event routed round-robin. */
+  private int mNextPartition = 0;
+
+  public PartitionedFlowElement(FlowElementContext ctxt) {
+    super(ctxt);
+  }
+
+  /**
+   * Create the operator run by each of 'numPartitions' partitions, with
+   * createPartition(). Each partition checkpoints its own state under the
+   * checkpoint id of 'node', qualified by the partition and the number of
+   * partitions, since these determine which keys it holds.
+   */
+  protected void initPartitions(PlanNode node, int numPartitions) {
+    mPartitions = new Partition[numPartitions];
+    mPartitionWatermarks = new long[numPartitions];
+
+    String checkpointId = (String) node.getAttr(PlanNode.CHECKPOINT_ID_ATTR);
+    for (int i = 0; i < numPartitions; i++) {
+      if (null != checkpointId) {
+        node.setAttr(PlanNode.CHECKPOINT_ID_ATTR, checkpointId + "-" + i + "of" + numPartitions);
+      }
+      mPartitions[i] = new Partition(i);
+      mPartitionWatermarks[i] = Long.MIN_VALUE;
+    }
+    node.setAttr(PlanNode.CHECKPOINT_ID_ATTR, checkpointId);
+  }
+
+  /**
+   * Create the operator for one partition, which emits to 'context'. An
+   * operator which needs a timer thread registers its timer element with
+   * the context.
+   */
+  protected abstract FlowElement createPartition(TimerFlowElemContext context);
+
+  /**
+   * @return a hash of 'key' which selects its partition; values which are
+   * equal in the join or grouping sense hash the same.
+   */
+  protected static long hashKey(Object key) {
+    return null == key ? 0 : HyperLogLog.hash(key);
+  }
+
+  /** Deliver 'e' to the partition selected by 'hash'. */
+  protected void deliverToPartition(EventWrapper e, long hash)
+      throws IOException, InterruptedException {
+    enqueue(mPartitions[(int) ((hash >>> 1) % mPartitions.length)], e);
+  }
+
+  /** Deliver 'e' to the next partition in turn. */
+  protected void deliverRoundRobin(EventWrapper e)
+      throws IOException, InterruptedException {
+    enqueue(mPartitions[mNextPartition], e);
+    mNextPartition = (mNextPartition + 1) % mPartitions.length;
+  }
+
+  /** Deliver 'e' to every partition. */
+  protected void deliverToAll(EventWrapper e)
+      throws IOException, InterruptedException {
+    for (Partition partition : mPartitions) {
+      enqueue(partition, e);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void open() throws IOException, InterruptedException {
+    for (Partition partition : mPartitions) {
+      partition.open();
+    }
+    super.open();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException, InterruptedException {
+    // Each partition closes its operator once it has drained its input.
+    for (Partition partition : mPartitions) {
+      enqueue(partition, CLOSE_PARTITION);
+    }
+
+    for (Partition partition : mPartitions) {
+      while (partition.isAlive()) {
+        if (!deliverOutput()) {
+          partition.join(1);
+        }
+      }
+    }
+
+    super.close();
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>Every partition receives every watermark.</p>
+   */
+  @Override
+  public void takeWatermark(Watermark w) throws IOException, InterruptedException {
+    deliverToAll(w);
+  }
+
+  /**
+   * Add 'item' to the input of 'partition'. While the input is full, deliver
+   * our buffered output downstream.
+   */
+  private void enqueue(Partition partition, Object item)
+      throws IOException, InterruptedException {
+    SelectableQueue<Object> input = partition.getInput();
+    while (!input.offer(item)) {
+      if (!deliverOutput()) {
+        Thread.sleep(1);
+      }
+    }
+  }
+
+  /**
+   * Deliver the next event our partitions have emitted into our context's
+   * buffer to the downstream element, as the LocalEnvironment would.
+   * @return false if the buffer was empty.
+   */
+  private boolean deliverOutput() throws IOException, InterruptedException {
+    LocalContext context = (LocalContext) getContext();
+    SelectableQueue<Object> output = context.getDownstreamQueues().get(0);
+    Object next;
+    try {
+      next = output.poll();
+    } catch (EmptyException ee) {
+      return false;
+    }
+
+    context.getDownstream().get(0).deliver((EventWrapper) next);
+    return true;
+  }
+
+  /**
+   * Record that partition 'partitionId' will emit no further events before
+   * the time of 'w', and pass on the least watermark of all partitions if
+   * it has advanced. Called by the partitions' threads.
+   */
+  private synchronized void mergeWatermark(int partitionId, Watermark w)
+      throws IOException, InterruptedException {
+    mPartitionWatermarks[partitionId] = Math.max(mPartitionWatermarks[partitionId],
+        w.getTime());
+    long outputWatermark = Long.MAX_VALUE;
+    for (long partitionWatermark : mPartitionWatermarks) {
+      outputWatermark = Math.min(outputWatermark, partitionWatermark);
+    }
+
+    if (outputWatermark > mOutputWatermark) {
+      mOutputWatermark = outputWatermark;
+      emit(new Watermark(outputWatermark, w.getStreamName()));
+    }
+  }
+
+  /**
+   * Context for the operator of a partition, and its timer element, if any.
+   * Events are emitted into the context of the enclosing element; watermarks
+   * are merged with those of the other partitions.
+   */
+  private class PartitionContext extends TimerFlowElemContext {
+    private final int mPartitionId;
+
+    public PartitionContext(int partitionId) {
+      super(null);
+      mPartitionId = partitionId;
+    }
+
+    @Override
+    public void emit(EventWrapper e) throws IOException, InterruptedException {
+      if (e instanceof Watermark) {
+        mergeWatermark(mPartitionId, (Watermark) e);
+      } else {
+        PartitionedFlowElement.this.getContext().emit(e);
+      }
+    }
+
+    @Override
+    public void notifyCompletion() {
+      // The enclosing element notifies the LocalEnvironment when it is complete.
+    }
+  }
+
+  /**
+   * Thread which runs one partition: its events and watermarks, and the
+   * events its operator's timer thread delivers to the timer element.
+   */
+  private class Partition extends Thread {
+    private final PartitionContext mContext;
+    private final FlowElement mOperator;
+
+    /** Events and watermarks routed to this partition. */
+    private final SelectableQueue<Object> mInput;
+
+    public Partition(int partitionId) {
+      super(PartitionedFlowElement.this.getClass().getSimpleName() + "-" + partitionId);
+      mContext = new PartitionContext(partitionId);
+      mOperator = createPartition(mContext);
+      mInput = new ArrayBoundedSelectableQueue<Object>(LocalEnvironment.MAX_QUEUE_LEN);
+    }
+
+    public SelectableQueue<Object> getInput() {
+      return mInput;
+    }
+
+    /** Open the operator, then start processing our input. */
+    public void open() throws IOException, InterruptedException {
+      mContext.createDownstreamQueues();
+      mOperator.open();
+      start();
+    }
+
+    @Override
+    public void run() {
+      SelectableQueue<Object> timerQueue = mContext.getTimerQueue();
+      Select<Object> select = new Select<Object>();
+      select.add(mInput);
+      if (null != timerQueue) {
+        select.add(timerQueue);
+      }
+
+      while (true) {
+        Object next = null;
+        Selectable<Object> queue;
+        try {
+          queue = select.join();
+          synchronized (queue) {
+            if (!queue.canRead()) {
+              continue;
+            }
+            next = queue.read();
+          }
+        } catch (InterruptedException ie) {
+          continue;
+        }
+
+        boolean isClosing = next == CLOSE_PARTITION && queue == mInput;
+        try {
+          if (isClosing) {
+            mOperator.close();
+          } else if (queue == timerQueue) {
+            mContext.getTimerElement().deliver((EventWrapper) next);
+          } else {
+            mOperator.deliver((EventWrapper) next);
+          }
+        } catch (IOException ioe) {
+          LOG.error("Partition encountered IOException: " + StringUtils.stringifyException(ioe));
+        } catch (InterruptedException ie) {
+          LOG.error("Partition encountered InterruptedException: " + ie);
+        }
+
+        if (isClosing) {
+          return;
+        }
+      }
+    }
+  }
+}
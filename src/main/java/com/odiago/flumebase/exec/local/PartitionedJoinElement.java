@@ -0,0 +1,78 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.HashJoinElement;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.HashJoinNode;
+
+/**
+ * Hash join whose keys are divided between partitions, each joining its
+ * keys' events with its own window state in its own thread. Events of both
+ * streams are partitioned on their join key, so events which can join meet
+ * in the same partition.
+ */
+public class PartitionedJoinElement extends PartitionedFlowElement {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      PartitionedJoinElement.class.getName());
+
+  private final HashJoinNode mJoinNode;
+
+  private final String mLeftName;
+  private final TypedField mLeftKey;
+  private final TypedField mRightKey;
+
+  public PartitionedJoinElement(FlowElementContext ctxt, HashJoinNode joinNode) {
+    super(ctxt);
+    mJoinNode = joinNode;
+    mLeftName = joinNode.getLeftName();
+    mLeftKey = joinNode.getLeftKey();
+    mRightKey = joinNode.getRightKey();
+    initPartitions(joinNode, joinNode.getParallelism());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected FlowElement createPartition(TimerFlowElemContext context) {
+    return new HashJoinElement(context, mJoinNode);
+  }
+
+  @Override
+  public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    String streamName = e.getAttr(STREAM_NAME_ATTR);
+    if (null == streamName) {
+      LOG.warn("Got event with no " + STREAM_NAME_ATTR + " attribute!");
+      return;
+    }
+
+    // Events of the right stream (and of unexpected streams, which the
+    // partition will reject) are keyed by the right key.
+    TypedField keyField = streamName.equals(mLeftName) ? mLeftKey : mRightKey;
+    deliverToPartition(e, hashKey(e.getField(keyField)));
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.IOException;
+
+import java.util.List;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElement;
+
+/**
+ * Context for the last FlowElement of a subplan shared by several flows.
+ * Delivers each event to the downstream FlowElements of every flow using
+ * the subplan, on the same physical host. Flows attach and detach their
+ * FlowElements while the subplan is running.
+ */
+public class SharedFlowElemContext extends LocalContext {
+
+  /** The downstream elements of all attached flows. */
+  private List<FlowElement> mDownstream;
+
+  public SharedFlowElemContext() {
+    mDownstream = new CopyOnWriteArrayList<FlowElement>();
+  }
+
+  /** Start delivering events to the elements in 'downstream'. */
+  void addDownstream(List<FlowElement> downstream) {
+    mDownstream.addAll(downstream);
+  }
+
+  /** Stop delivering events to the elements in 'downstream'. */
+  void removeDownstream(List<FlowElement> downstream) {
+    mDownstream.removeAll(downstream);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void emit(EventWrapper e) throws IOException, InterruptedException {
+    for (FlowElement downstream : mDownstream) {
+      downstream.deliver(e);
+    }
+  }
+
+  /**
+   * Return the downstream FlowElements. Used by the LocalEnvironment.
+   */
+  @Override
+  List<FlowElement> getDownstream() {
+    return mDownstream;
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.FlowId;
+
+/**
+ * A chain of FlowElements, from a source through its filters and
+ * projections, which may feed the rest of several flows at once.
+ *
+ * <p>Each flow is built with its own copy of the chain, which is held apart
+ * from the flow's own FlowElements. When the flow is deployed, it either
+ * starts its copy of the chain, or attaches to a running copy with the same
+ * key. The running chain is closed when the last flow attached to it is
+ * canceled. Until then, the chain's FlowElements are bound to the data of
+ * one of the flows attached to it, and the events dropped by its source are
+ * counted against each of them.</p>
+ */
+public class SharedSubplan {
+
+  /** Canonical description of the chain; see MarkSharedPrefixes. */
+  private final String mKey;
+
+  /** The FlowElements of the chain, starting with the source. */
+  private final List<FlowElementNode> mElements;
+
+  /** The context of the last FlowElement in the chain. */
+  private final SharedFlowElemContext mTailContext;
+
+  /** The FlowElements of the flow that built this chain, which the chain feeds. */
+  private final List<FlowElement> mDownstream;
+
+  /** The FlowElements fed by the chain in each attached flow. */
+  private final Map<FlowId, List<FlowElement>> mAttachedFlows;
+
+  public SharedSubplan(String key, List<FlowElementNode> elements,
+      SharedFlowElemContext tailContext, List<FlowElement> downstream) {
+    mKey = key;
+    mElements = elements;
+    mTailContext = tailContext;
+    mDownstream = downstream;
+    mAttachedFlows = new HashMap<FlowId, List<FlowElement>>();
+  }
+
+  public String getKey() {
+    return mKey;
+  }
+
+  /** @return the FlowElements of the chain, starting with the source. */
+  public List<FlowElementNode> getElements() {
+    return mElements;
+  }
+
+  /** @return the FlowElements of the building flow which this chain feeds. */
+  public List<FlowElement> getDownstream() {
+    return mDownstream;
+  }
+
+  /**
+   * @return true if the chain may still deliver events; i.e., none of its
+   * FlowElements is closed.
+   */
+  public boolean isLive() {
+    for (FlowElementNode node : mElements) {
+      if (node.getFlowElement().isClosed()) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /** Deliver the output of the chain to 'downstream', in flow 'flowId'. */
+  void attach(FlowId flowId, List<FlowElement> downstream) {
+    mAttachedFlows.put(flowId, downstream);
+    mTailContext.addDownstream(downstream);
+  }
+
+  /**
+   * Stop delivering the output of the chain to the flow 'flowId'.
+   * @return true if other flows remain attached to the chain.
+   */
+  boolean detach(FlowId flowId) {
+    List<FlowElement> downstream = mAttachedFlows.remove(flowId);
+    if (null != downstream) {
+      mTailContext.removeDownstream(downstream);
+    }
+
+    return !mAttachedFlows.isEmpty();
+  }
+
+  /** @return the number of flows attached to the chain. */
+  public int getNumAttachedFlows() {
+    return mAttachedFlows.size();
+  }
+
+  /** @return the ids of the flows attached to the chain. */
+  public Set<FlowId> getAttachedFlowIds() {
+    return mAttachedFlows.keySet();
+  }
+
+  /**
+   * Bind the FlowElements of the chain to 'flowData', which must describe
+   * one of the flows attached to the chain.
+   */
+  void setFlowData(ActiveFlowData flowData) {
+    for (FlowElementNode node : mElements) {
+      ((LocalContext) node.getFlowElement().getContext()).setFlowData(flowData);
+    }
+  }
+
+  /** @return the number of events dropped by the source of the chain. */
+  public long getShedCount() {
+    long count = 0;
+    for (FlowElementNode node : mElements) {
+      FlowElementContext context = node.getFlowElement().getContext();
+      if (context instanceof MTGeneratorElemContext
+          && null != ((MTGeneratorElemContext) context).getLoadShedder()) {
+        count += ((MTGeneratorElemContext) context).getLoadShedder().getShedCount();
+      }
+    }
+    return count;
+  }
+}
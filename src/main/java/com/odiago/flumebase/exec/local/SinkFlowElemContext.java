@@ -25,6 +25,7 @@ import java.util.List;
 import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.FlowElement;
 import com.odiago.flumebase.exec.FlowId;
+import com.odiago.flumebase.exec.Watermark;
 
 /**
  * Context for a FlowElement which is itself a sink; it cannot emit data
@@ -41,6 +42,11 @@ public class SinkFlowElemContext extends LocalContext {
 
   @Override
   public void emit(EventWrapper e) throws IOException {
+    if (e instanceof Watermark) {
+      // Progress markers are of no interest past the end of the flow.
+      return;
+    }
+
     throw new IOException("Cannot emit event without downstream element");
   }
 
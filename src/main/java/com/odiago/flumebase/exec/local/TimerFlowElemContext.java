@@ -82,7 +82,7 @@ public class TimerFlowElemContext extends LocalContext {
   @Override
   public void emit(EventWrapper e) throws IOException, InterruptedException {
     // NOTE: we emit to the main downstream element. We don't emit to the timer element.
-    mDownstream.takeEvent(e);
+    mDownstream.deliver(e);
   }
 
   public SelectableQueue<Object> getTimerQueue() {
@@ -19,6 +19,7 @@ package com.odiago.flumebase.flume;
 
 import java.io.IOException;
 
+import java.util.BitSet;
 import java.util.List;
 
 import org.apache.avro.Schema;
@@ -63,6 +64,9 @@ public class EmbeddedNode {
   /** List of fields and types emitted by this node. */
   private List<TypedField> mFieldTypes;
 
+  /** Columns of the stream read by the flow, passed to its parser; null if all are read. */
+  private BitSet mRequiredColumns;
+
   /** Symbol of the stream we represent. */
   private StreamSymbol mStreamSym;
 
@@ -76,7 +80,7 @@ public class EmbeddedNode {
    */
   public EmbeddedNode(String flowSourceId, FlowElementContext flowContext,
       EmbeddedFlumeConfig flumeConfig, String dataSource, Schema outputSchema,
-      List<TypedField> fieldTypes, StreamSymbol streamSymbol) {
+      List<TypedField> fieldTypes, StreamSymbol streamSymbol, BitSet requiredColumns) {
     mFlowSourceId = flowSourceId;
     mFlowElemContext = flowContext;
     mFlumeConfig = flumeConfig;
@@ -84,6 +88,7 @@ public class EmbeddedNode {
     mOutputSchema = outputSchema;
     mFieldTypes = fieldTypes;
     mStreamSym = streamSymbol;
+    mRequiredColumns = requiredColumns;
   }
 
   /**
@@ -92,7 +97,8 @@ public class EmbeddedNode {
   public void open() throws IOException {
     LOG.debug("Opening sink binding for: " + mFlowSourceId);
     SinkContextBindings.get().bindContext(mFlowSourceId,
-        new SinkContext(mFlowElemContext, mOutputSchema, mFieldTypes, mStreamSym));
+        new SinkContext(mFlowElemContext, mOutputSchema, mFieldTypes, mStreamSym,
+            mRequiredColumns));
     try {
       mFlumeConfig.createFlowSink(mFlowSourceId, mDataSource);
     } catch (TException te) {
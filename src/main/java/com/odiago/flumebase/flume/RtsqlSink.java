@@ -20,6 +20,7 @@ package com.odiago.flumebase.flume;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -67,6 +68,9 @@ public class RtsqlSink extends EventSink.Base {
    */
   private List<String> mFieldNames;
 
+  /** Columns of the stream read by the flow; null if all are read. */
+  private BitSet mRequiredColumns;
+
   /** Symbol associated with the stream we are the source for. */
   private StreamSymbol mStreamSymbol;
 
@@ -86,6 +90,7 @@ public class RtsqlSink extends EventSink.Base {
     mFieldNames = new ArrayList<String>();
     mWriteContext = mSinkContext.getFlowElementContext();
     mStreamSymbol = mSinkContext.getStreamSymbol();
+    mRequiredColumns = mSinkContext.getRequiredColumns();
     for (TypedField field : mSinkContext.getFieldTypes()) {
       mFieldNames.add(field.getAvroName());
     }
@@ -103,7 +108,7 @@ public class RtsqlSink extends EventSink.Base {
     try {
       e.set(FlowElement.STREAM_NAME_ATTR, mStreamSymbol.getName().getBytes());
       EventWrapper wrapper = new ParsingEventWrapper(mStreamSymbol.getEventParser(),
-          mFieldNames);
+          mFieldNames, mRequiredColumns);
       wrapper.reset(e);
       mWriteContext.emit(wrapper);
     } catch (InterruptedException ie) {
@@ -17,6 +17,7 @@
 
 package com.odiago.flumebase.flume;
 
+import java.util.BitSet;
 import java.util.List;
 
 import org.apache.avro.Schema;
@@ -32,13 +33,15 @@ public class SinkContext {
   private final Schema mOutputSchema;
   private final List<TypedField> mFieldTypes;
   private final StreamSymbol mStreamSymbol;
+  private final BitSet mRequiredColumns;
 
   public SinkContext(FlowElementContext flowContext, Schema outputSchema,
-      List<TypedField> fieldTypes, StreamSymbol streamSymbol) {
+      List<TypedField> fieldTypes, StreamSymbol streamSymbol, BitSet requiredColumns) {
     mFlowContext = flowContext;
     mOutputSchema = outputSchema;
     mFieldTypes = fieldTypes;
     mStreamSymbol = streamSymbol;
+    mRequiredColumns = requiredColumns;
   }
 
   public FlowElementContext getFlowElementContext() {
@@ -56,4 +59,9 @@ public class SinkContext {
   public StreamSymbol getStreamSymbol() {
     return mStreamSymbol;
   }
+
+  /** @return the columns of the stream read by the flow, or null if all are read. */
+  public BitSet getRequiredColumns() {
+    return mRequiredColumns;
+  }
 }
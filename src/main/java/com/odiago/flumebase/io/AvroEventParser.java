@@ -19,6 +19,10 @@ package com.odiago.flumebase.io;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -49,6 +53,16 @@ public class AvroEventParser extends EventParser {
 
   public static final String SCHEMA_PARAM = "schema";
 
+  /**
+   * Schemas parsed from each schema string, and the projections of them
+   * onto sets of required columns. A parser is created for each event, so
+   * these are shared to avoid parsing a schema per event; reusing the same
+   * Schema instances also lets Avro reuse its resolution of one against the
+   * other.
+   */
+  private static final Map<String, Schema> SCHEMA_CACHE =
+      Collections.synchronizedMap(new HashMap<String, Schema>());
+
   /** Configuration parameters. */
   private Map<String, String> mParams;
 
@@ -58,6 +72,12 @@ public class AvroEventParser extends EventParser {
   /** Schema for input events */
   private Schema mSchema;
 
+  /**
+   * Columns decoded from each event, as set by setRequiredColumns(); null
+   * if all columns are decoded.
+   */
+  private BitSet mRequiredColumns;
+
   /** Current event deserialized into a generic data record */
   private GenericData.Record mRecord;
 
@@ -82,7 +102,11 @@ public class AvroEventParser extends EventParser {
       // If schemaStr is null, validate() will fail, so we won't
       // need these things that we can't initialize.
       try {
-        mSchema = Schema.parse(schemaStr);
+        mSchema = SCHEMA_CACHE.get(schemaStr);
+        if (null == mSchema) {
+          mSchema = Schema.parse(schemaStr);
+          SCHEMA_CACHE.put(schemaStr, mSchema);
+        }
         mDecoderFactory = new DecoderFactory();
         mRecord = new GenericData.Record(mSchema);
         mDatumReader = new GenericDatumReader<GenericData.Record>(mSchema);
@@ -99,11 +123,57 @@ public class AvroEventParser extends EventParser {
     mIsDecoded = false;
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>Events are decoded with a reader schema holding only the required
+   * fields, so Avro skips over the others.</p>
+   */
+  @Override
+  public void setRequiredColumns(BitSet columns) {
+    if (null == mSchema || null == columns || !Schema.Type.RECORD.equals(mSchema.getType())) {
+      return; // validate() will reject a schema which is not a record.
+    }
+
+    List<Schema.Field> fields = mSchema.getFields();
+    if (columns.nextClearBit(0) >= fields.size()) {
+      return; // Every column is required.
+    }
+
+    String key = mParams.get(SCHEMA_PARAM) + columns;
+    Schema readSchema = SCHEMA_CACHE.get(key);
+    if (null == readSchema) {
+      List<Schema.Field> readFields = new ArrayList<Schema.Field>();
+      for (int i = columns.nextSetBit(0); i >= 0 && i < fields.size();
+          i = columns.nextSetBit(i + 1)) {
+        Schema.Field field = fields.get(i);
+        readFields.add(new Schema.Field(field.name(), field.schema(), field.doc(),
+            field.defaultValue()));
+      }
+      readSchema = Schema.createRecord(mSchema.getName(), mSchema.getDoc(),
+          mSchema.getNamespace(), mSchema.isError());
+      readSchema.setFields(readFields);
+      SCHEMA_CACHE.put(key, readSchema);
+    }
+
+    mRequiredColumns = columns;
+    mRecord = new GenericData.Record(readSchema);
+    mDatumReader = new GenericDatumReader<GenericData.Record>(mSchema, readSchema);
+    mIsDecoded = false;
+  }
+
   /** {@inheritDoc} */
   @Override
   public Object getColumn(int colIdx, Type expectedType)
       throws IOException {
 
+    if (null != mRequiredColumns && !mRequiredColumns.get(colIdx)) {
+      // This column was skipped; decode every column from now on.
+      mRequiredColumns = null;
+      mRecord = new GenericData.Record(mSchema);
+      mDatumReader = new GenericDatumReader<GenericData.Record>(mSchema);
+      mIsDecoded = false;
+    }
+
     if (!mIsDecoded) {
       // Now that we actually want a record value, decode the input bytes.
       mDecoder = mDecoderFactory.createBinaryDecoder(mEvent.getBody(), mDecoder);
@@ -111,6 +181,10 @@ public class AvroEventParser extends EventParser {
       mIsDecoded = true;
     }
 
+    if (null != mRequiredColumns) {
+      String fieldName = mSchema.getFields().get(colIdx).name();
+      return avroToNative(mRecord.get(fieldName), expectedType);
+    }
     return avroToNative(mRecord.get(colIdx), expectedType);
   }
 
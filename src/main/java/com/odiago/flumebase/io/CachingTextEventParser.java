@@ -139,9 +139,15 @@ public abstract class CachingTextEventParser extends EventParser {
       mColumnNulls.add(Boolean.valueOf(false));
     }
 
-    // Now add this parsed value to the end of the list. Sets its null bit appropriately.
-    mColumnValues.add(out);
-    mColumnNulls.add(Boolean.valueOf(out == null));
+    if (mColumnValues.size() > colIdx) {
+      // A later column was parsed first; fill in this column's padding slot.
+      mColumnValues.set(colIdx, out);
+      mColumnNulls.set(colIdx, Boolean.valueOf(out == null));
+    } else {
+      // Now add this parsed value to the end of the list. Sets its null bit appropriately.
+      mColumnValues.add(out);
+      mColumnNulls.add(Boolean.valueOf(out == null));
+    }
 
     if (LOG.isDebugEnabled()) {
       LOG.debug("Parsed string [" + debugInputString + "] with expected type ["
@@ -19,6 +19,8 @@ package com.odiago.flumebase.io;
 
 import java.io.IOException;
 
+import java.util.BitSet;
+
 import com.cloudera.flume.core.Event;
 
 import com.odiago.flumebase.exec.StreamSymbol;
@@ -76,6 +78,15 @@ public abstract class EventParser {
   public abstract Object getColumn(int colIdx, Type expectedType)
       throws ColumnParseException, IOException;
 
+  /**
+   * Hint that only the columns whose indices are set in 'columns' will be
+   * requested of this parser; it may skip the others when it reads an event.
+   * A parser asked for another column anyway must still return it. By
+   * default, the hint is ignored.
+   */
+  public void setRequiredColumns(BitSet columns) {
+  }
+
   /**
    * Validate that the configuration information associated with an event
    * parser is capable of parsing records from the associated stream.
@@ -0,0 +1,53 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.lang;
+
+import com.odiago.flumebase.exec.Bucket;
+
+/**
+ * Type-specialized implementation of an AggregateFunc's per-bucket operations.
+ *
+ * <p>An AggregateFunc may return an Accumulator from getAccumulator() once its
+ * argument and return types are resolved. The Accumulator is then used in place
+ * of addToBucket() and finishWindow(); since the type dispatch has already been
+ * performed, it can keep its partial aggregate in the primitive state slots of
+ * each Bucket and add an event to a bucket without allocating.</p>
+ *
+ * <p>Like AggregateFunc, an Accumulator must be stateless; all state lives in
+ * the Bucket objects passed to it.</p>
+ */
+public abstract class Accumulator {
+
+  /**
+   * Add 'arg' to the state for the time bucket which holds the argument.
+   * @param arg a value for the column under aggregation
+   * @param bucket the bucket into which the partial aggregate is stored
+   * @throws EvalException if the function cannot be evaluated.
+   */
+  public abstract void add(Object arg, Bucket<?> bucket) throws EvalException;
+
+  /**
+   * A time window spanning one or more buckets is ending; iterate over the buckets
+   * and compute the function's final value for the time window.
+   * @param buckets the set of buckets constituting the window.
+   * @return the final value for this function over a given time window.
+   * @throws EvalException if the function cannot be evaluated.
+   */
+  public abstract Object finishWindow(Iterable<? extends Bucket<?>> buckets)
+      throws EvalException;
+}
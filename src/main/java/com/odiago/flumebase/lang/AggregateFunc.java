@@ -17,8 +17,19 @@
 
 package com.odiago.flumebase.lang;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import java.util.List;
+
 import com.odiago.flumebase.exec.Bucket;
 
+import com.odiago.flumebase.util.ValueCodec;
+
 /**
  * An aggregate function that receives multiple values for a single field
  * and returns a single aggregate value computed over that field for a
@@ -57,4 +68,89 @@ public abstract class AggregateFunc<BUCKETSTATE> extends Function {
    */
   public abstract Object finishWindow(Iterable<Bucket<BUCKETSTATE>> buckets, Type type)
       throws EvalException;
+
+  /**
+   * Return an Accumulator specialized to the resolved output type of this
+   * function. This is called once per function call site, after type checking.
+   * If an Accumulator is returned, it is used instead of addToBucket() and
+   * finishWindow() for that call site.
+   * @param type the expected output type for this aggregate function.
+   * @return a type-specialized Accumulator, or null if this function does not
+   * provide one for 'type'. The default implementation returns null.
+   */
+  public Accumulator getAccumulator(Type type) {
+    return null;
+  }
+
+  /**
+   * Return an Accumulator for a call site that passes constant arguments after
+   * the column under aggregation (e.g., the percentile in approx_percentile(x, 99)).
+   * Functions whose results depend on such arguments must return an Accumulator
+   * from this method, since addToBucket() and finishWindow() do not receive them.
+   * @param type the expected output type for this aggregate function.
+   * @param constArgs the values of the arguments after the first, coerced to
+   * their declared types.
+   * @return a type-specialized Accumulator, or null. The default implementation
+   * returns getAccumulator(type).
+   * @throws EvalException if the constant arguments are invalid.
+   */
+  public Accumulator getAccumulator(Type type, List<Object> constArgs)
+      throws EvalException {
+    return getAccumulator(type);
+  }
+
+  /**
+   * @return true if this function's value over a uniform sample of a window's
+   * events, multiplied by the inverse of the sampling rate, estimates its
+   * value over all of the window's events (e.g., for count and sum). The
+   * default implementation returns false.
+   */
+  public boolean scalesWithSampling() {
+    return false;
+  }
+
+  /**
+   * Multiply a numeric result of a function by 'scale'; integral results are
+   * rounded to the nearest integer. Null and non-numeric results are returned
+   * unchanged.
+   */
+  public static Object scaleResult(Object result, double scale) {
+    if (result instanceof Integer) {
+      return Integer.valueOf((int) Math.round(((Integer) result).intValue() * scale));
+    } else if (result instanceof Long) {
+      return Long.valueOf(Math.round(((Long) result).longValue() * scale));
+    } else if (result instanceof Float) {
+      return Float.valueOf((float) (((Float) result).floatValue() * scale));
+    } else if (result instanceof Double) {
+      return Double.valueOf(((Double) result).doubleValue() * scale);
+    } else if (result instanceof BigDecimal) {
+      BigDecimal val = (BigDecimal) result;
+      return val.multiply(new BigDecimal(scale)).setScale(val.scale(), RoundingMode.HALF_UP);
+    } else {
+      return result;
+    }
+  }
+
+  /**
+   * Serialize the BUCKETSTATE of a bucket, e.g., so that the bucket can be
+   * spilled to disk. (The primitive state slots of the bucket are serialized
+   * by the caller.) The default implementation handles null and the scalar
+   * types supported by ValueCodec; functions with other state types must
+   * override this and readState().
+   * @param state the state to serialize; may be null.
+   * @param out the output to write to.
+   */
+  public void writeState(BUCKETSTATE state, DataOutput out) throws IOException {
+    ValueCodec.writeValue(out, state);
+  }
+
+  /**
+   * Deserialize a BUCKETSTATE written by writeState().
+   * @param in the input to read from.
+   * @return the state; may be null.
+   */
+  @SuppressWarnings("unchecked")
+  public BUCKETSTATE readState(DataInput in) throws IOException {
+    return (BUCKETSTATE) ValueCodec.readValue(in);
+  }
 }
@@ -0,0 +1,44 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.lang;
+
+import java.util.Set;
+
+import com.odiago.flumebase.parser.IdentifierExpr;
+
+/**
+ * Collects the assigned (avro) names of all record fields read by the
+ * expressions it visits. Event attributes are not record fields, and are
+ * not collected.
+ */
+public class FieldRefVisitor extends TreeWalkVisitor {
+  private Set<String> mFieldNames;
+
+  /** Add the names of the fields found to 'fieldNames'. */
+  public FieldRefVisitor(Set<String> fieldNames) {
+    mFieldNames = fieldNames;
+  }
+
+  @Override
+  protected void visit(IdentifierExpr e) throws VisitException {
+    if (IdentifierExpr.AccessType.FIELD.equals(e.getAccessType())
+        && null != e.getAssignedName()) {
+      mFieldNames.add(e.getAssignedName());
+    }
+  }
+}
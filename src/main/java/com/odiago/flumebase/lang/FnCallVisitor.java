@@ -0,0 +1,39 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.lang;
+
+import com.odiago.flumebase.parser.FnCallExpr;
+
+/**
+ * Determines whether an expression calls any function. Such expressions
+ * may be expensive to evaluate, unlike those built only of operators over
+ * fields and constants.
+ */
+public class FnCallVisitor extends TreeWalkVisitor {
+  private boolean mFoundFnCall = false;
+
+  @Override
+  protected void visit(FnCallExpr e) throws VisitException {
+    mFoundFnCall = true;
+  }
+
+  /** @return true if a function call was found in any tree we visited. */
+  public boolean foundFnCall() {
+    return mFoundFnCall;
+  }
+}
@@ -27,8 +27,11 @@ import com.odiago.flumebase.parser.AliasedExpr;
 import com.odiago.flumebase.parser.Expr;
 import com.odiago.flumebase.parser.FnCallExpr;
 import com.odiago.flumebase.parser.GroupBy;
+import com.odiago.flumebase.parser.OrderByLimit;
 import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.TypedField;
 import com.odiago.flumebase.parser.WindowDef;
+import com.odiago.flumebase.parser.WindowSpec;
 
 /**
  * Identify the aggregate functions being selected by a query.
@@ -71,6 +74,11 @@ public class IdentifyAggregates extends TreeWalkVisitor {
       throw new VisitException("Use of aggregate expressions requires an OVER clause.");
     }
 
+    OrderByLimit orderByLimit = s.getOrderByLimit();
+    if (null != orderByLimit) {
+      resolveOrderBy(s, orderByLimit);
+    }
+
     mAggregateExprs = null;
 
     // Now visit the where clause; no aggregates allowed there.
@@ -98,6 +106,55 @@ public class IdentifyAggregates extends TreeWalkVisitor {
     }
   }
 
+  /**
+   * Bind the ORDER BY field of a top-k clause to one of the aggregate
+   * expressions computed in this SELECT, or else to one of its grouping
+   * fields.
+   */
+  private void resolveOrderBy(SelectStmt s, OrderByLimit orderByLimit)
+      throws VisitException {
+    if (mAggregateExprs.size() == 0) {
+      throw new VisitException("ORDER BY ... LIMIT requires aggregate expressions "
+          + "and an OVER clause.");
+    } else if (s.getHaving() != null) {
+      throw new VisitException("ORDER BY ... LIMIT may not be combined with HAVING.");
+    } else if (s.getWindowOver() instanceof WindowSpec
+        && ((WindowSpec) s.getWindowOver()).isSessionWindow()) {
+      throw new VisitException("ORDER BY ... LIMIT is not supported over SESSION windows.");
+    } else if (orderByLimit.getLimit() <= 0) {
+      throw new VisitException("LIMIT must be a positive integer.");
+    }
+
+    String name = orderByLimit.getFieldName();
+    Type orderType = null;
+    for (int i = 0; i < mAggregateExprs.size(); i++) {
+      AliasedExpr ae = mAggregateExprs.get(i);
+      if (name.equals(ae.getUserAlias())) {
+        orderByLimit.setAggregateIndex(i);
+        orderType = ((FnCallExpr) ae.getExpr()).getResolvedType();
+        break;
+      }
+    }
+
+    GroupBy groupBy = s.getGroupBy();
+    if (null == orderType && null != groupBy) {
+      int idx = groupBy.getFieldNames().indexOf(name);
+      if (idx >= 0) {
+        TypedField groupField = groupBy.getFieldTypes().get(idx);
+        orderByLimit.setGroupByField(groupField);
+        orderType = groupField.getType();
+      }
+    }
+
+    if (null == orderType) {
+      throw new VisitException("ORDER BY field " + name
+          + " must name an aggregate expression or a GROUP BY field.");
+    } else if (!orderType.isComparable()) {
+      throw new VisitException("Cannot ORDER BY " + name + " of non-comparable type "
+          + orderType);
+    }
+  }
+
   @Override
   protected void visit(AliasedExpr e) throws VisitException {
     // Check if the underlying expression is a function call to an aggregate fn.
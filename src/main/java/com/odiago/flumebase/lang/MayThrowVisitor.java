@@ -0,0 +1,50 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.lang;
+
+import com.odiago.flumebase.parser.BinExpr;
+import com.odiago.flumebase.parser.BinOp;
+import com.odiago.flumebase.parser.FnCallExpr;
+
+/**
+ * Determines whether evaluating an expression may throw an exception: it
+ * calls a function, or divides (an integer division by zero throws).
+ * Such an expression may rely on earlier conjuncts of a filter to guard it,
+ * e.g., the second conjunct of <tt>b != 0 AND a / b &gt; 1</tt>.
+ */
+public class MayThrowVisitor extends TreeWalkVisitor {
+  private boolean mMayThrow = false;
+
+  @Override
+  protected void visit(BinExpr e) throws VisitException {
+    if (e.getOp() == BinOp.Div || e.getOp() == BinOp.Mod) {
+      mMayThrow = true;
+    }
+    super.visit(e);
+  }
+
+  @Override
+  protected void visit(FnCallExpr e) throws VisitException {
+    mMayThrow = true;
+  }
+
+  /** @return true if any tree we visited may throw when evaluated. */
+  public boolean mayThrow() {
+    return mMayThrow;
+  }
+}
@@ -205,9 +205,11 @@ public abstract class TreeWalkVisitor extends Visitor {
     s.getJoinExpr().accept(this);
     after(s, s.getJoinExpr());
 
-    before(s, s.getWindowExpr());
-    s.getWindowExpr().accept(this);
-    after(s, s.getWindowExpr());
+    if (null != s.getWindowExpr()) {
+      before(s, s.getWindowExpr());
+      s.getWindowExpr().accept(this);
+      after(s, s.getWindowExpr());
+    }
   }
 }
 
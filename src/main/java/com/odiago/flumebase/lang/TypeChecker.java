@@ -29,6 +29,7 @@ import com.odiago.flumebase.exec.AssignedSymbol;
 import com.odiago.flumebase.exec.HashSymbolTable;
 import com.odiago.flumebase.exec.Symbol;
 import com.odiago.flumebase.exec.SymbolTable;
+import com.odiago.flumebase.exec.TableSymbol;
 import com.odiago.flumebase.exec.WindowSymbol;
 
 import com.odiago.flumebase.lang.TypeChecker;
@@ -84,6 +85,12 @@ public class TypeChecker extends Visitor {
    */
   private Ref<Integer> mNextFieldId;
 
+  /**
+   * The source on the right-hand side of the JOIN currently being visited,
+   * if it names a table; tables may not appear anywhere else.
+   */
+  private LiteralSource mJoinedTableSource;
+
   public TypeChecker(SymbolTable rootSymbolTable) {
     mSymTableContext = new Stack<SymbolTable>();
     mSymTableContext.push(rootSymbolTable);
@@ -115,9 +122,12 @@ public class TypeChecker extends Visitor {
     EntityTarget targetType = s.getType();
     Type.TypeName symType = sym.getType().getTypeName();
     // Check that the DROP ___ type matches the symbol type.
+    boolean isTable = sym.resolveAliases() instanceof TableSymbol;
     if (EntityTarget.Stream.equals(targetType)
-        && !Type.TypeName.STREAM.equals(symType)) {
+        && (!Type.TypeName.STREAM.equals(symType) || isTable)) {
       throw new TypeCheckException("Entity " + name + " has incorrect type: " + symType);
+    } else if (EntityTarget.Table.equals(targetType) && !isTable) {
+      throw new TypeCheckException("Entity " + name + " is not a table");
     } else if (EntityTarget.Flow.equals(targetType)
         && !Type.TypeName.FLOW.equals(symType)) {
       throw new TypeCheckException("Entity " + name + " has incorrect type: " + symType);
@@ -141,6 +151,14 @@ public class TypeChecker extends Visitor {
     } else if (symbol.getType().getTypeName() != Type.TypeName.STREAM) {
       throw new TypeCheckException("Identifier " + name + " is not a stream (type="
           + symbol.getType());
+    } else if (symbol.resolveAliases() instanceof TableSymbol && s != mJoinedTableSource) {
+      throw new TypeCheckException("Table " + name
+          + " may only appear on the right-hand side of a JOIN");
+    } else if (s.getSamplePercent() < 1 || s.getSamplePercent() > 100) {
+      throw new TypeCheckException("SAMPLE of stream " + name
+          + " must be between 1 and 100 PERCENT");
+    } else if (s.isSampled() && s == mJoinedTableSource) {
+      throw new TypeCheckException("Table " + name + " may not be sampled");
     }
 
     // Add a new symbol table layer containing the named stream's symbols.
@@ -354,8 +372,29 @@ public class TypeChecker extends Visitor {
 
     int symtabHeight = mSymTableContext.size();
 
+    // A table on the right-hand side is joined by looking up each event of
+    // the left-hand side; there is no window over which to join.
+    boolean isTableLookup = false;
+    if (rightSrc instanceof LiteralSource) {
+      Symbol rightSym = mSymTableContext.top().resolve(((LiteralSource) rightSrc).getName());
+      isTableLookup = null != rightSym && rightSym.resolveAliases() instanceof TableSymbol;
+    }
+
+    if (isTableLookup && null != s.getWindowExpr()) {
+      throw new TypeCheckException("JOIN with a table does not take an OVER clause");
+    } else if (!isTableLookup && null == s.getWindowExpr()) {
+      throw new TypeCheckException("JOIN of two streams requires an OVER clause");
+    }
+
     visitValidSource(leftSrc);
-    visitValidSource(rightSrc);
+    if (isTableLookup) {
+      mJoinedTableSource = (LiteralSource) rightSrc;
+    }
+    try {
+      visitValidSource(rightSrc);
+    } finally {
+      mJoinedTableSource = null;
+    }
 
     // Verify: exactly one symbol table pushed per source.
     assert(mSymTableContext.size() == symtabHeight + 2);
@@ -382,12 +421,31 @@ public class TypeChecker extends Visitor {
 
     // Make sure the "OVER" clause joins over a Window.
     Expr windowExpr = s.getWindowExpr();
+    if (null == windowExpr) {
+      return; // Table lookup.
+    }
     windowExpr.accept(this);
     Type winType = windowExpr.getType(symTab);
     if (!winType.equals(Type.getPrimitive(Type.TypeName.WINDOW))) {
       throw new TypeCheckException("JOIN ... OVER clause requires a window, not an "
           + "identifier of type " + winType);
     }
+
+    // Session windows have no fixed extent relative to a record; they cannot
+    // bound a join.
+    WindowSpec windowSpec = null;
+    if (windowExpr instanceof WindowSpec) {
+      windowSpec = (WindowSpec) windowExpr;
+    } else if (windowExpr instanceof IdentifierExpr) {
+      AssignedSymbol sym = ((IdentifierExpr) windowExpr).getAssignedSymbol();
+      if (sym instanceof WindowSymbol) {
+        windowSpec = ((WindowSymbol) sym).getWindowSpec();
+      }
+    }
+
+    if (null != windowSpec && windowSpec.isSessionWindow()) {
+      throw new TypeCheckException("JOIN ... OVER clause cannot use a SESSION window");
+    }
   }
 
   @Override
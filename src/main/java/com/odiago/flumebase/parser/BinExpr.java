@@ -181,13 +181,23 @@ public class BinExpr extends Expr {
   @Override
   public Object eval(EventWrapper e) throws IOException {
     Object lhs = mLeftExpr.eval(e);
-    Object rhs = mRightExpr.eval(e);
-
-    if (null == lhs || null == rhs) {
+    if (isDecisive(lhs)) {
+      // FALSE AND X is FALSE, and TRUE OR X is TRUE, even if X is NULL;
+      // don't evaluate X.
+      return lhs;
+    } else if (null == lhs && mOp != BinOp.And && mOp != BinOp.Or) {
       // NULL op X always returns null.
       return null;
     }
 
+    Object rhs = mRightExpr.eval(e);
+    if (isDecisive(rhs)) {
+      return rhs;
+    } else if (null == lhs || null == rhs) {
+      // Otherwise, NULL op X returns null.
+      return null;
+    }
+
     if (!mLhsType.equals(mArgType)) {
       lhs = coerce(lhs, mLhsType, mArgType);
     }
@@ -307,6 +317,20 @@ public class BinExpr extends Expr {
     }
   }
 
+  /**
+   * @return true if 'val' alone determines the result of this expression,
+   * following SQL's three-valued logic for AND and OR.
+   */
+  private boolean isDecisive(Object val) {
+    if (mOp == BinOp.And) {
+      return Boolean.FALSE.equals(val);
+    } else if (mOp == BinOp.Or) {
+      return Boolean.TRUE.equals(val);
+    } else {
+      return false;
+    }
+  }
+
   // Sets the type that the expression returns
   public void setType(Type t) {
     mType = t;
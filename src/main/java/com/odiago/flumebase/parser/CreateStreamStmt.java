@@ -40,6 +40,9 @@ public class CreateStreamStmt extends SQLStatement {
   /** Holds the event parsing format and properties. */
   private FormatSpec mFormatSpec;
 
+  /** True if this creates a reference table rather than a stream. */
+  private boolean mIsTable;
+
   public CreateStreamStmt(String streamName, StreamSourceType srcType,
       String sourceLocation, boolean isLocal, TypedFieldList fields) {
     mName = streamName;
@@ -53,7 +56,7 @@ public class CreateStreamStmt extends SQLStatement {
   @Override
   public void format(StringBuilder sb, int depth) {
     pad(sb, depth);
-    sb.append("CREATE STREAM mName=");
+    sb.append(mIsTable ? "CREATE TABLE mName=" : "CREATE STREAM mName=");
     sb.append(mName);
     sb.append(", mType=");
     sb.append(mType);
@@ -81,13 +84,27 @@ public class CreateStreamStmt extends SQLStatement {
     return mFormatSpec;
   }
 
+  /**
+   * Specify whether this creates a reference table, whose contents are
+   * looked up by joins, rather than a stream.
+   */
+  public void setIsTable(boolean isTable) {
+    mIsTable = isTable;
+  }
+
+  public boolean isTable() {
+    return mIsTable;
+  }
+
   @Override
   public PlanContext createExecPlan(PlanContext planContext) {
     // The execution plan for a CREATE STREAM statement is to
     // perform the DDL operation by itself and quit.
 
-    planContext.getFlowSpec().addRoot(new CreateStreamNode(mName,
-        mType, mSrcLocation, mIsLocal, mFields, mFormatSpec));
+    CreateStreamNode node = new CreateStreamNode(mName, mType, mSrcLocation, mIsLocal,
+        mFields, mFormatSpec);
+    node.setIsTable(mIsTable);
+    planContext.getFlowSpec().addRoot(node);
     return planContext;
   }
 }
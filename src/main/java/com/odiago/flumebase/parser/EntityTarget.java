@@ -23,5 +23,6 @@ package com.odiago.flumebase.parser;
 public enum EntityTarget {
   Flow,
   Stream,
+  Table,
   Function,
 }
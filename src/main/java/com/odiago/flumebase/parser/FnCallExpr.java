@@ -17,6 +17,8 @@
 
 package com.odiago.flumebase.parser;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 import java.util.ArrayList;
@@ -28,11 +30,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.odiago.flumebase.exec.Bucket;
+import com.odiago.flumebase.exec.EmptyEventWrapper;
 import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.FnSymbol;
 import com.odiago.flumebase.exec.Symbol;
 import com.odiago.flumebase.exec.SymbolTable;
 
+import com.odiago.flumebase.lang.Accumulator;
 import com.odiago.flumebase.lang.AggregateFunc;
 import com.odiago.flumebase.lang.EvalException;
 import com.odiago.flumebase.lang.Function;
@@ -63,7 +67,15 @@ public class FnCallExpr extends Expr {
   private FnSymbol mFnSymbol;
   private Function mExecFunc; // The function instance to execute.
   private boolean mAutoPromote; // true if we auto-promote argument return types.
-  private Object[] mPartialResults; // reusable array where argument results are stored.
+  /**
+   * Reusable array where argument results are stored; one per thread, as
+   * the partitions of a parallel operator evaluate the same expressions.
+   * Aggregation elements supply their own arrays to insertAggregate().
+   */
+  private ThreadLocal<Object[]> mPartialResults;
+
+  /** Type-specialized accumulator for an aggregate function; may be null. */
+  private Accumulator mAccumulator;
 
   public FnCallExpr(String fnName) {
     mFunctionName = fnName;
@@ -279,7 +291,44 @@ public class FnCallExpr extends Expr {
 
     mExecFunc = mFnSymbol.getFuncInstance();
     mAutoPromote = mExecFunc.autoPromoteArguments();
-    mPartialResults = new Object[mExprTypes.size()];
+    final int numPartialResults = mExprTypes.size();
+    mPartialResults = new ThreadLocal<Object[]>() {
+      @Override
+      protected Object[] initialValue() {
+        return new Object[numPartialResults];
+      }
+    };
+    if (mExecFunc instanceof AggregateFunc) {
+      // Resolve the type dispatch for the aggregate once, here. Aggregates are
+      // applied to the values of their first argument; any further arguments
+      // must be constants, which are evaluated now.
+      List<Object> constArgs = new ArrayList<Object>();
+      for (int i = 1; i < mArgExprs.size(); i++) {
+        Expr argExpr = mArgExprs.get(i);
+        if (!argExpr.isConstant()) {
+          throw new TypeCheckException("Argument " + i + " to aggregate function "
+              + mFunctionName + " must be a constant");
+        }
+
+        try {
+          Object val = argExpr.eval(new EmptyEventWrapper());
+          if (mAutoPromote) {
+            val = coerce(val, mExprTypes.get(i), mArgTypes[i]);
+          }
+          constArgs.add(val);
+        } catch (IOException ioe) {
+          throw new TypeCheckException("Could not evaluate argument " + i + " to function "
+              + mFunctionName, ioe);
+        }
+      }
+
+      try {
+        mAccumulator = ((AggregateFunc<?>) mExecFunc).getAccumulator(mReturnType, constArgs);
+      } catch (EvalException ee) {
+        throw new TypeCheckException("Invalid arguments to function " + mFunctionName
+            + ": " + ee.getMessage(), ee);
+      }
+    }
   }
 
   /** @return true if this fn call is an aggregate function. */
@@ -287,6 +336,14 @@ public class FnCallExpr extends Expr {
     return mExecFunc instanceof AggregateFunc;
   }
 
+  /**
+   * @return true if this fn call is an aggregate function whose value should
+   * be scaled up when it is calculated over a sample of its input.
+   */
+  public boolean scalesWithSampling() {
+    return isAggregate() && ((AggregateFunc<?>) mExecFunc).scalesWithSampling();
+  }
+
   /** @return true if this fn call is a scalar function. */
   public boolean isScalar() {
     return mExecFunc instanceof ScalarFunc;
@@ -302,12 +359,41 @@ public class FnCallExpr extends Expr {
     return out;
   }
 
+  /**
+   * @return a new array to hold the evaluated arguments of this function,
+   * for use with insertAggregate().
+   */
+  public Object[] newArgumentArray() {
+    return new Object[mExprTypes.size()];
+  }
+
+  /**
+   * @return a new argument array for each of 'aggregateExprs', which must
+   * all be function calls.
+   */
+  public static Object[][] newArgumentArrays(List<AliasedExpr> aggregateExprs) {
+    Object[][] arrays = new Object[aggregateExprs.size()][];
+    for (int i = 0; i < arrays.length; i++) {
+      arrays[i] = ((FnCallExpr) aggregateExprs.get(i).getExpr()).newArgumentArray();
+    }
+    return arrays;
+  }
+
   /**
    * Evaluate all the arguments to the function in preparation for
-   * calling the function on them. Stores its output in the
-   * mPartialResults array.
+   * calling the function on them. Stores its output in the calling
+   * thread's mPartialResults array, which is returned.
+   */
+  private Object[] evaluateArguments(EventWrapper e) throws IOException {
+    return evaluateArguments(e, mPartialResults.get());
+  }
+
+  /**
+   * Evaluate all the arguments to the function into 'partialResults',
+   * which is returned.
    */
-  private void evaluateArguments(EventWrapper e) throws IOException {
+  private Object[] evaluateArguments(EventWrapper e, Object[] partialResults)
+      throws IOException {
     // Ensure that we have actual and specified types for all actual expression arguments.
     // We may have some extras, if virtual arguments were used to finish type unification.
     assert mArgExprs.size() <= mArgTypes.length;
@@ -317,21 +403,23 @@ public class FnCallExpr extends Expr {
     for (int i = 0; i < mArgExprs.size(); i++) {
       Object result = mArgExprs.get(i).eval(e);
       if (mAutoPromote) {
-        mPartialResults[i] = coerce(result, mExprTypes.get(i), mArgTypes[i]);
+        partialResults[i] = coerce(result, mExprTypes.get(i), mArgTypes[i]);
       } else {
-        mPartialResults[i] = result;
+        partialResults[i] = result;
       }
     }
+
+    return partialResults;
   }
 
   /** {@inheritDoc} */
   @Override
   public Object eval(EventWrapper e) throws IOException {
     assert mExecFunc instanceof ScalarFunc;
-    evaluateArguments(e);
+    Object[] partialResults = evaluateArguments(e);
 
     try {
-      return ((ScalarFunc) mExecFunc).eval(e, mPartialResults);
+      return ((ScalarFunc) mExecFunc).eval(e, partialResults);
     } catch (EvalException ee) {
       throw new IOException(ee);
     }
@@ -343,11 +431,26 @@ public class FnCallExpr extends Expr {
    * evaluated) arguments of this function.
    */
   public <T> void insertAggregate(EventWrapper e, Bucket<T> bucket) throws IOException {
+    insertAggregate(e, bucket, mPartialResults.get());
+  }
+
+  /**
+   * As insertAggregate(e, bucket), but evaluates the arguments into 'args',
+   * an array returned by newArgumentArray(). Operators which may run in
+   * several threads at once (e.g., the partitions of a parallel aggregation)
+   * each keep their own arrays.
+   */
+  public <T> void insertAggregate(EventWrapper e, Bucket<T> bucket, Object[] args)
+      throws IOException {
     assert mExecFunc instanceof AggregateFunc;
-    evaluateArguments(e);
+    Object[] partialResults = evaluateArguments(e, args);
     
     try {
-      ((AggregateFunc<T>) mExecFunc).addToBucket(mPartialResults[0], bucket, mReturnType);
+      if (null != mAccumulator) {
+        mAccumulator.add(partialResults[0], bucket);
+        return;
+      }
+      ((AggregateFunc<T>) mExecFunc).addToBucket(partialResults[0], bucket, mReturnType);
     } catch (EvalException ee) {
       throw new IOException(ee);
     }
@@ -362,12 +465,43 @@ public class FnCallExpr extends Expr {
     assert mExecFunc instanceof AggregateFunc;
 
     try {
+      if (null != mAccumulator) {
+        return mAccumulator.finishWindow(buckets);
+      }
       return ((AggregateFunc<T>) mExecFunc).finishWindow(buckets, mReturnType);
     } catch (EvalException ee) {
       throw new IOException(ee);
     }
   }
 
+  /**
+   * For a function call representing an aggregation function, serialize
+   * a bucket of partial aggregate state to 'out'.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> void writeBucket(Bucket<T> bucket, DataOutput out) throws IOException {
+    assert mExecFunc instanceof AggregateFunc;
+    out.writeLong(bucket.getLongState());
+    out.writeDouble(bucket.getDoubleState());
+    out.writeLong(bucket.getCount());
+    ((AggregateFunc<T>) mExecFunc).writeState(bucket.getState(), out);
+  }
+
+  /**
+   * For a function call representing an aggregation function, deserialize
+   * a bucket written by writeBucket().
+   */
+  @SuppressWarnings("unchecked")
+  public <T> Bucket<T> readBucket(DataInput in) throws IOException {
+    assert mExecFunc instanceof AggregateFunc;
+    Bucket<T> bucket = new Bucket<T>();
+    bucket.setLongState(in.readLong());
+    bucket.setDoubleState(in.readDouble());
+    bucket.setCount(in.readLong());
+    bucket.setState(((AggregateFunc<T>) mExecFunc).readState(in));
+    return bucket;
+  }
+
   @Override
   public Type getResolvedType() {
     return mReturnType;
@@ -94,6 +94,10 @@ public class IdentifierExpr extends Expr {
     mAccessType = accessType;
   }
 
+  public AccessType getAccessType() {
+    return mAccessType;
+  }
+
   @Override
   public void format(StringBuilder sb, int depth) {
     pad(sb, depth);
@@ -20,7 +20,9 @@ package com.odiago.flumebase.parser;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.avro.Schema;
 
@@ -34,16 +36,33 @@ import com.odiago.flumebase.exec.SymbolTable;
 
 import com.odiago.flumebase.plan.FlowSpecification;
 import com.odiago.flumebase.plan.HashJoinNode;
+import com.odiago.flumebase.plan.LookupJoinNode;
+import com.odiago.flumebase.plan.MultiWayJoinNode;
 import com.odiago.flumebase.plan.PlanContext;
 import com.odiago.flumebase.plan.PlanNode;
 
 /**
  * Represents two sources to a SELECT statement, married by a (windowed) JOIN clause.
+ * If the right-hand source is a table, the JOIN has no window.
  */
 public class JoinedSource extends RecordSource {
   private static final Logger LOG = LoggerFactory.getLogger(
       JoinedSource.class.getName());
 
+  /**
+   * Set to false to plan a chain of joins over three or more streams as
+   * nested two-way joins, even when every join compares the same key.
+   */
+  public static final String MULTI_WAY_JOIN_KEY = "flumebase.join.multiway.enabled";
+  public static final boolean DEFAULT_MULTI_WAY_JOIN = true;
+
+  /**
+   * Number of partitions the keys of a join between two streams are divided
+   * between. Each partition joins its keys' events in its own thread.
+   */
+  public static final String JOIN_PARALLELISM_KEY = "flumebase.join.parallelism";
+  public static final int DEFAULT_JOIN_PARALLELISM = 1;
+
   private RecordSource mLeftSrc;
   private RecordSource mRightSrc;
   private Expr mJoinExpr;
@@ -173,13 +192,27 @@ public class JoinedSource extends RecordSource {
     pad(sb, depth + 1);
     sb.append("ON:\n");
     mJoinExpr.format(sb, depth + 2);
-    pad(sb, depth + 1);
-    sb.append("OVER:\n");
-    mWindowExpr.format(sb, depth + 2);
+    if (null != mWindowExpr) {
+      pad(sb, depth + 1);
+      sb.append("OVER:\n");
+      mWindowExpr.format(sb, depth + 2);
+    }
   }
 
   @Override
   public PlanContext createExecPlan(PlanContext planContext) {
+    if (null == mWindowExpr) {
+      // The typechecker ensures that the right-hand side is a table.
+      return createLookupExecPlan(planContext);
+    }
+
+    if (planContext.getConf().getBoolean(MULTI_WAY_JOIN_KEY, DEFAULT_MULTI_WAY_JOIN)) {
+      List<JoinedSource> joins = getSharedKeyJoins();
+      if (null != joins) {
+        return createMultiWayExecPlan(joins, planContext);
+      }
+    }
+
     RecordSource leftSrc = getLeft();
     RecordSource rightSrc = getRight();
 
@@ -202,14 +235,8 @@ public class JoinedSource extends RecordSource {
     AssignedSymbol rightSym = (AssignedSymbol) getRightKey().resolveAliases();
     TypedField rightKey = new TypedField(rightSym.getAssignedName(), rightSym.getType());
 
-    WindowSpec window = null;
-    try {
-      // This should evaluate to itself, but make sure to resolve it anyway.
-      assert mWindowExpr.isConstant();
-      window = (WindowSpec) mWindowExpr.eval(new EmptyEventWrapper());
-    } catch (IOException ioe) {
-      // mWindowExpr should be constant, so this should be impossible.
-      LOG.error("IOException calculating window expression: " + ioe);
+    WindowSpec window = evalWindow();
+    if (null == window) {
       // Signal error by returning a null flow specification anyway.
       planContext.setFlowSpec(null);
       return planContext;
@@ -218,6 +245,8 @@ public class JoinedSource extends RecordSource {
     HashJoinNode joinNode = new HashJoinNode(leftName, rightName, leftKey, rightKey,
         window, getSourceName(), leftContext.getOutFields(), rightContext.getOutFields(),
         planContext.getConf());
+    joinNode.setParallelism(Math.max(1, planContext.getConf().getInt(JOIN_PARALLELISM_KEY,
+        DEFAULT_JOIN_PARALLELISM)));
 
     // Set this node to expect multiple input schemas.
     List<Schema> inputSchemas = new ArrayList<Schema>();
@@ -246,4 +275,177 @@ public class JoinedSource extends RecordSource {
 
     return outContext;
   }
+
+  /**
+   * @return the window over which this join is performed, or null if it
+   * cannot be evaluated.
+   */
+  private WindowSpec evalWindow() {
+    try {
+      // This should evaluate to itself, but make sure to resolve it anyway.
+      assert mWindowExpr.isConstant();
+      return (WindowSpec) mWindowExpr.eval(new EmptyEventWrapper());
+    } catch (IOException ioe) {
+      // mWindowExpr should be constant, so this should be impossible.
+      LOG.error("IOException calculating window expression: " + ioe);
+      return null;
+    }
+  }
+
+  /**
+   * Plan a join with the table on our right-hand side as a LookupJoinNode,
+   * which looks up each event of the left-hand side in the table.
+   */
+  private PlanContext createLookupExecPlan(PlanContext planContext) {
+    RecordSource leftSrc = getLeft();
+    LiteralSource tableSrc = (LiteralSource) getRight();
+
+    PlanContext leftContext = getSubPlan(leftSrc, planContext);
+    FlowSpecification flowSpec = planContext.getFlowSpec();
+    flowSpec.addNodesFromDAG(leftContext.getFlowSpec());
+
+    // The table is read by the join itself; its plan is only used to name
+    // its columns, and is not added to our graph.
+    PlanContext tableContext = getSubPlan(tableSrc, planContext);
+
+    AssignedSymbol leftSym = (AssignedSymbol) getLeftKey().resolveAliases();
+    TypedField leftKey = new TypedField(leftSym.getAssignedName(), leftSym.getType());
+    AssignedSymbol tableSym = (AssignedSymbol) getRightKey().resolveAliases();
+    TypedField tableKey = new TypedField(tableSym.getAssignedName(), tableSym.getType());
+
+    LookupJoinNode joinNode = new LookupJoinNode(leftSrc.getSourceName(), tableSrc.getName(),
+        leftKey, tableKey, getSourceName(), leftContext.getOutFields(),
+        tableContext.getOutFields(), planContext.getConf());
+    flowSpec.attachToLastLayer(joinNode);
+
+    PlanContext outContext = new PlanContext(planContext);
+    SymbolTable outTable = SymbolTable.mergeSymbols(leftContext.getSymbolTable(),
+        tableContext.getSymbolTable(), planContext.getSymbolTable());
+    outContext.setSymbolTable(outTable);
+
+    List<TypedField> outputFields = new ArrayList<TypedField>();
+    outputFields.addAll(leftContext.getOutFields());
+    outputFields.addAll(tableContext.getOutFields());
+    outputFields = distinctFields(outputFields);
+    outContext.setOutFields(outputFields);
+
+    Schema outSchema = createFieldSchema(outputFields);
+    outContext.setSchema(outSchema);
+    joinNode.setAttr(PlanNode.OUTPUT_SCHEMA_ATTR, outSchema);
+
+    return outContext;
+  }
+
+  /** @return the assigned name of the field represented by 'sym'. */
+  private static String getKeyName(Symbol sym) {
+    return ((AssignedSymbol) sym.resolveAliases()).getAssignedName();
+  }
+
+  /**
+   * If this join is the last of a chain of joins whose left-hand sides are
+   * each the previous join, over three or more distinctly-named streams, and
+   * every join compares the same key, return the joins of the chain, first
+   * to last. Otherwise, return null.
+   */
+  private List<JoinedSource> getSharedKeyJoins() {
+    List<JoinedSource> joins = new ArrayList<JoinedSource>();
+    RecordSource src = this;
+    while (src instanceof JoinedSource) {
+      joins.add(0, (JoinedSource) src);
+      src = ((JoinedSource) src).getLeft();
+    }
+
+    if (joins.size() < 2 || null == src.getSourceName()) {
+      return null;
+    }
+
+    Set<String> inputNames = new HashSet<String>();
+    inputNames.add(src.getSourceName());
+    Set<String> keyNames = new HashSet<String>();
+    keyNames.add(getKeyName(joins.get(0).getLeftKey()));
+    for (JoinedSource join : joins) {
+      RecordSource right = join.getRight();
+      if (null == join.getWindowExpr() || right instanceof JoinedSource || null == right.getSourceName()
+          || !inputNames.add(right.getSourceName())) {
+        return null;
+      }
+
+      // The left key must be the key of one of the streams already joined,
+      // so that it is equal to all of them.
+      if (!keyNames.contains(getKeyName(join.getLeftKey()))) {
+        return null;
+      }
+      keyNames.add(getKeyName(join.getRightKey()));
+    }
+
+    return joins;
+  }
+
+  /**
+   * Plan the chain of 'joins' returned by getSharedKeyJoins() as a single
+   * MultiWayJoinNode. Each stream after the first is joined with the streams
+   * before it over the window of the join that introduces it.
+   */
+  private PlanContext createMultiWayExecPlan(List<JoinedSource> joins,
+      PlanContext planContext) {
+    List<RecordSource> inputs = new ArrayList<RecordSource>();
+    List<Symbol> keySyms = new ArrayList<Symbol>();
+    List<WindowSpec> windows = new ArrayList<WindowSpec>();
+    inputs.add(joins.get(0).getLeft());
+    keySyms.add(joins.get(0).getLeftKey());
+    windows.add(null);
+    for (JoinedSource join : joins) {
+      WindowSpec window = join.evalWindow();
+      if (null == window) {
+        planContext.setFlowSpec(null);
+        return planContext;
+      }
+      inputs.add(join.getRight());
+      keySyms.add(join.getRightKey());
+      windows.add(window);
+    }
+
+    FlowSpecification flowSpec = planContext.getFlowSpec();
+    List<String> inputNames = new ArrayList<String>();
+    List<TypedField> keys = new ArrayList<TypedField>();
+    List<List<TypedField>> inputFields = new ArrayList<List<TypedField>>();
+    List<Schema> inputSchemas = new ArrayList<Schema>();
+    List<TypedField> outputFields = new ArrayList<TypedField>();
+    SymbolTable outTable = null;
+    for (int i = 0; i < inputs.size(); i++) {
+      RecordSource src = inputs.get(i);
+      PlanContext srcContext = getSubPlan(src, planContext);
+      flowSpec.addNodesFromDAG(srcContext.getFlowSpec());
+
+      AssignedSymbol keySym = (AssignedSymbol) keySyms.get(i).resolveAliases();
+      inputNames.add(src.getSourceName());
+      keys.add(new TypedField(keySym.getAssignedName(), keySym.getType()));
+      inputFields.add(srcContext.getOutFields());
+      inputSchemas.add(srcContext.getSchema());
+      outputFields.addAll(srcContext.getOutFields());
+
+      if (null == outTable) {
+        outTable = srcContext.getSymbolTable();
+      } else {
+        outTable = SymbolTable.mergeSymbols(outTable, srcContext.getSymbolTable(),
+            planContext.getSymbolTable());
+      }
+    }
+
+    MultiWayJoinNode joinNode = new MultiWayJoinNode(inputNames, keys, windows,
+        getSourceName(), inputFields, planContext.getConf());
+    joinNode.setAttr(PlanNode.MULTI_INPUT_SCHEMA_ATTR, inputSchemas);
+    flowSpec.attachToLastLayer(joinNode);
+
+    PlanContext outContext = new PlanContext(planContext);
+    outContext.setSymbolTable(outTable);
+    outputFields = distinctFields(outputFields);
+    outContext.setOutFields(outputFields);
+
+    Schema outSchema = createFieldSchema(outputFields);
+    outContext.setSchema(outSchema);
+    joinNode.setAttr(PlanNode.OUTPUT_SCHEMA_ATTR, outSchema);
+
+    return outContext;
+  }
 }
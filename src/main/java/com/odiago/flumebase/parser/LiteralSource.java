@@ -35,6 +35,7 @@ import com.odiago.flumebase.exec.SymbolTable;
 import com.odiago.flumebase.plan.NamedSourceNode;
 import com.odiago.flumebase.plan.PlanContext;
 import com.odiago.flumebase.plan.PlanNode;
+import com.odiago.flumebase.plan.SampleNode;
 
 import com.odiago.flumebase.util.Ref;
 
@@ -59,14 +60,31 @@ public class LiteralSource extends RecordSource {
    * labels.*/
   private SymbolTable mSymbols;
 
+  /** Percentage of the stream's events read by the query; see SAMPLE. */
+  private int mSamplePercent;
+
   public LiteralSource(String name) {
     mSourceName = name;
+    mSamplePercent = 100;
   }
 
   public void setAlias(String alias) {
     mAlias = alias;
   }
 
+  public void setSamplePercent(int percent) {
+    mSamplePercent = percent;
+  }
+
+  public int getSamplePercent() {
+    return mSamplePercent;
+  }
+
+  /** @return true if only a sample of the stream's events is read. */
+  public boolean isSampled() {
+    return mSamplePercent < 100;
+  }
+
   @Override
   public void format(StringBuilder sb, int depth) {
     pad(sb, depth);
@@ -76,6 +94,11 @@ public class LiteralSource extends RecordSource {
       sb.append(", alias=");
       sb.append(mAlias);
     }
+    if (isSampled()) {
+      sb.append(", sample=");
+      sb.append(mSamplePercent);
+      sb.append("%");
+    }
     sb.append("\n");
   }
 
@@ -197,6 +220,11 @@ public class LiteralSource extends RecordSource {
     outContext.setOutFields(outFields);
     node.setAttr(PlanNode.OUTPUT_SCHEMA_ATTR, outSchema);
 
+    if (isSampled()) {
+      // Pass only the sampled fraction of the events to the rest of the query.
+      node.addChild(new SampleNode(mSamplePercent));
+    }
+
     return outContext;
   }
 }
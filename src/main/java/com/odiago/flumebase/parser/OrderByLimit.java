@@ -0,0 +1,97 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.parser;
+
+/**
+ * ORDER BY ... LIMIT clause attached to an aggregating SELECT statement.
+ * Restricts the output of each aggregation window to the 'limit' groups
+ * with the highest (DESC) or lowest (ASC) value of a single aggregate
+ * result or grouping field.
+ */
+public class OrderByLimit extends SQLStatement {
+
+  // Name of the aggregate alias or GROUP BY field to order on.
+  private String mFieldName;
+
+  // True if the groups with the greatest values should be retained.
+  private boolean mDescending;
+
+  // Maximum number of groups to emit per window.
+  private int mLimit;
+
+  // Index into the aggregate expression list of the aggregate to order on;
+  // -1 if we order on a grouping field. Assigned by IdentifyAggregates.
+  private int mAggregateIndex = -1;
+
+  // The grouping field to order on, if not an aggregate. Assigned by
+  // IdentifyAggregates.
+  private TypedField mGroupByField;
+
+  public OrderByLimit(String fieldName) {
+    mFieldName = fieldName;
+  }
+
+  public String getFieldName() {
+    return mFieldName;
+  }
+
+  public boolean isDescending() {
+    return mDescending;
+  }
+
+  public void setDescending(boolean descending) {
+    mDescending = descending;
+  }
+
+  public int getLimit() {
+    return mLimit;
+  }
+
+  public void setLimit(int limit) {
+    mLimit = limit;
+  }
+
+  public int getAggregateIndex() {
+    return mAggregateIndex;
+  }
+
+  public void setAggregateIndex(int index) {
+    mAggregateIndex = index;
+  }
+
+  public TypedField getGroupByField() {
+    return mGroupByField;
+  }
+
+  public void setGroupByField(TypedField field) {
+    mGroupByField = field;
+  }
+
+  /** @return a one-line representation of this clause, e.g., "x DESC LIMIT 3". */
+  public String toStringOneLine() {
+    return mFieldName + (mDescending ? " DESC" : " ASC") + " LIMIT " + mLimit;
+  }
+
+  @Override
+  public void format(StringBuilder sb, int depth) {
+    pad(sb, depth);
+    sb.append("ORDER BY ");
+    sb.append(toStringOneLine());
+    sb.append("\n");
+  }
+}
@@ -29,13 +29,18 @@ import org.slf4j.LoggerFactory;
 import com.odiago.flumebase.exec.HashSymbolTable;
 import com.odiago.flumebase.exec.SymbolTable;
 
+import com.odiago.flumebase.lang.FnCallVisitor;
 import com.odiago.flumebase.lang.Type;
+import com.odiago.flumebase.lang.VisitException;
 
 import com.odiago.flumebase.plan.AggregateNode;
 import com.odiago.flumebase.plan.OutputNode;
 import com.odiago.flumebase.plan.EvaluateExprsNode;
 import com.odiago.flumebase.plan.FilterNode;
 import com.odiago.flumebase.plan.FlowSpecification;
+import com.odiago.flumebase.plan.HashJoinNode;
+import com.odiago.flumebase.plan.LookupJoinNode;
+import com.odiago.flumebase.plan.MultiWayJoinNode;
 import com.odiago.flumebase.plan.MemoryOutputNode;
 import com.odiago.flumebase.plan.PlanContext;
 import com.odiago.flumebase.plan.PlanNode;
@@ -64,6 +69,30 @@ public class SelectStmt extends RecordSource {
   /** The default for flumebase.client.select.target is to use the console. */
   public static final String DEFAULT_CLIENT_SELECT_TARGET = CONSOLE_SELECT_TARGET;
 
+  /**
+   * Configuration key that specifies how many partitions the groups of a
+   * GROUP BY aggregation are divided between. Each partition is aggregated
+   * in its own thread.
+   */
+  public static final String AGGREGATION_PARALLELISM_KEY = "flumebase.aggregation.parallelism";
+  public static final int DEFAULT_AGGREGATION_PARALLELISM = 1;
+
+  /**
+   * Configuration key that specifies how many threads evaluate the SELECT
+   * expressions, when these call functions. Events may leave a parallel
+   * evaluation stage in a different order than they entered it.
+   */
+  public static final String EVALUATION_PARALLELISM_KEY = "flumebase.evaluation.parallelism";
+  public static final int DEFAULT_EVALUATION_PARALLELISM = 1;
+
+  /**
+   * Configuration key that specifies whether the results of COUNT and SUM
+   * over a stream read with a SAMPLE n PERCENT clause are scaled up by
+   * 100 / n, to estimate their value over the unsampled stream.
+   */
+  public static final String SAMPLE_SCALE_AGGREGATES_KEY = "flumebase.aggregation.sample.scale";
+  public static final boolean DEFAULT_SAMPLE_SCALE_AGGREGATES = false;
+
   /** Set of fields or other expressions to select */
   private List<AliasedExpr> mSelectExprs;
 
@@ -89,6 +118,9 @@ public class SelectStmt extends RecordSource {
   // (may be null)
   private Expr mHaving;
 
+  // ORDER BY ... LIMIT clause selecting the top groups of each window (may be null).
+  private OrderByLimit mOrderByLimit;
+
   // List of window definitions; bindings from identifiers to WindowSpecs
   // in the scope of this SELECT statement.
   private List<WindowDef> mWindowDefs;
@@ -148,6 +180,14 @@ public class SelectStmt extends RecordSource {
     mHaving = having;
   }
 
+  public OrderByLimit getOrderByLimit() {
+    return mOrderByLimit;
+  }
+
+  public void setOrderByLimit(OrderByLimit orderByLimit) {
+    mOrderByLimit = orderByLimit;
+  }
+
   public GroupBy getGroupBy() {
     return mGroupBy;
   }
@@ -258,6 +298,10 @@ public class SelectStmt extends RecordSource {
       mHaving.format(sb, depth + 2);
     }
 
+    if (null != mOrderByLimit) {
+      mOrderByLimit.format(sb, depth + 1);
+    }
+
     if (mWindowDefs.size() > 0) {
       pad(sb, depth + 1);
       sb.append("Windows:\n");
@@ -321,9 +365,20 @@ public class SelectStmt extends RecordSource {
         projectionInputs, projectionOutputs, consoleFields);
 
     if (where != null) {
-      // Non-null filter conditions; apply the filter to all of our sources.
-      PlanNode filterNode = new FilterNode(where);
-      flowSpec.attachToLastLayer(filterNode);
+      List<PlanNode> lastLayer = flowSpec.getLastLayer();
+      if (lastLayer.size() == 1 && lastLayer.get(0) instanceof HashJoinNode) {
+        // Evaluate the filter within the join, so that it can reject joined
+        // events before they are materialized.
+        ((HashJoinNode) lastLayer.get(0)).setPostJoinFilter(where);
+      } else if (lastLayer.size() == 1 && lastLayer.get(0) instanceof MultiWayJoinNode) {
+        ((MultiWayJoinNode) lastLayer.get(0)).setPostJoinFilter(where);
+      } else if (lastLayer.size() == 1 && lastLayer.get(0) instanceof LookupJoinNode) {
+        ((LookupJoinNode) lastLayer.get(0)).setPostJoinFilter(where);
+      } else {
+        // Non-null filter conditions; apply the filter to all of our sources.
+        PlanNode filterNode = new FilterNode(where);
+        flowSpec.attachToLastLayer(filterNode);
+      }
     }
 
     // Add an aggregation layer, if required.
@@ -466,8 +521,20 @@ public class SelectStmt extends RecordSource {
 
       LOG.debug("Aggregate exprs: " + StringUtils.listToStr(mAggregateExprs));
       assert flowSpec.getConf() != null;
-      PlanNode aggregateNode = new AggregateNode(aggregateOverFields,
-          mAggregateOver, mAggregateExprs, groupByPropagateFields, flowSpec.getConf());
+      AggregateNode aggregateNode = new AggregateNode(aggregateOverFields,
+          mAggregateOver, mAggregateExprs, groupByPropagateFields, mOrderByLimit,
+          flowSpec.getConf());
+      if (aggregateOverFields.size() > 0 && null == mOrderByLimit) {
+        // Groups can be aggregated independently, unless there is only one of
+        // them, or the top groups of each window must be chosen between them all.
+        aggregateNode.setParallelism(Math.max(1, flowSpec.getConf().getInt(
+            AGGREGATION_PARALLELISM_KEY, DEFAULT_AGGREGATION_PARALLELISM)));
+      }
+      if (mSource instanceof LiteralSource && ((LiteralSource) mSource).isSampled()
+          && flowSpec.getConf().getBoolean(SAMPLE_SCALE_AGGREGATES_KEY,
+          DEFAULT_SAMPLE_SCALE_AGGREGATES)) {
+        aggregateNode.setSampleScale(100.0 / ((LiteralSource) mSource).getSamplePercent());
+      }
       flowSpec.attachToLastLayer(aggregateNode);
 
       // Output schema for this layer contains everything we need to forward
@@ -504,7 +571,12 @@ public class SelectStmt extends RecordSource {
     }
 
     if (calculatedExprs.size() > 0) {
-      PlanNode exprNode = new EvaluateExprsNode(calculatedExprs, exprPropagateFields);
+      EvaluateExprsNode exprNode = new EvaluateExprsNode(calculatedExprs, exprPropagateFields);
+      if (callsFunctions(calculatedExprs)) {
+        // Function calls may be expensive; evaluate these in their own stage.
+        exprNode.setParallelism(Math.max(1, flowSpec.getConf().getInt(
+            EVALUATION_PARALLELISM_KEY, DEFAULT_EVALUATION_PARALLELISM)));
+      }
       // TODO(aaron): assert that calculatedExprs UNION exprPropagateFields gives
       // us the projectionInputs list.
       Schema exprOutSchema = createFieldSchema(projectionInputs);
@@ -513,6 +585,19 @@ public class SelectStmt extends RecordSource {
     }
   }
 
+  /** @return true if any of 'exprs' calls a function. */
+  private static boolean callsFunctions(List<AliasedExpr> exprs) {
+    FnCallVisitor visitor = new FnCallVisitor();
+    try {
+      for (AliasedExpr expr : exprs) {
+        expr.getExpr().accept(visitor);
+      }
+    } catch (VisitException ve) {
+      LOG.warn("Could not inspect expressions for function calls: " + ve);
+    }
+    return visitor.foundFnCall();
+  }
+
   /**
    * Create the output PlanContext that should be returned by createExecPlan().
    */
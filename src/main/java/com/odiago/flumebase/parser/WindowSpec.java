@@ -26,15 +26,28 @@ import com.odiago.flumebase.exec.SymbolTable;
 import com.odiago.flumebase.lang.Type;
 
 /**
- * Defines a window over a range interval.
+ * Defines a window over a range interval, or a session window: a window
+ * whose extent is determined by the data itself, closing once no event
+ * has arrived for a fixed gap interval.
  */
 public class WindowSpec extends Expr {
 
   /** The range of time over which this window sees. */
   private RangeSpec mRangeSpec;
 
+  /**
+   * If true, this is a SESSION window; the width of mRangeSpec is the
+   * inactivity gap that closes a session.
+   */
+  private final boolean mIsSession;
+
   public WindowSpec(RangeSpec rangeSpec) {
+    this(rangeSpec, false);
+  }
+
+  public WindowSpec(RangeSpec rangeSpec, boolean isSession) {
     mRangeSpec = rangeSpec;
+    mIsSession = isSession;
   }
 
   public RangeSpec getRangeSpec() {
@@ -45,6 +58,14 @@ public class WindowSpec extends Expr {
     mRangeSpec = rangeSpec;
   }
 
+  /**
+   * @return true if this defines a session window rather than a sliding
+   * range window.
+   */
+  public boolean isSessionWindow() {
+    return mIsSession;
+  }
+
   @Override
   public boolean isConstant() {
     return true;
@@ -53,14 +74,18 @@ public class WindowSpec extends Expr {
   @Override
   public void format(StringBuilder sb, int depth) {
     pad(sb, depth);
-    sb.append("WindowSpec\n");
+    sb.append("WindowSpec");
+    if (mIsSession) {
+      sb.append(" (session)");
+    }
+    sb.append("\n");
     mRangeSpec.format(sb, depth + 1);
   }
 
   @Override
   public String toStringOneLine() {
     StringBuilder sb = new StringBuilder();
-    sb.append("WINDOW(");
+    sb.append(mIsSession ? "SESSION(" : "WINDOW(");
     sb.append(mRangeSpec.toStringOneLine());
     sb.append(")");
     return sb.toString();
@@ -99,11 +124,11 @@ public class WindowSpec extends Expr {
     }
 
     WindowSpec other = (WindowSpec) otherObj;
-    return mRangeSpec.equals(other.mRangeSpec);
+    return mIsSession == other.mIsSession && mRangeSpec.equals(other.mRangeSpec);
   }
 
   @Override
   public int hashCode() {
-    return mRangeSpec.hashCode();
+    return mRangeSpec.hashCode() ^ (mIsSession ? 1 : 0);
   }
 }
@@ -23,7 +23,9 @@ import org.apache.hadoop.conf.Configuration;
 
 import com.odiago.flumebase.parser.AliasedExpr;
 import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.OrderByLimit;
 import com.odiago.flumebase.parser.TypedField;
+import com.odiago.flumebase.parser.WindowSpec;
 
 import com.odiago.flumebase.util.StringUtils;
 
@@ -41,24 +43,63 @@ public class AggregateNode extends PlanNode {
   private final Expr mWindowExpr; 
 
   // Aggregate fns to evaluate. Each of these is just a FnCallExpr in an AliasedExpr.
-  private final List<AliasedExpr> mAggregateExprs;
+  private List<AliasedExpr> mAggregateExprs;
 
   // List of fields whose values must be propagated forward by this execution layer.
   private final List<TypedField> mPropagateFields;
 
+  // If non-null, emit only the top groups of each window under this ordering.
+  private final OrderByLimit mOrderByLimit;
+
+  // Number of partitions the groups are divided between, each aggregated in its own thread.
+  private int mParallelism;
+
+  // Factor by which counts and sums are multiplied, when the input is a sample of a stream.
+  private double mSampleScale;
+
   public AggregateNode(List<TypedField> groupByFields, Expr windowExpr,
       List<AliasedExpr> aggregateExprs, List<TypedField> propagateFields,
-      Configuration conf) {
+      OrderByLimit orderByLimit, Configuration conf) {
     mGroupByFields = groupByFields;
     mWindowExpr = windowExpr;
     mAggregateExprs = aggregateExprs;
     mPropagateFields = propagateFields;
+    mOrderByLimit = orderByLimit;
     mConf = conf;
+    mParallelism = 1;
+    mSampleScale = 1.0;
 
     // Aggregate node will need an eviction timer.
     this.setAttr(PlanNode.USES_TIMER_ATTR, Boolean.TRUE);
   }
 
+  public int getParallelism() {
+    return mParallelism;
+  }
+
+  /**
+   * Divide the groups between 'parallelism' partitions. If this is more than
+   * one, each partition runs its own eviction timer, rather than sharing one
+   * with the downstream node.
+   */
+  public void setParallelism(int parallelism) {
+    mParallelism = parallelism;
+    this.setAttr(PlanNode.USES_TIMER_ATTR, Boolean.valueOf(parallelism == 1));
+  }
+
+  public double getSampleScale() {
+    return mSampleScale;
+  }
+
+  /**
+   * Multiply the results of aggregate functions which scale with sampling
+   * (e.g., count and sum) by 'scale', when they are calculated over a
+   * sample of the events of a stream.
+   */
+  public void setSampleScale(double scale) {
+    mSampleScale = scale;
+  }
+
   public List<TypedField> getGroupByFields() {
     return mGroupByFields;
   }
@@ -67,14 +108,30 @@ public class AggregateNode extends PlanNode {
     return mWindowExpr;
   }
 
+  /**
+   * @return true if this aggregates over SESSION windows rather than over a
+   * sliding time range.
+   */
+  public boolean isSessionWindow() {
+    return mWindowExpr instanceof WindowSpec && ((WindowSpec) mWindowExpr).isSessionWindow();
+  }
+
   public List<AliasedExpr> getAggregateExprs() {
     return mAggregateExprs;
   }
 
+  public void setAggregateExprs(List<AliasedExpr> aggregateExprs) {
+    mAggregateExprs = aggregateExprs;
+  }
+
   public List<TypedField> getPropagateFields() {
     return mPropagateFields;
   }
 
+  public OrderByLimit getOrderByLimit() {
+    return mOrderByLimit;
+  }
+
   public Configuration getConf() {
     return mConf;
   }
@@ -97,7 +154,20 @@ public class AggregateNode extends PlanNode {
     }
     sb.append("], propagate=[");
     StringUtils.formatList(sb, mPropagateFields);
-    sb.append("]\n");
+    sb.append("]");
+    if (null != mOrderByLimit) {
+      sb.append(", order by ");
+      sb.append(mOrderByLimit.toStringOneLine());
+    }
+    if (mParallelism > 1) {
+      sb.append(", parallelism=");
+      sb.append(mParallelism);
+    }
+    if (mSampleScale != 1.0) {
+      sb.append(", sample scale=");
+      sb.append(mSampleScale);
+    }
+    sb.append("\n");
     formatAttributes(sb);
   }
 }
@@ -0,0 +1,60 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import com.odiago.flumebase.parser.AliasedExpr;
+
+import com.odiago.flumebase.util.StringUtils;
+
+/**
+ * Execution stage which partially aggregates events into the buckets of the
+ * following AggregateNode, in the thread of the source that reads them, and
+ * passes on the partial aggregates of each (bucket, group) rather than the
+ * events themselves.
+ */
+public class CombinerNode extends PlanNode {
+
+  /** The aggregation whose partial aggregates we compute. */
+  private final AggregateNode mAggregateNode;
+
+  public CombinerNode(AggregateNode aggregateNode) {
+    mAggregateNode = aggregateNode;
+  }
+
+  public AggregateNode getAggregateNode() {
+    return mAggregateNode;
+  }
+
+  @Override
+  public void formatParams(StringBuilder sb) {
+    sb.append("Combiner groupBy=[");
+    StringUtils.formatList(sb, mAggregateNode.getGroupByFields());
+    sb.append("], for exprs=[");
+    boolean first = true;
+    for (AliasedExpr ae : mAggregateNode.getAggregateExprs()) {
+      if (!first) {
+        sb.append(", ");
+      }
+
+      ae.format(sb);
+      first = false;
+    }
+    sb.append("]\n");
+    formatAttributes(sb);
+  }
+}
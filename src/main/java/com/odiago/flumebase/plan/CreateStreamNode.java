@@ -30,7 +30,7 @@ import com.odiago.flumebase.parser.TypedFieldList;
 import com.odiago.flumebase.util.StringUtils;
 
 /**
- * DDL operation that creates a stream.
+ * DDL operation that creates a stream, or a reference table.
  * Parameters here have the same types and definitions as in CreateStreamStmt,
  * although strings are already unquoted.
  */
@@ -41,6 +41,7 @@ public class CreateStreamNode extends PlanNode {
   private boolean mIsLocal;
   private List<TypedField> mFieldTypes;
   private FormatSpec mFormatSpec;
+  private boolean mIsTable;
 
   public CreateStreamNode(String streamName, StreamSourceType srcType,
        String sourceLocation, boolean isLocal, TypedFieldList fieldTypes,
@@ -76,6 +77,15 @@ public class CreateStreamNode extends PlanNode {
     return mIsLocal;
   }
 
+  /** @return true if this creates a reference table rather than a stream. */
+  public boolean isTable() {
+    return mIsTable;
+  }
+
+  public void setIsTable(boolean isTable) {
+    mIsTable = isTable;
+  }
+
   /**
    * @return a list of TypedField instances declaring the types of all the fields
    * in the stream. Neither the list nor its constituent objects should be modified.
@@ -98,7 +108,7 @@ public class CreateStreamNode extends PlanNode {
 
   @Override 
   public void formatParams(StringBuilder sb) {
-    sb.append("CreateStream name=");
+    sb.append(mIsTable ? "CreateTable name=" : "CreateStream name=");
     sb.append(mStreamName);
     sb.append(", mType=");
     sb.append(mType);
@@ -31,9 +31,13 @@ public class EvaluateExprsNode extends PlanNode {
   /** Set of fields from our input that we should propagate to our output. */
   private List<TypedField> mPropagateFields;
 
+  /** Number of threads among which evaluation of the events is divided. */
+  private int mParallelism;
+
   public EvaluateExprsNode(List<AliasedExpr> exprs, List<TypedField> propagateFields) {
     mExprs = exprs;
     mPropagateFields = propagateFields;
+    mParallelism = 1;
   }
 
   public List<AliasedExpr> getExprs() {
@@ -44,13 +48,38 @@ public class EvaluateExprsNode extends PlanNode {
     return mPropagateFields;
   }
 
+  public void setExprs(List<AliasedExpr> exprs) {
+    mExprs = exprs;
+  }
+
+  public void setPropagateFields(List<TypedField> propagateFields) {
+    mPropagateFields = propagateFields;
+  }
+
+  public int getParallelism() {
+    return mParallelism;
+  }
+
+  /**
+   * Evaluate the expressions in 'parallelism' worker threads, which may
+   * emit events in a different order than they arrived.
+   */
+  public void setParallelism(int parallelism) {
+    mParallelism = parallelism;
+  }
+
   @Override
   public void formatParams(StringBuilder sb) {
     sb.append("EvaluateExprs exprs=(");
     StringUtils.formatList(sb, mExprs);
     sb.append("), propagate=(");
     StringUtils.formatList(sb, mPropagateFields);
-    sb.append(")\n");
+    sb.append(")");
+    if (mParallelism > 1) {
+      sb.append(", parallelism=");
+      sb.append(mParallelism);
+    }
+    sb.append("\n");
     formatAttributes(sb);
   }
 }
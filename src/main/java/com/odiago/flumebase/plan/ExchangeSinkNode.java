@@ -0,0 +1,55 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+/**
+ * Output of a source fragment running on a worker process; sends its events,
+ * or the partial aggregates of the aggregation that follows it, to the
+ * coordinator which runs the rest of the flow.
+ */
+public class ExchangeSinkNode extends PlanNode {
+  /** host:port address where the coordinator receives the events. */
+  private String mTarget;
+
+  /** The aggregation whose partial aggregates we send; null if we send events. */
+  private AggregateNode mAggregateNode;
+
+  public ExchangeSinkNode(String target, AggregateNode aggregateNode) {
+    mTarget = target;
+    mAggregateNode = aggregateNode;
+  }
+
+  @Override
+  public void formatParams(StringBuilder sb) {
+    sb.append("ExchangeSink target=");
+    sb.append(mTarget);
+    if (null != mAggregateNode) {
+      sb.append(", partial aggregates");
+    }
+    sb.append("\n");
+    formatAttributes(sb);
+  }
+
+  public String getTarget() {
+    return mTarget;
+  }
+
+  public AggregateNode getAggregateNode() {
+    return mAggregateNode;
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import java.util.List;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.util.StringUtils;
+
+/**
+ * Input source that receives the events of a named stream from the source
+ * fragments running on worker processes, in place of reading the stream
+ * itself. If the stream is aggregated, the fragments send the partial
+ * aggregates of the aggregation instead, and this feeds the aggregation
+ * directly.
+ */
+public class ExchangeSourceNode extends PlanNode {
+  private String mStreamName;
+  private List<TypedField> mFields;
+
+  /** Index of the source among the sources of the flow. */
+  private int mSourceId;
+
+  /** host:port addresses of the workers which run the source fragment. */
+  private List<String> mWorkers;
+
+  /** The aggregation whose partial aggregates we receive; null if we receive events. */
+  private AggregateNode mAggregateNode;
+
+  public ExchangeSourceNode(String streamName, List<TypedField> fields, int sourceId,
+      List<String> workers, AggregateNode aggregateNode) {
+    mStreamName = streamName;
+    mFields = fields;
+    mSourceId = sourceId;
+    mWorkers = workers;
+    mAggregateNode = aggregateNode;
+  }
+
+  @Override
+  public void formatParams(StringBuilder sb) {
+    sb.append("ExchangeSource streamName=");
+    sb.append(mStreamName);
+    sb.append(", source=");
+    sb.append(mSourceId);
+    sb.append(", workers=(");
+    StringUtils.formatList(sb, mWorkers);
+    sb.append(")");
+    if (null != mAggregateNode) {
+      sb.append(", partial aggregates");
+    }
+    sb.append("\n");
+    for (TypedField field : mFields) {
+      sb.append("  ");
+      sb.append(field.toString());
+      sb.append("\n");
+    }
+    formatAttributes(sb);
+  }
+
+  public String getStreamName() {
+    return mStreamName;
+  }
+
+  public List<TypedField> getFields() {
+    return mFields;
+  }
+
+  public int getSourceId() {
+    return mSourceId;
+  }
+
+  public List<String> getWorkers() {
+    return mWorkers;
+  }
+
+  public AggregateNode getAggregateNode() {
+    return mAggregateNode;
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.odiago.flumebase.util.DAG;
+import com.odiago.flumebase.util.DAGOperatorException;
+
+/**
+ * Replaces each linear chain of stateless per-event operators with a
+ * FusedNode, which runs the whole chain in a single FlowElement.
+ *
+ * <p>A fused chain holds filters, followed by at most one expression
+ * evaluation, followed by projections; it must hold at least one stage
+ * which produces records, and at least two stages. Later stages of the
+ * chain read the fields of the record produced by the previous stage in
+ * memory, so only filters which read the input event itself are fused.
+ * A chain ends at a node whose output may be shared with other flows.</p>
+ *
+ * <p>This is run after MarkSharedPrefixes, as the last plan pass.</p>
+ */
+public class FuseOperators {
+
+  /** Set to false to run each filter, evaluation and projection separately. */
+  public static final String FUSION_ENABLED_KEY = "flumebase.flow.fusion.enabled";
+  public static final boolean DEFAULT_FUSION_ENABLED = true;
+
+  /** Fuse the chains of operators in 'spec', if fusion is enabled by its configuration. */
+  public void fuse(FlowSpecification spec) throws DAGOperatorException {
+    Configuration conf = spec.getConf();
+    if (!conf.getBoolean(FUSION_ENABLED_KEY, DEFAULT_FUSION_ENABLED)) {
+      return;
+    }
+
+    // Visit the nodes in bfs order, so each chain is found from its first node.
+    final List<PlanNode> nodes = new ArrayList<PlanNode>();
+    spec.bfs(new DAG.Operator<PlanNode>() {
+      public void process(PlanNode node) {
+        nodes.add(node);
+      }
+    });
+
+    Set<PlanNode> fused = Collections.newSetFromMap(new IdentityHashMap<PlanNode, Boolean>());
+    for (PlanNode node : nodes) {
+      if (fused.contains(node) || !canFollow(node, false)) {
+        continue;
+      }
+
+      List<PlanNode> chain = new ArrayList<PlanNode>();
+      chain.add(node);
+      boolean hasRecordStage = !(node instanceof FilterNode);
+      PlanNode tail = node;
+      while (null == tail.getAttr(PlanNode.SHARED_PREFIX_ATTR)) {
+        PlanNode next = getSoleChild(tail);
+        if (null == next || !canFollow(next, hasRecordStage)) {
+          break;
+        }
+        chain.add(next);
+        hasRecordStage = hasRecordStage || !(next instanceof FilterNode);
+        tail = next;
+      }
+
+      if (chain.size() > 1 && hasRecordStage) {
+        fused.addAll(chain);
+        replaceChain(spec, chain);
+      }
+    }
+  }
+
+  /**
+   * @return true if 'node' may be the next stage of a fused chain.
+   * @param afterRecordStage true if the chain so far holds a stage which
+   * produces records.
+   */
+  private static boolean canFollow(PlanNode node, boolean afterRecordStage) {
+    if (node instanceof ProjectionNode) {
+      return true;
+    } else if (node instanceof FilterNode) {
+      return !afterRecordStage;
+    } else if (node instanceof EvaluateExprsNode) {
+      return !afterRecordStage && ((EvaluateExprsNode) node).getParallelism() <= 1;
+    } else {
+      return false;
+    }
+  }
+
+  /** Replace the nodes of 'chain' in 'spec' with a single FusedNode. */
+  private static void replaceChain(FlowSpecification spec, List<PlanNode> chain) {
+    PlanNode first = chain.get(0);
+    PlanNode last = chain.get(chain.size() - 1);
+
+    FusedNode fusedNode = new FusedNode(chain);
+    copyAttr(first, fusedNode, PlanNode.INPUT_SCHEMA_ATTR);
+    copyAttr(last, fusedNode, PlanNode.OUTPUT_SCHEMA_ATTR);
+    copyAttr(last, fusedNode, PlanNode.SHARED_PREFIX_ATTR);
+
+    for (PlanNode parent : new ArrayList<PlanNode>(first.getParents())) {
+      parent.removeChild(first);
+      parent.addChild(fusedNode);
+    }
+
+    List<PlanNode> roots = spec.getRootSet();
+    int rootPos = roots.indexOf(first);
+    if (rootPos != -1) {
+      roots.set(rootPos, fusedNode);
+    }
+
+    for (PlanNode child : new ArrayList<PlanNode>(last.getChildren())) {
+      child.replaceParent(last, fusedNode);
+    }
+  }
+
+  private static void copyAttr(PlanNode from, PlanNode to, String attrName) {
+    Object val = from.getAttr(attrName);
+    if (null != val) {
+      to.setAttr(attrName, val);
+    }
+  }
+
+  /**
+   * @return the only child of 'node', if it has one child and is that
+   * child's only parent; null otherwise.
+   */
+  private static PlanNode getSoleChild(PlanNode node) {
+    List<PlanNode> children = node.getChildren();
+    if (children.size() != 1 || children.get(0).getParents().size() != 1) {
+      return null;
+    }
+    return children.get(0);
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Execution stage which runs a linear chain of filters, an expression
+ * evaluation, and projections as a single operator. Each event is
+ * filtered, evaluated and projected in one pass, and only the record
+ * produced by the last stage is encoded.
+ */
+public class FusedNode extends PlanNode {
+
+  /** The FilterNodes, EvaluateExprsNodes and ProjectionNodes fused together, in order. */
+  private final List<PlanNode> mStages;
+
+  public FusedNode(List<PlanNode> stages) {
+    mStages = new ArrayList<PlanNode>(stages);
+  }
+
+  public List<PlanNode> getStages() {
+    return mStages;
+  }
+
+  /** @return true if all stages of this node are filters or projections. */
+  public boolean isFilterProjection() {
+    for (PlanNode stage : mStages) {
+      if (!(stage instanceof FilterNode) && !(stage instanceof ProjectionNode)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  public void formatParams(StringBuilder sb) {
+    sb.append("Fused stages=(\n");
+    for (PlanNode stage : mStages) {
+      sb.append("  ");
+      stage.formatParams(sb);
+    }
+    sb.append(")\n");
+    formatAttributes(sb);
+  }
+}
@@ -21,6 +21,7 @@ import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
 
+import com.odiago.flumebase.parser.Expr;
 import com.odiago.flumebase.parser.TypedField;
 import com.odiago.flumebase.parser.WindowSpec;
 
@@ -42,6 +43,8 @@ public class HashJoinNode extends PlanNode {
   private List<TypedField> mLeftFields; // field names from the left stream.
   private List<TypedField> mRightFields; // field names from the right stream.
   private Configuration mConf; // user configuration.
+  private Expr mPostJoinFilter; // predicate applied to joined events; may be null.
+  private int mParallelism; // number of partitions the keys are divided between.
 
 
   public HashJoinNode(String leftName, String rightName, TypedField leftKey, TypedField rightKey,
@@ -56,6 +59,7 @@ public class HashJoinNode extends PlanNode {
     mLeftFields = leftFieldNames;
     mRightFields = rightFieldNames;
     mConf = conf;
+    mParallelism = 1;
   }
 
   protected void formatParams(StringBuilder sb) {
@@ -71,6 +75,14 @@ public class HashJoinNode extends PlanNode {
     sb.append(mWindowWidth);
     sb.append(", outName=");
     sb.append(mOutName);
+    if (null != mPostJoinFilter) {
+      sb.append(", filter=");
+      sb.append(mPostJoinFilter.toStringOneLine());
+    }
+    if (mParallelism > 1) {
+      sb.append(", parallelism=");
+      sb.append(mParallelism);
+    }
     formatAttributes(sb);
   }
 
@@ -109,4 +121,32 @@ public class HashJoinNode extends PlanNode {
   public List<TypedField> getRightFields() {
     return mRightFields;
   }
+
+  /**
+   * @return the predicate which joined events must satisfy to be emitted,
+   * or null if all are emitted.
+   */
+  public Expr getPostJoinFilter() {
+    return mPostJoinFilter;
+  }
+
+  /**
+   * Require that joined events satisfy 'filter' to be emitted. The join
+   * evaluates this before it materializes its output events.
+   */
+  public void setPostJoinFilter(Expr filter) {
+    mPostJoinFilter = filter;
+  }
+
+  public int getParallelism() {
+    return mParallelism;
+  }
+
+  /**
+   * Divide the join keys between 'parallelism' partitions, each of which
+   * joins its keys' events in its own thread.
+   */
+  public void setParallelism(int parallelism) {
+    mParallelism = parallelism;
+  }
 }
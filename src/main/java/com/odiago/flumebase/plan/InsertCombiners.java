@@ -0,0 +1,103 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Inserts a CombinerNode ahead of each windowed aggregation which is fed
+ * directly by a named source, through filters and projections alone. These
+ * stages then run in the source's own thread, and only the partial
+ * aggregates of each (bucket, group) are queued for the aggregator, rather
+ * than every event.
+ *
+ * <p>This is run after PropagateSchemas and PlanFragmenter.</p>
+ */
+public class InsertCombiners {
+
+  /** Set to false to queue every event for the aggregator. */
+  public static final String COMBINER_ENABLED_KEY = "flumebase.aggregation.combiner.enabled";
+  public static final boolean DEFAULT_COMBINER_ENABLED = true;
+
+  /** Insert combiners into 'spec', if they are enabled by its configuration. */
+  public void insert(FlowSpecification spec) {
+    Configuration conf = spec.getConf();
+    for (PlanNode root : spec.getRootSet()) {
+      if (!(root instanceof NamedSourceNode)) {
+        continue;
+      }
+
+      AggregateNode aggregate = getCombinedAggregate(root, conf);
+      if (null != aggregate) {
+        PlanNode tail = getSourceChainTail(root);
+        CombinerNode combiner = new CombinerNode(aggregate);
+        combiner.setAttr(PlanNode.OUTPUT_SCHEMA_ATTR, tail.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR));
+        aggregate.replaceParent(tail, combiner);
+        tail.addChild(combiner);
+      }
+    }
+  }
+
+  /**
+   * @return the windowed aggregation fed by 'source' through the chain of
+   * filters and projections following it, for which a combiner may compute
+   * partial aggregates; null if there is none, or combiners are disabled by
+   * 'conf'.
+   */
+  public static AggregateNode getCombinedAggregate(PlanNode source, Configuration conf) {
+    if (!conf.getBoolean(COMBINER_ENABLED_KEY, DEFAULT_COMBINER_ENABLED)) {
+      return null;
+    }
+
+    PlanNode next = getSoleChild(getSourceChainTail(source));
+    if (next instanceof AggregateNode && !((AggregateNode) next).isSessionWindow()) {
+      return (AggregateNode) next;
+    }
+    return null;
+  }
+
+  /**
+   * @return the last node of the chain of filters and projections following
+   * 'source', each of which has only the previous node as its input. The
+   * chain may include fused filters and projections.
+   */
+  public static PlanNode getSourceChainTail(PlanNode source) {
+    PlanNode tail = source;
+    PlanNode next = getSoleChild(tail);
+    while (next instanceof FilterNode || next instanceof ProjectionNode
+        || (next instanceof FusedNode && ((FusedNode) next).isFilterProjection())) {
+      tail = next;
+      next = getSoleChild(tail);
+    }
+    return tail;
+  }
+
+  /**
+   * @return the only child of 'node', if it has one child and is that
+   * child's only parent; null otherwise.
+   */
+  private static PlanNode getSoleChild(PlanNode node) {
+    List<PlanNode> children = node.getChildren();
+    if (children.size() != 1 || children.get(0).getParents().size() != 1) {
+      return null;
+    }
+    return children.get(0);
+  }
+}
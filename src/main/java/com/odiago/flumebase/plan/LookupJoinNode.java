@@ -0,0 +1,121 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * Join an input stream with a reference table, by looking up the rows of
+ * the table whose key column is equal to the key of each input event.
+ */
+public class LookupJoinNode extends PlanNode {
+
+  private String mStreamName; // name of the input stream.
+  private String mTableName; // name of the table symbol.
+  private TypedField mStreamKey; // the key field from the input stream.
+  private TypedField mTableKey; // the key column of the table.
+  private String mOutName; // name to assign to the output stream from this join.
+  private List<TypedField> mStreamFields; // field names from the input stream.
+  private List<TypedField> mTableFields; // columns of the table, in file order.
+  private Configuration mConf; // user configuration.
+  private Expr mPostJoinFilter; // predicate applied to joined events; may be null.
+
+  public LookupJoinNode(String streamName, String tableName, TypedField streamKey,
+      TypedField tableKey, String outName, List<TypedField> streamFields,
+      List<TypedField> tableFields, Configuration conf) {
+    mStreamName = streamName;
+    mTableName = tableName;
+    mStreamKey = streamKey;
+    mTableKey = tableKey;
+    mOutName = outName;
+    mStreamFields = streamFields;
+    mTableFields = tableFields;
+    mConf = conf;
+  }
+
+  protected void formatParams(StringBuilder sb) {
+    sb.append("LookupJoin mStreamName=");
+    sb.append(mStreamName);
+    sb.append(", mTableName=");
+    sb.append(mTableName);
+    sb.append(", mStreamKey=");
+    sb.append(mStreamKey);
+    sb.append(", mTableKey=");
+    sb.append(mTableKey);
+    sb.append(", outName=");
+    sb.append(mOutName);
+    if (null != mPostJoinFilter) {
+      sb.append(", filter=");
+      sb.append(mPostJoinFilter.toStringOneLine());
+    }
+    formatAttributes(sb);
+  }
+
+  public String getStreamName() {
+    return mStreamName;
+  }
+
+  public String getTableName() {
+    return mTableName;
+  }
+
+  public TypedField getStreamKey() {
+    return mStreamKey;
+  }
+
+  public TypedField getTableKey() {
+    return mTableKey;
+  }
+
+  public String getOutputName() {
+    return mOutName;
+  }
+
+  public List<TypedField> getStreamFields() {
+    return mStreamFields;
+  }
+
+  public List<TypedField> getTableFields() {
+    return mTableFields;
+  }
+
+  public Configuration getConf() {
+    return mConf;
+  }
+
+  /**
+   * @return the predicate which joined events must satisfy to be emitted,
+   * or null if all are emitted.
+   */
+  public Expr getPostJoinFilter() {
+    return mPostJoinFilter;
+  }
+
+  /**
+   * Require that joined events satisfy 'filter' to be emitted. The join
+   * evaluates this before it materializes its output events.
+   */
+  public void setPostJoinFilter(Expr filter) {
+    mPostJoinFilter = filter;
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.odiago.flumebase.exec.StreamSymbol;
+import com.odiago.flumebase.exec.Symbol;
+import com.odiago.flumebase.exec.SymbolTable;
+import com.odiago.flumebase.exec.WatermarkGenerator;
+
+import com.odiago.flumebase.exec.local.LoadShedder;
+
+import com.odiago.flumebase.parser.StreamSourceType;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.util.StringUtils;
+
+/**
+ * Marks the chains of a named source, filters and projections in a flow
+ * which could be shared with other running flows. The last node of each
+ * such chain has its SHARED_PREFIX_ATTR set to a canonical description of
+ * the chain; the local environment runs a single copy of each chain for
+ * all flows whose chains are described identically.
+ *
+ * <p>Only chains reading live streams from Flume are marked; a flow which
+ * shares a running chain receives events from the time it is deployed,
+ * which is also what it would read from its own copy of a live stream.
+ * Chains which feed a combiner run in the source's thread, and are not
+ * shared. Flows which configure their sources differently (e.g., their
+ * watermarks or overload policy) do not share chains.</p>
+ *
+ * <p>This is run after InsertCombiners.</p>
+ */
+public class MarkSharedPrefixes {
+
+  /** Set to false to run every flow's operators independently of other flows. */
+  public static final String SHARING_ENABLED_KEY = "flumebase.flow.share.subplans";
+  public static final boolean DEFAULT_SHARING_ENABLED = true;
+
+  /** Configuration keys which govern how the source of a chain delivers events. */
+  private static final String [] SOURCE_CONF_KEYS = {
+    WatermarkGenerator.WATERMARK_ENABLED_KEY,
+    WatermarkGenerator.MAX_OUT_OF_ORDER_KEY,
+    WatermarkGenerator.WATERMARK_INTERVAL_KEY,
+    LoadShedder.OVERLOAD_POLICY_KEY,
+    LoadShedder.SAMPLE_THRESHOLD_KEY,
+  };
+
+  /** Mark the sharable chains in 'spec', if sharing is enabled by its configuration. */
+  public void mark(FlowSpecification spec, SymbolTable symbols) {
+    Configuration conf = spec.getConf();
+    if (!conf.getBoolean(SHARING_ENABLED_KEY, DEFAULT_SHARING_ENABLED)) {
+      return;
+    }
+
+    for (PlanNode root : spec.getRootSet()) {
+      if (!(root instanceof NamedSourceNode) || !isLive((NamedSourceNode) root, symbols)) {
+        continue;
+      }
+
+      PlanNode tail = InsertCombiners.getSourceChainTail(root);
+      if (tail == root || tail.getChildren().size() == 0) {
+        // There is no work in the chain to share but reading the stream.
+        continue;
+      }
+
+      boolean feedsCombiner = false;
+      for (PlanNode child : tail.getChildren()) {
+        if (child instanceof CombinerNode) {
+          feedsCombiner = true;
+        }
+      }
+
+      if (!feedsCombiner) {
+        tail.setAttr(PlanNode.SHARED_PREFIX_ATTR, getPrefixKey((NamedSourceNode) root, tail, conf));
+      }
+    }
+  }
+
+  /**
+   * @return true if the stream read by 'source' delivers events as they
+   * arrive, rather than replaying a fixed set of events.
+   */
+  private static boolean isLive(NamedSourceNode source, SymbolTable symbols) {
+    Symbol symbol = symbols.resolve(source.getStreamName());
+    if (null == symbol || !(symbol.resolveAliases() instanceof StreamSymbol)) {
+      return false;
+    }
+
+    StreamSourceType sourceType = ((StreamSymbol) symbol.resolveAliases()).getSourceType();
+    return StreamSourceType.Source.equals(sourceType) || StreamSourceType.Node.equals(sourceType);
+  }
+
+  /**
+   * @return a canonical description of the chain of nodes from 'source' to
+   * 'tail', run with the configuration 'conf'. Two chains with the same
+   * description read the same fields of the same stream, and emit the same
+   * events.
+   */
+  public static String getPrefixKey(NamedSourceNode source, PlanNode tail,
+      Configuration conf) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(source.getStreamName());
+    formatFields(sb, source.getFields());
+
+    PlanNode node = source;
+    while (node != tail) {
+      node = node.getChildren().get(0);
+      if (node instanceof FilterNode) {
+        StringBuilder exprText = new StringBuilder();
+        ((FilterNode) node).getFilterExpr().format(exprText);
+        sb.append(" where(");
+        sb.append(exprText.toString().trim().replace('\n', ' '));
+        sb.append(")");
+      } else {
+        ProjectionNode projection = (ProjectionNode) node;
+        sb.append(" project");
+        formatFields(sb, projection.getInputFields());
+        sb.append("->");
+        formatFields(sb, projection.getOutputFields());
+      }
+    }
+
+    // Settings left at their defaults are omitted, so that flows which don't
+    // set them share chains regardless of the defaults in force.
+    StringBuilder confText = new StringBuilder();
+    for (String key : SOURCE_CONF_KEYS) {
+      String val = conf.get(key);
+      if (null != val) {
+        if (confText.length() > 0) {
+          confText.append(", ");
+        }
+        confText.append(key);
+        confText.append("=");
+        confText.append(val);
+      }
+    }
+
+    if (confText.length() > 0) {
+      sb.append(" conf(");
+      sb.append(confText);
+      sb.append(")");
+    }
+
+    return sb.toString();
+  }
+
+  private static void formatFields(StringBuilder sb, List<TypedField> fields) {
+    sb.append("(");
+    StringUtils.formatList(sb, fields);
+    sb.append(")");
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.TypedField;
+import com.odiago.flumebase.parser.WindowSpec;
+
+/**
+ * Join three or more input streams into an output stream, where every join
+ * predicate compares the same key. Each input after the first is joined
+ * with the inputs before it over its own range interval.
+ *
+ * Replaces a chain of HashJoinNodes, which would buffer the intermediate
+ * joined records of each level.
+ */
+public class MultiWayJoinNode extends PlanNode {
+
+  private List<String> mInputNames; // names of the input streams.
+  private List<TypedField> mKeys; // the key field from each input stream.
+  private List<WindowSpec> mWindows; // window of each input relative to those before it.
+  private String mOutName; // name to assign to the output stream from this join.
+  private List<List<TypedField>> mInputFields; // field names from each input stream.
+  private Configuration mConf; // user configuration.
+  private Expr mPostJoinFilter; // predicate applied to joined events; may be null.
+
+  /**
+   * @param windows for each input, the window relative to the inputs before
+   * it in which its events join; the entry for the first input is ignored.
+   */
+  public MultiWayJoinNode(List<String> inputNames, List<TypedField> keys,
+      List<WindowSpec> windows, String outName, List<List<TypedField>> inputFields,
+      Configuration conf) {
+    mInputNames = inputNames;
+    mKeys = keys;
+    mWindows = windows;
+    mOutName = outName;
+    mInputFields = inputFields;
+    mConf = conf;
+  }
+
+  protected void formatParams(StringBuilder sb) {
+    sb.append("MultiWayJoin inputs=");
+    sb.append(mInputNames);
+    sb.append(", keys=");
+    sb.append(mKeys);
+    sb.append(", windows=");
+    sb.append(mWindows.subList(1, mWindows.size()));
+    sb.append(", outName=");
+    sb.append(mOutName);
+    if (null != mPostJoinFilter) {
+      sb.append(", filter=");
+      sb.append(mPostJoinFilter.toStringOneLine());
+    }
+    formatAttributes(sb);
+  }
+
+  public List<String> getInputNames() {
+    return mInputNames;
+  }
+
+  public List<TypedField> getKeys() {
+    return mKeys;
+  }
+
+  public List<WindowSpec> getWindows() {
+    return mWindows;
+  }
+
+  public String getOutputName() {
+    return mOutName;
+  }
+
+  public List<List<TypedField>> getInputFields() {
+    return mInputFields;
+  }
+
+  public Configuration getConf() {
+    return mConf;
+  }
+
+  /**
+   * @return the predicate which joined events must satisfy to be emitted,
+   * or null if all are emitted.
+   */
+  public Expr getPostJoinFilter() {
+    return mPostJoinFilter;
+  }
+
+  /**
+   * Require that joined events satisfy 'filter' to be emitted. The join
+   * evaluates this before it materializes its output events.
+   */
+  public void setPostJoinFilter(Expr filter) {
+    mPostJoinFilter = filter;
+  }
+}
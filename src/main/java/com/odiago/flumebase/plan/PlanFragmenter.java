@@ -0,0 +1,155 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.odiago.flumebase.util.DAGOperatorException;
+
+/**
+ * Divides a flow between a coordinator and several worker processes.
+ *
+ * <p>The source fragment of each named stream is the source itself, and the
+ * WHERE clause filter immediately following it, if any; these pass on the
+ * raw events of the stream. If the stream feeds a windowed aggregation
+ * which may be combined (see InsertCombiners), the fragment instead extends
+ * to a CombinerNode for the aggregation, after the filters and projections
+ * leading to it; it passes on partial aggregates, which the coordinator's
+ * aggregation completes. On the coordinator, each source fragment is
+ * replaced by an ExchangeSourceNode which asks every worker to run the
+ * fragment, and receives the events it passes. Each worker plans the same
+ * query, and keeps only the fragment it was asked for, followed by an
+ * ExchangeSinkNode which sends its events to the coordinator. Both sides
+ * therefore number the sources of the flow identically.</p>
+ *
+ * <p>This is run after PropagateSchemas, before physical plan resolution.</p>
+ */
+public class PlanFragmenter {
+  /**
+   * Comma-separated host:port addresses of the FragmentServers of the
+   * workers which run the source fragments of queries submitted to this
+   * server. If unset, flows run entirely in this process.
+   */
+  public static final String WORKERS_KEY = "flumebase.distributed.workers";
+
+  /** Set on a worker: the index of the source fragment to run. */
+  public static final String FRAGMENT_SOURCE_KEY = "flumebase.distributed.fragment.source";
+
+  /** Set on a worker: the host:port address to send the fragment's events to. */
+  public static final String FRAGMENT_TARGET_KEY = "flumebase.distributed.fragment.target";
+
+  /** Fragment 'spec' according to its configuration, if it is distributed. */
+  public void fragment(FlowSpecification spec) throws DAGOperatorException {
+    Configuration conf = spec.getConf();
+    String target = conf.get(FRAGMENT_TARGET_KEY, "");
+    String [] workers = conf.getStrings(WORKERS_KEY);
+    if (target.length() > 0) {
+      keepSourceFragment(spec, conf.getInt(FRAGMENT_SOURCE_KEY, 0), target);
+    } else if (null != workers && workers.length > 0) {
+      List<String> workerList = new ArrayList<String>();
+      for (String worker : workers) {
+        if (worker.trim().length() > 0) {
+          workerList.add(worker.trim());
+        }
+      }
+      if (workerList.size() > 0) {
+        replaceSourceFragments(spec, workerList);
+      }
+    }
+  }
+
+  /**
+   * @return the last node of the source fragment beginning with 'source'.
+   */
+  private PlanNode getFragmentTail(NamedSourceNode source) {
+    List<PlanNode> children = source.getChildren();
+    if (children.size() == 1 && children.get(0) instanceof FilterNode
+        && children.get(0).getParents().size() == 1) {
+      return children.get(0);
+    }
+    return source;
+  }
+
+  /**
+   * On the coordinator, replace the fragment of each source with an
+   * ExchangeSourceNode receiving its events from 'workers'.
+   */
+  private void replaceSourceFragments(FlowSpecification spec, List<String> workers) {
+    List<PlanNode> roots = spec.getRootSet();
+    int sourceId = 0;
+    for (int i = 0; i < roots.size(); i++) {
+      if (!(roots.get(i) instanceof NamedSourceNode)) {
+        continue;
+      }
+
+      NamedSourceNode source = (NamedSourceNode) roots.get(i);
+      AggregateNode aggregate = InsertCombiners.getCombinedAggregate(source, spec.getConf());
+      PlanNode tail = null == aggregate
+          ? getFragmentTail(source) : InsertCombiners.getSourceChainTail(source);
+      ExchangeSourceNode exchange = new ExchangeSourceNode(source.getStreamName(),
+          source.getFields(), sourceId++, workers, aggregate);
+      exchange.setAttr(PlanNode.OUTPUT_SCHEMA_ATTR, tail.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR));
+      for (PlanNode child : new ArrayList<PlanNode>(tail.getChildren())) {
+        child.replaceParent(tail, exchange);
+      }
+      roots.set(i, exchange);
+    }
+  }
+
+  /**
+   * On a worker, reduce the flow to the fragment of source 'sourceId',
+   * sending its events to 'target'.
+   */
+  private void keepSourceFragment(FlowSpecification spec, int sourceId, String target)
+      throws DAGOperatorException {
+    List<PlanNode> roots = spec.getRootSet();
+    NamedSourceNode source = null;
+    int nextId = 0;
+    for (PlanNode root : roots) {
+      if (root instanceof NamedSourceNode && nextId++ == sourceId) {
+        source = (NamedSourceNode) root;
+        break;
+      }
+    }
+
+    if (null == source) {
+      throw new DAGOperatorException("Flow has no source fragment " + sourceId);
+    }
+
+    AggregateNode aggregate = InsertCombiners.getCombinedAggregate(source, spec.getConf());
+    PlanNode tail = null == aggregate
+        ? getFragmentTail(source) : InsertCombiners.getSourceChainTail(source);
+    for (PlanNode child : new ArrayList<PlanNode>(tail.getChildren())) {
+      tail.removeChild(child);
+    }
+
+    if (null == aggregate) {
+      tail.addChild(new ExchangeSinkNode(target, null));
+    } else {
+      CombinerNode combiner = new CombinerNode(aggregate);
+      combiner.setAttr(PlanNode.OUTPUT_SCHEMA_ATTR, tail.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR));
+      tail.addChild(combiner);
+      combiner.addChild(new ExchangeSinkNode(target, aggregate));
+    }
+    roots.clear();
+    roots.add(source);
+  }
+}
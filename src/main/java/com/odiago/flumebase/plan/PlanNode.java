@@ -55,6 +55,28 @@ public class PlanNode extends DAGNode<PlanNode> {
    */
   public static final String USES_TIMER_ATTR = "uses.timer";
 
+  /**
+   * Attribute referencing a String which identifies the state of a stateful
+   * node across restarts of its flow. Set by the flow builder when operator
+   * state checkpointing is enabled; see CheckpointStore.
+   */
+  public static final String CHECKPOINT_ID_ATTR = "checkpoint.id";
+
+  /**
+   * Attribute referencing a String which identifies the chain of a named
+   * source, filters and projections ending at this node. Flows whose chains
+   * have equal identifiers may share a single running copy of the chain;
+   * see MarkSharedPrefixes.
+   */
+  public static final String SHARED_PREFIX_ATTR = "shared.prefix";
+
+  /**
+   * Attribute referencing a List&lt;String&gt; naming the fields of a named
+   * source which are read by the rest of the flow; the source's event parser
+   * is never asked for any other column. Set by PruneFields.
+   */
+  public static final String REQUIRED_FIELDS_ATTR = "required.fields";
+
   /** Free-form attribute map which can be used by operators when working on
    * transforming the graph, etc.
    */
@@ -46,6 +46,15 @@ public class ProjectionNode extends PlanNode {
     return mOutputFields;
   }
 
+  /**
+   * Replace the projected fields. inFields and outFields must have the same
+   * arity and order.
+   */
+  public void setFields(List<TypedField> inFields, List<TypedField> outFields) {
+    mInputFields = new ArrayList<TypedField>(inFields);
+    mOutputFields = new ArrayList<TypedField>(outFields);
+  }
+
   @Override
   public void formatParams(StringBuilder sb) {
     sb.append("ProjectionNode inFields=(");
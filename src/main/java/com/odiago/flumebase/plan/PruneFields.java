@@ -0,0 +1,354 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.avro.Schema;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.odiago.flumebase.lang.FieldRefVisitor;
+import com.odiago.flumebase.lang.VisitException;
+
+import com.odiago.flumebase.parser.AliasedExpr;
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.OrderByLimit;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.util.DAG;
+import com.odiago.flumebase.util.DAGOperatorException;
+
+/**
+ * Computes, from the sinks of the flow back toward its sources, the set of
+ * fields that each node's consumers read, and narrows the projections and
+ * expression evaluations of the plan to emit only those fields. The plan
+ * formed from a SELECT statement carries forward every field of a
+ * sub-query's output (e.g., for "SELECT a FROM (SELECT * FROM s)"), even
+ * where no later operator reads it.
+ *
+ * <p>Filters read the fields of their expression, and pass through every
+ * field read by their consumers, as samples do. Projections, expression evaluations,
+ * aggregations and outputs read a known set of fields. Aggregations drop the
+ * aggregate functions whose results are not read. Any other node (e.g., a
+ * join) is assumed to read all the fields of its input, and the nodes which
+ * feed it are not narrowed.</p>
+ *
+ * <p>Named sources are not narrowed, as their fields are located by position
+ * within the event. Instead, the fields which the flow reads from each
+ * source are recorded in its REQUIRED_FIELDS_ATTR; the source passes them
+ * to its event parser, which may skip the other columns of each event.</p>
+ *
+ * <p>This is run before PropagateSchemas, which carries the narrowed output
+ * schemas forward to the filters that follow them.</p>
+ */
+public class PruneFields {
+
+  /** Set to false to carry all fields selected by each statement through the flow. */
+  public static final String PRUNING_ENABLED_KEY = "flumebase.flow.prune.fields";
+  public static final boolean DEFAULT_PRUNING_ENABLED = true;
+
+  /**
+   * The fields read from the output of each node by its consumers. A null
+   * value means that all the fields of the output may be read.
+   */
+  private Map<PlanNode, Set<String>> mRequired;
+
+  /** Narrow the nodes of 'spec', if pruning is enabled by its configuration. */
+  public void prune(FlowSpecification spec) throws DAGOperatorException {
+    Configuration conf = spec.getConf();
+    if (!conf.getBoolean(PRUNING_ENABLED_KEY, DEFAULT_PRUNING_ENABLED)) {
+      return;
+    }
+
+    final List<PlanNode> nodes = new ArrayList<PlanNode>();
+    spec.bfs(new DAG.Operator<PlanNode>() {
+      public void process(PlanNode node) {
+        nodes.add(node);
+      }
+    });
+
+    // Determine what each node must emit before changing any of them.
+    mRequired = new IdentityHashMap<PlanNode, Set<String>>();
+    for (PlanNode node : nodes) {
+      getRequiredOutput(node);
+    }
+
+    for (PlanNode node : nodes) {
+      Set<String> required = mRequired.get(node);
+      if (null == required) {
+        continue;
+      } else if (node instanceof ProjectionNode) {
+        narrowProjection((ProjectionNode) node, required);
+      } else if (node instanceof EvaluateExprsNode) {
+        narrowEvaluation((EvaluateExprsNode) node, required);
+      } else if (node instanceof AggregateNode) {
+        narrowAggregation((AggregateNode) node, required);
+      } else if (node instanceof NamedSourceNode) {
+        List<String> sourceFields = new ArrayList<String>();
+        for (TypedField field : ((NamedSourceNode) node).getFields()) {
+          if (required.contains(field.getAvroName())) {
+            sourceFields.add(field.getAvroName());
+          }
+        }
+        node.setAttr(PlanNode.REQUIRED_FIELDS_ATTR, sourceFields);
+      }
+    }
+  }
+
+  /**
+   * @return the set of fields read from the output of 'node' by its
+   * children, or null if all of them may be read.
+   */
+  private Set<String> getRequiredOutput(PlanNode node) throws DAGOperatorException {
+    if (mRequired.containsKey(node)) {
+      return mRequired.get(node);
+    }
+
+    Set<String> required = new HashSet<String>();
+    for (PlanNode child : node.getChildren()) {
+      Set<String> childInput = getRequiredInput(child, getRequiredOutput(child));
+      if (null == childInput) {
+        required = null;
+        break;
+      }
+      required.addAll(childInput);
+    }
+
+    mRequired.put(node, required);
+    return required;
+  }
+
+  /**
+   * @return the set of fields 'node' reads from its input when its own
+   * consumers read 'requiredOutput' from it, or null if it may read all of
+   * them.
+   */
+  private static Set<String> getRequiredInput(PlanNode node, Set<String> requiredOutput)
+      throws DAGOperatorException {
+    Set<String> input = new HashSet<String>();
+    if (node instanceof FilterNode) {
+      if (null == requiredOutput) {
+        return null;
+      }
+      input.addAll(requiredOutput);
+      addFieldRefs(((FilterNode) node).getFilterExpr(), input);
+    } else if (node instanceof SampleNode) {
+      return requiredOutput;
+    } else if (node instanceof ProjectionNode) {
+      ProjectionNode projNode = (ProjectionNode) node;
+      for (int i : getRetainedOutputs(projNode, requiredOutput)) {
+        input.add(projNode.getInputFields().get(i).getAvroName());
+      }
+    } else if (node instanceof EvaluateExprsNode) {
+      EvaluateExprsNode evalNode = (EvaluateExprsNode) node;
+      for (AliasedExpr expr : evalNode.getExprs()) {
+        if (null == requiredOutput || requiredOutput.contains(expr.getAvroLabel())) {
+          addFieldRefs(expr.getExpr(), input);
+        }
+      }
+      for (TypedField field : evalNode.getPropagateFields()) {
+        if (null == requiredOutput || requiredOutput.contains(field.getAvroName())) {
+          input.add(field.getAvroName());
+        }
+      }
+    } else if (node instanceof AggregateNode) {
+      // Propagated fields are part of each group's key, so none may be dropped.
+      AggregateNode aggNode = (AggregateNode) node;
+      addFieldNames(aggNode.getGroupByFields(), input);
+      addFieldNames(aggNode.getPropagateFields(), input);
+      for (int i : getRetainedAggregates(aggNode, requiredOutput)) {
+        addFieldRefs(aggNode.getAggregateExprs().get(i).getExpr(), input);
+      }
+      addFieldRefs(aggNode.getWindowExpr(), input);
+      if (null != aggNode.getOrderByLimit()
+          && null != aggNode.getOrderByLimit().getGroupByField()) {
+        input.add(aggNode.getOrderByLimit().getGroupByField().getAvroName());
+      }
+    } else if (node instanceof OutputNode) {
+      addFieldNames(((OutputNode) node).getInputFields(), input);
+    } else if (node instanceof MemoryOutputNode) {
+      addFieldNames(((MemoryOutputNode) node).getFields(), input);
+    } else {
+      return null;
+    }
+
+    return input;
+  }
+
+  /**
+   * @return the positions of the fields of 'projNode' that are retained when
+   * its consumers read 'requiredOutput'. At least one field is always
+   * retained, so every output record has some content.
+   */
+  private static List<Integer> getRetainedOutputs(ProjectionNode projNode,
+      Set<String> requiredOutput) {
+    List<TypedField> outFields = projNode.getOutputFields();
+    List<Integer> retained = new ArrayList<Integer>();
+    for (int i = 0; i < outFields.size(); i++) {
+      if (null == requiredOutput || requiredOutput.contains(outFields.get(i).getAvroName())) {
+        retained.add(i);
+      }
+    }
+
+    if (retained.isEmpty() && !outFields.isEmpty()) {
+      retained.add(0);
+    }
+
+    return retained;
+  }
+
+  private static void narrowProjection(ProjectionNode projNode, Set<String> requiredOutput) {
+    List<Integer> retained = getRetainedOutputs(projNode, requiredOutput);
+    if (retained.size() == projNode.getOutputFields().size()) {
+      return;
+    }
+
+    List<TypedField> inFields = new ArrayList<TypedField>();
+    List<TypedField> outFields = new ArrayList<TypedField>();
+    Set<String> outNames = new HashSet<String>();
+    for (int i : retained) {
+      inFields.add(projNode.getInputFields().get(i));
+      outFields.add(projNode.getOutputFields().get(i));
+      outNames.add(projNode.getOutputFields().get(i).getAvroName());
+    }
+    projNode.setFields(inFields, outFields);
+    retainSchemaFields(projNode, outNames);
+  }
+
+  private static void narrowEvaluation(EvaluateExprsNode evalNode, Set<String> requiredOutput) {
+    List<AliasedExpr> exprs = new ArrayList<AliasedExpr>();
+    for (AliasedExpr expr : evalNode.getExprs()) {
+      if (requiredOutput.contains(expr.getAvroLabel())) {
+        exprs.add(expr);
+      }
+    }
+
+    List<TypedField> propagateFields = new ArrayList<TypedField>();
+    for (TypedField field : evalNode.getPropagateFields()) {
+      if (requiredOutput.contains(field.getAvroName())) {
+        propagateFields.add(field);
+      }
+    }
+
+    if (exprs.size() == evalNode.getExprs().size()
+        && propagateFields.size() == evalNode.getPropagateFields().size()) {
+      return;
+    }
+
+    evalNode.setExprs(exprs);
+    evalNode.setPropagateFields(propagateFields);
+    retainSchemaFields(evalNode, requiredOutput);
+  }
+
+  /**
+   * @return the positions of the aggregate functions of 'aggNode' whose
+   * results are needed when its consumers read 'requiredOutput'. The
+   * function which orders the groups is always needed, and at least one
+   * function is retained, as its buckets show which groups had events in a
+   * window.
+   */
+  private static List<Integer> getRetainedAggregates(AggregateNode aggNode,
+      Set<String> requiredOutput) {
+    List<AliasedExpr> exprs = aggNode.getAggregateExprs();
+    OrderByLimit orderByLimit = aggNode.getOrderByLimit();
+    int orderIndex = null == orderByLimit ? -1 : orderByLimit.getAggregateIndex();
+    List<Integer> retained = new ArrayList<Integer>();
+    for (int i = 0; i < exprs.size(); i++) {
+      if (null == requiredOutput || requiredOutput.contains(exprs.get(i).getAvroLabel())
+          || i == orderIndex) {
+        retained.add(i);
+      }
+    }
+
+    if (retained.isEmpty() && !exprs.isEmpty()) {
+      retained.add(0);
+    }
+
+    return retained;
+  }
+
+  private static void narrowAggregation(AggregateNode aggNode, Set<String> requiredOutput) {
+    List<Integer> retained = getRetainedAggregates(aggNode, requiredOutput);
+    List<AliasedExpr> exprs = aggNode.getAggregateExprs();
+    if (retained.size() == exprs.size()) {
+      return;
+    }
+
+    OrderByLimit orderByLimit = aggNode.getOrderByLimit();
+    List<AliasedExpr> retainedExprs = new ArrayList<AliasedExpr>();
+    Set<String> outNames = new HashSet<String>();
+    for (int i : retained) {
+      if (null != orderByLimit && orderByLimit.getAggregateIndex() == i) {
+        orderByLimit.setAggregateIndex(retainedExprs.size());
+      }
+      retainedExprs.add(exprs.get(i));
+      outNames.add(exprs.get(i).getAvroLabel());
+    }
+    for (TypedField field : aggNode.getPropagateFields()) {
+      outNames.add(field.getAvroName());
+    }
+
+    aggNode.setAggregateExprs(retainedExprs);
+    retainSchemaFields(aggNode, outNames);
+  }
+
+  /** Remove all fields but those named in 'names' from the output schema of 'node'. */
+  private static void retainSchemaFields(PlanNode node, Set<String> names) {
+    Schema schema = (Schema) node.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR);
+    if (null == schema) {
+      return;
+    }
+
+    List<Schema.Field> fields = new ArrayList<Schema.Field>();
+    for (Schema.Field field : schema.getFields()) {
+      if (names.contains(field.name())) {
+        fields.add(new Schema.Field(field.name(), field.schema(), field.doc(),
+            field.defaultValue()));
+      }
+    }
+
+    Schema narrowed = Schema.createRecord(schema.getName(), schema.getDoc(),
+        schema.getNamespace(), schema.isError());
+    narrowed.setFields(fields);
+    node.setAttr(PlanNode.OUTPUT_SCHEMA_ATTR, narrowed);
+  }
+
+  private static void addFieldNames(List<TypedField> fields, Set<String> names) {
+    for (TypedField field : fields) {
+      names.add(field.getAvroName());
+    }
+  }
+
+  private static void addFieldRefs(Expr expr, Set<String> names) throws DAGOperatorException {
+    if (null == expr) {
+      return;
+    }
+
+    try {
+      expr.accept(new FieldRefVisitor(names));
+    } catch (VisitException ve) {
+      throw new DAGOperatorException("Could not find the fields read by " + expr, ve);
+    }
+  }
+}
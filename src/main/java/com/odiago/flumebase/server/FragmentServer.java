@@ -0,0 +1,231 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.util.Pair;
+
+import com.odiago.flumebase.exec.ExecEnvironment;
+import com.odiago.flumebase.exec.FlowId;
+import com.odiago.flumebase.exec.QuerySubmitResponse;
+
+import com.odiago.flumebase.exec.local.ExchangeProtocol;
+import com.odiago.flumebase.exec.local.LocalEnvironment;
+
+import com.odiago.flumebase.util.AppUtils;
+
+/**
+ * Runs the source fragments of distributed flows on behalf of a coordinator.
+ *
+ * <p>Each connection carries one request: a query and the options with which
+ * to plan it, which select the source fragment to run and where to send its
+ * events. The flow runs until the fragment completes, or the coordinator
+ * closes the connection, whereupon it is canceled.</p>
+ */
+public class FragmentServer {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      FragmentServer.class.getName());
+
+  /** Port on which to accept fragment requests. */
+  public static final String FRAGMENT_PORT_KEY = "flumebase.fragment.port";
+  public static final int DEFAULT_FRAGMENT_PORT = 9294;
+
+  private final ExecEnvironment mExecEnv;
+  private final int mRequestedPort;
+
+  private ServerSocket mServerSocket;
+  private AcceptThread mAcceptThread;
+
+  /** Connections to coordinators, closed at shutdown. */
+  private final List<Socket> mConnections;
+
+  public FragmentServer(Configuration conf, ExecEnvironment env) {
+    this(conf.getInt(FRAGMENT_PORT_KEY, DEFAULT_FRAGMENT_PORT), env);
+  }
+
+  public FragmentServer(int port, ExecEnvironment env) {
+    mRequestedPort = port;
+    mExecEnv = env;
+    mConnections = new ArrayList<Socket>();
+  }
+
+  /** Begin accepting fragment requests. */
+  public void start() throws IOException {
+    mServerSocket = new ServerSocket(mRequestedPort);
+    mAcceptThread = new AcceptThread();
+    mAcceptThread.start();
+    LOG.info("Accepting fragment requests on port " + getPort());
+  }
+
+  /** @return the port on which requests are accepted. */
+  public int getPort() {
+    return mServerSocket.getLocalPort();
+  }
+
+  /** Stop accepting requests, and cancel the fragments running. */
+  public void shutdown() throws IOException, InterruptedException {
+    mServerSocket.close();
+    mAcceptThread.join();
+    synchronized (mConnections) {
+      for (Socket socket : mConnections) {
+        socket.close();
+      }
+    }
+  }
+
+  /** Thread which accepts connections from coordinators. */
+  private class AcceptThread extends Thread {
+    public AcceptThread() {
+      super("FragmentServer");
+    }
+
+    @Override
+    public void run() {
+      while (!mServerSocket.isClosed()) {
+        try {
+          Socket socket = mServerSocket.accept();
+          synchronized (mConnections) {
+            mConnections.add(socket);
+          }
+          new FragmentThread(socket).start();
+        } catch (IOException ioe) {
+          if (!mServerSocket.isClosed()) {
+            LOG.error("IOException accepting fragment request: " + ioe);
+          }
+        }
+      }
+    }
+  }
+
+  /** Thread which runs the fragment requested over one connection. */
+  private class FragmentThread extends Thread {
+    private final Socket mSocket;
+
+    public FragmentThread(Socket socket) {
+      super("FragmentServer-" + socket.getRemoteSocketAddress());
+      mSocket = socket;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      FlowId flowId = null;
+      try {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(mSocket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(mSocket.getOutputStream()));
+
+        Pair<String, Map<String, String>> request = ExchangeProtocol.readFragmentRequest(in);
+        // The fragment's output goes to the coordinator, not a session here.
+        Map<String, String> options = request.getRight();
+        options.remove(LocalEnvironment.SUBMITTER_SESSION_ID_KEY);
+
+        QuerySubmitResponse response = mExecEnv.submitQuery(request.getLeft(), options);
+        flowId = response.getFlowId();
+        String msg = response.getMessage();
+        ExchangeProtocol.writeFragmentResponse(out, null == msg ? "" : msg,
+            null == flowId ? -1 : flowId.getId());
+        out.flush();
+        if (null == flowId) {
+          return;
+        }
+
+        // The coordinator holds the connection open while it needs the fragment.
+        while (in.read() != -1) {
+          continue;
+        }
+      } catch (IOException ioe) {
+        LOG.debug("Fragment request connection closed: " + ioe);
+      } catch (InterruptedException ie) {
+        LOG.error("Interrupted serving fragment request: " + ie);
+      } finally {
+        if (null != flowId) {
+          try {
+            mExecEnv.cancelFlow(flowId);
+          } catch (IOException ioe) {
+            LOG.warn("IOException canceling fragment flow " + flowId + ": " + ioe);
+          } catch (InterruptedException ie) {
+            LOG.warn("Interrupted canceling fragment flow " + flowId + ": " + ie);
+          }
+        }
+
+        synchronized (mConnections) {
+          mConnections.remove(mSocket);
+        }
+        try {
+          mSocket.close();
+        } catch (IOException ioe) {
+          LOG.debug("IOException closing fragment request connection: " + ioe);
+        }
+      }
+    }
+  }
+
+  /**
+   * Run a standalone worker. Usage: FragmentServer [-p port] [statement...]
+   * Each statement, such as a CREATE STREAM defining a stream that queries
+   * will read, is executed before accepting requests.
+   */
+  public static void main(String [] args) throws Exception {
+    AppUtils.initLogging();
+    Configuration conf = AppUtils.initConfResources();
+    int port = conf.getInt(FRAGMENT_PORT_KEY, DEFAULT_FRAGMENT_PORT);
+    int argIdx = 0;
+    if (args.length >= 2 && "-p".equals(args[0])) {
+      port = Integer.parseInt(args[1]);
+      argIdx = 2;
+    }
+
+    LocalEnvironment env = new LocalEnvironment(conf);
+    env.connect();
+    for (; argIdx < args.length; argIdx++) {
+      if ("-debug".equals(args[argIdx])) {
+        continue; // Handled by the bin script.
+      }
+      QuerySubmitResponse response = env.submitQuery(args[argIdx],
+          new HashMap<String, String>());
+      if (null != response.getMessage() && response.getMessage().length() > 0) {
+        System.err.println(response.getMessage());
+      }
+    }
+
+    FragmentServer server = new FragmentServer(port, env);
+    server.start();
+    System.out.println("FragmentServer listening on port " + server.getPort());
+    System.out.flush();
+  }
+}
@@ -100,6 +100,11 @@ class RemoteServerImpl implements RemoteServer.Iface, CloseHandler<UserSession>
     return mStarted;
   }
 
+  /** @return the environment in which this server runs flows. */
+  ExecEnvironment getExecEnv() {
+    return mExecEnv;
+  }
+
   void setServer(TServer server) {
     mThriftServer = server;
   }
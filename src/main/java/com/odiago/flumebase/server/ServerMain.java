@@ -102,10 +102,21 @@ public class ServerMain {
     LOG.info("Starting processing thread");
     remoteImpl.setServer(server);
     remoteImpl.start();
+
+    // If configured to, also run source fragments for a distributed coordinator.
+    FragmentServer fragmentServer = null;
+    if (mConf.get(FragmentServer.FRAGMENT_PORT_KEY) != null) {
+      fragmentServer = new FragmentServer(mConf, remoteImpl.getExecEnv());
+      fragmentServer.start();
+    }
+
     try {
       LOG.info("Serving on port " + port);
       server.serve();
     } finally {
+      if (null != fragmentServer) {
+        fragmentServer.shutdown();
+      }
       LOG.info("Shutting down processing thread");
       if (remoteImpl.isRunning()) {
         remoteImpl.shutdown();
@@ -18,8 +18,11 @@
 package com.odiago.flumebase.util;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Generic DAG of nodes.
@@ -175,14 +178,17 @@ public class DAG<NODETYPE extends DAGNode<NODETYPE>> {
 
   /**
    * Clear all the seen bits in the current graph by using a separate
-   * special-purpose BFS traversal.
+   * special-purpose BFS traversal. This visits every node, as nodes which
+   * have been spliced into the graph since the last traversal may be
+   * unmarked while their descendants are still marked.
    */
   private void clearAllMarks() {
+    Set<NODETYPE> visited = Collections.newSetFromMap(new IdentityHashMap<NODETYPE, Boolean>());
     List<NODETYPE> work = new LinkedList<NODETYPE>();
     work.addAll(getRootSet());
     while (!work.isEmpty()) {
       NODETYPE curNode = work.remove(0);
-      if (curNode.isSeen()) {
+      if (visited.add(curNode)) {
         // clear this mark bit.
         curNode.clearSeen();
         work.addAll(curNode.getChildren());
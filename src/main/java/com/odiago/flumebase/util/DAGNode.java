@@ -97,6 +97,25 @@ public class DAGNode<NODETYPE extends DAGNode> {
     parent.mOutputs.add(this);
   }
 
+  /**
+   * Removes the specified node from the children of the current node, and
+   * removes this from the parents of the specified node.
+   */
+  public void removeChild(NODETYPE child) {
+    mOutputs.remove(child);
+    child.mInputs.remove(this);
+  }
+
+  /**
+   * Replaces 'oldParent' with 'newParent' among the parents of the current
+   * node, keeping its position in the list of parents.
+   */
+  public void replaceParent(NODETYPE oldParent, NODETYPE newParent) {
+    mInputs.set(mInputs.indexOf(oldParent), newParent);
+    oldParent.mOutputs.remove(this);
+    newParent.mOutputs.add(this);
+  }
+
   /** @return the node's id within the graph. */
   public int getId() {
     return mId;
@@ -0,0 +1,196 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.nio.charset.Charset;
+
+import org.apache.avro.util.Utf8;
+
+/**
+ * A HyperLogLog sketch estimating the number of distinct values added to it,
+ * in a fixed amount of memory. Sketches with the same precision can be merged;
+ * the merged sketch estimates the number of distinct values added to either.
+ *
+ * <p>Values are hashed with a 64-bit hash, so no large-range correction is
+ * needed; small cardinalities are estimated by linear counting.</p>
+ */
+public class HyperLogLog {
+  /** Default number of index bits; 2^11 registers give about 2.3% standard error. */
+  public static final int DEFAULT_PRECISION = 11;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Parameters of the 64-bit FNV-1a hash applied to strings and byte arrays. */
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final int mPrecision;
+  private final byte[] mRegisters;
+
+  public HyperLogLog() {
+    this(DEFAULT_PRECISION);
+  }
+
+  public HyperLogLog(int precision) {
+    if (precision < 4 || precision > 18) {
+      throw new IllegalArgumentException("HyperLogLog precision must be in [4, 18]");
+    }
+    mPrecision = precision;
+    mRegisters = new byte[1 << precision];
+  }
+
+  public int getPrecision() {
+    return mPrecision;
+  }
+
+  /** Add a value to the sketch. Null values are ignored. */
+  public void add(Object val) {
+    if (null != val) {
+      addHash(hash(val));
+    }
+  }
+
+  /** Add a value to the sketch given its 64-bit hash. */
+  public void addHash(long hash) {
+    int index = (int) (hash >>> (64 - mPrecision));
+    // Count leading zeros in the remaining bits; the sentinel bit bounds the rank.
+    long rest = (hash << mPrecision) | (1L << (mPrecision - 1));
+    byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+    if (rank > mRegisters[index]) {
+      mRegisters[index] = rank;
+    }
+  }
+
+  /**
+   * Fold the contents of 'other' into this sketch.
+   */
+  public void merge(HyperLogLog other) {
+    if (other.mPrecision != mPrecision) {
+      throw new IllegalArgumentException("Cannot merge HyperLogLog sketches of different "
+          + "precision: " + mPrecision + " and " + other.mPrecision);
+    }
+
+    for (int i = 0; i < mRegisters.length; i++) {
+      if (other.mRegisters[i] > mRegisters[i]) {
+        mRegisters[i] = other.mRegisters[i];
+      }
+    }
+  }
+
+  /** Serialize this sketch to 'out'; it can be read back with read(). */
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(mPrecision);
+    out.write(mRegisters);
+  }
+
+  /** @return a sketch deserialized from 'in', as written by write(). */
+  public static HyperLogLog read(DataInput in) throws IOException {
+    HyperLogLog hll = new HyperLogLog(in.readByte());
+    in.readFully(hll.mRegisters);
+    return hll;
+  }
+
+  /** @return the estimated number of distinct values added to this sketch. */
+  public long estimate() {
+    int m = mRegisters.length;
+    double sum = 0.0;
+    int zeros = 0;
+    for (int i = 0; i < m; i++) {
+      sum += 1.0 / (1L << mRegisters[i]);
+      if (0 == mRegisters[i]) {
+        zeros++;
+      }
+    }
+
+    double alpha;
+    switch (m) {
+    case 16:
+      alpha = 0.673;
+      break;
+    case 32:
+      alpha = 0.697;
+      break;
+    case 64:
+      alpha = 0.709;
+      break;
+    default:
+      alpha = 0.7213 / (1.0 + 1.079 / m);
+      break;
+    }
+
+    double estimate = alpha * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // Small range correction: use linear counting.
+      estimate = m * Math.log((double) m / zeros);
+    }
+
+    return Math.round(estimate);
+  }
+
+  /**
+   * @return a 64-bit hash of a value held in a record field. Strings hash the
+   * same whether held as a String or a Utf8.
+   */
+  public static long hash(Object val) {
+    if (val instanceof Utf8) {
+      Utf8 utf8 = (Utf8) val;
+      return hashBytes(utf8.getBytes(), 0, utf8.getByteLength());
+    } else if (val instanceof CharSequence) {
+      byte[] bytes = val.toString().getBytes(UTF8);
+      return hashBytes(bytes, 0, bytes.length);
+    } else if (val instanceof ByteBuffer) {
+      ByteBuffer buf = (ByteBuffer) val;
+      long h = FNV_OFFSET;
+      for (int i = buf.position(); i < buf.limit(); i++) {
+        h = (h ^ (buf.get(i) & 0xff)) * FNV_PRIME;
+      }
+      return mix(h);
+    } else if (val instanceof Integer || val instanceof Long
+        || val instanceof Short || val instanceof Byte) {
+      return mix(((Number) val).longValue());
+    } else if (val instanceof Float || val instanceof Double) {
+      return mix(Double.doubleToLongBits(((Number) val).doubleValue()));
+    } else {
+      return mix(val.hashCode());
+    }
+  }
+
+  private static long hashBytes(byte[] bytes, int offset, int len) {
+    long h = FNV_OFFSET;
+    for (int i = offset; i < offset + len; i++) {
+      h = (h ^ (bytes[i] & 0xff)) * FNV_PRIME;
+    }
+    return mix(h);
+  }
+
+  /** Final avalanche step of MurmurHash3, spreading entropy over all 64 bits. */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,294 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.util.Arrays;
+
+/**
+ * A KLL quantile sketch over double values (Karnin, Lang and Liberty, 2016).
+ * Estimates the value at a given rank of the values added to it, in memory
+ * that grows only logarithmically with the number of values. Sketches can be
+ * merged; the result summarizes the values added to either.
+ *
+ * <p>Values are held in a hierarchy of compactors. A value at level h stands
+ * for 2^h of the original values. When a level fills up, it is sorted and
+ * every other value (from a randomly-chosen offset) is promoted to the level
+ * above; the rest are discarded.</p>
+ */
+public class KllSketch {
+  /** Default accuracy parameter; gives a rank error of roughly 1.7%. */
+  public static final int DEFAULT_K = 200;
+
+  /** Ratio between the capacities of adjacent levels. */
+  private static final double CAPACITY_DECAY = 2.0 / 3.0;
+
+  private final int mK;
+
+  /** Values held at each level; mLevels[h][0..mSizes[h]). */
+  private double[][] mLevels;
+  private int[] mSizes;
+  private int mNumLevels;
+
+  /** Number of values added to this sketch (including those merged in). */
+  private long mCount;
+
+  private double mMin;
+  private double mMax;
+
+  /** State for the xorshift generator that chooses compaction offsets. */
+  private long mRandState;
+
+  public KllSketch() {
+    this(DEFAULT_K);
+  }
+
+  public KllSketch(int k) {
+    if (k < 8) {
+      throw new IllegalArgumentException("KllSketch k must be at least 8");
+    }
+    mK = k;
+    mLevels = new double[1][];
+    mSizes = new int[1];
+    mNumLevels = 1;
+    mLevels[0] = new double[capacity(0)];
+    mRandState = 0x2545F4914F6CDD1DL ^ System.identityHashCode(this);
+  }
+
+  /** @return the number of values summarized by this sketch. */
+  public long getCount() {
+    return mCount;
+  }
+
+  /** @return true if no values have been added to this sketch. */
+  public boolean isEmpty() {
+    return 0 == mCount;
+  }
+
+  /** Add a value to the sketch. NaN values are ignored. */
+  public void add(double val) {
+    if (Double.isNaN(val)) {
+      return;
+    }
+
+    if (0 == mCount || val < mMin) {
+      mMin = val;
+    }
+    if (0 == mCount || val > mMax) {
+      mMax = val;
+    }
+    mCount++;
+
+    append(0, val);
+    compress();
+  }
+
+  /**
+   * Fold the contents of 'other' into this sketch.
+   */
+  public void merge(KllSketch other) {
+    if (other.isEmpty()) {
+      return;
+    }
+
+    if (0 == mCount || other.mMin < mMin) {
+      mMin = other.mMin;
+    }
+    if (0 == mCount || other.mMax > mMax) {
+      mMax = other.mMax;
+    }
+    mCount += other.mCount;
+
+    for (int h = 0; h < other.mNumLevels; h++) {
+      for (int i = 0; i < other.mSizes[h]; i++) {
+        append(h, other.mLevels[h][i]);
+      }
+    }
+    compress();
+  }
+
+  /**
+   * @return an estimate of the value at fraction 'q' (0 &lt;= q &lt;= 1) of the
+   * way through the sorted values added to this sketch; NaN if it is empty.
+   */
+  public double getQuantile(double q) {
+    if (0 == mCount) {
+      return Double.NaN;
+    } else if (q <= 0.0) {
+      return mMin;
+    } else if (q >= 1.0) {
+      return mMax;
+    }
+
+    // Walk the retained values of all levels in sorted order (merging the
+    // individually-sorted levels), accumulating their weights.
+    long totalWeight = 0;
+    for (int h = 0; h < mNumLevels; h++) {
+      Arrays.sort(mLevels[h], 0, mSizes[h]);
+      totalWeight += ((long) mSizes[h]) << h;
+    }
+
+    double target = q * totalWeight;
+    int[] positions = new int[mNumLevels];
+    long cumulative = 0;
+    while (true) {
+      int minLevel = -1;
+      for (int h = 0; h < mNumLevels; h++) {
+        if (positions[h] < mSizes[h] && (minLevel < 0
+            || mLevels[h][positions[h]] < mLevels[minLevel][positions[minLevel]])) {
+          minLevel = h;
+        }
+      }
+
+      if (minLevel < 0) {
+        break; // Exhausted all levels.
+      }
+
+      double val = mLevels[minLevel][positions[minLevel]++];
+      cumulative += 1L << minLevel;
+      if (cumulative >= target) {
+        return val;
+      }
+    }
+
+    return mMax;
+  }
+
+  /** Serialize this sketch to 'out'; it can be read back with read(). */
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(mK);
+    out.writeLong(mCount);
+    out.writeDouble(mMin);
+    out.writeDouble(mMax);
+    out.writeInt(mNumLevels);
+    for (int h = 0; h < mNumLevels; h++) {
+      out.writeInt(mSizes[h]);
+      for (int i = 0; i < mSizes[h]; i++) {
+        out.writeDouble(mLevels[h][i]);
+      }
+    }
+  }
+
+  /** @return a sketch deserialized from 'in', as written by write(). */
+  public static KllSketch read(DataInput in) throws IOException {
+    KllSketch sketch = new KllSketch(in.readInt());
+    sketch.mCount = in.readLong();
+    sketch.mMin = in.readDouble();
+    sketch.mMax = in.readDouble();
+    int numLevels = in.readInt();
+    while (sketch.mNumLevels < numLevels) {
+      sketch.addLevel();
+    }
+    for (int h = 0; h < numLevels; h++) {
+      int size = in.readInt();
+      double[] level = new double[Math.max(2, size)];
+      for (int i = 0; i < size; i++) {
+        level[i] = in.readDouble();
+      }
+      sketch.mLevels[h] = level;
+      sketch.mSizes[h] = size;
+    }
+    return sketch;
+  }
+
+  /** @return the capacity of level h, given the current number of levels. */
+  private int capacity(int h) {
+    int depth = mNumLevels - 1 - h;
+    return Math.max(2, (int) Math.ceil(mK * Math.pow(CAPACITY_DECAY, depth)));
+  }
+
+  /** Append a value to level h, growing the level's array if necessary. */
+  private void append(int h, double val) {
+    while (h >= mNumLevels) {
+      addLevel();
+    }
+
+    if (mSizes[h] == mLevels[h].length) {
+      mLevels[h] = Arrays.copyOf(mLevels[h], Math.max(2, mLevels[h].length * 2));
+    }
+    mLevels[h][mSizes[h]++] = val;
+  }
+
+  private void addLevel() {
+    mLevels = Arrays.copyOf(mLevels, mNumLevels + 1);
+    mSizes = Arrays.copyOf(mSizes, mNumLevels + 1);
+    mLevels[mNumLevels] = new double[2];
+    mNumLevels++;
+  }
+
+  /** Compact levels until the sketch fits within its total capacity. */
+  private void compress() {
+    while (true) {
+      int totalSize = 0;
+      int totalCapacity = 0;
+      for (int h = 0; h < mNumLevels; h++) {
+        totalSize += mSizes[h];
+        totalCapacity += capacity(h);
+      }
+
+      if (totalSize <= totalCapacity) {
+        return;
+      }
+
+      // Compact the lowest level that is at or over its capacity.
+      for (int h = 0; h < mNumLevels; h++) {
+        if (mSizes[h] >= capacity(h)) {
+          compact(h);
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Sort level h and promote every other value to level h+1. If the level
+   * holds an odd number of values, its largest value stays behind.
+   */
+  private void compact(int h) {
+    if (h + 1 >= mNumLevels) {
+      addLevel();
+    }
+
+    double[] level = mLevels[h];
+    int size = mSizes[h];
+    Arrays.sort(level, 0, size);
+    int pairs = size / 2;
+    int offset = nextBit();
+    for (int i = 0; i < pairs; i++) {
+      append(h + 1, level[2 * i + offset]);
+    }
+
+    if (size % 2 == 1) {
+      level[0] = level[size - 1];
+      mSizes[h] = 1;
+    } else {
+      mSizes[h] = 0;
+    }
+  }
+
+  /** @return a pseudo-random 0 or 1. */
+  private int nextBit() {
+    mRandState ^= mRandState << 13;
+    mRandState ^= mRandState >>> 7;
+    mRandState ^= mRandState << 17;
+    return (int) (mRandState >>> 63);
+  }
+}
@@ -0,0 +1,150 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A Bloom filter over values which each occur at a timestamp, partitioned by
+ * time so that the values of old intervals can be forgotten as a window
+ * slides.
+ *
+ * <p>Time is divided into consecutive intervals of a fixed width, each with
+ * its own bit array. mightContain() consults only the intervals which overlap
+ * the queried range, and removeOlderThan() discards the intervals which lie
+ * entirely before a bound. Like any Bloom filter, this may report that a value
+ * is present when it is not, but never the reverse.</p>
+ */
+public class RotatingBloomFilter {
+  /** Default number of bits in each interval's array. */
+  public static final int DEFAULT_NUM_BITS = 1 << 16;
+
+  /** Default number of bits set for each value. */
+  public static final int DEFAULT_NUM_HASHES = 3;
+
+  /** Width of each time interval. */
+  private final long mIntervalWidth;
+
+  /** Number of bits in each interval's array; a power of two. */
+  private final int mNumBits;
+
+  private final int mNumHashes;
+
+  /** Bit array of each interval, indexed by the interval's start / mIntervalWidth. */
+  private final NavigableMap<Long, long[]> mIntervals;
+
+  public RotatingBloomFilter(long intervalWidth) {
+    this(intervalWidth, DEFAULT_NUM_BITS, DEFAULT_NUM_HASHES);
+  }
+
+  public RotatingBloomFilter(long intervalWidth, int numBits, int numHashes) {
+    if (intervalWidth <= 0) {
+      throw new IllegalArgumentException("Bloom filter interval width must be positive");
+    } else if (numBits < 64 || Integer.bitCount(numBits) != 1) {
+      throw new IllegalArgumentException("Bloom filter size must be a power of two, >= 64");
+    } else if (numHashes < 1) {
+      throw new IllegalArgumentException("Bloom filter needs at least one hash function");
+    }
+    mIntervalWidth = intervalWidth;
+    mNumBits = numBits;
+    mNumHashes = numHashes;
+    mIntervals = new TreeMap<Long, long[]>();
+  }
+
+  /** @return the index of the interval containing 'timestamp'. */
+  private long intervalOf(long timestamp) {
+    long index = timestamp / mIntervalWidth;
+    if (timestamp < 0 && index * mIntervalWidth != timestamp) {
+      index--; // Round toward negative infinity.
+    }
+    return index;
+  }
+
+  /** Record that 'val' occurred at 'timestamp'. */
+  public void add(Object val, long timestamp) {
+    Long index = Long.valueOf(intervalOf(timestamp));
+    long[] bits = mIntervals.get(index);
+    if (null == bits) {
+      bits = new long[mNumBits >>> 6];
+      mIntervals.put(index, bits);
+    }
+
+    long hash = HyperLogLog.hash(val);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < mNumHashes; i++) {
+      int bit = (h1 + i * h2) & (mNumBits - 1);
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  /**
+   * @return false if 'val' was definitely not added at any timestamp in
+   * [lo, hi]; true if it may have been.
+   */
+  public boolean mightContain(Object val, long lo, long hi) {
+    if (lo > hi) {
+      return false;
+    }
+
+    NavigableMap<Long, long[]> overlapping = mIntervals.subMap(
+        Long.valueOf(intervalOf(lo)), true, Long.valueOf(intervalOf(hi)), true);
+    if (overlapping.isEmpty()) {
+      return false;
+    }
+
+    long hash = HyperLogLog.hash(val);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (long[] bits : overlapping.values()) {
+      int i = 0;
+      for (; i < mNumHashes; i++) {
+        int bit = (h1 + i * h2) & (mNumBits - 1);
+        if (0 == (bits[bit >>> 6] & (1L << bit))) {
+          break;
+        }
+      }
+      if (i == mNumHashes) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Forget the values of every interval which lies entirely before 'bound'.
+   * Values added at timestamps >= bound are never forgotten by this call.
+   */
+  public void removeOlderThan(long bound) {
+    Iterator<Map.Entry<Long, long[]>> it =
+        mIntervals.headMap(Long.valueOf(intervalOf(bound))).entrySet().iterator();
+    while (it.hasNext()) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  /** @return the number of intervals currently held. */
+  public int getNumIntervals() {
+    return mIntervals.size();
+  }
+}
@@ -0,0 +1,212 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sequence of (timestamp, element) pairs held in timestamp order, in a
+ * pair of parallel arrays. Elements are removed only from the oldest end.
+ *
+ * <p>Appending an element no older than the newest is amortized O(1), as is
+ * removing the oldest element. An element that arrives out of order is
+ * inserted at its place in the sequence, at a cost proportional to the
+ * number of newer elements it must be placed before. Elements with equal
+ * timestamps are held in the order they were added. Positions are located
+ * by binary search.</p>
+ */
+class TimeOrderedArray<T extends Comparable<T>, E> {
+  private static final int INITIAL_CAPACITY = 4;
+
+  private Object [] mTimes;
+  private Object [] mElems;
+
+  /** Index of the oldest element. */
+  private int mHead;
+
+  /** Index one past the newest element. */
+  private int mTail;
+
+  public TimeOrderedArray() {
+    mTimes = new Object[INITIAL_CAPACITY];
+    mElems = new Object[INITIAL_CAPACITY];
+  }
+
+  public int size() {
+    return mTail - mHead;
+  }
+
+  public boolean isEmpty() {
+    return mTail == mHead;
+  }
+
+  @SuppressWarnings("unchecked")
+  public T getTime(int i) {
+    return (T) mTimes[mHead + i];
+  }
+
+  @SuppressWarnings("unchecked")
+  public E get(int i) {
+    return (E) mElems[mHead + i];
+  }
+
+  /** @return the oldest timestamp; the array must not be empty. */
+  public T firstTime() {
+    return getTime(0);
+  }
+
+  /** @return the newest timestamp; the array must not be empty. */
+  public T lastTime() {
+    return getTime(size() - 1);
+  }
+
+  /**
+   * Add 'elem' at 'time', after any elements with the same timestamp.
+   */
+  public void add(T time, E elem) {
+    if (mTail == mTimes.length) {
+      makeRoom();
+    }
+
+    int pos = mTail;
+    if (!isEmpty() && time.compareTo(lastTime()) < 0) {
+      // Out of order; move newer elements up to make space.
+      pos = mHead + firstAfter(time);
+      System.arraycopy(mTimes, pos, mTimes, pos + 1, mTail - pos);
+      System.arraycopy(mElems, pos, mElems, pos + 1, mTail - pos);
+    }
+
+    mTimes[pos] = time;
+    mElems[pos] = elem;
+    mTail++;
+  }
+
+  /**
+   * Remove and return the oldest element; the array must not be empty.
+   */
+  @SuppressWarnings("unchecked")
+  public E pollFirst() {
+    E elem = (E) mElems[mHead];
+    mTimes[mHead] = null;
+    mElems[mHead] = null;
+    mHead++;
+    if (mHead == mTail) {
+      mHead = 0;
+      mTail = 0;
+    }
+    return elem;
+  }
+
+  /** Remove all elements. */
+  public void clear() {
+    Arrays.fill(mTimes, mHead, mTail, null);
+    Arrays.fill(mElems, mHead, mTail, null);
+    mHead = 0;
+    mTail = 0;
+  }
+
+  /**
+   * @return the index of the first element whose timestamp is greater than
+   * 'time', or size() if there is none.
+   */
+  public int firstAfter(T time) {
+    int lo = 0;
+    int hi = size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (getTime(mid).compareTo(time) <= 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * @return the index of the first element whose timestamp is greater than
+   * or equal to 'time', or size() if there is none.
+   */
+  public int firstAtOrAfter(T time) {
+    int lo = 0;
+    int hi = size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (getTime(mid).compareTo(time) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * @return a read-only view of the elements at indices [from, to). The view
+   * is only valid until the array is next modified.
+   */
+  public List<E> subList(final int from, final int to) {
+    if (from >= to) {
+      return Collections.emptyList();
+    }
+
+    return new AbstractList<E>() {
+      @Override
+      public E get(int i) {
+        if (i < 0 || i >= to - from) {
+          throw new IndexOutOfBoundsException("Index: " + i);
+        }
+        return TimeOrderedArray.this.get(from + i);
+      }
+
+      @Override
+      public int size() {
+        return to - from;
+      }
+    };
+  }
+
+  /**
+   * Called when the tail reaches the end of the arrays: shift the elements
+   * down over the space freed at the head, or grow the arrays if that would
+   * leave them more than half full.
+   */
+  private void makeRoom() {
+    int size = size();
+    Object [] times = mTimes;
+    Object [] elems = mElems;
+    if (size >= mTimes.length / 2) {
+      times = new Object[mTimes.length * 2];
+      elems = new Object[mElems.length * 2];
+    }
+
+    System.arraycopy(mTimes, mHead, times, 0, size);
+    System.arraycopy(mElems, mHead, elems, 0, size);
+    if (times == mTimes) {
+      Arrays.fill(mTimes, size, mTail, null);
+      Arrays.fill(mElems, size, mTail, null);
+    }
+    mTimes = times;
+    mElems = elems;
+    mHead = 0;
+    mTail = size;
+  }
+}
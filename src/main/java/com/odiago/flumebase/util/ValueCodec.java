@@ -0,0 +1,131 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import java.nio.ByteBuffer;
+
+import org.apache.avro.util.Utf8;
+
+/**
+ * Compact binary encoding of the scalar values held in records and in
+ * aggregation state: null, the numeric and boolean types, strings and
+ * byte buffers. Each value is prefixed with a one-byte type tag.
+ */
+public final class ValueCodec {
+  private static final byte TAG_NULL = 0;
+  private static final byte TAG_INT = 1;
+  private static final byte TAG_LONG = 2;
+  private static final byte TAG_FLOAT = 3;
+  private static final byte TAG_DOUBLE = 4;
+  private static final byte TAG_BOOLEAN = 5;
+  private static final byte TAG_STRING = 6;
+  private static final byte TAG_BYTES = 7;
+  private static final byte TAG_DECIMAL = 8;
+
+  private ValueCodec() { }
+
+  /**
+   * Write 'val' to 'out'.
+   * @throws IOException if 'val' is not of a supported type.
+   */
+  public static void writeValue(DataOutput out, Object val) throws IOException {
+    if (null == val) {
+      out.writeByte(TAG_NULL);
+    } else if (val instanceof Integer) {
+      out.writeByte(TAG_INT);
+      out.writeInt(((Integer) val).intValue());
+    } else if (val instanceof Long) {
+      out.writeByte(TAG_LONG);
+      out.writeLong(((Long) val).longValue());
+    } else if (val instanceof Float) {
+      out.writeByte(TAG_FLOAT);
+      out.writeFloat(((Float) val).floatValue());
+    } else if (val instanceof Double) {
+      out.writeByte(TAG_DOUBLE);
+      out.writeDouble(((Double) val).doubleValue());
+    } else if (val instanceof Boolean) {
+      out.writeByte(TAG_BOOLEAN);
+      out.writeBoolean(((Boolean) val).booleanValue());
+    } else if (val instanceof Utf8) {
+      Utf8 utf8 = (Utf8) val;
+      out.writeByte(TAG_STRING);
+      out.writeInt(utf8.getByteLength());
+      out.write(utf8.getBytes(), 0, utf8.getByteLength());
+    } else if (val instanceof CharSequence) {
+      writeValue(out, new Utf8(val.toString()));
+    } else if (val instanceof ByteBuffer) {
+      ByteBuffer buf = ((ByteBuffer) val).duplicate();
+      byte [] bytes = new byte[buf.remaining()];
+      buf.get(bytes);
+      out.writeByte(TAG_BYTES);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    } else if (val instanceof BigDecimal) {
+      BigDecimal dec = (BigDecimal) val;
+      byte [] unscaled = dec.unscaledValue().toByteArray();
+      out.writeByte(TAG_DECIMAL);
+      out.writeInt(dec.scale());
+      out.writeInt(unscaled.length);
+      out.write(unscaled);
+    } else {
+      throw new IOException("Cannot serialize value of type " + val.getClass().getName());
+    }
+  }
+
+  /** @return a value read from 'in', as written by writeValue(). */
+  public static Object readValue(DataInput in) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+    case TAG_NULL:
+      return null;
+    case TAG_INT:
+      return Integer.valueOf(in.readInt());
+    case TAG_LONG:
+      return Long.valueOf(in.readLong());
+    case TAG_FLOAT:
+      return Float.valueOf(in.readFloat());
+    case TAG_DOUBLE:
+      return Double.valueOf(in.readDouble());
+    case TAG_BOOLEAN:
+      return Boolean.valueOf(in.readBoolean());
+    case TAG_STRING:
+      return new Utf8(readBytes(in));
+    case TAG_BYTES:
+      return ByteBuffer.wrap(readBytes(in));
+    case TAG_DECIMAL:
+      int scale = in.readInt();
+      return new BigDecimal(new BigInteger(readBytes(in)), scale);
+    default:
+      throw new IOException("Unknown value tag: " + tag);
+    }
+  }
+
+  /** Read a length-prefixed byte array. */
+  private static byte [] readBytes(DataInput in) throws IOException {
+    byte [] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -17,16 +17,15 @@
 
 package com.odiago.flumebase.util;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,11 +37,17 @@ import com.cloudera.util.Pair;
  * entry in the HashMap has, in addition to a key and a value, a
  * <i>timestamp</i> field with type T.
  *
- * <p>Entries are kept in a (k, List (t, v)) HashMap internally. There is a
- * second TreeMap contained inside which maps (timestamp, List k). This allows
- * for time-ranged iteration over the entries in the map, as well as insertion
- * of timestamped entries out of order (which java.util.LinkedHashMap does not
- * provide).  </p>
+ * <p>Each key maps to a time-ordered array of its (t, v) pairs; since
+ * entries usually arrive in timestamp order, these are append-only in the
+ * common case, and range lookups within a key are binary searches. A second,
+ * global time-ordered array (the eviction ring) records the key of every
+ * entry in the map. Expiring old entries pops the oldest entries from the
+ * ring and the oldest entry of each key it names, in time proportional to
+ * the number of entries removed. Timestamped entries may still be inserted
+ * out of order.</p>
+ *
+ * <p>Lists returned by get() and getRange() are views of the map, which
+ * are only valid until the map is next modified.</p>
  *
  * <p>Multiple keys may have the same timestamp.</p>
  * <p>This map may not store null values.</p>
@@ -53,12 +58,50 @@ public class WindowedHashMap<K, V, T extends Comparable<T>>
   private static final Logger LOG = LoggerFactory.getLogger(
       WindowedHashMap.class.getName());
 
-  private HashMap<K, List<Pair<T, V>>> mHashMap;
-  private TreeMap<T, List<K>> mTimestamps;
+  /** The time-ordered entries held for a single key. */
+  private static class KeyEntries<K, V, T extends Comparable<T>>
+      extends TimeOrderedArray<T, V> {
+    private final K mKey;
+
+    public KeyEntries(K key) {
+      mKey = key;
+    }
+
+    public K getKey() {
+      return mKey;
+    }
+
+    /** @return a read-only view of the (t, v) pairs for this key. */
+    public List<Pair<T, V>> pairs() {
+      return new AbstractList<Pair<T, V>>() {
+        @Override
+        public Pair<T, V> get(int i) {
+          return new Pair<T, V>(getTime(i), KeyEntries.this.get(i));
+        }
+
+        @Override
+        public int size() {
+          return KeyEntries.this.size();
+        }
+      };
+    }
+  }
+
+  private HashMap<K, KeyEntries<K, V, T>> mHashMap;
+
+  /**
+   * Every entry in the map, as a reference to the KeyEntries that holds it,
+   * ordered by timestamp. A reference to a KeyEntries that has been emptied
+   * by remove() is a tombstone.
+   */
+  private TimeOrderedArray<T, KeyEntries<K, V, T>> mEvictionRing;
+
+  /** Number of tombstones in mEvictionRing. */
+  private int mNumTombstones;
 
   public WindowedHashMap() {
-    mHashMap = new HashMap<K, List<Pair<T, V>>>();
-    mTimestamps = new TreeMap<T, List<K>>();
+    mHashMap = new HashMap<K, KeyEntries<K, V, T>>();
+    mEvictionRing = new TimeOrderedArray<T, KeyEntries<K, V, T>>();
   }
 
   @Override
@@ -78,29 +121,40 @@ public class WindowedHashMap<K, V, T extends Comparable<T>>
 
   @Override
   public boolean containsValue(Object value) {
-    return mHashMap.containsValue(value);
+    return snapshot().containsValue(value);
   }
 
+  /**
+   * @return a view of the (timestamp, value) pairs for 'key' in timestamp
+   * order, or null if the key is not present.
+   */
   @Override
   public List<Pair<T, V>> get(Object key) {
-    return mHashMap.get(key);
+    KeyEntries<K, V, T> entries = mHashMap.get(key);
+    if (null == entries) {
+      return null;
+    }
+    return entries.pairs();
   }
 
   /**
    * @return all values for the specified timestamp.
    */
   public List<V> getTimestamp(T timestamp) {
-    List<K> keysForTs = mTimestamps.get(timestamp);
-    if (null == keysForTs) {
+    int from = mEvictionRing.firstAtOrAfter(timestamp);
+    int to = mEvictionRing.firstAfter(timestamp);
+    if (from >= to) {
       return Collections.emptyList();
     }
 
+    // Several ring entries may name the same key; visit each key once.
+    Map<KeyEntries<K, V, T>, Boolean> visited = new IdentityHashMap<KeyEntries<K, V, T>, Boolean>();
     List<V> out = new ArrayList<V>();
-    for (K k : keysForTs) {
-      List<Pair<T, V>> timesAndValsForKey = mHashMap.get(k);
-      assert(timesAndValsForKey != null);
-      for (Pair<T, V> pr : timesAndValsForKey) {
-        out.add(pr.getRight());
+    for (int i = from; i < to; i++) {
+      KeyEntries<K, V, T> entries = mEvictionRing.get(i);
+      if (visited.put(entries, Boolean.TRUE) == null) {
+        out.addAll(entries.subList(entries.firstAtOrAfter(timestamp),
+            entries.firstAfter(timestamp)));
       }
     }
 
@@ -112,7 +166,11 @@ public class WindowedHashMap<K, V, T extends Comparable<T>>
    */
   @Override
   public List<Pair<T, V>> put(K key, List<Pair<T, V>> timesAndVals) {
-    List<Pair<T, V>> old = mHashMap.get(key);
+    List<Pair<T, V>> old = get(key);
+    if (null != old) {
+      old = new ArrayList<Pair<T, V>>(old);
+    }
+
     for (Pair<T, V> pr : timesAndVals) {
       put(key, pr.getRight(), pr.getLeft());
     }
@@ -121,21 +179,14 @@ public class WindowedHashMap<K, V, T extends Comparable<T>>
   }
 
   public void put(K key, V value, T timestamp) {
-    Pair<T, V> timeVal = new Pair<T, V>(timestamp, value);
-    List<Pair<T, V>> lstForKey = mHashMap.get(key);
-    if (null == lstForKey) {
-      lstForKey = new ArrayList<Pair<T, V>>();
-      mHashMap.put(key, lstForKey);
+    KeyEntries<K, V, T> entries = mHashMap.get(key);
+    if (null == entries) {
+      entries = new KeyEntries<K, V, T>(key);
+      mHashMap.put(key, entries);
     }
 
-    lstForKey.add(timeVal);
-
-    List<K> lstForT = mTimestamps.get(timestamp);
-    if (null == lstForT) {
-      lstForT = new ArrayList<K>();
-      mTimestamps.put(timestamp, lstForT);
-    }
-    lstForT.add(key);
+    entries.add(timestamp, value);
+    mEvictionRing.add(timestamp, entries);
   }
 
   /**
@@ -143,34 +194,41 @@ public class WindowedHashMap<K, V, T extends Comparable<T>>
    */
   @Override
   public List<Pair<T, V>> remove(Object key) {
-    List<Pair<T, V>> timesAndVals = mHashMap.remove(key);
-    if (null == timesAndVals) {
+    KeyEntries<K, V, T> entries = mHashMap.remove(key);
+    if (null == entries) {
       // If we couldn't find this key, break early.
       return null;
     }
 
-    // Remove all elements from the timestamp-driven map.
-    for (Pair<T, V> tv : timesAndVals) {
-      T t = tv.getLeft();
-      List<K> keysForTs = mTimestamps.get(t);
-      Iterator<K> it = keysForTs.iterator();
-      while (it.hasNext()) {
-        K someKey = it.next();
-        if (someKey.equals(key)) {
-          it.remove();
-        }
-      }
+    List<Pair<T, V>> timesAndVals = new ArrayList<Pair<T, V>>(entries.pairs());
 
-      if (keysForTs.size() == 0) {
-        // Only key for the timestamp; remove the timestamp from the
-        // mapping entirely.
-        mTimestamps.remove(t);
-      }
+    // The key's references in the eviction ring become tombstones, which
+    // are discarded when they reach its head.
+    mNumTombstones += entries.size();
+    entries.clear();
+    if (mNumTombstones > mEvictionRing.size() / 2) {
+      compactRing();
     }
 
     return timesAndVals;
   }
 
+  /**
+   * Rebuild the eviction ring without its tombstones.
+   */
+  private void compactRing() {
+    TimeOrderedArray<T, KeyEntries<K, V, T>> ring =
+        new TimeOrderedArray<T, KeyEntries<K, V, T>>();
+    for (int i = 0; i < mEvictionRing.size(); i++) {
+      KeyEntries<K, V, T> entries = mEvictionRing.get(i);
+      if (!entries.isEmpty()) {
+        ring.add(mEvictionRing.getTime(i), entries);
+      }
+    }
+    mEvictionRing = ring;
+    mNumTombstones = 0;
+  }
+
   @Override
   public void putAll(Map<? extends K, ? extends List<Pair<T, V>>> m) {
     for (Map.Entry<? extends K, ? extends List<Pair<T, V>>> entry : m.entrySet()) {
@@ -180,7 +238,8 @@ public class WindowedHashMap<K, V, T extends Comparable<T>>
 
   @Override
   public void clear() {
-    mTimestamps.clear();
+    mEvictionRing.clear();
+    mNumTombstones = 0;
     mHashMap.clear();
   }
 
@@ -189,14 +248,25 @@ public class WindowedHashMap<K, V, T extends Comparable<T>>
     return mHashMap.keySet();
   }
 
+  /** @return a snapshot of the (t, v) pair lists for each key. */
   @Override
   public Collection<List<Pair<T, V>>> values() {
-    return mHashMap.values();
+    return snapshot().values();
   }
 
+  /** @return a snapshot of the entries in the map. */
   @Override
   public Set<Map.Entry<K, List<Pair<T, V>>>> entrySet() {
-    return mHashMap.entrySet();
+    return snapshot().entrySet();
+  }
+
+  /** @return a copy of the map as a HashMap from each key to its (t, v) pairs. */
+  private Map<K, List<Pair<T, V>>> snapshot() {
+    Map<K, List<Pair<T, V>>> out = new HashMap<K, List<Pair<T, V>>>();
+    for (Map.Entry<K, KeyEntries<K, V, T>> entry : mHashMap.entrySet()) {
+      out.put(entry.getKey(), new ArrayList<Pair<T, V>>(entry.getValue().pairs()));
+    }
+    return out;
   }
 
   @Override
@@ -208,112 +278,67 @@ public class WindowedHashMap<K, V, T extends Comparable<T>>
     }
 
     WindowedHashMap<K, V, T> other = (WindowedHashMap<K, V, T>) otherObj;
-    return mHashMap.equals(other.mHashMap) && mTimestamps.equals(other.mTimestamps);
+    return snapshot().equals(other.snapshot());
   }
 
   @Override
   public int hashCode() {
-    return mHashMap.hashCode() ^ mTimestamps.hashCode();
+    return snapshot().hashCode();
   }
 
   /**
    * Look up all values for a key within a given timestamp range. 
-   * @returns a list of values such that m[key, t] = v and t is in the interval
-   * bounded by lo and hi. Arguments specify whether the lower and upper bounds
-   * of the interval are open-ended or closed.
+   * @returns a view of the values such that m[key, t] = v and t is in the
+   * interval bounded by lo and hi, in timestamp order. Arguments specify
+   * whether the lower and upper bounds of the interval are open-ended or closed.
    * Returns the empty list if no such key can be found within that window.
    */
   public List<V> getRange(K key, T lo, T hi, boolean openLo, boolean openHi) {
-    List<Pair<T, V>> timesAndVals = mHashMap.get(key);
-    
-    boolean first = true;
-    List<V> out = null;
-
-    if (null == timesAndVals) {
+    KeyEntries<K, V, T> entries = mHashMap.get(key);
+    if (null == entries) {
       // No times/vals for that key.
       return Collections.emptyList();
     }
 
-    for (Pair<T, V> pr : timesAndVals) {
-      if (timeInRange(lo, pr.getLeft(), hi, openLo, openHi)) {
-        if (null == out) {
-          // Start by using a singleton list to hold this object. 
-          out = Collections.singletonList(pr.getRight());
-        } else if (first) {
-          // Promote to a linked list
-          out = new LinkedList<V>(out);
-          out.add(pr.getRight());
-          first = false;
-        } else {
-          // We're already in a linked list; just add it.
-          out.add(pr.getRight());
-        }
-      }
-    }
-
-    if (null == out) {
-      return Collections.emptyList();
-    }
-
-    return out;
+    int from = openLo ? entries.firstAfter(lo) : entries.firstAtOrAfter(lo);
+    int to = openHi ? entries.firstAtOrAfter(hi) : entries.firstAfter(hi);
+    return entries.subList(from, to);
   }
 
   /**
-   * @return true if test is in the interval between lo and hi;
-   * both endpoints can be open or closed.
+   * Remove all (k, v) pairs where the timestamp for the entry is less than
+   * the value specified by 'test'.
    */
-  private boolean timeInRange(T lo, T test, T hi, boolean openLo, boolean openHi) {
-    int loVsTest = lo.compareTo(test);
-    if (!(openLo ? loVsTest < 0 : loVsTest <= 0)) {
-      return false; // 'test' is not above the lo end of the interval.
-    }
-
-    int hiVsTest = test.compareTo(hi);
-    if (!(openHi ? hiVsTest < 0 : hiVsTest <= 0)) {
-      return false; // 'test' is not below the hi end of the interval.
-    }
-
-    return true;
+  public void removeOlderThan(T test) {
+    removeOlderThan(test, null);
   }
 
   /**
    * Remove all (k, v) pairs where the timestamp for the entry is less than
-   * the value specified by 'test'.
+   * the value specified by 'test'. If 'removedKeys' is non-null, each key
+   * which has had an entry removed is added to it.
    */
-  public void removeOlderThan(T test) {
-    // Get a view of all timestamps in the map less than 'test'.
-    Map<T, List<K>> subMap = mTimestamps.headMap(test, false);
-
+  public void removeOlderThan(T test, Collection<K> removedKeys) {
     LOG.debug("Remove older than: " + test);
-    Set<Map.Entry<T, List<K>>> entrySet = subMap.entrySet();
-    Iterator<Map.Entry<T, List<K>>> entries = entrySet.iterator();
-    while (entries.hasNext()) {
-      Map.Entry<T, List<K>> entry = entries.next();
-      T removeTime = entry.getKey();
-      List<K> removeKeys = entry.getValue();
-
-      // Remove all (t, v) pairs from mHashMap(k) for all k in removeKeys,
-      // where t = removeTime. If the list at mHashMap(k) is empty, remove
-      // mHashMap(k).
-      for (K removeKey : removeKeys) {
-        List<Pair<T, V>> pairs = mHashMap.get(removeKey);
-        Iterator<Pair<T, V>> pairIter = pairs.iterator();
-        while (pairIter.hasNext()) {
-          Pair<T, V> pr = pairIter.next();
-          if (pr.getLeft().equals(removeTime)) {
-            LOG.debug("Removing: " + removeKey + " (t=" + removeTime + ")");
-            pairIter.remove();
-          }
-        }
+    while (!mEvictionRing.isEmpty() && mEvictionRing.firstTime().compareTo(test) < 0) {
+      KeyEntries<K, V, T> entries = mEvictionRing.pollFirst();
+      if (entries.isEmpty()) {
+        mNumTombstones--; // This key was already removed.
+        continue;
+      }
 
-        if (pairs.size() == 0) {
-          // Remove the entire key/list from mHashMap.
-          mHashMap.remove(removeKey);
-        }
+      // The ring and each key's entries are both in timestamp order, so the
+      // oldest entry of this key is the one the ring refers to (or has the
+      // same timestamp as it).
+      entries.pollFirst();
+      if (null != removedKeys) {
+        removedKeys.add(entries.getKey());
       }
 
-      // Remove the entry for this timestamp from the underlying map.
-      entries.remove();
+      if (entries.isEmpty()) {
+        // Remove the entire key from mHashMap.
+        mHashMap.remove(entries.getKey());
+      }
     }
   }
 
@@ -321,10 +346,15 @@ public class WindowedHashMap<K, V, T extends Comparable<T>>
    * @return the oldest timestamp in the map, or null if the map is empty.
    */
   public T oldestTimestamp() {
-    if (mTimestamps.isEmpty()) {
+    while (!mEvictionRing.isEmpty() && mEvictionRing.get(0).isEmpty()) {
+      mEvictionRing.pollFirst(); // Discard a tombstone.
+      mNumTombstones--;
+    }
+
+    if (mEvictionRing.isEmpty()) {
       return null;
     }
 
-    return mTimestamps.firstKey();
+    return mEvictionRing.firstTime();
   }
 }
@@ -47,19 +47,35 @@ public class ArrayBoundedSelectableQueue<T> extends SelectableQueue<T> {
     mSize = new AtomicInteger(0);
   }
 
+  /** Decides which queued items may be discarded to make room for a new one. */
+  public interface EvictionFilter<T> {
+    boolean canEvict(T item);
+  }
+
   /** {@inheritDoc} */
   @Override
   public int size() {
     return mSize.get();
   }
 
+  /** @return the maximum number of items the queue can hold. */
+  public int getCapacity() {
+    return mMaxLen;
+  }
+
+  /** @return the item at offset 'off' of the array; only items of type T are stored. */
+  @SuppressWarnings("unchecked")
+  private T itemAt(int off) {
+    return (T) mArray[off];
+  }
+
   /**
    * Given that our internal state allows for a dequeue, perform the operation.
    */
   private T doDequeue() {
     synchronized (this) {
       mSize.decrementAndGet();
-      T val = (T) mArray[mDequeueOff++];
+      T val = itemAt(mDequeueOff++);
       if (mDequeueOff >= mMaxLen) {
         mDequeueOff = 0;
       }
@@ -126,6 +142,55 @@ public class ArrayBoundedSelectableQueue<T> extends SelectableQueue<T> {
     }
   }
 
+  /**
+   * Enqueue t without blocking. If the queue is full, first remove the
+   * oldest item that 'filter' allows to be evicted.
+   * @return the item evicted, or null if none was. If the queue is full and
+   * holds no item that may be evicted, t is not enqueued, and is returned.
+   */
+  public T offerEvicting(T t, EvictionFilter<T> filter) {
+    synchronized (this) {
+      T evicted = null;
+      if (mSize.get() >= mMaxLen) {
+        evicted = evict(filter);
+        if (null == evicted) {
+          return t; // Nothing could make room.
+        }
+      }
+
+      doEnqueue(t);
+      return evicted;
+    }
+  }
+
+  /**
+   * Remove the oldest item that 'filter' allows to be evicted, shifting the
+   * items behind it forward.
+   * @return the item removed, or null if there was none.
+   */
+  private T evict(EvictionFilter<T> filter) {
+    synchronized (this) {
+      int size = mSize.get();
+      for (int i = 0; i < size; i++) {
+        int off = (mDequeueOff + i) % mMaxLen;
+        T item = itemAt(off);
+        if (!filter.canEvict(item)) {
+          continue;
+        }
+
+        for (int j = i; j < size - 1; j++) {
+          mArray[(mDequeueOff + j) % mMaxLen] = mArray[(mDequeueOff + j + 1) % mMaxLen];
+        }
+        mEnqueueOff = (mEnqueueOff + mMaxLen - 1) % mMaxLen;
+        mArray[mEnqueueOff] = null;
+        mSize.decrementAndGet();
+        return item;
+      }
+
+      return null;
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
   public boolean offer(T t) {
@@ -147,7 +212,7 @@ public class ArrayBoundedSelectableQueue<T> extends SelectableQueue<T> {
       int off = mDequeueOff;
       int size = mSize.get();
       for (int i = 0; i < size; i++) {
-        T obj = (T) mArray[off];
+        T obj = itemAt(off);
         if (obj == null && t == null) {
           return true;
         } else if (obj != null && obj.equals(t)) {
@@ -39,7 +39,8 @@ struct TQuerySubmitResponse {
 struct TFlowInfo {
   1: required TFlowId flowId,
   2: required string query,
-  3: optional string streamName
+  3: optional string streamName,
+  4: optional i64 shedCount = 0
 }
 
 /* Thrift version of server.SessionId */
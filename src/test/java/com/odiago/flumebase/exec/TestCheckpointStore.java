@@ -0,0 +1,277 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that the CheckpointStore replays incremental and full checkpoints,
+ * and ignores a checkpoint torn by a crash; and that a KeyedCheckpointer
+ * submits full checkpoints in bounded parts.
+ */
+public class TestCheckpointStore {
+  private File mFile;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    mFile = File.createTempFile("checkpoint-", ".ckpt");
+    mFile.delete();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    mFile.delete();
+  }
+
+  private static ByteBuffer key(String k) {
+    return ByteBuffer.wrap(k.getBytes());
+  }
+
+  private static byte [] val(String v) {
+    return v.getBytes();
+  }
+
+  /** Submit a checkpoint and wait for it to be written. */
+  private void submit(CheckpointStore store, String header, Map<ByteBuffer, byte[]> entries)
+      throws InterruptedException {
+    store.submit(val(header), entries, store.needsFullCheckpoint());
+    store.awaitIdle();
+  }
+
+  @Test
+  public void testIncremental() throws IOException, InterruptedException {
+    CheckpointStore store = new CheckpointStore(mFile, 0);
+    assertNull(store.open());
+    assertTrue(store.needsFullCheckpoint());
+
+    Map<ByteBuffer, byte[]> entries = new HashMap<ByteBuffer, byte[]>();
+    entries.put(key("a"), val("1"));
+    entries.put(key("b"), val("2"));
+    submit(store, "h1", entries);
+    assertFalse(store.needsFullCheckpoint());
+
+    // Update one entry and remove the other.
+    entries = new HashMap<ByteBuffer, byte[]>();
+    entries.put(key("a"), val("3"));
+    entries.put(key("b"), null);
+    entries.put(key("c"), val("4"));
+    submit(store, "h2", entries);
+    store.close();
+    assertEquals(2, store.getNumCheckpoints());
+
+    store = new CheckpointStore(mFile, 0);
+    Map<ByteBuffer, byte[]> restored = store.open();
+    store.close();
+    assertNotNull(restored);
+    assertEquals("h2", new String(store.getHeader()));
+    assertEquals(2, restored.size());
+    assertEquals("3", new String(restored.get(key("a"))));
+    assertEquals("4", new String(restored.get(key("c"))));
+  }
+
+  @Test
+  public void testFullReplacesLog() throws IOException, InterruptedException {
+    CheckpointStore store = new CheckpointStore(mFile, 0);
+    store.open();
+    Map<ByteBuffer, byte[]> entries = new HashMap<ByteBuffer, byte[]>();
+    entries.put(key("a"), val("1"));
+    submit(store, "h1", entries);
+
+    store.invalidate();
+    entries = new HashMap<ByteBuffer, byte[]>();
+    entries.put(key("b"), val("2"));
+    submit(store, "h2", entries);
+    store.close();
+
+    store = new CheckpointStore(mFile, 0);
+    Map<ByteBuffer, byte[]> restored = store.open();
+    store.close();
+    assertEquals(1, restored.size());
+    assertEquals("2", new String(restored.get(key("b"))));
+  }
+
+  @Test
+  public void testTornCheckpoint() throws IOException, InterruptedException {
+    CheckpointStore store = new CheckpointStore(mFile, 0);
+    store.open();
+    Map<ByteBuffer, byte[]> entries = new HashMap<ByteBuffer, byte[]>();
+    entries.put(key("a"), val("1"));
+    submit(store, "h1", entries);
+    long goodLength = mFile.length();
+
+    entries = new HashMap<ByteBuffer, byte[]>();
+    entries.put(key("a"), val("2"));
+    submit(store, "h2", entries);
+    store.close();
+
+    // Cut off the end of the second checkpoint, as if we crashed writing it.
+    RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+    raf.setLength(mFile.length() - 3);
+    raf.close();
+
+    store = new CheckpointStore(mFile, 0);
+    Map<ByteBuffer, byte[]> restored = store.open();
+    assertEquals("h1", new String(store.getHeader()));
+    assertEquals("1", new String(restored.get(key("a"))));
+
+    // New checkpoints replace the torn one.
+    entries = new HashMap<ByteBuffer, byte[]>();
+    entries.put(key("a"), val("5"));
+    submit(store, "h3", entries);
+    store.close();
+    assertTrue(mFile.length() > goodLength);
+
+    store = new CheckpointStore(mFile, 0);
+    restored = store.open();
+    store.close();
+    assertEquals("h3", new String(store.getHeader()));
+    assertEquals("5", new String(restored.get(key("a"))));
+  }
+
+  @Test
+  public void testFullInParts() throws IOException, InterruptedException {
+    CheckpointStore store = new CheckpointStore(mFile, 60000);
+    store.open();
+    Map<ByteBuffer, byte[]> entries = new HashMap<ByteBuffer, byte[]>();
+    entries.put(key("a"), val("1"));
+    submit(store, "h1", entries);
+    assertFalse(store.isDue());
+
+    store.invalidate();
+    entries = new HashMap<ByteBuffer, byte[]>();
+    entries.put(key("b"), val("2"));
+    store.submitPart(val("h2"), entries, true, false);
+    store.awaitIdle();
+    // The rest of the full checkpoint is due at once.
+    assertTrue(store.isDue());
+
+    // Until the last part is written, the previous checkpoint is intact.
+    CheckpointStore reader = new CheckpointStore(mFile, 0);
+    Map<ByteBuffer, byte[]> restored = reader.open();
+    reader.close();
+    assertEquals("h1", new String(reader.getHeader()));
+    assertEquals(1, restored.size());
+    assertEquals("1", new String(restored.get(key("a"))));
+
+    entries = new HashMap<ByteBuffer, byte[]>();
+    entries.put(key("c"), val("3"));
+    store.submitPart(val("h3"), entries, false, true);
+    store.awaitIdle();
+    assertFalse(store.isDue());
+    store.close();
+
+    reader = new CheckpointStore(mFile, 0);
+    restored = reader.open();
+    reader.close();
+    assertEquals("h3", new String(reader.getHeader()));
+    assertEquals(2, restored.size());
+    assertEquals("2", new String(restored.get(key("b"))));
+    assertEquals("3", new String(restored.get(key("c"))));
+  }
+
+  /** Checkpoints a map of strings, one entry per key. */
+  private static class MapCheckpointer extends KeyedCheckpointer<String> {
+    private final Map<String, String> mState = new TreeMap<String, String>();
+
+    public MapCheckpointer(CheckpointStore store) {
+      super(store);
+    }
+
+    public void put(String k, String v) {
+      mState.put(k, v);
+      markDirty(k);
+    }
+
+    public void remove(String k) {
+      mState.remove(k);
+      markDirty(k);
+    }
+
+    @Override
+    protected Collection<String> getKeys() {
+      return mState.keySet();
+    }
+
+    @Override
+    protected byte [] getHeader() {
+      return val("h" + mState.size());
+    }
+
+    @Override
+    protected void writeEntry(String k, Map<ByteBuffer, byte[]> entries) {
+      String v = mState.get(k);
+      entries.put(key(k), null == v ? null : val(v));
+    }
+  }
+
+  @Test
+  public void testKeyedCheckpointerParts() throws IOException, InterruptedException {
+    CheckpointStore store = new CheckpointStore(mFile, 60000, 2);
+    store.open();
+    MapCheckpointer checkpointer = new MapCheckpointer(store);
+    for (int i = 0; i < 5; i++) {
+      checkpointer.put("k" + i, "v" + i);
+    }
+
+    // The first full checkpoint takes three parts of at most two entries.
+    int parts = 0;
+    do {
+      checkpointer.checkpoint(false);
+      store.awaitIdle();
+      parts++;
+      if (1 == parts) {
+        // Change an entry already written, and one not yet written.
+        checkpointer.put("k0", "new0");
+        checkpointer.remove("k4");
+      }
+    } while (store.isDue());
+    assertEquals(3, parts);
+    assertEquals(1, store.getNumCheckpoints());
+
+    // Changes since then are written incrementally, when due.
+    checkpointer.put("k5", "v5");
+    store.invalidate();
+    checkpointer.checkpoint(true);
+    store.close();
+
+    CheckpointStore reader = new CheckpointStore(mFile, 0);
+    Map<ByteBuffer, byte[]> restored = reader.open();
+    reader.close();
+    assertEquals("h5", new String(reader.getHeader()));
+    assertEquals(5, restored.size());
+    assertEquals("new0", new String(restored.get(key("k0"))));
+    assertEquals("v3", new String(restored.get(key("k3"))));
+    assertNull(restored.get(key("k4")));
+    assertEquals("v5", new String(restored.get(key("k5"))));
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.io.DelimitedEventParser;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.BinExpr;
+import com.odiago.flumebase.parser.BinOp;
+import com.odiago.flumebase.parser.ConstExpr;
+import com.odiago.flumebase.parser.Expr;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that ConjunctFilter splits AND chains, accepts exactly the events
+ * every conjunct accepts, and moves selective conjuncts to the front.
+ */
+public class TestConjunctFilter {
+
+  private static Expr bool(Boolean val) {
+    return new ConstExpr(Type.getNullable(Type.TypeName.BOOLEAN), val);
+  }
+
+  private static EventWrapper getEmptyEventWrapper() {
+    return new ParsingEventWrapper(new DelimitedEventParser(), new ArrayList<String>());
+  }
+
+  @Test
+  public void testSplitsConjuncts() throws Exception {
+    Expr a = bool(Boolean.TRUE);
+    Expr b = bool(Boolean.TRUE);
+    Expr c = bool(Boolean.TRUE);
+    ConjunctFilter filter = new ConjunctFilter(Arrays.asList(
+        (Expr) new BinExpr(new BinExpr(a, BinOp.And, b), BinOp.And, c)));
+    assertEquals(Arrays.asList(a, b, c), filter.getConjuncts());
+    assertTrue(filter.accept(getEmptyEventWrapper()));
+  }
+
+  @Test
+  public void testOrIsOneConjunct() throws Exception {
+    Expr or = new BinExpr(bool(Boolean.TRUE), BinOp.Or, bool(Boolean.FALSE));
+    ConjunctFilter filter = new ConjunctFilter(Arrays.asList(or));
+    assertEquals(Arrays.asList(or), filter.getConjuncts());
+  }
+
+  @Test
+  public void testNullRejects() throws Exception {
+    ConjunctFilter filter = new ConjunctFilter(Arrays.asList(
+        bool(Boolean.TRUE), bool(null)));
+    assertFalse(filter.accept(getEmptyEventWrapper()));
+  }
+
+  @Test
+  public void testNoConjuncts() throws Exception {
+    ConjunctFilter filter = new ConjunctFilter(new ArrayList<Expr>());
+    assertTrue(filter.accept(getEmptyEventWrapper()));
+  }
+
+  @Test
+  public void testReorder() throws Exception {
+    Expr passes = bool(Boolean.TRUE);
+    Expr rejects = bool(Boolean.FALSE);
+    ConjunctFilter filter = new ConjunctFilter(Arrays.asList(passes, rejects), 64);
+
+    for (int i = 0; i < 63; i++) {
+      assertFalse(filter.accept(getEmptyEventWrapper()));
+    }
+    assertEquals(Arrays.asList(passes, rejects), filter.getConjuncts());
+
+    // The conjunct which rejects every event is moved first.
+    assertFalse(filter.accept(getEmptyEventWrapper()));
+    List<Expr> expected = Arrays.asList(rejects, passes);
+    assertEquals(expected, filter.getConjuncts());
+
+    for (int i = 0; i < 64; i++) {
+      assertFalse(filter.accept(getEmptyEventWrapper()));
+    }
+    assertEquals(expected, filter.getConjuncts());
+  }
+}
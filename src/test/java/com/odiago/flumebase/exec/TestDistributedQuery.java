@@ -0,0 +1,390 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.avro.generic.GenericData;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.local.ExchangeProtocol;
+import com.odiago.flumebase.exec.local.ExchangeSourceElement;
+import com.odiago.flumebase.exec.local.LocalEnvironment;
+import com.odiago.flumebase.exec.local.MemoryOutputElement;
+
+import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.PlanFragmenter;
+
+import com.odiago.flumebase.server.FragmentServer;
+
+import com.odiago.flumebase.testutil.MemStreamBuilder;
+import com.odiago.flumebase.testutil.RtsqlTestCase;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that flows run their source fragments on workers, and combine their
+ * results on the coordinator. Workers run either in this process, or in
+ * processes of their own started with FragmentServer.main().
+ */
+public class TestDistributedQuery extends RtsqlTestCase {
+
+  /** Build stream 's', holding the events in 'eventBodies'. */
+  private StreamSymbol makeStream(String... eventBodies) {
+    MemStreamBuilder streamBuilder = new MemStreamBuilder("s");
+    streamBuilder.addField(new TypedField("a", Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.addField(new TypedField("b", Type.getPrimitive(Type.TypeName.INT)));
+    for (String body : eventBodies) {
+      streamBuilder.addEvent(body, 1000);
+    }
+    return streamBuilder.build();
+  }
+
+  /**
+   * Create a worker environment which defines stream 's' as 'eventBodies',
+   * or defines no streams if 'eventBodies' is null.
+   */
+  private LocalEnvironment makeWorker(String... eventBodies)
+      throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    SymbolTable symbols = new HashSymbolTable(new BuiltInSymbolTable());
+    if (null != eventBodies) {
+      symbols.addSymbol(makeStream(eventBodies));
+    }
+    LocalEnvironment env = new LocalEnvironment(conf, symbols,
+        Collections.synchronizedMap(new HashMap<String, MemoryOutputElement>()),
+        new EmbeddedFlumeConfig(conf));
+    env.connect();
+    return env;
+  }
+
+  /**
+   * Start a FragmentServer for each of 'workers' in this process.
+   * @return the comma-separated addresses of the servers.
+   */
+  private String startServers(List<LocalEnvironment> workers, List<FragmentServer> servers)
+      throws IOException {
+    StringBuilder workerAddrs = new StringBuilder();
+    for (LocalEnvironment worker : workers) {
+      FragmentServer server = new FragmentServer(0, worker);
+      server.start();
+      servers.add(server);
+      if (workerAddrs.length() > 0) {
+        workerAddrs.append(",");
+      }
+      workerAddrs.append("localhost:" + server.getPort());
+    }
+    return workerAddrs.toString();
+  }
+
+  /**
+   * Submit 'query' to the coordinator, distributed over the workers at
+   * 'workerAddrs', and wait for it to complete.
+   * @return the records of its output.
+   */
+  private List<GenericData.Record> runQuery(String workerAddrs, String query)
+      throws IOException, InterruptedException {
+    FlowId id = submitQuery(workerAddrs, query);
+    joinFlow(id);
+    return getOutput("testSelect").getRecords();
+  }
+
+  /** Submit 'query' to the coordinator, distributed over the workers at 'workerAddrs'. */
+  private FlowId submitQuery(String workerAddrs, String query)
+      throws IOException, InterruptedException {
+    // The coordinator only needs the definition of the stream.
+    getSymbolTable().addSymbol(makeStream());
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testSelect");
+    getConf().set(PlanFragmenter.WORKERS_KEY, workerAddrs);
+    getConf().set(ExchangeSourceElement.EXCHANGE_HOST_KEY, "localhost");
+
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+
+    QuerySubmitResponse response = env.submitQuery(query, getQueryOpts());
+    FlowId id = response.getFlowId();
+    assertNotNull(response.getMessage(), id);
+    return id;
+  }
+
+  /**
+   * Start a worker in a process of its own, which reads stream 's' from
+   * 'dataFile'.
+   */
+  private Process startWorkerProcess(File dataFile) throws IOException {
+    String java = System.getProperty("java.home") + File.separator + "bin"
+        + File.separator + "java";
+    ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+        System.getProperty("java.class.path"), FragmentServer.class.getName(), "-p", "0",
+        "CREATE STREAM s (a INT, b INT) FROM LOCAL FILE '" + dataFile.getAbsolutePath() + "'");
+    builder.redirectErrorStream(true);
+    return builder.start();
+  }
+
+  /**
+   * Wait for the worker process 'worker' to begin serving requests, then
+   * discard the rest of its output in the background.
+   * @return the address of its FragmentServer.
+   */
+  private String awaitWorkerProcess(Process worker) throws IOException {
+    final String prefix = "FragmentServer listening on port ";
+    final BufferedReader reader = new BufferedReader(
+        new InputStreamReader(worker.getInputStream()));
+    String line = reader.readLine();
+    while (null != line && !line.startsWith(prefix)) {
+      line = reader.readLine();
+    }
+    assertNotNull("Worker process exited before serving requests", line);
+
+    Thread drainThread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (reader.readLine() != null) {
+            continue;
+          }
+        } catch (IOException ioe) {
+          // The process has exited.
+        }
+      }
+    };
+    drainThread.setDaemon(true);
+    drainThread.start();
+    return "localhost:" + line.substring(prefix.length()).trim();
+  }
+
+  /** Write each of 'lines' to a new temporary file. */
+  private File writeTempFile(List<String> lines) throws IOException {
+    File file = File.createTempFile("worker-", ".txt");
+    file.deleteOnExit();
+    BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+    try {
+      for (String line : lines) {
+        writer.write(line);
+        writer.write("\n");
+      }
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+
+  /** Assert that some record in 'records' has a=aVal and c=cVal. */
+  private void assertGroupSum(List<GenericData.Record> records, int aVal, long cVal) {
+    for (GenericData.Record record : records) {
+      if (Integer.valueOf(aVal).equals(record.get("a"))
+          && Long.valueOf(cVal).equals(((Number) record.get("c")).longValue())) {
+        return;
+      }
+    }
+    fail("No record with a=" + aVal + " and c=" + cVal + " in "
+        + new ArrayList<GenericData.Record>(records));
+  }
+
+  @Test
+  public void testFilterOnWorkers() throws IOException, InterruptedException {
+    List<LocalEnvironment> workers = new ArrayList<LocalEnvironment>();
+    List<FragmentServer> servers = new ArrayList<FragmentServer>();
+    try {
+      workers.add(makeWorker("1,10", "2,20", "3,30"));
+      workers.add(makeWorker("4,40", "0,50"));
+      List<GenericData.Record> outRecords = runQuery(startServers(workers, servers),
+          "SELECT a, b FROM s WHERE a > 1");
+      synchronized (outRecords) {
+        assertEquals(3, outRecords.size());
+        assertRecordFields(outRecords, "a", Integer.valueOf(2), "b", Integer.valueOf(20));
+        assertRecordFields(outRecords, "a", Integer.valueOf(3), "b", Integer.valueOf(30));
+        assertRecordFields(outRecords, "a", Integer.valueOf(4), "b", Integer.valueOf(40));
+      }
+    } finally {
+      for (FragmentServer server : servers) {
+        server.shutdown();
+      }
+      for (LocalEnvironment worker : workers) {
+        worker.shutdown();
+      }
+    }
+  }
+
+  @Test
+  public void testAggregateOnWorkers() throws IOException, InterruptedException {
+    List<LocalEnvironment> workers = new ArrayList<LocalEnvironment>();
+    List<FragmentServer> servers = new ArrayList<FragmentServer>();
+    try {
+      workers.add(makeWorker("1,10", "2,20", "3,30"));
+      workers.add(makeWorker("1,5", "2,7"));
+      List<GenericData.Record> outRecords = runQuery(startServers(workers, servers),
+          "SELECT a, SUM(b) AS c FROM s WHERE a < 3 GROUP BY a "
+          + "OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+      synchronized (outRecords) {
+        assertEquals(2, outRecords.size());
+        assertGroupSum(outRecords, 1, 15);
+        assertGroupSum(outRecords, 2, 27);
+      }
+    } finally {
+      for (FragmentServer server : servers) {
+        server.shutdown();
+      }
+      for (LocalEnvironment worker : workers) {
+        worker.shutdown();
+      }
+    }
+  }
+
+  @Test
+  public void testWorkerFailureFailsFlow() throws IOException, InterruptedException {
+    // The second worker does not define the stream, so cannot run its
+    // fragment. The flow fails rather than emitting the first worker's events.
+    List<LocalEnvironment> workers = new ArrayList<LocalEnvironment>();
+    List<FragmentServer> servers = new ArrayList<FragmentServer>();
+    try {
+      workers.add(makeWorker("1,10", "2,20", "3,30"));
+      workers.add(makeWorker((String []) null));
+      List<GenericData.Record> outRecords = runQuery(startServers(workers, servers),
+          "SELECT a, b FROM s");
+      synchronized (outRecords) {
+        assertEquals(0, outRecords.size());
+      }
+    } finally {
+      for (FragmentServer server : servers) {
+        server.shutdown();
+      }
+      for (LocalEnvironment worker : workers) {
+        worker.shutdown();
+      }
+    }
+  }
+
+  @Test
+  public void testAggregateOnWorkerProcesses() throws IOException, InterruptedException {
+    List<Process> workers = new ArrayList<Process>();
+    try {
+      List<String> firstLines = new ArrayList<String>();
+      firstLines.add("1,10");
+      firstLines.add("2,20");
+      List<String> secondLines = new ArrayList<String>();
+      secondLines.add("1,5");
+      workers.add(startWorkerProcess(writeTempFile(firstLines)));
+      workers.add(startWorkerProcess(writeTempFile(secondLines)));
+      String workerAddrs = awaitWorkerProcess(workers.get(0)) + ","
+          + awaitWorkerProcess(workers.get(1));
+
+      // Events are timestamped as they are read, so the window closing last
+      // holds all of them.
+      List<GenericData.Record> outRecords = runQuery(workerAddrs,
+          "SELECT a, SUM(b) AS c FROM s GROUP BY a OVER RANGE INTERVAL 1 HOURS PRECEDING");
+      synchronized (outRecords) {
+        assertGroupSum(outRecords, 1, 15);
+        assertGroupSum(outRecords, 2, 20);
+      }
+    } finally {
+      for (Process worker : workers) {
+        worker.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testWorkerProcessKilled() throws IOException, InterruptedException {
+    final int numEvents = 200000;
+    Process worker = null;
+    try {
+      List<String> lines = new ArrayList<String>();
+      for (int i = 0; i < numEvents; i++) {
+        lines.add(i + "," + i);
+      }
+      worker = startWorkerProcess(writeTempFile(lines));
+      String workerAddr = awaitWorkerProcess(worker);
+
+      // With one event in flight at a time, the worker is still sending
+      // events when it is killed.
+      getConf().setInt(ExchangeProtocol.CREDITS_KEY, 1);
+      FlowId id = submitQuery(workerAddr, "SELECT a, b FROM s");
+      List<GenericData.Record> outRecords = getOutput("testSelect").getRecords();
+      long deadline = System.currentTimeMillis() + 60000;
+      while (outRecords.size() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue("No events received from worker", outRecords.size() > 0);
+
+      worker.destroy();
+      worker.waitFor();
+      worker = null;
+
+      // The flow fails, rather than waiting for the worker.
+      joinFlow(id);
+      synchronized (outRecords) {
+        assertTrue(outRecords.size() < numEvents);
+      }
+    } finally {
+      if (null != worker) {
+        worker.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testExplainShowsExchange() throws IOException, InterruptedException {
+    getSymbolTable().addSymbol(makeStream());
+    getConf().set(PlanFragmenter.WORKERS_KEY, "localhost:1,localhost:2");
+
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+    QuerySubmitResponse response = env.submitQuery(
+        "EXPLAIN SELECT a FROM s WHERE a > 1", getQueryOpts());
+    String msg = response.getMessage();
+    assertTrue(msg, msg.contains("ExchangeSource"));
+    assertTrue(msg, msg.contains("localhost:1"));
+    assertFalse(msg, msg.contains("Filter"));
+  }
+
+  @Test
+  public void testExplainShowsPartialAggregates() throws IOException, InterruptedException {
+    getSymbolTable().addSymbol(makeStream());
+    getConf().set(PlanFragmenter.WORKERS_KEY, "localhost:1,localhost:2");
+
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+    QuerySubmitResponse response = env.submitQuery(
+        "EXPLAIN SELECT a, SUM(b) AS c FROM s GROUP BY a "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING", getQueryOpts());
+    String msg = response.getMessage();
+    String plan = msg.substring(msg.indexOf("Execution plan:"));
+    assertTrue(plan, plan.contains("partial aggregates"));
+    assertFalse(plan, plan.contains("Combiner"));
+  }
+}
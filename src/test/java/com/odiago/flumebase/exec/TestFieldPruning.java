@@ -0,0 +1,172 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.avro.generic.GenericData;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.local.LocalEnvironment;
+import com.odiago.flumebase.exec.local.MemoryOutputElement;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.PruneFields;
+
+import com.odiago.flumebase.testutil.MemStreamBuilder;
+import com.odiago.flumebase.testutil.RtsqlTestCase;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that narrowing each node of a plan to the fields read downstream
+ * gives the same results as carrying all selected fields through the flow.
+ */
+public class TestFieldPruning extends RtsqlTestCase {
+
+  /** Define stream 's', holding a few events with null and string fields. */
+  private void addStream() {
+    MemStreamBuilder streamBuilder = new MemStreamBuilder("s");
+    streamBuilder.addField(new TypedField("a", Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.addField(new TypedField("b", Type.getNullable(Type.TypeName.INT)));
+    streamBuilder.addField(new TypedField("c", Type.getPrimitive(Type.TypeName.STRING)));
+    streamBuilder.addEvent("1,10,one");
+    streamBuilder.addEvent("2,,two");
+    streamBuilder.addEvent("3,30,three");
+    streamBuilder.addEvent("4,40,four");
+    streamBuilder.addEvent("5,,five");
+    getSymbolTable().addSymbol(streamBuilder.build());
+  }
+
+  /** @return the plan explained for 'query'. */
+  private String explain(String query) throws IOException, InterruptedException {
+    addStream();
+    getEnvironment().connect();
+    QuerySubmitResponse response = getEnvironment().submitQuery("EXPLAIN " + query,
+        getQueryOpts());
+    return response.getMessage();
+  }
+
+  /** Run 'query' over stream 's', and return its output records as sorted strings. */
+  private List<String> runQuery(String query) throws IOException, InterruptedException {
+    addStream();
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testPruning");
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+
+    QuerySubmitResponse response = env.submitQuery(query, getQueryOpts());
+    FlowId id = response.getFlowId();
+    assertNotNull(response.getMessage(), id);
+    joinFlow(id);
+
+    MemoryOutputElement output = getOutput("testPruning");
+    assertNotNull(output);
+    List<GenericData.Record> records = output.getRecords();
+    List<String> out = new ArrayList<String>();
+    synchronized (records) {
+      for (GenericData.Record record : records) {
+        out.add(record.toString());
+      }
+    }
+    Collections.sort(out);
+    return out;
+  }
+
+  /** Check that 'query' gives the same results with and without pruning. */
+  private List<String> checkPrunedResults(String query)
+      throws IOException, InterruptedException {
+    List<String> pruned = runQuery(query);
+    restartEnvironment();
+    getConf().setBoolean(PruneFields.PRUNING_ENABLED_KEY, false);
+    List<String> unpruned = runQuery(query);
+    assertEquals(unpruned, pruned);
+    return pruned;
+  }
+
+  @Test
+  public void testExplainShowsSourceFields() throws IOException, InterruptedException {
+    String msg = explain("SELECT a FROM (SELECT * FROM s) AS t");
+    assertTrue(msg, msg.contains("required.fields : [__f_0_]"));
+    // The inner projections no longer carry b or c.
+    assertFalse(msg, msg.contains("inFields=(__f_0_/a/(a) INT NOT NULL, "));
+  }
+
+  @Test
+  public void testPruningDisabled() throws IOException, InterruptedException {
+    getConf().setBoolean(PruneFields.PRUNING_ENABLED_KEY, false);
+    String msg = explain("SELECT a FROM (SELECT * FROM s) AS t");
+    assertFalse(msg, msg.contains("required.fields"));
+    assertTrue(msg, msg.contains("inFields=(__f_0_/a/(a) INT NOT NULL, "));
+  }
+
+  @Test
+  public void testSelectAllSubquery() throws IOException, InterruptedException {
+    List<String> results = checkPrunedResults("SELECT c FROM (SELECT * FROM s) AS t");
+    assertEquals(5, results.size());
+  }
+
+  @Test
+  public void testUnusedExpression() throws IOException, InterruptedException {
+    List<String> results = checkPrunedResults(
+        "SELECT x FROM (SELECT a + 1 AS x, length(c) AS d FROM s) AS t WHERE x > 2");
+    assertEquals(4, results.size());
+  }
+
+  @Test
+  public void testOuterFilterField() throws IOException, InterruptedException {
+    // b is read only by the outer filter.
+    List<String> results = checkPrunedResults(
+        "SELECT a FROM (SELECT a, b, c FROM s) AS t WHERE b > 10");
+    assertEquals(2, results.size());
+  }
+
+  @Test
+  public void testExplainNarrowsAggregates() throws IOException, InterruptedException {
+    String msg = explain("SELECT n FROM (SELECT COUNT(*) AS n, SUM(b) AS total FROM s "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING) AS t");
+    String plan = msg.substring(msg.indexOf("Execution plan:"));
+    assertFalse(msg, plan.contains("mFunctionName=sum"));
+    // b was read only by the unused sum.
+    assertTrue(msg, msg.contains("required.fields : []"));
+  }
+
+  @Test
+  public void testUnusedAggregate() throws IOException, InterruptedException {
+    List<String> results = checkPrunedResults(
+        "SELECT total FROM (SELECT COUNT(*) AS n, SUM(b) AS total, MAX(c) AS m FROM s "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING) AS t");
+    assertFalse(results.isEmpty());
+  }
+
+  @Test
+  public void testNoFieldsRead() throws IOException, InterruptedException {
+    List<String> results = checkPrunedResults(
+        "SELECT COUNT(*) AS n FROM (SELECT a, c FROM s) AS t "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+    assertFalse(results.isEmpty());
+  }
+}
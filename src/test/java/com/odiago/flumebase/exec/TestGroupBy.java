@@ -17,8 +17,10 @@
 
 package com.odiago.flumebase.exec;
 
+import java.io.File;
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -37,6 +39,8 @@ import com.odiago.flumebase.lang.Type;
 import com.odiago.flumebase.parser.SelectStmt;
 import com.odiago.flumebase.parser.TypedField;
 
+import com.odiago.flumebase.plan.InsertCombiners;
+
 import com.odiago.flumebase.testutil.MemStreamBuilder;
 import com.odiago.flumebase.testutil.RtsqlTestCase;
 
@@ -56,7 +60,18 @@ public class TestGroupBy extends RtsqlTestCase {
    */
   private StreamSymbol makeStream(String streamName, String leftColName,
       String rightColName, String [] eventTexts, long [] eventTimestamps) {
+    return makeStream(streamName, leftColName, rightColName, eventTexts, eventTimestamps,
+        InMemStreamSymbol.LatencyPolicy.None);
+  }
+
+  /**
+   * Create a stream as above, which delivers its events according to 'latencyPolicy'.
+   */
+  private StreamSymbol makeStream(String streamName, String leftColName,
+      String rightColName, String [] eventTexts, long [] eventTimestamps,
+      InMemStreamSymbol.LatencyPolicy latencyPolicy) {
     MemStreamBuilder streamBuilder = new MemStreamBuilder(streamName);
+    streamBuilder.setLatencyPolicy(latencyPolicy);
     streamBuilder.addField(new TypedField(leftColName, Type.getPrimitive(Type.TypeName.INT)));
     streamBuilder.addField(new TypedField(rightColName, Type.getNullable(Type.TypeName.INT)));
 
@@ -239,6 +254,47 @@ public class TestGroupBy extends RtsqlTestCase {
     }
   }
 
+  @Test
+  public void testAvg() throws IOException, InterruptedException {
+    // Test the AVG function, including null values which should not be averaged.
+    String [] records = { "0,10", "1,", "2,13", "3,14" };
+    long [] times = { 35, 36, 200, 1150 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT AVG(b) AS c FROM s OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    // We should get the following results: 10, 11 (23/2), 13 (27/2)
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(3, results.size());
+      assertRecordExists(results, "c", Integer.valueOf(10));
+      assertRecordExists(results, "c", Integer.valueOf(11));
+      assertRecordExists(results, "c", Integer.valueOf(13));
+    }
+  }
+
+  @Test
+  public void testApproxAggregates() throws IOException, InterruptedException {
+    // Test the sketch-based approximate aggregate functions.
+    String [] records = { "1,10", "2,20", "1,30", "3,", "2,40" };
+    long [] times = { 35, 36, 37, 38, 39 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT approx_count_distinct(a) AS d, approx_percentile(b, 50) AS m, "
+        + "approx_percentile(b, 100) AS top FROM s OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(1, results.size());
+      assertRecordFields(results, "d", Long.valueOf(3), "m", Double.valueOf(20));
+      assertRecordExists(results, "top", Double.valueOf(40));
+    }
+  }
+
   @Test
   public void testEviction() throws IOException, InterruptedException {
     // Test that older values do roll off the end...
@@ -330,6 +386,234 @@ public class TestGroupBy extends RtsqlTestCase {
     }
   }
 
+  @Test
+  public void testGroupingOnNullableField() throws IOException, InterruptedException {
+    // Null and non-null values of a nullable grouping field form separate groups.
+    String [] records = { "1,", "2,5", "3,", "4,5", "5,6" };
+    long [] times = { 35, 36, 37, 38, 39 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT b, SUM(a) AS c FROM s GROUP BY b OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    // Output should be {b=null,c=4}, {b=5,c=6}, {b=6,c=5} in some order.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(3, results.size());
+      assertRecordExists(results, "c", Integer.valueOf(4));
+      assertRecordFields(results, "b", Integer.valueOf(5), "c", Integer.valueOf(6));
+      assertRecordFields(results, "b", Integer.valueOf(6), "c", Integer.valueOf(5));
+    }
+  }
+
+  @Test
+  public void testSpillToDisk() throws IOException, InterruptedException {
+    // Hold at most two groups' buckets in memory; the rest must be spilled to
+    // disk and merged back in to produce the correct results.
+    String [] records = { "0,1", "1,2", "2,3", "3,4", "0,5", "1,6", "2,7", "3,8", "0,9" };
+    long [] times = { 31, 32, 33, 34, 35, 36, 37, 38, 39 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+    getConf().setLong(BucketedAggregationElement.MAX_RESIDENT_BUCKETS_KEY, 2);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT a, SUM(b) AS c, MAX(b) AS m, approx_count_distinct(b) AS d "
+        + "FROM s GROUP BY a OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(4, results.size());
+      assertRecordFields(results, "a", Integer.valueOf(0), "c", Integer.valueOf(15));
+      assertRecordFields(results, "a", Integer.valueOf(1), "c", Integer.valueOf(8));
+      assertRecordFields(results, "a", Integer.valueOf(2), "m", Integer.valueOf(7));
+      assertRecordFields(results, "a", Integer.valueOf(3), "c", Integer.valueOf(12));
+      assertRecordFields(results, "a", Integer.valueOf(0), "d", Long.valueOf(3));
+    }
+  }
+
+  @Test
+  public void testParallelGrouping() throws IOException, InterruptedException {
+    // Divide the groups between three partitions; each group's result must be
+    // the same as when one thread aggregates them all.
+    String [] records = new String[24];
+    long [] times = new long[24];
+    for (int i = 0; i < 24; i++) {
+      records[i] = (i % 8) + "," + i;
+      times[i] = 31 + (i / 4);
+    }
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+    getConf().setInt(SelectStmt.AGGREGATION_PARALLELISM_KEY, 3);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT a, SUM(b) AS c, COUNT(b) AS n FROM s GROUP BY a "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(8, results.size());
+      for (int a = 0; a < 8; a++) {
+        // Group a holds b = a, a + 8, a + 16.
+        assertRecordFields(results, "a", Integer.valueOf(a), "c", Integer.valueOf(3 * a + 24));
+        assertRecordFields(results, "a", Integer.valueOf(a), "n", Integer.valueOf(3));
+      }
+    }
+  }
+
+  /**
+   * Run 'query' over 2000 events in 16 groups, aggregated by 'parallelism'
+   * threads.
+   * @return the output records as sorted strings.
+   */
+  private List<String> runParallelQuery(String query, int parallelism)
+      throws IOException, InterruptedException {
+    String [] records = new String[2000];
+    long [] times = new long[records.length];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = (i % 16) + "," + i;
+      times[i] = 100 + i;
+    }
+
+    getConf().setInt(SelectStmt.AGGREGATION_PARALLELISM_KEY, parallelism);
+    List<GenericData.Record> results = submitQuery(
+        makeStream("s", "a", "b", records, times), query);
+    assertNotNull(results);
+    List<String> out = new ArrayList<String>();
+    synchronized (results) {
+      for (GenericData.Record record : results) {
+        out.add(record.toString());
+      }
+    }
+    Collections.sort(out);
+    return out;
+  }
+
+  @Test
+  public void testParallelArgumentEvaluation() throws IOException, InterruptedException {
+    // The partitions evaluate the same aggregate argument expressions at
+    // once; the results must match those of a single thread.
+    String query = "SELECT a, SUM(square(b)) AS c, SUM(a + b) AS d, COUNT(b) AS n "
+        + "FROM s GROUP BY a OVER RANGE INTERVAL 1 SECONDS PRECEDING";
+    List<String> parallel = runParallelQuery(query, 4);
+    assertTrue(parallel.size() > 0);
+
+    restartEnvironment();
+    List<String> serial = runParallelQuery(query, 1);
+    assertEquals(serial, parallel);
+  }
+
+  @Test
+  public void testParallelEvaluation() throws IOException, InterruptedException {
+    // Evaluate square() in three threads ahead of the aggregation; the events
+    // may reach it in a different order, but the sums must not change.
+    String [] records = new String[24];
+    long [] times = new long[24];
+    for (int i = 0; i < 24; i++) {
+      records[i] = (i % 4) + "," + i;
+      times[i] = 31 + (i / 4);
+    }
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+    getConf().setInt(SelectStmt.EVALUATION_PARALLELISM_KEY, 3);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT a, SUM(c) AS d FROM (SELECT a, square(b) AS c FROM s) AS q GROUP BY a "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(4, results.size());
+      for (int a = 0; a < 4; a++) {
+        int sum = 0;
+        for (int b = a; b < 24; b += 4) {
+          sum += b * b;
+        }
+        assertRecordFields(results, "a", Integer.valueOf(a), "d", Integer.valueOf(sum));
+      }
+    }
+  }
+
+  @Test
+  public void testContinuousOutput() throws IOException, InterruptedException {
+    // In continuous mode, a group is emitted for every window that spans its
+    // data, not just the windows closing on a bucket it received data in.
+    String [] records = { "0,10", "1,11", "1,9" };
+    long [] times = { 35, 200, 400 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+    getConf().setBoolean("flumebase.aggregation.continuous.output", true);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT a, SUM(b) AS c FROM s GROUP BY a OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      int numZero = 0;
+      int numOne = 0;
+      boolean sawBothOnes = false;
+      for (GenericData.Record record : results) {
+        if (Integer.valueOf(0).equals(record.get("a"))) {
+          assertEquals(Integer.valueOf(10), record.get("c"));
+          numZero++;
+        } else {
+          numOne++;
+          sawBothOnes |= Integer.valueOf(20).equals(record.get("c"));
+        }
+      }
+
+      assertTrue("Expected repeated output for group 0; got " + numZero, numZero > 1);
+      assertTrue("Expected repeated output for group 1; got " + numOne, numOne > 1);
+      assertTrue("Expected a window over both events in group 1", sawBothOnes);
+    }
+  }
+
+  @Test
+  public void testOutOfOrderWithinWatermark() throws IOException, InterruptedException {
+    // An event arriving out of order, but within the watermark's out-of-order
+    // bound, is still counted in the window for its own bucket, even though
+    // a newer event has arrived more than the slack time later.
+    String [] records = { "0,10", "1,11", "2,12" };
+    long [] times = { 35, 1000, 36 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+    getConf().setLong(WatermarkGenerator.MAX_OUT_OF_ORDER_KEY, 5000);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT COUNT(b) AS c FROM s OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    // The window ending at the first bucket sees both of its events.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2, results.size());
+      assertRecordExists(Collections.singletonList(results.get(0)), "c", Integer.valueOf(2));
+      assertRecordExists(Collections.singletonList(results.get(1)), "c", Integer.valueOf(3));
+    }
+  }
+
+  @Test
+  public void testLocalTimeWithinWatermark() throws IOException, InterruptedException {
+    // The window of the first event is due to close by the local clock long
+    // before the last event arrives. That event is within the watermark's
+    // out-of-order bound, so it is still counted in the window.
+    String [] records = { "0,10", "1,11", "2,12" };
+    long [] times = { 1000, 3000, 1000 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times,
+        InMemStreamSymbol.LatencyPolicy.Timestamp);
+    getConf().setLong(WatermarkGenerator.MAX_OUT_OF_ORDER_KEY, 5000);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT COUNT(b) AS c FROM s OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2, results.size());
+      assertRecordExists(Collections.singletonList(results.get(0)), "c", Integer.valueOf(2));
+      assertRecordExists(Collections.singletonList(results.get(1)), "c", Integer.valueOf(1));
+    }
+  }
+
   @Test
   public void testBoundaries1() throws IOException, InterruptedException {
     // COUNT() the values of the 'b' column. Test that this works correctly
@@ -574,4 +858,218 @@ public class TestGroupBy extends RtsqlTestCase {
       assertRecordFields(results, "a", Integer.valueOf(2), "c", Integer.valueOf(3));
     }
   }
+
+  @Test
+  public void testOrderByLimit() throws IOException, InterruptedException {
+    // Emit only the groups with the highest counts in each window, best first.
+    String [] records = { "0,0", "1,1", "1,1", "2,2", "2,2", "2,2" };
+    long [] times = { 31, 32, 33, 34, 35, 36 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT a, COUNT(a) as c FROM s GROUP BY a OVER RANGE INTERVAL 1 SECONDS PRECEDING "
+        + "ORDER BY c DESC LIMIT 2");
+
+    // Output should be {a=2,c=3}, {a=1,c=2}.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2, results.size());
+      assertRecordFields(Collections.singletonList(results.get(0)),
+          "a", Integer.valueOf(2), "c", Integer.valueOf(3));
+      assertRecordFields(Collections.singletonList(results.get(1)),
+          "a", Integer.valueOf(1), "c", Integer.valueOf(2));
+    }
+  }
+
+  @Test
+  public void testOrderByGroupField() throws IOException, InterruptedException {
+    // Rank groups by a GROUP BY field rather than an aggregate.
+    String [] records = { "2,0", "1,1", "0,1", "1,2" };
+    long [] times = { 35, 36, 37, 38 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT a, SUM(b) as c FROM s GROUP BY a OVER RANGE INTERVAL 1 SECONDS PRECEDING "
+        + "ORDER BY a LIMIT 2");
+
+    // Output should be {a=0,c=1}, {a=1,c=3}.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2, results.size());
+      assertRecordFields(Collections.singletonList(results.get(0)),
+          "a", Integer.valueOf(0), "c", Integer.valueOf(1));
+      assertRecordFields(Collections.singletonList(results.get(1)),
+          "a", Integer.valueOf(1), "c", Integer.valueOf(3));
+    }
+  }
+
+  @Test
+  public void testOrderByLimitWithHaving() throws IOException, InterruptedException {
+    // HAVING is applied before LIMIT; this combination is not supported.
+    String [] records = { "0,0" };
+    long [] times = { 1 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    submitQuery(stream,
+        "SELECT a, COUNT(a) as c FROM s GROUP BY a OVER RANGE INTERVAL 1 SECONDS PRECEDING "
+        + "HAVING c > 1 ORDER BY c DESC LIMIT 2", true);
+  }
+
+  @Test
+  public void testOrderByNonGroupField() throws IOException, InterruptedException {
+    // The ordering field must be an aggregate or grouping field.
+    String [] records = { "0,0" };
+    long [] times = { 1 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    submitQuery(stream,
+        "SELECT a, COUNT(a) as c FROM s GROUP BY a OVER RANGE INTERVAL 1 SECONDS PRECEDING "
+        + "ORDER BY b DESC LIMIT 2", true);
+  }
+
+  @Test
+  public void testCheckpointRestore() throws IOException, InterruptedException {
+    // The state of the aggregation is checkpointed when the flow closes, once
+    // its open windows are emitted, and restored when the same query is run
+    // again after a restart. The buckets of the emitted window still count
+    // toward later windows, but the emitted window is not emitted again.
+    File checkpointDir = File.createTempFile("checkpoint-", "");
+    checkpointDir.delete();
+    getConf().set(CheckpointStore.CHECKPOINT_DIR_KEY, checkpointDir.getAbsolutePath());
+    String query = "SELECT a, SUM(b) AS c FROM s GROUP BY a "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING";
+
+    try {
+      String [] records = { "0,10", "1,1" };
+      long [] times = { 31, 32 };
+      List<GenericData.Record> results = submitQuery(
+          makeStream("s", "a", "b", records, times), query);
+      assertNotNull(results);
+      synchronized (results) {
+        assertEquals(2, results.size());
+        assertRecordFields(results, "a", Integer.valueOf(0), "c", Integer.valueOf(10));
+      }
+
+      restartEnvironment();
+
+      String [] moreRecords = { "0,11" };
+      long [] moreTimes = { 45 };
+      results = submitQuery(makeStream("s", "a", "b", moreRecords, moreTimes), query);
+      assertNotNull(results);
+      synchronized (results) {
+        // Group 1 has no new events, so only group 0 is emitted.
+        assertEquals(1, results.size());
+        assertRecordFields(results, "a", Integer.valueOf(0), "c", Integer.valueOf(21));
+      }
+    } finally {
+      for (File f : checkpointDir.listFiles()) {
+        f.delete();
+      }
+      checkpointDir.delete();
+    }
+  }
+
+  /**
+   * Run 'query' over a stream of many events in two groups.
+   * @return the output records, as sorted strings.
+   */
+  private List<String> runManyEventQuery(String query)
+      throws IOException, InterruptedException {
+    String [] records = new String[300];
+    long [] times = new long[records.length];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = (i % 2) + "," + i;
+      times[i] = 100 + i * 7;
+    }
+
+    List<GenericData.Record> results = submitQuery(
+        makeStream("s", "a", "b", records, times), query);
+    assertNotNull(results);
+    List<String> out = new ArrayList<String>();
+    synchronized (results) {
+      for (GenericData.Record record : results) {
+        out.add(record.toString());
+      }
+    }
+    Collections.sort(out);
+    return out;
+  }
+
+  @Test
+  public void testCombiner() throws IOException, InterruptedException {
+    // Events are partially aggregated in the source's thread; the results
+    // must match those of aggregating each event in the aggregator.
+    String query = "SELECT a, COUNT(b) AS c, SUM(b) AS d, MAX(b) AS m FROM s GROUP BY a "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING";
+
+    getSymbolTable().addSymbol(makeStream("s", "a", "b", new String[0], new long[0]));
+    getEnvironment().connect();
+    QuerySubmitResponse response = getEnvironment().submitQuery("EXPLAIN " + query,
+        getQueryOpts());
+    assertTrue(response.getMessage(), response.getMessage().contains("Combiner"));
+    restartEnvironment();
+
+    List<String> combined = runManyEventQuery(query);
+    assertTrue(combined.size() > 0);
+
+    restartEnvironment();
+    getConf().setBoolean(InsertCombiners.COMBINER_ENABLED_KEY, false);
+    List<String> uncombined = runManyEventQuery(query);
+    assertEquals(uncombined, combined);
+  }
+
+  @Test
+  public void testSampleAll() throws IOException, InterruptedException {
+    // Sampling 100 percent of a stream keeps every event.
+    String [] records = { "0,10", "1,11", "2,12" };
+    long [] times = { 35, 36, 200 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT COUNT(b) AS c FROM s SAMPLE 100 PERCENT OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    // We should have two output results: 2 at t=40, 3 at t=200.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2, results.size());
+      assertRecordExists(results, "c", Integer.valueOf(2));
+      assertRecordExists(results, "c", Integer.valueOf(3));
+    }
+  }
+
+  @Test
+  public void testSampleScaling() throws IOException, InterruptedException {
+    // With scaling enabled, counts over a 50 percent sample are doubled.
+    String query = "SELECT COUNT(b) AS c FROM s SAMPLE 50 PERCENT "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING";
+    getConf().setBoolean(SelectStmt.SAMPLE_SCALE_AGGREGATES_KEY, true);
+
+    getSymbolTable().addSymbol(makeStream("s", "a", "b", new String[0], new long[0]));
+    getEnvironment().connect();
+    QuerySubmitResponse response = getEnvironment().submitQuery("EXPLAIN " + query,
+        getQueryOpts());
+    assertTrue(response.getMessage(), response.getMessage().contains("Sample percent=50"));
+    assertTrue(response.getMessage(), response.getMessage().contains("sample scale=2.0"));
+    restartEnvironment();
+
+    List<String> results = runManyEventQuery(query);
+    assertTrue(results.size() > 0);
+    for (String result : results) {
+      int count = Integer.parseInt(result.replaceAll("[^0-9]", ""));
+      assertEquals(result, 0, count % 2);
+    }
+  }
+
+  @Test
+  public void testBadSamplePercent() throws IOException, InterruptedException {
+    StreamSymbol stream = makeStream("s", "a", "b", new String[0], new long[0]);
+    assertNull(submitQuery(stream,
+        "SELECT COUNT(b) AS c FROM s SAMPLE 0 PERCENT OVER RANGE INTERVAL 1 SECONDS PRECEDING",
+        true));
+  }
 }
@@ -17,21 +17,39 @@
 
 package com.odiago.flumebase.exec;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.avro.generic.GenericData;
 
+import org.apache.hadoop.conf.Configuration;
+
 import org.testng.annotations.Test;
 
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
 import com.odiago.flumebase.exec.local.LocalEnvironment;
 import com.odiago.flumebase.exec.local.MemoryOutputElement;
 
+import com.odiago.flumebase.io.DelimitedEventParser;
+
+import com.odiago.flumebase.lang.StreamType;
 import com.odiago.flumebase.lang.Type;
 
+import com.odiago.flumebase.parser.ConstExpr;
+import com.odiago.flumebase.parser.FormatSpec;
+import com.odiago.flumebase.parser.JoinedSource;
+import com.odiago.flumebase.parser.RangeSpec;
 import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.TimeWidth;
 import com.odiago.flumebase.parser.TypedField;
+import com.odiago.flumebase.parser.WindowSpec;
 
 import com.odiago.flumebase.testutil.MemStreamBuilder;
 import com.odiago.flumebase.testutil.RtsqlTestCase;
@@ -60,6 +78,69 @@ public class TestJoin extends RtsqlTestCase {
     return streamBuilder.build();
   }
 
+  /**
+   * Create a table with two columns read from 'file', typed as in makeStream().
+   */
+  private TableSymbol makeTable(String tableName, String leftColName, String rightColName,
+      File file) {
+    List<TypedField> fields = new ArrayList<TypedField>();
+    fields.add(new TypedField(leftColName, Type.getPrimitive(Type.TypeName.INT)));
+    fields.add(new TypedField(rightColName, Type.getNullable(Type.TypeName.INT)));
+    List<Type> types = new ArrayList<Type>();
+    for (TypedField field : fields) {
+      types.add(field.getType());
+    }
+    return new TableSymbol(tableName, new StreamType(types), file.getAbsolutePath(), true,
+        fields, new FormatSpec());
+  }
+
+  /** Write each of 'lines' to a new temporary file. */
+  private File writeTempFile(String... lines) throws IOException {
+    File file = File.createTempFile("table-", ".txt");
+    file.deleteOnExit();
+    FileWriter writer = new FileWriter(file);
+    try {
+      for (String line : lines) {
+        writer.write(line);
+        writer.write("\n");
+      }
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+
+  /** Context which collects the joined events emitted by a join element. */
+  private static class JoinOutputContext extends FlowElementContext {
+    private final List<EventWrapper> mJoined = new ArrayList<EventWrapper>();
+
+    @Override
+    public void emit(EventWrapper e) {
+      if (e instanceof JoinedEventWrapper) {
+        mJoined.add(e);
+      }
+    }
+
+    @Override
+    public void notifyCompletion() {
+    }
+  }
+
+  /** @return an event of stream 'streamName', with text 'body' at 'timestamp'. */
+  private EventWrapper makeEvent(String streamName, List<TypedField> fields, String body,
+      long timestamp) {
+    Event event = new EventImpl(body.getBytes(), timestamp, Event.Priority.INFO, 0, "host");
+    event.set(FlowElement.STREAM_NAME_ATTR, streamName.getBytes());
+    List<String> fieldNames = new ArrayList<String>();
+    for (TypedField field : fields) {
+      fieldNames.add(field.getAvroName());
+    }
+    ParsingEventWrapper wrapper = new ParsingEventWrapper(new DelimitedEventParser(),
+        fieldNames);
+    wrapper.reset(event);
+    return wrapper;
+  }
+
   /**
    * Run the test, where we submit the query to the processing engine.
    * @return The set of output record from the query.
@@ -236,6 +317,159 @@ public class TestJoin extends RtsqlTestCase {
     }
   }
 
+  @Test
+  public void testOffHeapState() throws IOException, InterruptedException {
+    // Run testIgnoreOlderRight with the join windows held off-heap.
+    String [] leftRecords = { "0,10", "1,11", "2,12" };
+    long [] leftTimes = { 5000, 5001, 5002 };
+    String [] rightRecords = { "0,20", "1,21", "2,22" };
+    long [] rightTimes = { 1000, 4999, 5000 };
+
+    StreamSymbol leftStream = makeStream("lt", "a", "b", leftRecords, leftTimes);
+    StreamSymbol rightStream = makeStream("rt", "c", "d", rightRecords, rightTimes);
+    getConf().setBoolean(HashJoinElement.OFF_HEAP_STATE_KEY, true);
+
+    List<GenericData.Record> results = submitQuery(leftStream, rightStream,
+        "SELECT * FROM lt JOIN rt ON a=c OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2, results.size());
+
+      assertRecordFields(results, "a", Integer.valueOf(1), "c", Integer.valueOf(1));
+      assertRecordFields(results, "a", Integer.valueOf(2), "c", Integer.valueOf(2));
+
+      // Fields of events read back from off-heap storage are present.
+      assertRecordFields(results, "a", Integer.valueOf(1), "d", Integer.valueOf(21));
+      assertRecordFields(results, "a", Integer.valueOf(2), "d", Integer.valueOf(22));
+      assertRecordFields(results, "a", Integer.valueOf(2), "b", Integer.valueOf(12));
+    }
+  }
+
+  @Test
+  public void testSparseKeys() throws IOException, InterruptedException {
+    // Most keys appear on only one side; with tiny Bloom filters, some of
+    // these still collide, and must be looked up and rejected by the window.
+    String [] leftRecords = new String[40];
+    long [] leftTimes = new long[40];
+    String [] rightRecords = new String[40];
+    long [] rightTimes = new long[40];
+    for (int i = 0; i < 40; i++) {
+      leftRecords[i] = i + "," + (100 + i);
+      leftTimes[i] = 1000 + i;
+      rightRecords[i] = (i % 10 == 0 ? i : 1000 + i) + "," + (200 + i);
+      rightTimes[i] = 1000 + i;
+    }
+
+    StreamSymbol leftStream = makeStream("lt", "a", "b", leftRecords, leftTimes);
+    StreamSymbol rightStream = makeStream("rt", "c", "d", rightRecords, rightTimes);
+    getConf().setInt(HashJoinElement.BLOOM_FILTER_BITS_KEY, 64);
+
+    List<GenericData.Record> results = submitQuery(leftStream, rightStream,
+        "SELECT * FROM lt JOIN rt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(4, results.size());
+      for (int i = 0; i < 40; i += 10) {
+        assertRecordFields(results, "a", Integer.valueOf(i), "d", Integer.valueOf(200 + i));
+      }
+    }
+  }
+
+  @Test
+  public void testAlternatingArrival() throws IOException, InterruptedException {
+    // The left and right events of each key arrive one after the other, each
+    // followed by its stream's watermark; the first event of each pair must
+    // be held until its partner arrives.
+    TypedField a = new TypedField("a", Type.getPrimitive(Type.TypeName.INT));
+    TypedField b = new TypedField("b", Type.getNullable(Type.TypeName.INT));
+    TypedField c = new TypedField("c", Type.getPrimitive(Type.TypeName.INT));
+    TypedField d = new TypedField("d", Type.getNullable(Type.TypeName.INT));
+    List<TypedField> leftFields = Arrays.asList(a, b);
+    List<TypedField> rightFields = Arrays.asList(c, d);
+    ConstExpr width = new ConstExpr(Type.getPrimitive(Type.TypeName.INT), Integer.valueOf(10));
+    WindowSpec window = new WindowSpec(new RangeSpec(width, TimeWidth.Milliseconds,
+        width, TimeWidth.Milliseconds));
+
+    JoinOutputContext context = new JoinOutputContext();
+    HashJoinElement join = new HashJoinElement(context, "lt", "rt", a, c, window, "out",
+        leftFields, rightFields, new Configuration());
+    join.open();
+    for (int i = 0; i < 10; i++) {
+      long time = 1000 + 20 * i;
+      join.takeEvent(makeEvent("lt", leftFields, i + "," + (100 + i), time));
+      join.takeWatermark(new Watermark(time, "lt"));
+      join.takeEvent(makeEvent("rt", rightFields, i + "," + (200 + i), time + 5));
+      join.takeWatermark(new Watermark(time + 5, "rt"));
+    }
+    join.close();
+
+    assertEquals(10, context.mJoined.size());
+    for (int i = 0; i < 10; i++) {
+      EventWrapper joined = context.mJoined.get(i);
+      assertEquals(Integer.valueOf(i), joined.getField(a));
+      assertEquals(Integer.valueOf(100 + i), joined.getField(b));
+      assertEquals(Integer.valueOf(200 + i), joined.getField(d));
+    }
+  }
+
+  @Test
+  public void testPartitionedJoin() throws IOException, InterruptedException {
+    // Divide the keys between three partitions. Every pair must still be
+    // joined, and the results for each key emitted in order.
+    String [] leftRecords = { "0,10", "1,11", "0,12", "2,13", "0,14", "3,15", "4,16" };
+    long [] leftTimes = { 1000, 1001, 1002, 1003, 1004, 1005, 1006 };
+    String [] rightRecords = { "0,20", "1,21", "2,22", "3,23", "5,25" };
+    long [] rightTimes = { 1000, 1000, 1000, 1000, 1000 };
+
+    StreamSymbol leftStream = makeStream("lt", "a", "b", leftRecords, leftTimes);
+    StreamSymbol rightStream = makeStream("rt", "c", "d", rightRecords, rightTimes);
+    getConf().setInt(JoinedSource.JOIN_PARALLELISM_KEY, 3);
+
+    List<GenericData.Record> results = submitQuery(leftStream, rightStream,
+        "SELECT * FROM lt JOIN rt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(6, results.size());
+      assertRecordFields(results, "b", Integer.valueOf(11), "d", Integer.valueOf(21));
+      assertRecordFields(results, "b", Integer.valueOf(13), "d", Integer.valueOf(22));
+      assertRecordFields(results, "b", Integer.valueOf(15), "d", Integer.valueOf(23));
+
+      List<Integer> keyZero = new ArrayList<Integer>();
+      for (GenericData.Record record : results) {
+        if (Integer.valueOf(0).equals(record.get("a"))) {
+          keyZero.add((Integer) record.get("b"));
+        }
+      }
+      assertEquals(Arrays.asList(10, 12, 14), keyZero);
+    }
+  }
+
+  @Test
+  public void testWhereAfterJoin() throws IOException, InterruptedException {
+    // A WHERE clause over the joined fields is applied by the join itself;
+    // only matching pairs that pass it are output.
+    String [] leftRecords = { "0,10", "1,11", "2,12" };
+    long [] leftTimes = { 5000, 5001, 5002 };
+    String [] rightRecords = { "0,20", "1,21", "2,22" };
+    long [] rightTimes = { 4900, 4901, 4902 };
+
+    StreamSymbol leftStream = makeStream("lt", "a", "b", leftRecords, leftTimes);
+    StreamSymbol rightStream = makeStream("rt", "c", "d", rightRecords, rightTimes);
+
+    List<GenericData.Record> results = submitQuery(leftStream, rightStream,
+        "SELECT * FROM lt JOIN rt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING "
+        + "WHERE d > 20 AND b < 12");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(1, results.size());
+      assertRecordFields(results, "a", Integer.valueOf(1), "d", Integer.valueOf(21));
+    }
+  }
+
   @Test
   public void testIgnoreNewerLeft() throws IOException, InterruptedException {
     // Test that a left-side record that is too new is not used in the join.
@@ -263,4 +497,190 @@ public class TestJoin extends RtsqlTestCase {
       assertRecordFields(results, "a", Integer.valueOf(1), "d", Integer.valueOf(21));
     }
   }
+
+  @Test
+  public void testMultiWayJoin() throws IOException, InterruptedException {
+    // Three streams joined on the same key are joined by a single operator;
+    // each stream is windowed relative to the streams before it.
+    String [] leftRecords = { "0,10", "1,11", "2,12" };
+    long [] leftTimes = { 5000, 5001, 5002 };
+    String [] midRecords = { "0,20", "1,21", "2,22" };
+    long [] midTimes = { 4900, 4950, 70000 };
+    String [] rightRecords = { "0,30", "1,31", "1,32", "2,32" };
+    long [] rightTimes = { 4990, 4998, 4999, 5000 };
+
+    getSymbolTable().addSymbol(makeStream("mt", "c", "d", midRecords, midTimes));
+    List<GenericData.Record> results = submitQuery(
+        makeStream("lt", "a", "b", leftRecords, leftTimes),
+        makeStream("rt", "e", "f", rightRecords, rightTimes),
+        "SELECT * FROM lt JOIN mt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING "
+        + "JOIN rt ON c=e OVER RANGE INTERVAL 1 MINUTES PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(3, results.size());
+
+      assertRecordFields(results, "f", Integer.valueOf(30), "a", Integer.valueOf(0));
+      assertRecordFields(results, "f", Integer.valueOf(30), "d", Integer.valueOf(20));
+      assertRecordFields(results, "f", Integer.valueOf(31), "b", Integer.valueOf(11));
+      assertRecordFields(results, "f", Integer.valueOf(31), "d", Integer.valueOf(21));
+      assertRecordFields(results, "f", Integer.valueOf(32), "b", Integer.valueOf(11));
+      assertRecordFields(results, "f", Integer.valueOf(32), "d", Integer.valueOf(21));
+    }
+  }
+
+  @Test
+  public void testMultiWayJoinPairwiseWindows() throws IOException, InterruptedException {
+    // The third stream is windowed relative to the later of the events of the
+    // first two, as it would be by nested joins, rather than to the first.
+    String [] leftRecords = { "0,10", "1,11" };
+    long [] leftTimes = { 5000, 5000 };
+    String [] midRecords = { "0,20", "1,21" };
+    long [] midTimes = { 5900, 5900 };
+    String [] rightRecords = { "0,30", "1,31" };
+    long [] rightTimes = { 5500, 4800 };
+
+    getSymbolTable().addSymbol(makeStream("mt", "c", "d", midRecords, midTimes));
+    List<GenericData.Record> results = submitQuery(
+        makeStream("lt", "a", "b", leftRecords, leftTimes),
+        makeStream("rt", "e", "f", rightRecords, rightTimes),
+        "SELECT * FROM lt JOIN mt ON a=c OVER RANGE BETWEEN INTERVAL 0 SECONDS PRECEDING "
+        + "AND INTERVAL 1 SECONDS FOLLOWING "
+        + "JOIN rt ON c=e OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(1, results.size());
+      assertRecordFields(results, "f", Integer.valueOf(30), "d", Integer.valueOf(20));
+    }
+  }
+
+  @Test
+  public void testMultiWayJoinWhere() throws IOException, InterruptedException {
+    String [] leftRecords = { "0,10", "1,11" };
+    long [] leftTimes = { 5000, 5001 };
+    String [] midRecords = { "0,20", "1,21" };
+    long [] midTimes = { 5000, 5001 };
+    String [] rightRecords = { "0,30", "1,31", "1,32" };
+    long [] rightTimes = { 5000, 5001, 5001 };
+
+    getSymbolTable().addSymbol(makeStream("mt", "c", "d", midRecords, midTimes));
+    List<GenericData.Record> results = submitQuery(
+        makeStream("lt", "a", "b", leftRecords, leftTimes),
+        makeStream("rt", "e", "f", rightRecords, rightTimes),
+        "SELECT * FROM lt JOIN mt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING "
+        + "JOIN rt ON e=a OVER RANGE INTERVAL 1 MINUTES PRECEDING WHERE f > 30 AND d < 22");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2, results.size());
+      assertRecordFields(results, "f", Integer.valueOf(31), "a", Integer.valueOf(1));
+      assertRecordFields(results, "f", Integer.valueOf(32), "a", Integer.valueOf(1));
+    }
+  }
+
+  @Test
+  public void testMixedKeyJoinChain() throws IOException, InterruptedException {
+    // Joins on different keys are still performed as nested two-way joins.
+    String [] leftRecords = { "0,10", "1,11" };
+    long [] leftTimes = { 5000, 5000 };
+    String [] midRecords = { "0,20", "1,21" };
+    long [] midTimes = { 5000, 5000 };
+    String [] rightRecords = { "20,30", "0,31" };
+    long [] rightTimes = { 5000, 5000 };
+
+    getSymbolTable().addSymbol(makeStream("mt", "c", "d", midRecords, midTimes));
+    List<GenericData.Record> results = submitQuery(
+        makeStream("lt", "a", "b", leftRecords, leftTimes),
+        makeStream("rt", "e", "f", rightRecords, rightTimes),
+        "SELECT * FROM lt JOIN mt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING "
+        + "JOIN rt ON d=e OVER RANGE INTERVAL 1 MINUTES PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(1, results.size());
+      assertRecordFields(results, "a", Integer.valueOf(0), "f", Integer.valueOf(30));
+    }
+  }
+
+  @Test
+  public void testTableLookupJoin() throws IOException, InterruptedException {
+    // Each event is joined with every row of the table that has its key,
+    // regardless of the events' timestamps.
+    File tableFile = writeTempFile("0,100", "1,101", "1,111", "3,103");
+    try {
+      String [] records = { "0,10", "1,11", "2,12" };
+      long [] times = { 1000, 500000, 900000 };
+
+      getSymbolTable().addSymbol(makeTable("tbl", "g", "h", tableFile));
+      getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testJoin");
+      LocalEnvironment env = getEnvironment();
+      env.connect();
+
+      // Tables may only be looked up by a JOIN, which takes no window.
+      getSymbolTable().addSymbol(makeStream("lt", "a", "b", records, times));
+      assertNull(env.submitQuery("SELECT * FROM tbl", getQueryOpts()).getFlowId());
+      assertNull(env.submitQuery("SELECT * FROM tbl JOIN lt ON a=g",
+          getQueryOpts()).getFlowId());
+      assertNull(env.submitQuery("SELECT * FROM lt JOIN tbl ON a=g "
+          + "OVER RANGE INTERVAL 1 MINUTES PRECEDING", getQueryOpts()).getFlowId());
+
+      QuerySubmitResponse response = env.submitQuery(
+          "SELECT * FROM lt JOIN tbl ON a=g WHERE h < 110", getQueryOpts());
+      FlowId id = response.getFlowId();
+      assertNotNull(response.getMessage(), id);
+      joinFlow(id);
+
+      List<GenericData.Record> results = getOutput("testJoin").getRecords();
+      synchronized (results) {
+        assertEquals(2, results.size());
+        assertRecordFields(results, "h", Integer.valueOf(100), "b", Integer.valueOf(10));
+        assertRecordFields(results, "h", Integer.valueOf(101), "b", Integer.valueOf(11));
+      }
+    } finally {
+      tableFile.delete();
+    }
+  }
+
+  @Test
+  public void testCheckpointRestore() throws IOException, InterruptedException {
+    // Events held in the join window when the flow closes are checkpointed,
+    // and join with events that arrive after the query is restarted.
+    File checkpointDir = File.createTempFile("checkpoint-", "");
+    checkpointDir.delete();
+    getConf().set(CheckpointStore.CHECKPOINT_DIR_KEY, checkpointDir.getAbsolutePath());
+    String query = "SELECT * FROM lt JOIN rt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING";
+    String [] noRecords = { };
+    long [] noTimes = { };
+
+    try {
+      String [] rightRecords = { "0,20", "1,21" };
+      long [] rightTimes = { 31, 32 };
+      List<GenericData.Record> results = submitQuery(
+          makeStream("lt", "a", "b", noRecords, noTimes),
+          makeStream("rt", "c", "d", rightRecords, rightTimes), query);
+      assertNotNull(results);
+      synchronized (results) {
+        assertEquals(0, results.size());
+      }
+
+      restartEnvironment();
+
+      String [] leftRecords = { "0,10" };
+      long [] leftTimes = { 33 };
+      results = submitQuery(makeStream("lt", "a", "b", leftRecords, leftTimes),
+          makeStream("rt", "c", "d", noRecords, noTimes), query);
+      assertNotNull(results);
+      synchronized (results) {
+        assertEquals(1, results.size());
+        assertRecordFields(results, "a", Integer.valueOf(0), "b", Integer.valueOf(10));
+        assertRecordFields(results, "a", Integer.valueOf(0), "d", Integer.valueOf(20));
+      }
+    } finally {
+      for (File f : checkpointDir.listFiles()) {
+        f.delete();
+      }
+      checkpointDir.delete();
+    }
+  }
 }
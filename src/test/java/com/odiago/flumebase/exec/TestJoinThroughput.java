@@ -0,0 +1,123 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.List;
+
+import org.apache.avro.generic.GenericData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.local.LocalEnvironment;
+import com.odiago.flumebase.exec.local.MemoryOutputElement;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.JoinedSource;
+import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.testutil.MemStreamBuilder;
+import com.odiago.flumebase.testutil.RtsqlTestCase;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test the throughput of a join between two streams, with its keys divided
+ * between varying numbers of partitions. As with TestThroughput, the test
+ * fails only if the wrong number of records is output; the measurements
+ * written to the test output are the point of the exercise.
+ */
+public class TestJoinThroughput extends RtsqlTestCase {
+
+  private static final Logger LOG = LoggerFactory.getLogger(
+      TestJoinThroughput.class.getName());
+
+  /** Number of records in each stream. */
+  private static final int NUM_RECORDS = 100000;
+
+  /** Number of records in each millisecond of each stream's event time. */
+  private static final int RECORDS_PER_MILLI = 100;
+
+  /**
+   * Create a stream of NUM_RECORDS events, whose timestamps advance at
+   * 100,000 events per second. The event with index i has key i.
+   */
+  private StreamSymbol makeStream(String streamName, String keyCol, String valCol) {
+    MemStreamBuilder streamBuilder = new MemStreamBuilder(streamName);
+    streamBuilder.addField(new TypedField(keyCol, Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.addField(new TypedField(valCol, Type.getNullable(Type.TypeName.INT)));
+    for (int i = 0; i < NUM_RECORDS; i++) {
+      streamBuilder.addEvent(i + "," + i, 1000 + i / RECORDS_PER_MILLI);
+    }
+
+    return streamBuilder.build();
+  }
+
+  /**
+   * Join two identical streams, with the join's keys divided between
+   * 'parallelism' partitions, and report the time taken.
+   */
+  private void runJoinThroughputTest(int parallelism) throws IOException, InterruptedException {
+    getSymbolTable().addSymbol(makeStream("lt", "a", "b"));
+    getSymbolTable().addSymbol(makeStream("rt", "c", "d"));
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testJoinThroughput");
+    getConf().setInt(JoinedSource.JOIN_PARALLELISM_KEY, parallelism);
+
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+
+    // Each left event joins with the right event with the same index; the
+    // window holds a second, or 100,000 events, of each stream.
+    String query = "SELECT a, b, d FROM lt JOIN rt ON a = c "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING";
+    long startTimestamp = System.currentTimeMillis();
+    QuerySubmitResponse response = env.submitQuery(query, getQueryOpts());
+    FlowId id = response.getFlowId();
+    assertNotNull(response.getMessage(), id);
+    joinFlow(id);
+    long stopTimestamp = System.currentTimeMillis();
+
+    MemoryOutputElement output = getOutput("testJoinThroughput");
+    assertNotNull(output);
+    List<GenericData.Record> outRecords = output.getRecords();
+    assertNotNull(outRecords);
+    assertEquals("Improper number of records!", NUM_RECORDS, outRecords.size());
+
+    long runTime = Math.max(1, stopTimestamp - startTimestamp);
+    LOG.info("Query: " + query);
+    LOG.info("Partitions: " + parallelism);
+    LOG.info("Run time: " + runTime);
+    LOG.info("Input events per second: " + (2L * NUM_RECORDS * 1000) / runTime);
+  }
+
+  @Test(groups = { "slow" })
+  public void testOnePartition() throws IOException, InterruptedException {
+    runJoinThroughputTest(1);
+  }
+
+  @Test(groups = { "slow" })
+  public void testFourPartitions() throws IOException, InterruptedException {
+    runJoinThroughputTest(4);
+  }
+}
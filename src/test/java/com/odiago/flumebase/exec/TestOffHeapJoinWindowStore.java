@@ -0,0 +1,147 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.testng.annotations.Test;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that the OffHeapJoinWindowStore returns the events held in a time
+ * range, and evicts them and recycles its memory as the window slides.
+ */
+public class TestOffHeapJoinWindowStore {
+  private static final TypedField FIELD =
+      new TypedField("x", Type.getPrimitive(Type.TypeName.INT));
+
+  private OffHeapJoinWindowStore makeStore(int segmentSize) {
+    Configuration conf = new Configuration();
+    conf.setInt(OffHeapJoinWindowStore.SEGMENT_SIZE_KEY, segmentSize);
+    return new OffHeapJoinWindowStore(Collections.singletonList(FIELD), conf);
+  }
+
+  private void put(JoinWindowStore store, Object key, int value, long timestamp)
+      throws IOException {
+    Event event = new EventImpl(new byte[0], timestamp, Event.Priority.INFO, 0, "host");
+    Map<String, Object> values = Collections.singletonMap(FIELD.getAvroName(),
+        (Object) Integer.valueOf(value));
+    store.put(key, new RestoredEventWrapper(event, values), timestamp);
+  }
+
+  private List<Object> values(List<EventWrapper> events) throws IOException {
+    List<Object> out = new ArrayList<Object>();
+    for (EventWrapper e : events) {
+      out.add(e.getField(FIELD));
+    }
+    return out;
+  }
+
+  @Test
+  public void testRangeAndEviction() throws IOException {
+    OffHeapJoinWindowStore store = makeStore(4096);
+    put(store, "foo", 1, 1000);
+    put(store, "bar", 10, 1500);
+    put(store, "foo", 2, 2000);
+    put(store, "foo", 3, 3000);
+
+    assertEquals(2, store.size());
+    List<EventWrapper> events = store.getRange("foo", 1000, 3000, true, false);
+    assertEquals(2, events.size());
+    assertEquals(Integer.valueOf(2), events.get(0).getField(FIELD));
+    assertEquals(Integer.valueOf(3), events.get(1).getField(FIELD));
+    assertEquals(2000, events.get(0).getEvent().getTimestamp());
+
+    events = store.getRange("foo", 1000, 3000, false, true);
+    assertEquals(2, events.size());
+    assertEquals(Integer.valueOf(1), events.get(0).getField(FIELD));
+    assertEquals(0, store.getRange("baz", 0, 5000, false, false).size());
+
+    Set<Object> removedKeys = new HashSet<Object>();
+    store.removeOlderThan(1800, removedKeys);
+    assertEquals(2, removedKeys.size());
+    assertEquals(1, store.size());
+    assertEquals(Long.valueOf(2000), store.oldestTimestamp());
+    assertNull(store.get("bar"));
+    assertEquals(2, store.get("foo").size());
+    List<Object> keys = new ArrayList<Object>(store.keys());
+    assertEquals(1, keys.size());
+    assertEquals("foo", keys.get(0).toString());
+
+    // Keys removed entirely may be added again.
+    put(store, "bar", 11, 3500);
+    assertEquals(Collections.singletonList((Object) Integer.valueOf(11)),
+        values(store.getRange("bar", 0, 5000, false, false)));
+
+    store.removeOlderThan(4000, null);
+    assertEquals(0, store.size());
+    assertNull(store.oldestTimestamp());
+    store.close();
+  }
+
+  @Test
+  public void testOutOfOrderHidden() throws IOException {
+    // A record that arrives out of order is hidden once its time is removed,
+    // even though it cannot yet be evicted.
+    OffHeapJoinWindowStore store = makeStore(4096);
+    put(store, "foo", 1, 2000);
+    put(store, "foo", 2, 1000);
+    store.removeOlderThan(1500, null);
+    assertEquals(Collections.singletonList((Object) Integer.valueOf(1)),
+        values(store.getRange("foo", 0, 5000, false, false)));
+    assertEquals(1, store.get("foo").size());
+  }
+
+  @Test
+  public void testSegmentRecycling() throws IOException {
+    // Slide a window over many keys and records with small segments; the
+    // memory held should stay bounded, and probes should stay correct.
+    OffHeapJoinWindowStore store = makeStore(512);
+    long maxAllocated = 0;
+    for (int i = 0; i < 20000; i++) {
+      put(store, Integer.valueOf(i % 3000), i, i);
+      store.removeOlderThan(i - 2999, null);
+      if (i == 5000) {
+        maxAllocated = store.getAllocatedBytes();
+      }
+    }
+
+    assertEquals(3000, store.size());
+    assertTrue(store.getAllocatedBytes() <= maxAllocated);
+    assertEquals(Collections.singletonList((Object) Integer.valueOf(19999)),
+        values(store.getRange(Integer.valueOf(19999 % 3000), 0, 20000, false, false)));
+    assertEquals(0, store.getRange(Integer.valueOf(0), 0, 17999, false, false).size());
+  }
+}
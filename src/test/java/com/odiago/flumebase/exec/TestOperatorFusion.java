@@ -0,0 +1,142 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.avro.generic.GenericData;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.local.LocalEnvironment;
+import com.odiago.flumebase.exec.local.MemoryOutputElement;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.FuseOperators;
+
+import com.odiago.flumebase.testutil.MemStreamBuilder;
+import com.odiago.flumebase.testutil.RtsqlTestCase;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that chains of filters, evaluations and projections run as a single
+ * fused FlowElement give the same results as running each separately.
+ */
+public class TestOperatorFusion extends RtsqlTestCase {
+
+  /** Define stream 's', holding a few events with null and string fields. */
+  private void addStream() {
+    MemStreamBuilder streamBuilder = new MemStreamBuilder("s");
+    streamBuilder.addField(new TypedField("a", Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.addField(new TypedField("b", Type.getNullable(Type.TypeName.INT)));
+    streamBuilder.addField(new TypedField("c", Type.getPrimitive(Type.TypeName.STRING)));
+    streamBuilder.addEvent("1,10,one");
+    streamBuilder.addEvent("2,,two");
+    streamBuilder.addEvent("3,30,three");
+    streamBuilder.addEvent("4,40,four");
+    streamBuilder.addEvent("5,,five");
+    getSymbolTable().addSymbol(streamBuilder.build());
+  }
+
+  /** @return the plan explained for 'query'. */
+  private String explain(String query) throws IOException, InterruptedException {
+    addStream();
+    getEnvironment().connect();
+    QuerySubmitResponse response = getEnvironment().submitQuery("EXPLAIN " + query,
+        getQueryOpts());
+    return response.getMessage();
+  }
+
+  /** Run 'query' over stream 's', and return its output records as sorted strings. */
+  private List<String> runQuery(String query) throws IOException, InterruptedException {
+    addStream();
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testFusion");
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+
+    QuerySubmitResponse response = env.submitQuery(query, getQueryOpts());
+    FlowId id = response.getFlowId();
+    assertNotNull(response.getMessage(), id);
+    joinFlow(id);
+
+    MemoryOutputElement output = getOutput("testFusion");
+    assertNotNull(output);
+    List<GenericData.Record> records = output.getRecords();
+    List<String> out = new ArrayList<String>();
+    synchronized (records) {
+      for (GenericData.Record record : records) {
+        out.add(record.toString());
+      }
+    }
+    Collections.sort(out);
+    return out;
+  }
+
+  /** Check that 'query' gives the same results with and without fusion. */
+  private List<String> checkFusedResults(String query)
+      throws IOException, InterruptedException {
+    List<String> fused = runQuery(query);
+    restartEnvironment();
+    getConf().setBoolean(FuseOperators.FUSION_ENABLED_KEY, false);
+    List<String> unfused = runQuery(query);
+    assertEquals(unfused, fused);
+    return fused;
+  }
+
+  @Test
+  public void testExplainShowsFusion() throws IOException, InterruptedException {
+    String msg = explain("SELECT a + 1 AS x, c FROM s WHERE a > 1");
+    assertTrue(msg, msg.contains("Fused"));
+  }
+
+  @Test
+  public void testFusionDisabled() throws IOException, InterruptedException {
+    getConf().setBoolean(FuseOperators.FUSION_ENABLED_KEY, false);
+    String msg = explain("SELECT a + 1 AS x, c FROM s WHERE a > 1");
+    assertFalse(msg, msg.contains("Fused"));
+  }
+
+  @Test
+  public void testFilterEvalProject() throws IOException, InterruptedException {
+    List<String> results = checkFusedResults(
+        "SELECT a + 1 AS x, length(c) AS d FROM s WHERE a > 1");
+    assertEquals(4, results.size());
+  }
+
+  @Test
+  public void testNullsInComputedFields() throws IOException, InterruptedException {
+    // a + b is null where b is null.
+    List<String> results = checkFusedResults("SELECT a, a + b AS x FROM s WHERE a != 3");
+    assertEquals(4, results.size());
+  }
+
+  @Test
+  public void testHavingAfterProjection() throws IOException, InterruptedException {
+    List<String> results = checkFusedResults("SELECT a, b FROM s WHERE a > 1 HAVING b > 30");
+    assertEquals(1, results.size());
+  }
+}
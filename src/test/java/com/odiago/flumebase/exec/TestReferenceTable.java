@@ -0,0 +1,106 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.lang.StreamType;
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.FormatSpec;
+import com.odiago.flumebase.parser.TypedField;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that a ReferenceTable indexes the rows of its file, and picks up
+ * changes to the file in the background.
+ */
+public class TestReferenceTable {
+
+  private void writeFile(File file, String... lines) throws IOException {
+    FileWriter writer = new FileWriter(file);
+    try {
+      for (String line : lines) {
+        writer.write(line);
+        writer.write("\n");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private ReferenceTable makeTable(File file, long refreshInterval) {
+    List<TypedField> fields = new ArrayList<TypedField>();
+    fields.add(new TypedField("k", Type.getPrimitive(Type.TypeName.INT)));
+    fields.add(new TypedField("v", Type.getNullable(Type.TypeName.INT)));
+    List<Type> types = new ArrayList<Type>();
+    for (TypedField field : fields) {
+      types.add(field.getType());
+    }
+    TableSymbol table = new TableSymbol("tbl", new StreamType(types),
+        file.getAbsolutePath(), true, fields, new FormatSpec());
+    return new ReferenceTable(table, fields, fields.get(0), new Configuration(),
+        refreshInterval);
+  }
+
+  @Test
+  public void testLookup() throws IOException {
+    File file = File.createTempFile("table-", ".txt");
+    file.deleteOnExit();
+    writeFile(file, "1,10", "1,11", "2,20");
+
+    ReferenceTable table = makeTable(file, -1);
+    table.load();
+    assertEquals(2, table.size());
+    assertEquals(2, table.lookup(Integer.valueOf(1)).size());
+    assertEquals(0, table.lookup(Integer.valueOf(3)).size());
+    file.delete();
+  }
+
+  @Test(timeOut = 60000)
+  public void testBackgroundRefresh() throws IOException, InterruptedException {
+    File file = File.createTempFile("table-", ".txt");
+    file.deleteOnExit();
+    writeFile(file, "1,10");
+
+    ReferenceTable table = makeTable(file, 10);
+    table.load();
+    table.startRefresh();
+    try {
+      // The new row is indexed without any lookup prompting a check.
+      writeFile(file, "1,10", "3,30");
+      while (table.size() < 2) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, table.lookup(Integer.valueOf(3)).size());
+    } finally {
+      table.stopRefresh();
+      file.delete();
+    }
+  }
+}
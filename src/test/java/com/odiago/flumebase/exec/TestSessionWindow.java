@@ -0,0 +1,252 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.List;
+
+import org.apache.avro.generic.GenericData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.local.LocalEnvironment;
+import com.odiago.flumebase.exec.local.MemoryOutputElement;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.testutil.MemStreamBuilder;
+import com.odiago.flumebase.testutil.RtsqlTestCase;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that aggregation over SESSION windows groups events separated by
+ * less than the gap interval, and merges sessions bridged by late events.
+ */
+public class TestSessionWindow extends RtsqlTestCase {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      TestSessionWindow.class.getName());
+
+  /**
+   * Create a stream with two columns which have configurable names. The first column
+   * is of type "INT NOT NULL," the second column is of type "INT".
+   */
+  private StreamSymbol makeStream(String streamName, String leftColName,
+      String rightColName, String [] eventTexts, long [] eventTimestamps) {
+    return makeStream(streamName, leftColName, rightColName, eventTexts, eventTimestamps,
+        InMemStreamSymbol.LatencyPolicy.None);
+  }
+
+  /**
+   * Create a stream as above, which delivers its events according to 'latencyPolicy'.
+   */
+  private StreamSymbol makeStream(String streamName, String leftColName,
+      String rightColName, String [] eventTexts, long [] eventTimestamps,
+      InMemStreamSymbol.LatencyPolicy latencyPolicy) {
+    MemStreamBuilder streamBuilder = new MemStreamBuilder(streamName);
+    streamBuilder.setLatencyPolicy(latencyPolicy);
+    streamBuilder.addField(new TypedField(leftColName, Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.addField(new TypedField(rightColName, Type.getNullable(Type.TypeName.INT)));
+
+    for (int i = 0; i < eventTexts.length; i++) {
+      streamBuilder.addEvent(eventTexts[i], eventTimestamps[i]);
+    }
+
+    return streamBuilder.build();
+  }
+
+  /**
+   * Run the test, where we submit the query to the processing engine.
+   * @return The set of output record from the query.
+   */
+  private List<GenericData.Record> submitQuery(StreamSymbol stream,
+      String query) throws IOException, InterruptedException {
+    return submitQuery(stream, query, false);
+  }
+
+  /**
+   * Run the test, where we submit the query to the processing engine.
+   * If expectFailure is true, this will throw an IOException if we
+   * successfully submitted the query.
+   * @return The set of output record from the query.
+   */
+  private List<GenericData.Record> submitQuery(StreamSymbol stream,
+      String query, boolean expectFailure) throws IOException, InterruptedException {
+
+    getSymbolTable().addSymbol(stream);
+
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testSessionWindow");
+
+    // With all configuration complete, connect to the environment.
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+
+    // Run the query.
+    QuerySubmitResponse response = env.submitQuery(query, getQueryOpts());
+    FlowId id = response.getFlowId();
+    if (expectFailure) {
+      if (null == id) {
+        // Our work here is done: we expected submission of the query to fail,
+        // and it did. Return null for results.
+        return null;
+      } else {
+        throw new IOException("Expected query submission failure for [" + query
+            + "], but we got a flow back.");
+      }
+    } else {
+      // We expect this to successfully provide us with a flow id.
+      assertNotNull(response.getMessage(), id);
+    }
+
+    joinFlow(id);
+
+    // Examine the response records.
+    MemoryOutputElement output = getOutput("testSessionWindow");
+    assertNotNull(output);
+
+    return output.getRecords();
+  }
+
+  @Test
+  public void testGapSplitsSessions() throws IOException, InterruptedException {
+    String [] records = { "0,10", "1,11", "2,12", "3,13" };
+    long [] times = { 0, 100, 200, 5000 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT COUNT(b) AS c, SUM(b) AS t FROM s OVER SESSION INTERVAL 1 SECONDS");
+
+    // The first three events form one session; the last is a session by itself.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2, results.size());
+      assertRecordFields(results, "c", Integer.valueOf(3), "t", Integer.valueOf(33));
+      assertRecordFields(results, "c", Integer.valueOf(1), "t", Integer.valueOf(13));
+    }
+  }
+
+  @Test
+  public void testSessionPerGroup() throws IOException, InterruptedException {
+    String [] records = { "1,1", "2,1", "1,1", "2,1", "1,1" };
+    long [] times = { 0, 100, 800, 1500, 1600 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT a, COUNT(b) AS c FROM s GROUP BY a OVER SESSION INTERVAL 1 SECONDS");
+
+    // Group 1 has a single session of three events; group 2's events are more
+    // than one second apart, so they form two sessions.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(3, results.size());
+      assertRecordFields(results, "a", Integer.valueOf(1), "c", Integer.valueOf(3));
+      assertRecordFields(results, "a", Integer.valueOf(2), "c", Integer.valueOf(1));
+    }
+  }
+
+  @Test
+  public void testLateEventMergesSessions() throws IOException, InterruptedException {
+    String [] records = { "0,1", "1,1", "2,1" };
+    long [] times = { 0, 1800, 900 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    // Allow the event at t=900 to arrive late; it bridges the two sessions.
+    getConf().set(BucketedAggregationElement.SLACK_INTERVAL_KEY, "2000");
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT COUNT(b) AS c FROM s OVER win WINDOW win AS (SESSION INTERVAL 1 SECONDS)");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(1, results.size());
+      assertRecordExists(results, "c", Integer.valueOf(3));
+    }
+  }
+
+  @Test
+  public void testLocalTimeWithinWatermark() throws IOException, InterruptedException {
+    // The session of the first event is due to close by the local clock long
+    // before the last event arrives. That event is within the watermark's
+    // out-of-order bound, so it still joins the session.
+    String [] records = { "0,1", "1,1", "2,1" };
+    long [] times = { 1000, 3000, 1500 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times,
+        InMemStreamSymbol.LatencyPolicy.Timestamp);
+    getConf().setLong(WatermarkGenerator.MAX_OUT_OF_ORDER_KEY, 5000);
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT COUNT(b) AS c, MIN(a) AS m FROM s OVER SESSION INTERVAL 1 SECONDS");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2, results.size());
+      assertRecordFields(results, "m", Integer.valueOf(0), "c", Integer.valueOf(2));
+      assertRecordFields(results, "m", Integer.valueOf(1), "c", Integer.valueOf(1));
+    }
+  }
+
+  @Test
+  public void testCheckpointRestore() throws IOException, InterruptedException {
+    // Sessions are emitted when the flow closes, and the state left after
+    // that is checkpointed; after a restart, events behind the restored
+    // watermark are dropped rather than opening sessions that were emitted.
+    File checkpointDir = File.createTempFile("checkpoint-", "");
+    checkpointDir.delete();
+    getConf().set(CheckpointStore.CHECKPOINT_DIR_KEY, checkpointDir.getAbsolutePath());
+    getConf().set(CheckpointStore.CHECKPOINT_INTERVAL_KEY, "0");
+    String query = "SELECT a, COUNT(b) AS c FROM s GROUP BY a OVER SESSION INTERVAL 1 SECONDS";
+
+    try {
+      String [] records = { "1,1", "1,1" };
+      long [] times = { 1000, 1500 };
+      List<GenericData.Record> results = submitQuery(
+          makeStream("s", "a", "b", records, times), query);
+      assertNotNull(results);
+      synchronized (results) {
+        assertEquals(1, results.size());
+        assertRecordExists(results, "c", Integer.valueOf(2));
+      }
+
+      restartEnvironment();
+
+      String [] moreRecords = { "1,1", "1,1" };
+      long [] moreTimes = { 1100, 5000 };
+      results = submitQuery(makeStream("s", "a", "b", moreRecords, moreTimes), query);
+      assertNotNull(results);
+      synchronized (results) {
+        assertEquals(1, results.size());
+        assertRecordExists(results, "c", Integer.valueOf(1));
+      }
+    } finally {
+      for (File f : checkpointDir.listFiles()) {
+        f.delete();
+      }
+      checkpointDir.delete();
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import org.testng.annotations.Test;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that the WatermarkGenerator trails the newest event by the
+ * out-of-order bound, and only reports progress at the configured interval.
+ */
+public class TestWatermarkGenerator {
+
+  private Watermark observe(WatermarkGenerator generator, long timestamp) {
+    Event event = new EventImpl(new byte[0], timestamp, Event.Priority.INFO, 0, "host");
+    EventWrapper wrapper = new EmptyEventWrapper();
+    wrapper.reset(event);
+    return generator.observe(wrapper);
+  }
+
+  @Test
+  public void testBoundedOutOfOrder() {
+    WatermarkGenerator generator = new WatermarkGenerator(100, 10);
+
+    Watermark watermark = observe(generator, 1000);
+    assertNotNull(watermark);
+    assertEquals(900, watermark.getTime());
+
+    // Neither an older event nor a small advance produces a watermark.
+    assertNull(observe(generator, 950));
+    assertNull(observe(generator, 1005));
+
+    watermark = observe(generator, 1010);
+    assertNotNull(watermark);
+    assertEquals(910, watermark.getTime());
+
+    // The watermark never regresses.
+    assertNull(observe(generator, 500));
+    assertEquals(910, generator.getLastWatermark());
+  }
+}
@@ -147,4 +147,40 @@ public class TestWhere extends RtsqlTestCase {
     }
   }
 
+  @Test
+  public void testGuardedDivision() throws IOException, InterruptedException {
+    // 'b != 0' rarely rejects an event, and 'a / b > 1' usually does, so the
+    // filter would prefer to evaluate the division first. It must not, as
+    // the first conjunct guards it against division by zero.
+    MemStreamBuilder streamBuilder = new MemStreamBuilder("memstream");
+    streamBuilder.addField(new TypedField("a", Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.addField(new TypedField("b", Type.getPrimitive(Type.TypeName.INT)));
+    int expected = 0;
+    for (int i = 0; i < 3000; i++) {
+      int a = (i % 10 == 0) ? 2 : 1;
+      int b = (i % 100 == 50) ? 0 : 1;
+      streamBuilder.addEvent(a + "," + b);
+      if (b != 0 && a / b > 1) {
+        expected++;
+      }
+    }
+    getSymbolTable().addSymbol(streamBuilder.build());
+
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testSelect");
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+
+    QuerySubmitResponse response = env.submitQuery(
+        "SELECT a FROM memstream WHERE b != 0 AND a / b > 1", getQueryOpts());
+    FlowId id = response.getFlowId();
+    assertNotNull(response.getMessage(), id);
+    joinFlow(id);
+
+    MemoryOutputElement output = getOutput("testSelect");
+    assertNotNull(output);
+    List<GenericData.Record> outRecords = output.getRecords();
+    synchronized (outRecords) {
+      assertEquals(expected, outRecords.size());
+    }
+  }
 }
@@ -0,0 +1,182 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.testng.annotations.Test;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+import com.odiago.flumebase.exec.EmptyEventWrapper;
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.Watermark;
+import com.odiago.flumebase.exec.WatermarkGenerator;
+
+import com.odiago.flumebase.util.concurrent.ArrayBoundedSelectableQueue;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that the load shedding policies drop the events we expect when
+ * a source's queue is full.
+ */
+public class TestLoadShedder {
+
+  @Test
+  public void testCreate() {
+    Configuration conf = new Configuration();
+    assertNull(LoadShedder.create(conf));
+
+    conf.set(LoadShedder.OVERLOAD_POLICY_KEY, "block");
+    assertNull(LoadShedder.create(conf));
+
+    conf.set(LoadShedder.OVERLOAD_POLICY_KEY, "no-such-policy");
+    assertNull(LoadShedder.create(conf));
+
+    conf.set(LoadShedder.OVERLOAD_POLICY_KEY, "drop-oldest");
+    assertEquals(LoadShedder.Policy.DROP_OLDEST, LoadShedder.create(conf).getPolicy());
+  }
+
+  @Test
+  public void testDropNewest() throws InterruptedException {
+    ArrayBoundedSelectableQueue<Object> queue = new ArrayBoundedSelectableQueue<Object>(2);
+    LoadShedder shedder = new LoadShedder(LoadShedder.Policy.DROP_NEWEST, 0.0);
+    EventWrapper e1 = new EmptyEventWrapper();
+    EventWrapper e2 = new EmptyEventWrapper();
+    EventWrapper e3 = new EmptyEventWrapper();
+
+    assertTrue(shedder.enqueue(queue, e1));
+    assertTrue(shedder.enqueue(queue, e2));
+    assertFalse(shedder.enqueue(queue, e3));
+    assertEquals(1, shedder.getShedCount());
+
+    assertSame(e1, queue.take());
+    assertSame(e2, queue.take());
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void testDropOldest() throws InterruptedException {
+    ArrayBoundedSelectableQueue<Object> queue = new ArrayBoundedSelectableQueue<Object>(3);
+    LoadShedder shedder = new LoadShedder(LoadShedder.Policy.DROP_OLDEST, 0.0);
+    Watermark mark = new Watermark(10, "s");
+    EventWrapper e1 = new EmptyEventWrapper();
+    EventWrapper e2 = new EmptyEventWrapper();
+    EventWrapper e3 = new EmptyEventWrapper();
+    EventWrapper e4 = new EmptyEventWrapper();
+
+    // Watermarks are put in the queue by the source context, but never evicted.
+    queue.put(mark);
+    assertTrue(shedder.enqueue(queue, e1));
+    assertTrue(shedder.enqueue(queue, e2));
+    assertTrue(shedder.enqueue(queue, e3));
+    assertTrue(shedder.enqueue(queue, e4));
+    assertEquals(2, shedder.getShedCount());
+
+    assertSame(mark, queue.take());
+    assertSame(e3, queue.take());
+    assertSame(e4, queue.take());
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void testSample() throws InterruptedException {
+    ArrayBoundedSelectableQueue<Object> queue = new ArrayBoundedSelectableQueue<Object>(10);
+    LoadShedder shedder = new LoadShedder(LoadShedder.Policy.SAMPLE, 0.5);
+
+    // Below the threshold, everything is kept.
+    for (int i = 0; i < 5; i++) {
+      assertTrue(shedder.enqueue(queue, new EmptyEventWrapper()));
+    }
+    assertEquals(0, shedder.getShedCount());
+
+    // Above it, some events are dropped; once the queue is full, all are.
+    for (int i = 0; i < 100; i++) {
+      shedder.enqueue(queue, new EmptyEventWrapper());
+    }
+    assertTrue(queue.size() <= 10);
+    assertEquals(105 - queue.size(), shedder.getShedCount());
+    assertFalse(shedder.enqueue(queue, new EmptyEventWrapper()));
+  }
+
+  @Test
+  public void testDropOldestKeepsWatermarks() throws InterruptedException {
+    // A queue holding only watermarks has no room for an event, but the
+    // event is dropped rather than waited for.
+    ArrayBoundedSelectableQueue<Object> queue = new ArrayBoundedSelectableQueue<Object>(2);
+    LoadShedder shedder = new LoadShedder(LoadShedder.Policy.DROP_OLDEST, 0.0);
+    queue.put(new Watermark(10, "s"));
+    queue.put(new Watermark(20, "s"));
+
+    assertFalse(shedder.enqueue(queue, new EmptyEventWrapper()));
+    assertFalse(shedder.offerWatermark(queue, new Watermark(30, "s")));
+    assertEquals(1, shedder.getShedCount());
+    assertEquals(2, queue.size());
+  }
+
+  private EventWrapper makeEvent(long timestamp) {
+    EventWrapper e = new EmptyEventWrapper();
+    e.reset(new EventImpl(new byte[0], timestamp, Event.Priority.INFO, 0, "host"));
+    return e;
+  }
+
+  /**
+   * Emit many more events than fit in a source's queue, with a watermark
+   * after each of them, and nothing consuming the queue. The source must
+   * never block; once there is room, the newest watermark is queued.
+   */
+  private void runFullQueue(LoadShedder.Policy policy) throws Exception {
+    LoadShedder shedder = new LoadShedder(policy, 0.5);
+    MTGeneratorElemContext context = new MTGeneratorElemContext(null,
+        new WatermarkGenerator(0, 1), shedder);
+    context.createDownstreamQueues();
+    ArrayBoundedSelectableQueue<Object> queue =
+        (ArrayBoundedSelectableQueue<Object>) context.getDownstreamQueues().get(0);
+
+    int numEvents = 3 * queue.getCapacity();
+    for (int i = 1; i <= numEvents; i++) {
+      context.emit(makeEvent(i));
+    }
+    assertTrue(shedder.getShedCount() > 0);
+
+    // Drain the queue; the next event releases the held watermark.
+    while (queue.size() > 0) {
+      queue.take();
+    }
+    context.emit(makeEvent(numEvents + 1));
+
+    long lastWatermark = -1;
+    while (queue.size() > 0) {
+      Object item = queue.take();
+      if (item instanceof Watermark) {
+        assertTrue(((Watermark) item).getTime() > lastWatermark);
+        lastWatermark = ((Watermark) item).getTime();
+      }
+    }
+    assertEquals(numEvents + 1, lastWatermark);
+  }
+
+  @Test(timeOut = 60000)
+  public void testFullQueueWithWatermarks() throws Exception {
+    runFullQueue(LoadShedder.Policy.DROP_NEWEST);
+    runFullQueue(LoadShedder.Policy.DROP_OLDEST);
+    runFullQueue(LoadShedder.Policy.SAMPLE);
+  }
+}
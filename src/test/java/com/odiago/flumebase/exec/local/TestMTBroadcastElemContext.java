@@ -0,0 +1,83 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+import com.odiago.flumebase.exec.EmptyEventWrapper;
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.FlowElementImpl;
+import com.odiago.flumebase.exec.Watermark;
+import com.odiago.flumebase.exec.WatermarkGenerator;
+
+import com.odiago.flumebase.util.concurrent.SelectableQueue;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that an element feeding several elements in another thread queues
+ * each event, and each watermark, for every one of them.
+ */
+public class TestMTBroadcastElemContext {
+
+  /** An element which ignores its input. */
+  private static class NullElement extends FlowElementImpl {
+    public NullElement() {
+      super(null);
+    }
+
+    @Override
+    public void takeEvent(EventWrapper e) {
+    }
+  }
+
+  @Test
+  public void testBroadcast() throws IOException, InterruptedException {
+    List<FlowElement> downstream = new ArrayList<FlowElement>();
+    downstream.add(new NullElement());
+    downstream.add(new NullElement());
+    MTBroadcastElemContext context = new MTBroadcastElemContext(downstream,
+        new WatermarkGenerator(0, 1));
+    context.createDownstreamQueues();
+
+    List<SelectableQueue<Object>> queues = context.getDownstreamQueues();
+    assertEquals(2, queues.size());
+    assertEquals(downstream, context.getDownstream());
+
+    EventWrapper e = new EmptyEventWrapper();
+    e.reset(new EventImpl(new byte[0], 100, Event.Priority.INFO, 0, "host"));
+    context.emit(e);
+
+    for (SelectableQueue<Object> queue : queues) {
+      assertSame(e, queue.take());
+      Object watermark = queue.take();
+      assertTrue(watermark instanceof Watermark);
+      assertEquals(100, ((Watermark) watermark).getTime());
+      assertEquals(0, queue.size());
+    }
+  }
+}
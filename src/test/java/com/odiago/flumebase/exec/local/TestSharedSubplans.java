@@ -0,0 +1,265 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.generic.GenericData;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.FlowElementImpl;
+import com.odiago.flumebase.exec.FlowId;
+import com.odiago.flumebase.exec.FlowInfo;
+import com.odiago.flumebase.exec.QuerySubmitResponse;
+import com.odiago.flumebase.exec.Watermark;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.FormatSpec;
+import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.StreamSourceType;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.MarkSharedPrefixes;
+import com.odiago.flumebase.plan.PlanNode;
+
+import com.odiago.flumebase.testutil.MemStreamBuilder;
+import com.odiago.flumebase.testutil.RtsqlTestCase;
+import com.odiago.flumebase.testutil.StreamBuilder;
+
+import com.odiago.flumebase.util.concurrent.SelectableList;
+import com.odiago.flumebase.util.concurrent.SyncSelectableQueue;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that chains of a source, filters and projections are marked for
+ * sharing between flows, and that shared chains feed each attached flow.
+ */
+public class TestSharedSubplans extends RtsqlTestCase {
+
+  /** FlowElement which records the watermarks delivered to it. */
+  private static class WatermarkCollector extends FlowElementImpl {
+    private List<Long> mTimes = new ArrayList<Long>();
+
+    public WatermarkCollector(FlowElementContext context) {
+      super(context);
+    }
+
+    @Override
+    public void takeEvent(EventWrapper e) {
+    }
+
+    @Override
+    public void takeWatermark(Watermark w) {
+      mTimes.add(Long.valueOf(w.getTime()));
+    }
+
+    public List<Long> getTimes() {
+      return mTimes;
+    }
+  }
+
+  /** Define stream 's', read from a Flume source. */
+  private void addLiveStream() {
+    addLiveStream("/dev/null");
+  }
+
+  /** Define stream 's', read from a Flume source tailing 'filename'. */
+  private void addLiveStream(String filename) {
+    StreamBuilder streamBuilder = new StreamBuilder("s");
+    streamBuilder.addField(new TypedField("a", Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.addField(new TypedField("b", Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.setFormat(new FormatSpec("delimited"));
+    streamBuilder.setSourceType(StreamSourceType.Source);
+    streamBuilder.setLocal(true);
+    streamBuilder.setSource("tail(\"" + filename + "\")");
+    getSymbolTable().addSymbol(streamBuilder.build());
+  }
+
+  /** @return the shared prefix key in the plan explained for 'query', or null. */
+  private String explainPrefixKey(String query) throws InterruptedException {
+    QuerySubmitResponse response = getEnvironment().submitQuery("EXPLAIN " + query,
+        getQueryOpts());
+    String msg = response.getMessage();
+    int keyPos = msg.indexOf(PlanNode.SHARED_PREFIX_ATTR + " : ");
+    if (keyPos == -1) {
+      return null;
+    }
+    int endPos = msg.indexOf("\n", keyPos);
+    return msg.substring(keyPos, endPos);
+  }
+
+  @Test
+  public void testLiveStreamKeys() throws IOException, InterruptedException {
+    addLiveStream();
+    getEnvironment().connect();
+
+    String key = explainPrefixKey("SELECT a FROM s WHERE a > 1");
+    assertNotNull(key);
+    assertEquals(key, explainPrefixKey("SELECT a FROM s WHERE a > 1"));
+    assertFalse(key.equals(explainPrefixKey("SELECT a FROM s WHERE a > 2")));
+    assertFalse(key.equals(explainPrefixKey("SELECT a FROM s WHERE b > 1")));
+
+    // A flow whose source drops events when overloaded can't share a chain
+    // whose source waits instead.
+    getConf().set(LoadShedder.OVERLOAD_POLICY_KEY, "drop-newest");
+    String sheddingKey = explainPrefixKey("SELECT a FROM s WHERE a > 1");
+    assertNotNull(sheddingKey);
+    assertFalse(key.equals(sheddingKey));
+  }
+
+  @Test(groups = { "slow" })
+  public void testCancelCreatingFlow() throws IOException, InterruptedException {
+    File sourceFile = File.createTempFile("shared-", ".txt");
+    sourceFile.deleteOnExit();
+    addLiveStream(sourceFile.getAbsolutePath());
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "first");
+    FlowId firstId = env.submitQuery("SELECT a FROM s WHERE a > 1",
+        getQueryOpts()).getFlowId();
+    assertNotNull(firstId);
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "second");
+    FlowId secondId = env.submitQuery("SELECT a FROM s WHERE a > 1",
+        getQueryOpts()).getFlowId();
+    assertNotNull(secondId);
+
+    // The first flow started the chain which the second shares; the chain
+    // keeps feeding the second flow after the first is canceled.
+    env.cancelFlow(firstId);
+    Map<FlowId, FlowInfo> flows = env.listFlows();
+    assertFalse(flows.containsKey(firstId));
+    assertTrue(flows.containsKey(secondId));
+
+    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(sourceFile)));
+    try {
+      for (int i = 0; i < 4; i++) {
+        writer.write("" + i + "," + i + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+
+    MemoryOutputElement output = getOutput("second");
+    assertNotNull(output);
+    SelectableList<GenericData.Record> outRecords = output.getRecords();
+    synchronized (outRecords) {
+      while (outRecords.size() < 2) {
+        outRecords.wait();
+      }
+
+      assertEquals(Integer.valueOf(2), outRecords.get(0).get("a"));
+      assertEquals(Integer.valueOf(3), outRecords.get(1).get("a"));
+    }
+
+    env.cancelFlow(secondId);
+    assertEquals(0, env.listFlows().size());
+  }
+
+  @Test
+  public void testReplayedStreamNotShared() throws IOException, InterruptedException {
+    MemStreamBuilder streamBuilder = new MemStreamBuilder("s");
+    streamBuilder.addField(new TypedField("a", Type.getPrimitive(Type.TypeName.INT)));
+    getSymbolTable().addSymbol(streamBuilder.build());
+    getEnvironment().connect();
+
+    assertNull(explainPrefixKey("SELECT a FROM s WHERE a > 1"));
+  }
+
+  @Test
+  public void testSharingDisabled() throws IOException, InterruptedException {
+    addLiveStream();
+    getConf().setBoolean(MarkSharedPrefixes.SHARING_ENABLED_KEY, false);
+    getEnvironment().connect();
+
+    assertNull(explainPrefixKey("SELECT a FROM s WHERE a > 1"));
+  }
+
+  @Test
+  public void testRebindOnDetach() throws IOException, InterruptedException {
+    LocalContext sourceContext = new SharedFlowElemContext();
+    WatermarkCollector source = new WatermarkCollector(sourceContext);
+    SharedSubplan subplan = new SharedSubplan("key",
+        Collections.singletonList(new FlowElementNode(source)),
+        new SharedFlowElemContext(), new ArrayList<FlowElement>());
+    ActiveFlowData survivor = new ActiveFlowData(new LocalFlow(new FlowId(2)));
+
+    subplan.setFlowData(survivor);
+    assertSame(survivor, sourceContext.getFlowData());
+  }
+
+  @Test
+  public void testAttachAndDetach() throws IOException, InterruptedException {
+    SharedFlowElemContext tailContext = new SharedFlowElemContext();
+    WatermarkCollector first = new WatermarkCollector(new SinkFlowElemContext(new FlowId(1)));
+    WatermarkCollector second = new WatermarkCollector(new SinkFlowElemContext(new FlowId(2)));
+
+    SharedSubplan subplan = new SharedSubplan("key", new ArrayList<FlowElementNode>(),
+        tailContext, Collections.<FlowElement>singletonList(first));
+    subplan.attach(new FlowId(1), subplan.getDownstream());
+    tailContext.emit(new Watermark(1, "s"));
+
+    // A second flow receives events emitted after it attaches.
+    subplan.attach(new FlowId(2), Collections.<FlowElement>singletonList(second));
+    assertEquals(2, subplan.getNumAttachedFlows());
+    tailContext.emit(new Watermark(2, "s"));
+
+    assertTrue(subplan.detach(new FlowId(1)));
+    tailContext.emit(new Watermark(3, "s"));
+
+    assertEquals(2, first.getTimes().size());
+    assertEquals(Long.valueOf(2), first.getTimes().get(1));
+    assertEquals(2, second.getTimes().size());
+    assertEquals(Long.valueOf(3), second.getTimes().get(1));
+
+    // The chain is unreferenced once the last flow detaches.
+    assertFalse(subplan.detach(new FlowId(2)));
+    assertEquals(0, tailContext.getDownstream().size());
+  }
+
+  @Test
+  public void testClosedChainNotLive() throws IOException, InterruptedException {
+    LocalContext sourceContext = new SharedFlowElemContext();
+    sourceContext.initControlQueue(new SyncSelectableQueue<Object>());
+    WatermarkCollector source = new WatermarkCollector(sourceContext);
+    SharedSubplan subplan = new SharedSubplan("key",
+        Collections.singletonList(new FlowElementNode(source)),
+        new SharedFlowElemContext(), new ArrayList<FlowElement>());
+
+    source.open();
+    assertTrue(subplan.isLive());
+    source.close();
+    assertFalse(subplan.isLive());
+  }
+}
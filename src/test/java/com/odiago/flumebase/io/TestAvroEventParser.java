@@ -21,6 +21,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -85,4 +86,37 @@ public class TestAvroEventParser {
         parser.getColumn(1, Type.getPrimitive(Type.TypeName.STRING));
     assertEquals("foo", outRight.toString());
   }
+
+  @Test
+  public void testRequiredColumns() throws ColumnParseException, IOException {
+    // Only the third field is decoded; the parser still returns the others
+    // if they are requested anyway.
+    List<Schema.Field> fields = new ArrayList<Schema.Field>();
+    fields.add(new Schema.Field("a", Schema.create(Schema.Type.INT), null, null));
+    fields.add(new Schema.Field("b", Schema.create(Schema.Type.STRING), null, null));
+    fields.add(new Schema.Field("c", Schema.create(Schema.Type.LONG), null, null));
+    Schema schema = Schema.createRecord("recordname", null, null, false);
+    schema.setFields(fields);
+
+    GenericData.Record record = new GenericData.Record(schema);
+    record.put("a", 4);
+    record.put("b", "foo");
+    record.put("c", 12L);
+
+    BitSet required = new BitSet();
+    required.set(2);
+    EventParser parser = makeParser(schema);
+    parser.setRequiredColumns(required);
+    parser.reset(makeEvent(record, schema));
+    assertEquals(Long.valueOf(12), parser.getColumn(2, Type.getPrimitive(Type.TypeName.BIGINT)));
+    assertEquals(Integer.valueOf(4), parser.getColumn(0, Type.getPrimitive(Type.TypeName.INT)));
+
+    parser = makeParser(schema);
+    parser.setRequiredColumns(required);
+    parser.reset(makeEvent(record, schema));
+    CharSequence outB = (CharSequence)
+        parser.getColumn(1, Type.getPrimitive(Type.TypeName.STRING));
+    assertEquals("foo", outB.toString());
+    assertEquals(Long.valueOf(12), parser.getColumn(2, Type.getPrimitive(Type.TypeName.BIGINT)));
+  }
 }
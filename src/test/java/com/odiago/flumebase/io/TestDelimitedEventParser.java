@@ -104,6 +104,14 @@ public class TestDelimitedEventParser {
       assertEquals(8 - i, result);
     }
 
+    // Open a later column first, then an earlier one, then the next; each
+    // column's cached value must stay in its own slot.
+    ep.reset(makeEvent("1,2,3"));
+    assertEquals(2, ((Integer) ep.getColumn(1, Type.getPrimitive(Type.TypeName.INT))).intValue());
+    assertEquals(1, ((Integer) ep.getColumn(0, Type.getPrimitive(Type.TypeName.INT))).intValue());
+    assertEquals(3, ((Integer) ep.getColumn(2, Type.getPrimitive(Type.TypeName.INT))).intValue());
+    assertEquals(1, ((Integer) ep.getColumn(0, Type.getPrimitive(Type.TypeName.INT))).intValue());
+
     Utf8 s;
 
     // In-order parsing with strings.
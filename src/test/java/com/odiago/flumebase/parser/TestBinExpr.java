@@ -575,6 +575,91 @@ public class TestBinExpr extends ExprTestCase {
     }
   }
 
+  @Test
+  public void testShortCircuit() throws Exception {
+    Expr binExpr;
+    TypeChecker checker;
+    Object value;
+
+    // The rhs divides by zero if it is evaluated.
+    Expr divByZero = new BinExpr(
+        new BinExpr(
+            new ConstExpr(Type.getPrimitive(Type.TypeName.INT), Integer.valueOf(1)),
+            BinOp.Div,
+            new ConstExpr(Type.getPrimitive(Type.TypeName.INT), Integer.valueOf(0))),
+        BinOp.Eq,
+        new ConstExpr(Type.getPrimitive(Type.TypeName.INT), Integer.valueOf(1)));
+
+    binExpr = new BinExpr(
+        new ConstExpr(Type.getPrimitive(Type.TypeName.BOOLEAN), Boolean.FALSE),
+        BinOp.And,
+        divByZero);
+    checker = new TypeChecker(new HashSymbolTable());
+    binExpr.accept(checker);
+    value = binExpr.eval(getEmptyEventWrapper());
+    assertEquals(Boolean.FALSE, value);
+
+    binExpr = new BinExpr(
+        new ConstExpr(Type.getPrimitive(Type.TypeName.BOOLEAN), Boolean.TRUE),
+        BinOp.Or,
+        divByZero);
+    checker = new TypeChecker(new HashSymbolTable());
+    binExpr.accept(checker);
+    value = binExpr.eval(getEmptyEventWrapper());
+    assertEquals(Boolean.TRUE, value);
+
+    // AND and OR follow SQL's three-valued logic where an argument is NULL.
+    Expr nullCmp = new BinExpr(
+        new ConstExpr(Type.getNullable(Type.TypeName.INT), null),
+        BinOp.Eq,
+        new ConstExpr(Type.getPrimitive(Type.TypeName.INT), Integer.valueOf(1)));
+
+    binExpr = new BinExpr(
+        new ConstExpr(Type.getPrimitive(Type.TypeName.BOOLEAN), Boolean.FALSE),
+        BinOp.And,
+        nullCmp);
+    checker = new TypeChecker(new HashSymbolTable());
+    binExpr.accept(checker);
+    value = binExpr.eval(getEmptyEventWrapper());
+    assertEquals(Boolean.FALSE, value);
+
+    binExpr = new BinExpr(
+        nullCmp,
+        BinOp.And,
+        new ConstExpr(Type.getPrimitive(Type.TypeName.BOOLEAN), Boolean.FALSE));
+    checker = new TypeChecker(new HashSymbolTable());
+    binExpr.accept(checker);
+    value = binExpr.eval(getEmptyEventWrapper());
+    assertEquals(Boolean.FALSE, value);
+
+    binExpr = new BinExpr(
+        nullCmp,
+        BinOp.And,
+        new ConstExpr(Type.getPrimitive(Type.TypeName.BOOLEAN), Boolean.TRUE));
+    checker = new TypeChecker(new HashSymbolTable());
+    binExpr.accept(checker);
+    value = binExpr.eval(getEmptyEventWrapper());
+    assertEquals(null, value);
+
+    binExpr = new BinExpr(
+        nullCmp,
+        BinOp.Or,
+        new ConstExpr(Type.getPrimitive(Type.TypeName.BOOLEAN), Boolean.TRUE));
+    checker = new TypeChecker(new HashSymbolTable());
+    binExpr.accept(checker);
+    value = binExpr.eval(getEmptyEventWrapper());
+    assertEquals(Boolean.TRUE, value);
+
+    binExpr = new BinExpr(
+        nullCmp,
+        BinOp.Or,
+        new ConstExpr(Type.getPrimitive(Type.TypeName.BOOLEAN), Boolean.FALSE));
+    checker = new TypeChecker(new HashSymbolTable());
+    binExpr.accept(checker);
+    value = binExpr.eval(getEmptyEventWrapper());
+    assertEquals(null, value);
+  }
+
   @Test
   public void testOr() throws Exception {
     Expr binExpr;
@@ -91,6 +91,21 @@ public class RtsqlTestCase {
     tearDown();
   }
 
+  /**
+   * Shut down the environment and replace it with a new one that shares its
+   * configuration, but has no streams, flows or outputs. This simulates a
+   * restart of the server.
+   */
+  protected void restartEnvironment() throws IOException, InterruptedException {
+    if (mEnvironment.isConnected()) {
+      mEnvironment.shutdown();
+    }
+
+    mSymbolTable = new HashSymbolTable(new BuiltInSymbolTable());
+    mOutputs = Collections.synchronizedMap(new HashMap<String, MemoryOutputElement>());
+    mEnvironment = new LocalEnvironment(mConf, mSymbolTable, mOutputs, mFlumeConfig);
+  }
+
   protected Map<String, String> getQueryOpts() {
     // TODO: Pull "flumebase.*" from mConf.
     return new HashMap<String, String>();
@@ -0,0 +1,180 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.avro.util.Utf8;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that the HyperLogLog and KllSketch summaries estimate within their
+ * expected error, and that merged sketches summarize the union of their inputs.
+ * Also test that RotatingBloomFilter finds every value added within a range,
+ * and forgets the values of old intervals.
+ */
+public class TestSketches {
+
+  private void assertWithin(String msg, double expected, double actual, double relError) {
+    assertTrue(msg + ": expected " + expected + " but got " + actual,
+        Math.abs(expected - actual) <= expected * relError);
+  }
+
+  @Test
+  public void testHllSmall() {
+    HyperLogLog hll = new HyperLogLog();
+    assertEquals(0, hll.estimate());
+    for (int i = 0; i < 10; i++) {
+      hll.add(Integer.valueOf(i));
+      hll.add(Integer.valueOf(i)); // Duplicates are not counted.
+    }
+    assertEquals(10, hll.estimate());
+  }
+
+  @Test
+  public void testHllLarge() {
+    HyperLogLog hll = new HyperLogLog();
+    for (long i = 0; i < 100000; i++) {
+      hll.add(Long.valueOf(i));
+    }
+    assertWithin("distinct estimate", 100000, hll.estimate(), 0.05);
+  }
+
+  @Test
+  public void testHllMerge() {
+    HyperLogLog a = new HyperLogLog();
+    HyperLogLog b = new HyperLogLog();
+    for (int i = 0; i < 20000; i++) {
+      a.add("user" + i);
+      b.add(new Utf8("user" + (i + 10000))); // Half overlaps with a.
+    }
+    a.merge(b);
+    assertWithin("merged estimate", 30000, a.estimate(), 0.05);
+  }
+
+  @Test
+  public void testKllExact() {
+    // Below its capacity, the sketch retains every value.
+    KllSketch kll = new KllSketch();
+    assertTrue(Double.isNaN(kll.getQuantile(0.5)));
+    for (int i = 1; i <= 100; i++) {
+      kll.add(i);
+    }
+    assertEquals(1.0, kll.getQuantile(0.0), 0.0);
+    assertEquals(50.0, kll.getQuantile(0.5), 0.0);
+    assertEquals(100.0, kll.getQuantile(1.0), 0.0);
+  }
+
+  @Test
+  public void testKllMerge() {
+    KllSketch a = new KllSketch();
+    KllSketch b = new KllSketch();
+    for (int i = 0; i < 50000; i++) {
+      a.add(i);
+      b.add(50000 + i);
+    }
+    a.merge(b);
+    assertEquals(100000, a.getCount());
+    // Rank error of the default sketch is under 2%.
+    assertEquals(50000.0, a.getQuantile(0.5), 2000.0);
+    assertEquals(99000.0, a.getQuantile(0.99), 2000.0);
+    assertEquals(99999.0, a.getQuantile(1.0), 0.0);
+  }
+
+  @Test
+  public void testSerialization() throws IOException {
+    HyperLogLog hll = new HyperLogLog();
+    KllSketch kll = new KllSketch();
+    for (int i = 0; i < 5000; i++) {
+      hll.add(Integer.valueOf(i));
+      kll.add(i);
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    hll.write(out);
+    kll.write(out);
+    out.close();
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    HyperLogLog hll2 = HyperLogLog.read(in);
+    KllSketch kll2 = KllSketch.read(in);
+    assertEquals(hll.estimate(), hll2.estimate());
+    assertEquals(kll.getCount(), kll2.getCount());
+    assertEquals(kll.getQuantile(0.5), kll2.getQuantile(0.5), 0.0);
+
+    // The deserialized sketches should continue to accept values.
+    kll2.add(10000);
+    assertEquals(10000.0, kll2.getQuantile(1.0), 0.0);
+  }
+
+  @Test
+  public void testBloomFilter() {
+    RotatingBloomFilter filter = new RotatingBloomFilter(100);
+    for (int i = 0; i < 1000; i++) {
+      filter.add("key" + i, i);
+    }
+    assertEquals(10, filter.getNumIntervals());
+
+    // Every key added is found in a range containing its timestamp; strings
+    // are found whether held as a String or a Utf8.
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(filter.mightContain("key" + i, i, i));
+      assertTrue(filter.mightContain(new Utf8("key" + i), i - 50, i + 50));
+    }
+
+    int falsePositives = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (filter.mightContain("other" + i, 0, 999)) {
+        falsePositives++;
+      }
+    }
+    assertTrue("false positives: " + falsePositives, falsePositives < 20);
+
+    // Ranges outside the intervals' times hold nothing.
+    assertFalse(filter.mightContain("key5", 1000, 2000));
+    assertFalse(filter.mightContain("key5", -100, -1));
+  }
+
+  @Test
+  public void testBloomFilterRotation() {
+    RotatingBloomFilter filter = new RotatingBloomFilter(100);
+    filter.add(Integer.valueOf(1), 50);
+    filter.add(Integer.valueOf(2), 150);
+    filter.add(Integer.valueOf(3), -50);
+
+    // Intervals entirely before the bound are forgotten; those containing
+    // the bound are kept.
+    filter.removeOlderThan(120);
+    assertEquals(1, filter.getNumIntervals());
+    assertFalse(filter.mightContain(Integer.valueOf(1), 0, 200));
+    assertFalse(filter.mightContain(Integer.valueOf(3), -100, 200));
+    assertTrue(filter.mightContain(Integer.valueOf(2), 0, 200));
+
+    filter.removeOlderThan(1000);
+    assertEquals(0, filter.getNumIntervals());
+    assertFalse(filter.mightContain(Integer.valueOf(2), 0, 200));
+  }
+}
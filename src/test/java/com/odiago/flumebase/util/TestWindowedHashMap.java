@@ -17,6 +17,7 @@
 
 package com.odiago.flumebase.util;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.testng.annotations.Test;
@@ -159,5 +160,61 @@ public class TestWindowedHashMap {
     assertEquals(1, refined.size());
     assertContains(Integer.valueOf(3), refined);
   }
-}
 
+  @Test
+  public void testOutOfOrder() {
+    WindowedHashMap<String, Integer, Long> map = new WindowedHashMap<String, Integer, Long>();
+
+    // Entries arriving out of timestamp order are held in timestamp order.
+    map.put("foo", Integer.valueOf(3), Long.valueOf(3000));
+    map.put("bar", Integer.valueOf(10), Long.valueOf(2500));
+    map.put("foo", Integer.valueOf(1), Long.valueOf(1000));
+    map.put("foo", Integer.valueOf(2), Long.valueOf(2000));
+
+    List<Integer> refined = map.getRange("foo", Long.valueOf(0), Long.valueOf(5000),
+        false, false);
+    assertEquals(3, refined.size());
+    assertEquals(Integer.valueOf(1), refined.get(0));
+    assertEquals(Integer.valueOf(2), refined.get(1));
+    assertEquals(Integer.valueOf(3), refined.get(2));
+    assertEquals(Long.valueOf(1000), map.oldestTimestamp());
+
+    // Expiry removes exactly the older entries, and reports their keys.
+    List<String> removedKeys = new ArrayList<String>();
+    map.removeOlderThan(Long.valueOf(2600), removedKeys);
+    assertEquals(3, removedKeys.size());
+    assertFalse(map.containsKey("bar"));
+    refined = map.getRange("foo", Long.valueOf(0), Long.valueOf(5000), false, false);
+    assertEquals(1, refined.size());
+    assertEquals(Integer.valueOf(3), refined.get(0));
+
+    // A removed key does not affect the eviction of the others.
+    map.put("bar", Integer.valueOf(11), Long.valueOf(3500));
+    map.remove("foo");
+    assertEquals(Long.valueOf(3500), map.oldestTimestamp());
+    map.removeOlderThan(Long.valueOf(4000));
+    assertTrue(map.isEmpty());
+    assertNull(map.oldestTimestamp());
+  }
+
+  @Test
+  public void testManyEntries() {
+    // Hold enough entries for one key that its arrays are grown and
+    // compacted; range probes must still find exactly the right entries.
+    WindowedHashMap<String, Integer, Long> map = new WindowedHashMap<String, Integer, Long>();
+    for (int i = 0; i < 1000; i++) {
+      map.put("foo", Integer.valueOf(i), Long.valueOf(i));
+      if (i % 100 == 99) {
+        map.removeOlderThan(Long.valueOf(i - 50));
+      }
+    }
+
+    List<Integer> refined = map.getRange("foo", Long.valueOf(960), Long.valueOf(970),
+        true, false);
+    assertEquals(10, refined.size());
+    assertEquals(Integer.valueOf(961), refined.get(0));
+    assertEquals(Integer.valueOf(970), refined.get(9));
+    assertEquals(Long.valueOf(949), map.oldestTimestamp());
+    assertEquals(51, map.get("foo").size());
+  }
+}